@@ -570,6 +570,19 @@ public class Case {
         }
     }
 
+    /**
+     * Gets the full path to the log directory of this case
+     *
+     * @return logDirectoryPath
+     */
+    public String getLogDirectoryPath() {
+        if (xmlcm == null) {
+            return "";
+        } else {
+            return xmlcm.getLogDir();
+        }
+    }
+
     /**
      * get the created date of this case
      *
@@ -327,7 +327,12 @@ public class DataResultTopComponent extends TopComponent implements DataResult {
         return dataResultPanel.getRootNode();
     }
 
-    void setNumMatches(int matches) {
+    /**
+     * Set number of matches to be displayed in the top right, for results
+     * still being added to the root node
+     * @param matches
+     */
+    public void setNumMatches(int matches) {
         this.dataResultPanel.setNumMatches(matches);
     }
 }
@@ -522,6 +522,32 @@ public class PlatformUtil {
         return virtMem;
     }
 
+    /**
+     * Query and return physical memory available to processes, including the
+     * memory used by the OS caches and buffers
+     *
+     * @return available physical memory in bytes or -1 if couldn't be queried
+     */
+    public static synchronized long getPhysicalMemoryAvailable() {
+        long availMem = -1;
+
+        try {
+            if (sigar == null) {
+                sigar = org.sleuthkit.autopsy.corelibs.SigarLoader.getSigar();
+            }
+
+            if (sigar == null) {
+                System.out.println("Can't get available mem, sigar not initialized. ");
+                return -1;
+            }
+            availMem = sigar.getMem().getActualFree();
+        } catch (Exception e) {
+            System.out.println("Can't get available mem, " + e.toString());
+        }
+
+        return availMem;
+    }
+
     /**
      * Return formatted string with Jvm heap and non-heap memory usage
      *
@@ -0,0 +1,284 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.coreutils;
+
+/**
+ * Single pass extractor of Latin strings from binary data, e.g. unallocated
+ * space.
+ *
+ * Every byte is classified by a lookup table and fed to two run detectors at
+ * once:
+ * - 8-bit strings: printable ASCII and, optionally, valid multi-byte UTF-8
+ * characters
+ * - UTF-16 strings: printable ASCII characters interleaved with zero bytes,
+ * both little and big endian, at either byte alignment
+ *
+ * Strings of at least MIN_CHARS characters are written to the output as UTF-8,
+ * one string per line. Runs are carried across calls of scan(), so the input
+ * can be fed in blocks of any size. The output is written directly to the
+ * caller's buffer, nothing is allocated per string or character.
+ *
+ * Not thread-safe, use an instance per input stream.
+ */
+public class StringScanner {
+
+    //num. of chars needed to qualify as a string
+    public static final int MIN_CHARS = 4;
+    private static final byte NLS = (byte) '\n';
+    //byte classes
+    private static final byte CLS_OTHER = 0;
+    private static final byte CLS_ZERO = 1;
+    private static final byte CLS_PRINT = 2;
+    private static final byte CLS_UTF8_CONT = 3;
+    private static final byte CLS_UTF8_LEAD2 = 4;
+    private static final byte CLS_UTF8_LEAD3 = 5;
+    private static final byte[] BYTE_CLASSES = new byte[256];
+
+    static {
+        BYTE_CLASSES[0] = CLS_ZERO;
+        for (int b = 1; b < 256; ++b) {
+            final byte cls;
+            if (StringExtract.isPrintableAscii((char) b)) {
+                cls = CLS_PRINT;
+            } else if (b >= 0x80 && b <= 0xBF) {
+                cls = CLS_UTF8_CONT;
+            } else if (b >= 0xC2 && b <= 0xDF) {
+                cls = CLS_UTF8_LEAD2;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                cls = CLS_UTF8_LEAD3;
+            } else {
+                cls = CLS_OTHER;
+            }
+            BYTE_CLASSES[b] = cls;
+        }
+    }
+    private final boolean extractUTF8;
+    private final boolean extractUTF16;
+    //8-bit run: chars in the run, bytes of the run until it qualifies as a string
+    private int chars8 = 0;
+    private final byte[] pending8 = new byte[MIN_CHARS * 3];
+    private int pending8Len = 0;
+    //multi-byte UTF-8 char being decoded
+    private final byte[] seq = new byte[3];
+    private int seqLen = 0;
+    private int seqNeed = 0;
+    //UTF-16 run: chars in the run, chars of the run until it qualifies as a string
+    private int chars16 = 0;
+    private final byte[] pending16 = new byte[MIN_CHARS];
+    //printable byte waiting for its zero byte
+    private byte candidate16;
+    private boolean expectZero16 = false;
+    //run started after a zero byte, the last char has no trailing zero
+    private boolean bigEndian16 = false;
+    private boolean prevZero = false;
+
+    /**
+     * @param extractUTF8 whether to extract multi-byte UTF-8 characters, in
+     * addition to ASCII
+     * @param extractUTF16 whether to extract UTF-16 strings
+     */
+    public StringScanner(boolean extractUTF8, boolean extractUTF16) {
+        this.extractUTF8 = extractUTF8;
+        this.extractUTF16 = extractUTF16;
+    }
+
+    /**
+     * Get the output buffer space needed to scan a block of input
+     *
+     * @param inputLen length of the input block
+     * @return max. number of bytes scan() or finish() can write
+     */
+    public static int getMaxOutputLength(int inputLen) {
+        //every input byte yields at most 1 output byte, plus a new line per string of 4+ bytes,
+        //plus the bytes of the runs pending from the previous block
+        return inputLen + inputLen / MIN_CHARS + 2 * (MIN_CHARS * 3 + 1) + 2;
+    }
+
+    /**
+     * Extract the strings from the next block of input
+     *
+     * @param in input buffer
+     * @param off offset of the block in the input buffer
+     * @param len length of the block
+     * @param out output buffer, with at least getMaxOutputLength(len) bytes
+     * from outOff
+     * @param outOff offset in the output buffer to write at
+     * @return number of bytes written to the output buffer
+     */
+    public int scan(byte[] in, int off, int len, byte[] out, int outOff) {
+        int o = outOff;
+        final int end = off + len;
+        for (int i = off; i < end; ++i) {
+            final byte b = in[i];
+            final byte cls = BYTE_CLASSES[b & 0xFF];
+
+            //8-bit strings
+            if (seqNeed > 0) {
+                if (cls == CLS_UTF8_CONT) {
+                    seq[seqLen++] = b;
+                    if (seqLen == seqNeed) {
+                        seqNeed = 0;
+                        if (isPrintableSeq()) {
+                            o = add8(seq, seqLen, out, o);
+                        } else {
+                            o = end8(out, o);
+                        }
+                    }
+                } else {
+                    //broken sequence, the byte starts over
+                    seqNeed = 0;
+                    o = end8(out, o);
+                    o = scan8(b, cls, out, o);
+                }
+            } else {
+                o = scan8(b, cls, out, o);
+            }
+
+            //UTF-16 strings
+            if (extractUTF16) {
+                if (expectZero16) {
+                    if (cls == CLS_ZERO) {
+                        expectZero16 = false;
+                        o = add16(candidate16, out, o);
+                    } else {
+                        if (bigEndian16 && chars16 > 0) {
+                            //big endian string ends with a char without the trailing zero
+                            o = add16(candidate16, out, o);
+                        }
+                        o = end16(out, o);
+                        expectZero16 = cls == CLS_PRINT;
+                        candidate16 = b;
+                        bigEndian16 = false;
+                    }
+                } else if (cls == CLS_PRINT) {
+                    if (chars16 == 0) {
+                        bigEndian16 = prevZero;
+                    }
+                    candidate16 = b;
+                    expectZero16 = true;
+                } else {
+                    o = end16(out, o);
+                }
+                prevZero = cls == CLS_ZERO;
+            }
+        }
+        return o - outOff;
+    }
+
+    /**
+     * End the strings at the end of the input
+     *
+     * @param out output buffer, with at least getMaxOutputLength(0) bytes
+     * from outOff
+     * @param outOff offset in the output buffer to write at
+     * @return number of bytes written to the output buffer
+     */
+    public int finish(byte[] out, int outOff) {
+        int o = outOff;
+        seqNeed = 0;
+        o = end8(out, o);
+        if (expectZero16 && bigEndian16 && chars16 > 0) {
+            o = add16(candidate16, out, o);
+        }
+        o = end16(out, o);
+        expectZero16 = false;
+        prevZero = false;
+        return o - outOff;
+    }
+
+    private int scan8(byte b, byte cls, byte[] out, int o) {
+        switch (cls) {
+            case CLS_PRINT:
+                seq[0] = b;
+                return add8(seq, 1, out, o);
+            case CLS_UTF8_LEAD2:
+            case CLS_UTF8_LEAD3:
+                if (extractUTF8) {
+                    seq[0] = b;
+                    seqLen = 1;
+                    seqNeed = cls == CLS_UTF8_LEAD2 ? 2 : 3;
+                    return o;
+                }
+                return end8(out, o);
+            default:
+                return end8(out, o);
+        }
+    }
+
+    /**
+     * Check that the decoded UTF-8 sequence is a printable char, not an
+     * overlong encoding, a C1 control or a surrogate
+     */
+    private boolean isPrintableSeq() {
+        if (seqLen == 2) {
+            final int c = ((seq[0] & 0x1F) << 6) | (seq[1] & 0x3F);
+            return c >= 0xA0;
+        }
+        final int c = ((seq[0] & 0x0F) << 12) | ((seq[1] & 0x3F) << 6) | (seq[2] & 0x3F);
+        return c >= 0x800 && (c < 0xD800 || c > 0xDFFF) && c != 0xFFFE && c != 0xFFFF;
+    }
+
+    private int add8(byte[] bytes, int len, byte[] out, int o) {
+        if (chars8 >= MIN_CHARS) {
+            for (int i = 0; i < len; ++i) {
+                out[o++] = bytes[i];
+            }
+            return o;
+        }
+        for (int i = 0; i < len; ++i) {
+            pending8[pending8Len++] = bytes[i];
+        }
+        if (++chars8 == MIN_CHARS) {
+            System.arraycopy(pending8, 0, out, o, pending8Len);
+            o += pending8Len;
+            pending8Len = 0;
+        }
+        return o;
+    }
+
+    private int end8(byte[] out, int o) {
+        if (chars8 >= MIN_CHARS) {
+            out[o++] = NLS;
+        }
+        chars8 = 0;
+        pending8Len = 0;
+        return o;
+    }
+
+    private int add16(byte c, byte[] out, int o) {
+        if (chars16 >= MIN_CHARS) {
+            out[o++] = c;
+            return o;
+        }
+        pending16[chars16++] = c;
+        if (chars16 == MIN_CHARS) {
+            System.arraycopy(pending16, 0, out, o, MIN_CHARS);
+            o += MIN_CHARS;
+        }
+        return o;
+    }
+
+    private int end16(byte[] out, int o) {
+        if (chars16 >= MIN_CHARS) {
+            out[o++] = NLS;
+        }
+        chars16 = 0;
+        return o;
+    }
+}
@@ -24,6 +24,7 @@ import javax.swing.Action;
 import org.sleuthkit.autopsy.directorytree.ExternalViewerAction;
 import org.sleuthkit.autopsy.directorytree.ExtractAction;
 import org.sleuthkit.autopsy.directorytree.HashSearchAction;
+import org.sleuthkit.autopsy.directorytree.SimilarFileSearchAction;
 import org.sleuthkit.autopsy.directorytree.NewWindowViewAction;
 import org.sleuthkit.autopsy.directorytree.TagAction;
 import org.sleuthkit.autopsy.directorytree.ViewContextAction;
@@ -84,6 +85,7 @@ public class FileNode extends AbstractFsContentNode<AbstractFile> {
         actionsList.add(null); // creates a menu separator
         actionsList.add(new ExtractAction("Extract File", this));
         actionsList.add(new HashSearchAction("Search for files with the same MD5 hash", this));
+        actionsList.add(new SimilarFileSearchAction("Search for files with similar content", this));
         actionsList.add(null); // creates a menu separator
         actionsList.add(new TagAction(this));
         return actionsList.toArray(new Action[0]);
@@ -29,6 +29,7 @@ import org.sleuthkit.autopsy.datamodel.DisplayableItemNode.TYPE;
 import org.sleuthkit.autopsy.directorytree.ExternalViewerAction;
 import org.sleuthkit.autopsy.directorytree.ExtractAction;
 import org.sleuthkit.autopsy.directorytree.HashSearchAction;
+import org.sleuthkit.autopsy.directorytree.SimilarFileSearchAction;
 import org.sleuthkit.autopsy.directorytree.NewWindowViewAction;
 import org.sleuthkit.autopsy.directorytree.TagAction;
 import org.sleuthkit.datamodel.AbstractFile;
@@ -93,6 +94,7 @@ public class LocalFileNode extends AbstractAbstractFileNode<AbstractFile> {
         actionsList.add(null); // creates a menu separator
         actionsList.add(new ExtractAction("Extract", content)); //might not need this actions - already local file
         actionsList.add(new HashSearchAction("Search for files with the same MD5 hash", this));
+        actionsList.add(new SimilarFileSearchAction("Search for files with similar content", this));
         actionsList.add(null); // creates a menu separator
         actionsList.add(new TagAction(content));
 
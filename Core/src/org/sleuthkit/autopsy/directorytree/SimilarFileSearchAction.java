@@ -0,0 +1,45 @@
+/*
+ * Autopsy Forensic Browser
+ * 
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.directorytree;
+
+import java.awt.event.ActionEvent;
+import javax.swing.AbstractAction;
+import org.openide.nodes.Node;
+import org.openide.util.Lookup;
+
+/**
+ * Action to lookup the interface and call the real action in HashDatabase.
+ * The real action, HashDbSimilarSearchAction, implements
+ * SimilarFileSearchProvider, and should be the only instance of it.
+ */
+public class SimilarFileSearchAction extends AbstractAction {
+    Node contentNode;
+    
+    public SimilarFileSearchAction(String title, Node contentNode) {
+        super(title);
+        this.contentNode = contentNode;
+    }
+    
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        SimilarFileSearchProvider searcher = Lookup.getDefault().lookup(SimilarFileSearchProvider.class);
+        searcher.search(contentNode);
+    }
+    
+}
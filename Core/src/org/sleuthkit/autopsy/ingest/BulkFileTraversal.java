@@ -0,0 +1,242 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.ingest;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.sleuthkit.datamodel.AbstractFile;
+import org.sleuthkit.datamodel.SleuthkitCase;
+import org.sleuthkit.datamodel.TskCoreException;
+
+/**
+ * Bulk traversal of the file hierarchy for the file scheduler.
+ *
+ * Gets children of many directories at once (2 case database queries per batch
+ * of directories instead of a getChildren() query per directory), and memoizes
+ * the file system types and the root directory ids for the ingest run, so that
+ * the scheduler can check if children should be enqueued without querying the
+ * file system and the parent directory of every file.
+ */
+class BulkFileTraversal {
+
+    private static final Logger logger = Logger.getLogger(BulkFileTraversal.class.getName());
+    //file system type values, by file system object id
+    private final Map<Long, Integer> fsTypes = new HashMap<Long, Integer>();
+    //object ids of file system root directories
+    private final Set<Long> rootDirIds = new HashSet<Long>();
+    private SleuthkitCase sleuthkitCase;
+
+    /**
+     * Child file of a directory returned by the bulk query
+     */
+    static class ChildFile {
+
+        final AbstractFile file;
+        final long parentId;
+        //file system object id, or null if the file is not in a file system
+        final Long fsObjId;
+
+        ChildFile(AbstractFile file, long parentId, Long fsObjId) {
+            this.file = file;
+            this.parentId = parentId;
+            this.fsObjId = fsObjId;
+        }
+    }
+
+    /**
+     * (Re)load the memoized file system info from the case database. Should
+     * be called every time new content is scheduled, as it can add new file
+     * systems.
+     *
+     * @param sleuthkitCase case database to use
+     * @throws TskCoreException if the file system info could not be queried
+     */
+    @SuppressWarnings("deprecation")
+    synchronized void load(SleuthkitCase sleuthkitCase) throws TskCoreException {
+        this.sleuthkitCase = sleuthkitCase;
+        fsTypes.clear();
+        rootDirIds.clear();
+
+        ResultSet rs = null;
+        try {
+            rs = sleuthkitCase.runQuery("SELECT obj_id, ftype FROM tsk_fs_info");
+            while (rs.next()) {
+                fsTypes.put(rs.getLong("obj_id"), rs.getInt("ftype"));
+            }
+            sleuthkitCase.closeRunQuery(rs);
+            rs = null;
+
+            //root dirs are the children of the file system objects
+            rs = sleuthkitCase.runQuery("SELECT obj_id FROM tsk_objects WHERE par_obj_id IN "
+                    + "(SELECT obj_id FROM tsk_fs_info)");
+            while (rs.next()) {
+                rootDirIds.add(rs.getLong("obj_id"));
+            }
+        } catch (SQLException ex) {
+            throw new TskCoreException("Error querying file systems info", ex);
+        } finally {
+            closeQuery(rs);
+        }
+
+        logger.log(Level.INFO, "Loaded info of " + fsTypes.size() + " file systems for the file scheduler");
+    }
+
+    /**
+     * Clear the memoized info, e.g. when the scheduler is emptied
+     */
+    synchronized void clear() {
+        fsTypes.clear();
+        rootDirIds.clear();
+        sleuthkitCase = null;
+    }
+
+    /**
+     * Check if the info has been loaded for the current ingest
+     *
+     * @return true if loaded
+     */
+    synchronized boolean isLoaded() {
+        return sleuthkitCase != null;
+    }
+
+    /**
+     * Get the memoized file system type
+     *
+     * @param fsObjId file system object id
+     * @return file system type value, or null if not known
+     */
+    synchronized Integer getFsType(Long fsObjId) {
+        if (fsObjId == null) {
+            return null;
+        }
+        return fsTypes.get(fsObjId);
+    }
+
+    /**
+     * Check if the object is a root directory of a file system
+     *
+     * @param objId object id to check
+     * @return true if the object is a file system root directory
+     */
+    synchronized boolean isRootDir(long objId) {
+        return rootDirIds.contains(objId);
+    }
+
+    /**
+     * Get children files of all the parents in a single pass.
+     *
+     * @param parentIds object ids of the parent directories
+     * @return children of every parent, keyed and ordered by parent id. Parents
+     * with no children are not in the map.
+     * @throws TskCoreException if the children could not be queried
+     */
+    @SuppressWarnings("deprecation")
+    Map<Long, List<ChildFile>> getChildren(Collection<Long> parentIds) throws TskCoreException {
+        final Map<Long, List<ChildFile>> children = new LinkedHashMap<Long, List<ChildFile>>();
+        if (parentIds.isEmpty()) {
+            return children;
+        }
+
+        final SleuthkitCase skCase;
+        synchronized (this) {
+            skCase = sleuthkitCase;
+        }
+        if (skCase == null) {
+            throw new TskCoreException("File system info not loaded, can't query children in bulk");
+        }
+
+        final StringBuilder parentIdsList = new StringBuilder();
+        for (Long parentId : parentIds) {
+            if (parentIdsList.length() > 0) {
+                parentIdsList.append(',');
+            }
+            parentIdsList.append(parentId);
+        }
+
+        //query 1: the children files objects
+        final List<AbstractFile> files = skCase.findAllFilesWhere("obj_id IN (SELECT obj_id FROM tsk_objects WHERE par_obj_id IN ("
+                + parentIdsList.toString() + "))");
+        final Map<Long, AbstractFile> filesById = new HashMap<Long, AbstractFile>();
+        for (AbstractFile file : files) {
+            filesById.put(file.getId(), file);
+        }
+
+        //query 2: the parent and file system of every child, ordered by parent
+        ResultSet rs = null;
+        try {
+            rs = skCase.runQuery("SELECT tsk_objects.obj_id AS obj_id, tsk_objects.par_obj_id AS par_obj_id, "
+                    + "tsk_files.fs_obj_id AS fs_obj_id FROM tsk_objects, tsk_files "
+                    + "WHERE tsk_objects.obj_id = tsk_files.obj_id AND tsk_objects.par_obj_id IN ("
+                    + parentIdsList.toString() + ") ORDER BY tsk_objects.par_obj_id, tsk_objects.obj_id");
+            while (rs.next()) {
+                final long objId = rs.getLong("obj_id");
+                final long parentId = rs.getLong("par_obj_id");
+                long fsObjIdVal = rs.getLong("fs_obj_id");
+                final Long fsObjId = rs.wasNull() ? null : fsObjIdVal;
+
+                final AbstractFile file = filesById.get(objId);
+                if (file == null) {
+                    continue;
+                }
+                List<ChildFile> parentChildren = children.get(parentId);
+                if (parentChildren == null) {
+                    parentChildren = new ArrayList<ChildFile>();
+                    children.put(parentId, parentChildren);
+                }
+                parentChildren.add(new ChildFile(file, parentId, fsObjId));
+            }
+        } catch (SQLException ex) {
+            throw new TskCoreException("Error querying children of directories", ex);
+        } finally {
+            closeQuery(rs);
+        }
+
+        return children;
+    }
+
+    @SuppressWarnings("deprecation")
+    private void closeQuery(ResultSet rs) {
+        if (rs == null) {
+            return;
+        }
+        final SleuthkitCase skCase;
+        synchronized (this) {
+            skCase = sleuthkitCase;
+        }
+        try {
+            if (skCase != null) {
+                skCase.closeRunQuery(rs);
+            } else {
+                rs.close();
+            }
+        } catch (SQLException ex) {
+            logger.log(Level.WARNING, "Error closing result set after bulk files query", ex);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.ingest;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.logging.Level;
+import org.openide.util.Lookup;
+import org.sleuthkit.autopsy.coreutils.Logger;
+import org.sleuthkit.datamodel.AbstractFile;
+import org.sleuthkit.datamodel.TskCoreException;
+
+/**
+ * Header of a file, read once by the file type detection stage at the front
+ * of the file ingest pipeline, and shared by the file modules through
+ * IngestServices.getFileHeader(). Modules check signatures against the header
+ * bytes and get the MIME type detected from the header, instead of reading
+ * the start of the file and detecting the type themselves.
+ *
+ * The header of the file in the pipeline is reused by the ingest thread for
+ * the next file, modules must not keep it after process() returns.
+ */
+public class FileHeader {
+
+    /**
+     * Max. number of bytes read from the start of the file, enough for the
+     * signature based detection of the known file types
+     */
+    public static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final Logger logger = Logger.getLogger(FileHeader.class.getName());
+    private static volatile FileTypeDetector detector;
+    private final byte[] header = new byte[MAX_HEADER_SIZE];
+    private int length = 0;
+    private long fileId = -1;
+    private String fileName;
+    private boolean readError = false;
+    private boolean detected = false;
+    private String mimeType;
+
+    FileHeader() {
+    }
+
+    /**
+     * Read the header of a file
+     *
+     * @param file file to read the header of
+     * @return the header
+     */
+    static FileHeader read(AbstractFile file) {
+        final FileHeader fileHeader = new FileHeader();
+        fileHeader.reset(file);
+        return fileHeader;
+    }
+
+    /**
+     * Reuse the header for another file, reading its header
+     *
+     * @param file file to read the header of
+     */
+    void reset(AbstractFile file) {
+        fileId = file.getId();
+        fileName = file.getName();
+        length = 0;
+        readError = false;
+        detected = false;
+        mimeType = null;
+
+        final long toRead = Math.min(MAX_HEADER_SIZE, file.getSize());
+        if (toRead <= 0 || file.isDir()) {
+            return;
+        }
+        try {
+            final int read = file.read(header, 0, toRead);
+            length = Math.max(0, read);
+        } catch (TskCoreException ex) {
+            logger.log(Level.INFO, "Could not read the header of file: " + fileName + " (id: " + fileId + ")", ex);
+            readError = true;
+        }
+    }
+
+    /**
+     * @return id of the file of the header
+     */
+    public long getFileId() {
+        return fileId;
+    }
+
+    /**
+     * @return number of header bytes read, less than MAX_HEADER_SIZE if the
+     * file is smaller
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return true if the header could not be read
+     */
+    public boolean isReadError() {
+        return readError;
+    }
+
+    /**
+     * Get a byte of the header
+     *
+     * @param offset offset of the byte in the file
+     * @return the byte
+     * @throws IndexOutOfBoundsException if the offset is not in the header
+     */
+    public byte getByte(int offset) {
+        if (offset < 0 || offset >= length) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " not in header of length " + length);
+        }
+        return header[offset];
+    }
+
+    /**
+     * Check if the file has the signature at the offset
+     *
+     * @param signature signature bytes
+     * @param offset offset of the signature in the file
+     * @return true if the header has the signature at the offset
+     */
+    public boolean hasSignature(byte[] signature, int offset) {
+        if (offset < 0 || offset + signature.length > length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; ++i) {
+            if (header[offset + i] != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if the file starts with the signature
+     *
+     * @param signature signature bytes
+     * @return true if the header starts with the signature
+     */
+    public boolean startsWith(byte[] signature) {
+        return hasSignature(signature, 0);
+    }
+
+    /**
+     * @return stream of the header bytes
+     */
+    public InputStream getStream() {
+        return new ByteArrayInputStream(header, 0, length);
+    }
+
+    /**
+     * Get the MIME type of the file, detected from the header the first time
+     * it is requested
+     *
+     * @return the MIME type, such as text/plain, or null if not detected
+     */
+    public String getMimeType() {
+        if (!detected) {
+            detected = true;
+            final FileTypeDetector fileTypeDetector = getDetector();
+            if (fileTypeDetector != null && !readError) {
+                try {
+                    mimeType = fileTypeDetector.detect(this, fileName);
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Could not detect the type of file: " + fileName + " (id: " + fileId + ")", e);
+                }
+            }
+        }
+        return mimeType;
+    }
+
+    private static FileTypeDetector getDetector() {
+        if (detector == null) {
+            detector = Lookup.getDefault().lookup(FileTypeDetector.class);
+        }
+        return detector;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.ingest;
+
+/**
+ * Detects the MIME type of a file from its header. The file type detection
+ * stage of the file ingest pipeline uses the detector registered in the
+ * default lookup, e.g. with
+ * {@code @ServiceProvider(service = FileTypeDetector.class)}.
+ */
+public interface FileTypeDetector {
+
+    /**
+     * Detect the MIME type of a file
+     *
+     * @param header header of the file
+     * @param fileName name of the file, can be used as a hint
+     * @return the MIME type, such as text/plain, or null if not detected
+     */
+    String detect(FileHeader header, String fileName);
+}
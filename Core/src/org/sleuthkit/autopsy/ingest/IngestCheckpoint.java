@@ -0,0 +1,670 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.ingest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import org.sleuthkit.autopsy.coreutils.Logger;
+
+/**
+ * Persistent ingest progress of a case, used to resume an ingest that was
+ * interrupted (by a crash, the user or closing the case) without re-running
+ * the modules on the files they already completed.
+ *
+ * The checkpoint is stored in the case directory and consists of:
+ * - the ingest state file, with the data sources and modules of the ingest
+ * (the frontier of the scheduler, to be rescheduled when resuming) and the
+ * data source modules completed on every data source
+ * - an append-only file per file module, with the object ids of the files
+ * the module has completed
+ *
+ * The checkpoint is deleted when the ingest completes without interruption.
+ *
+ * The file module calls are checked and recorded by the file ingest threads
+ * without locking: the completed files are written to disk in batches, by
+ * the thread that finds a flush due. The files processed by a module that
+ * commits its results later are recorded once the module reports the commit.
+ */
+class IngestCheckpoint {
+
+    private static final Logger logger = Logger.getLogger(IngestCheckpoint.class.getName());
+    static final String CHECKPOINT_DIR = "IngestCheckpoint";
+    private static final String STATE_FILE = "ingest_state.properties";
+    private static final String COMPLETED_FILES_EXT = ".done";
+    private static final String DATA_SOURCES_PROP = "dataSources";
+    private static final String MODULE_PROP_PREFIX = "module.";
+    private static final String DATA_SOURCE_MODULE_DONE_PROP_PREFIX = "done.";
+    private static final String PROCESS_UNALLOC_PROP = "processUnallocSpace";
+    private static final int FILE_ID_SIZE = 8;
+    //how often the completed files are flushed to disk
+    private static final long FLUSH_INTERVAL_MS = 5000;
+    private volatile File checkpointDir;
+    private final Properties state = new Properties();
+    //completed file ids, by file module key
+    private final Map<String, CompletedFiles> completedFiles = new ConcurrentHashMap<String, CompletedFiles>();
+    private final Map<String, String> moduleKeys = new ConcurrentHashMap<String, String>();
+    //guards the completed files outputs, the flushes are skipped by the ingest threads while it is held
+    private final ReentrantLock outputsLock = new ReentrantLock();
+    private final Map<String, DataOutputStream> completedFilesOutputs = new HashMap<String, DataOutputStream>();
+    private volatile long lastFlushTime;
+    //orders the files processed by the modules with the commits of their results
+    private final AtomicLong processedSeq = new AtomicLong();
+    //set when the ingest is cancelled or stopped, so that the checkpoint is kept for resume
+    private boolean interrupted;
+
+    /**
+     * Open the checkpoint of the case, loading the progress of a previous
+     * ingest if any. Closes the checkpoint of the previous case.
+     *
+     * @param caseDirectory case directory
+     */
+    synchronized void open(String caseDirectory) {
+        final File dir = new File(caseDirectory, CHECKPOINT_DIR);
+        if (dir.equals(checkpointDir)) {
+            return;
+        }
+        close();
+        checkpointDir = dir;
+        load();
+    }
+
+    /**
+     * Flush and close the checkpoint files. Further progress is not recorded
+     * until the checkpoint is opened again.
+     */
+    synchronized void close() {
+        outputsLock.lock();
+        try {
+            writeCompletedFiles();
+            for (DataOutputStream out : completedFilesOutputs.values()) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Error closing ingest checkpoint file", ex);
+                }
+            }
+            completedFilesOutputs.clear();
+        } finally {
+            outputsLock.unlock();
+        }
+        completedFiles.clear();
+        state.clear();
+        checkpointDir = null;
+        interrupted = false;
+    }
+
+    /**
+     * Start a new ingest, discarding the progress of the previous ingest
+     */
+    synchronized void reset() {
+        if (checkpointDir == null) {
+            return;
+        }
+        final File dir = checkpointDir;
+        close();
+        deleteFiles(dir);
+        checkpointDir = dir;
+    }
+
+    /**
+     * Resume the previous ingest, keeping its progress
+     */
+    synchronized void resume() {
+        interrupted = false;
+    }
+
+    /**
+     * Check if there is an interrupted ingest to resume
+     *
+     * @return true if the checkpoint has data sources left to ingest
+     */
+    synchronized boolean hasInterruptedIngest() {
+        return !getDataSourceIds().isEmpty();
+    }
+
+    /**
+     * @return object ids of the data sources of the ingest
+     */
+    synchronized List<Long> getDataSourceIds() {
+        final List<Long> ids = new ArrayList<Long>();
+        final String idsProp = state.getProperty(DATA_SOURCES_PROP, "");
+        for (String id : idsProp.split(",")) {
+            if (id.isEmpty()) {
+                continue;
+            }
+            try {
+                ids.add(Long.valueOf(id));
+            } catch (NumberFormatException e) {
+                logger.log(Level.WARNING, "Invalid data source id in ingest checkpoint: " + id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return names of the modules of the ingest
+     */
+    synchronized Set<String> getModuleNames() {
+        final Set<String> names = new LinkedHashSet<String>();
+        for (int i = 0; state.getProperty(MODULE_PROP_PREFIX + i) != null; ++i) {
+            names.add(state.getProperty(MODULE_PROP_PREFIX + i));
+        }
+        return names;
+    }
+
+    /**
+     * @return the process unallocated space setting of the ingest
+     */
+    synchronized boolean getProcessUnallocSpace() {
+        return Boolean.parseBoolean(state.getProperty(PROCESS_UNALLOC_PROP, "true"));
+    }
+
+    /**
+     * Record the data sources and modules queued for ingest
+     *
+     * @param dataSourceIds object ids of the data sources queued
+     * @param moduleNames names of the modules queued
+     * @param processUnallocSpace process unallocated space setting
+     */
+    synchronized void ingestQueued(List<Long> dataSourceIds, List<String> moduleNames, boolean processUnallocSpace) {
+        if (checkpointDir == null) {
+            return;
+        }
+        final Set<Long> ids = new LinkedHashSet<Long>(getDataSourceIds());
+        ids.addAll(dataSourceIds);
+        final StringBuilder idsProp = new StringBuilder();
+        for (Long id : ids) {
+            if (idsProp.length() > 0) {
+                idsProp.append(',');
+            }
+            idsProp.append(id);
+        }
+        state.setProperty(DATA_SOURCES_PROP, idsProp.toString());
+
+        final Set<String> names = getModuleNames();
+        names.addAll(moduleNames);
+        int i = 0;
+        for (String name : names) {
+            state.setProperty(MODULE_PROP_PREFIX + i++, name);
+        }
+        state.setProperty(PROCESS_UNALLOC_PROP, Boolean.toString(processUnallocSpace));
+        saveState();
+    }
+
+    /**
+     * Check if a file module has completed a file in the current or the
+     * interrupted ingest. Does not lock.
+     *
+     * @param moduleName file module name
+     * @param fileId file object id
+     * @return true if completed
+     */
+    boolean isFileCompleted(String moduleName, long fileId) {
+        final CompletedFiles completed = completedFiles.get(getModuleKey(moduleName));
+        return completed != null && fileId >= 0 && fileId <= Integer.MAX_VALUE && completed.get((int) fileId);
+    }
+
+    /**
+     * Record that a file module has completed a file. The file is written to
+     * disk with the next batch of completed files.
+     *
+     * @param moduleName file module name
+     * @param fileId file object id
+     */
+    void fileCompleted(String moduleName, long fileId) {
+        if (checkpointDir == null || fileId < 0 || fileId > Integer.MAX_VALUE) {
+            return;
+        }
+        final CompletedFiles completed = getCompletedFiles(getModuleKey(moduleName));
+        if (completed.set((int) fileId)) {
+            completed.unwritten.add(fileId);
+        }
+        flushIfDue();
+    }
+
+    /**
+     * Record that a file module has processed a file, with results that are
+     * not durable until the module commits them. The file is recorded as
+     * completed by the first resultsCommitted() call with a commit point
+     * taken after this call.
+     *
+     * @param moduleName file module name
+     * @param fileId file object id
+     */
+    void fileProcessed(String moduleName, long fileId) {
+        if (checkpointDir == null || fileId < 0 || fileId > Integer.MAX_VALUE) {
+            return;
+        }
+        final CompletedFiles completed = getCompletedFiles(getModuleKey(moduleName));
+        completed.uncommitted.add(new ProcessedFile(processedSeq.incrementAndGet(), fileId));
+    }
+
+    /**
+     * Get the commit point of the files processed so far, to be taken by a
+     * module before it starts committing its results
+     *
+     * @return commit point to pass to resultsCommitted()
+     */
+    long getCommitPoint() {
+        return processedSeq.get();
+    }
+
+    /**
+     * Record that a module could not commit the results of files, so that
+     * they are not recorded as completed by its commits during this ingest,
+     * and are processed again if the ingest is resumed
+     *
+     * @param moduleName file module name
+     * @param fileIds ids of the files
+     */
+    void resultsFailed(String moduleName, Collection<Long> fileIds) {
+        if (checkpointDir == null) {
+            return;
+        }
+        getCompletedFiles(getModuleKey(moduleName)).failed.addAll(fileIds);
+    }
+
+    /**
+     * Record as completed the files processed by a module up to a commit
+     * point, once the module has committed their results, except for the
+     * files whose results failed
+     *
+     * @param moduleName file module name
+     * @param commitPoint commit point taken before the commit started
+     */
+    void resultsCommitted(String moduleName, long commitPoint) {
+        final CompletedFiles completed = completedFiles.get(getModuleKey(moduleName));
+        if (completed == null) {
+            return;
+        }
+        //the files are queued about in order of processing, the ones left behind are recorded by a later commit
+        ProcessedFile processed;
+        while ((processed = completed.uncommitted.peek()) != null && processed.seq <= commitPoint) {
+            if (completed.uncommitted.remove(processed) && !completed.failed.contains(processed.fileId)
+                    && completed.set((int) processed.fileId)) {
+                completed.unwritten.add(processed.fileId);
+            }
+        }
+        flushIfDue();
+    }
+
+    /**
+     * Check if a data source module has completed a data source
+     *
+     * @param dataSourceId data source object id
+     * @param moduleName data source module name
+     * @return true if completed
+     */
+    synchronized boolean isDataSourceModuleCompleted(long dataSourceId, String moduleName) {
+        return state.getProperty(getDataSourceModuleDoneProp(dataSourceId, moduleName)) != null;
+    }
+
+    /**
+     * Record that a data source module has completed a data source
+     *
+     * @param dataSourceId data source object id
+     * @param moduleName data source module name
+     */
+    synchronized void dataSourceModuleCompleted(long dataSourceId, String moduleName) {
+        if (checkpointDir == null) {
+            return;
+        }
+        state.setProperty(getDataSourceModuleDoneProp(dataSourceId, moduleName), "true");
+        saveState();
+    }
+
+    /**
+     * Mark the ingest as interrupted, so that its checkpoint is kept when it
+     * finishes
+     */
+    synchronized void setInterrupted() {
+        if (checkpointDir == null) {
+            return;
+        }
+        interrupted = true;
+        flushNow();
+    }
+
+    /**
+     * Called when all ingest workers finished. Deletes the checkpoint if the
+     * ingest was not interrupted, as there is nothing left to resume.
+     */
+    synchronized void ingestFinished() {
+        if (checkpointDir == null) {
+            return;
+        }
+        if (interrupted) {
+            logger.log(Level.INFO, "Ingest was interrupted, keeping ingest checkpoint to resume");
+            flushNow();
+            return;
+        }
+        logger.log(Level.INFO, "Ingest completed, deleting ingest checkpoint");
+        reset();
+    }
+
+    private CompletedFiles getCompletedFiles(String moduleKey) {
+        CompletedFiles completed = completedFiles.get(moduleKey);
+        if (completed == null) {
+            synchronized (completedFiles) {
+                completed = completedFiles.get(moduleKey);
+                if (completed == null) {
+                    completed = new CompletedFiles(new BitSet());
+                    completedFiles.put(moduleKey, completed);
+                }
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * Write the batch of completed files if the flush interval has elapsed.
+     * Does not wait if another thread is writing.
+     */
+    private void flushIfDue() {
+        final long now = System.currentTimeMillis();
+        if (now - lastFlushTime <= FLUSH_INTERVAL_MS || !outputsLock.tryLock()) {
+            return;
+        }
+        try {
+            lastFlushTime = now;
+            writeCompletedFiles();
+            flushOutputs();
+        } finally {
+            outputsLock.unlock();
+        }
+    }
+
+    private void flushNow() {
+        outputsLock.lock();
+        try {
+            lastFlushTime = System.currentTimeMillis();
+            writeCompletedFiles();
+            flushOutputs();
+        } finally {
+            outputsLock.unlock();
+        }
+    }
+
+    /**
+     * Append the completed files not written yet to the module files. Called
+     * with the outputs lock held.
+     */
+    private void writeCompletedFiles() {
+        final File dir = checkpointDir;
+        if (dir == null) {
+            return;
+        }
+        for (Map.Entry<String, CompletedFiles> entry : completedFiles.entrySet()) {
+            final String moduleKey = entry.getKey();
+            final ConcurrentLinkedQueue<Long> unwritten = entry.getValue().unwritten;
+            if (unwritten.isEmpty()) {
+                continue;
+            }
+            try {
+                DataOutputStream out = completedFilesOutputs.get(moduleKey);
+                if (out == null) {
+                    dir.mkdirs();
+                    out = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(new File(dir, moduleKey + COMPLETED_FILES_EXT), true)));
+                    completedFilesOutputs.put(moduleKey, out);
+                }
+                Long fileId;
+                while ((fileId = unwritten.poll()) != null) {
+                    out.writeLong(fileId);
+                }
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Error recording completed files in ingest checkpoint, module: " + moduleKey, ex);
+            }
+        }
+    }
+
+    private void flushOutputs() {
+        for (DataOutputStream out : completedFilesOutputs.values()) {
+            try {
+                out.flush();
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Error flushing ingest checkpoint file", ex);
+            }
+        }
+    }
+
+    private void load() {
+        if (!checkpointDir.isDirectory()) {
+            return;
+        }
+
+        final File stateFile = new File(checkpointDir, STATE_FILE);
+        if (stateFile.exists()) {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(stateFile);
+                state.load(in);
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Error loading ingest checkpoint state: " + stateFile, ex);
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        final File[] files = checkpointDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String fileName = file.getName();
+            if (!fileName.endsWith(COMPLETED_FILES_EXT)) {
+                continue;
+            }
+            final String moduleKey = fileName.substring(0, fileName.length() - COMPLETED_FILES_EXT.length());
+            completedFiles.put(moduleKey, new CompletedFiles(loadCompletedFiles(file)));
+        }
+
+        if (hasInterruptedIngest()) {
+            logger.log(Level.INFO, "Loaded ingest checkpoint of interrupted ingest, data sources: "
+                    + getDataSourceIds() + ", modules: " + getModuleNames());
+        }
+    }
+
+    private BitSet loadCompletedFiles(File file) {
+        final BitSet completed = new BitSet();
+        //drop a partially written id at the end, e.g. after a crash, to keep appending aligned ids
+        final long length = file.length();
+        if (length % FILE_ID_SIZE != 0) {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                raf.setLength(length - length % FILE_ID_SIZE);
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Error truncating ingest checkpoint file: " + file, ex);
+            } finally {
+                closeQuietly(raf);
+            }
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                final long fileId = in.readLong();
+                if (fileId >= 0 && fileId <= Integer.MAX_VALUE) {
+                    completed.set((int) fileId);
+                }
+            }
+        } catch (EOFException ex) {
+            //done
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error loading ingest checkpoint file: " + file, ex);
+        } finally {
+            closeQuietly(in);
+        }
+        return completed;
+    }
+
+    private void saveState() {
+        checkpointDir.mkdirs();
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(new File(checkpointDir, STATE_FILE));
+            state.store(out, "Ingest checkpoint");
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error saving ingest checkpoint state", ex);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void deleteFiles(File dir) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                logger.log(Level.WARNING, "Could not delete ingest checkpoint file: " + file);
+            }
+        }
+    }
+
+    private String getModuleKey(String moduleName) {
+        String moduleKey = moduleKeys.get(moduleName);
+        if (moduleKey == null) {
+            moduleKey = moduleName.replaceAll("[^A-Za-z0-9_\\-]", "_");
+            moduleKeys.put(moduleName, moduleKey);
+        }
+        return moduleKey;
+    }
+
+    private String getDataSourceModuleDoneProp(long dataSourceId, String moduleName) {
+        return DATA_SOURCE_MODULE_DONE_PROP_PREFIX + dataSourceId + "." + getModuleKey(moduleName);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error closing ingest checkpoint file", ex);
+        }
+    }
+
+    /**
+     * File processed by a module, waiting for the module to commit its results
+     */
+    private static class ProcessedFile {
+
+        private final long seq;
+        private final long fileId;
+
+        ProcessedFile(long seq, long fileId) {
+            this.seq = seq;
+            this.fileId = fileId;
+        }
+    }
+
+    /**
+     * Completed files of a file module: a bit set of the file ids that is read
+     * and updated without locking, grown under the lock of this object, and
+     * the files still to be written to disk or committed by the module.
+     */
+    private static class CompletedFiles {
+
+        private volatile AtomicLongArray words;
+        private final ConcurrentLinkedQueue<Long> unwritten = new ConcurrentLinkedQueue<Long>();
+        private final ConcurrentLinkedQueue<ProcessedFile> uncommitted = new ConcurrentLinkedQueue<ProcessedFile>();
+        //files whose results the module failed to commit, never recorded as completed
+        private final Set<Long> failed = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+        CompletedFiles(BitSet loaded) {
+            words = new AtomicLongArray(loaded.toLongArray());
+        }
+
+        boolean get(int fileId) {
+            final AtomicLongArray w = words;
+            final int word = fileId >>> 6;
+            return word < w.length() && (w.get(word) & (1L << fileId)) != 0;
+        }
+
+        /**
+         * @return true if not set before
+         */
+        boolean set(int fileId) {
+            final int word = fileId >>> 6;
+            final long bit = 1L << fileId;
+            boolean set = false;
+            AtomicLongArray w;
+            do {
+                w = words;
+                if (word >= w.length()) {
+                    w = grow(word);
+                }
+                long cur;
+                while (((cur = w.get(word)) & bit) == 0) {
+                    if (w.compareAndSet(word, cur, cur | bit)) {
+                        set = true;
+                        break;
+                    }
+                }
+                //set again if the bit set was grown concurrently, as the copy may have missed it
+            } while (w != words);
+            return set;
+        }
+
+        private synchronized AtomicLongArray grow(int word) {
+            final AtomicLongArray w = words;
+            if (word < w.length()) {
+                return w;
+            }
+            final AtomicLongArray grown = new AtomicLongArray(Math.max(word + 1, w.length() * 2));
+            for (int i = 0; i < w.length(); ++i) {
+                grown.set(i, w.get(i));
+            }
+            words = grown;
+            return grown;
+        }
+    }
+}
@@ -141,6 +141,7 @@ public class IngestDataSourceThread extends SwingWorker<Void, Void> {
                     } catch (Exception e) {
                         logger.log(Level.INFO, "Error completing the module " + module.getName(), e);
                     }
+                    manager.dataSourceModuleCompleted(dataSource, module);
                     IngestManager.fireModuleEvent(IngestModuleEvent.COMPLETED.toString(), module.getName());
                 } else {
                     logger.log(Level.INFO, "Module " + module.getName() + " stopped");
@@ -149,6 +150,7 @@ public class IngestDataSourceThread extends SwingWorker<Void, Void> {
                     } catch (Exception e) {
                         logger.log(Level.INFO, "Error stopping the module" + module.getName(), e);
                     }
+                    manager.dataSourceModuleStopped();
                     IngestManager.fireModuleEvent(IngestModuleEvent.STOPPED.toString(), module.getName());
                 }
 
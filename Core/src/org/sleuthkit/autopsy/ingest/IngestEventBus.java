@@ -0,0 +1,287 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.ingest;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeSupport;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import org.sleuthkit.autopsy.coreutils.Logger;
+import org.sleuthkit.datamodel.BlackboardArtifact;
+
+/**
+ * Asynchronous bus delivering the ingest events and messages posted by the
+ * ingest modules and the ingest manager to the listeners and the ingest inbox.
+ *
+ * Posting never blocks the ingest threads on the listeners: the events and
+ * messages are queued and delivered by a single bus thread, in batches, at a
+ * capped rate.
+ * - module events (started, completed, ...) and content events are delivered
+ * in the order they were fired
+ * - data events are coalesced per module and artifact type over a time window,
+ * so that a storm of hits results in a few events (always delivered before
+ * the module events fired after them)
+ * - messages to the inbox are queued in a bounded queue and delivered in
+ * batches. Messages over the bound are dropped and counted, the inbox is
+ * notified of the number of dropped messages. Error and manager messages are
+ * never dropped.
+ */
+class IngestEventBus {
+
+    private static final Logger logger = Logger.getLogger(IngestEventBus.class.getName());
+    //how often the queued events and messages are delivered
+    private static final long DELIVERY_INTERVAL_MS = 250;
+    //how long data events for the same module and artifact type are coalesced
+    private static final long DATA_EVENT_WINDOW_MS = 1000;
+    //above this number of artifacts, a coalesced data event does not carry the artifacts
+    private static final int MAX_COALESCED_ARTIFACTS = 10000;
+    //max number of messages delivered to the inbox per delivery
+    private static final int MAX_MESSAGES_PER_DELIVERY = 100;
+    private static final int MAX_QUEUED_MESSAGES = 10000;
+    private final PropertyChangeSupport pcs;
+    private final ConcurrentLinkedQueue<PropertyChangeEvent> moduleEvents = new ConcurrentLinkedQueue<PropertyChangeEvent>();
+    //pending coalesced data events, by module and artifact type, in order of first event
+    private final Map<String, PendingDataEvent> pendingDataEvents = new LinkedHashMap<String, PendingDataEvent>();
+    private final BlockingQueue<IngestMessage> messages = new ArrayBlockingQueue<IngestMessage>(MAX_QUEUED_MESSAGES);
+    private final ConcurrentLinkedQueue<IngestMessage> priorityMessages = new ConcurrentLinkedQueue<IngestMessage>();
+    private final AtomicInteger droppedMessages = new AtomicInteger();
+    private volatile MessageSink messageSink;
+    private final ScheduledExecutorService deliveryThread;
+
+    /**
+     * Receives batches of messages from the bus thread
+     */
+    interface MessageSink {
+
+        /**
+         * @param messages batch of messages to deliver, in order posted
+         */
+        void deliver(List<IngestMessage> messages);
+    }
+
+    /**
+     * Data events of a module and artifact type coalesced during the window
+     */
+    private static class PendingDataEvent {
+
+        private final String moduleName;
+        private final BlackboardArtifact.ARTIFACT_TYPE artifactType;
+        private final long firstEventTime;
+        //null if the events do not carry the artifacts, or too many artifacts
+        private List<BlackboardArtifact> artifacts = new ArrayList<BlackboardArtifact>();
+
+        PendingDataEvent(String moduleName, BlackboardArtifact.ARTIFACT_TYPE artifactType) {
+            this.moduleName = moduleName;
+            this.artifactType = artifactType;
+            this.firstEventTime = System.currentTimeMillis();
+        }
+
+        void add(ModuleDataEvent event) {
+            if (artifacts == null) {
+                return;
+            }
+            final Collection<BlackboardArtifact> eventArtifacts = event.getArtifacts();
+            if (eventArtifacts == null || artifacts.size() + eventArtifacts.size() > MAX_COALESCED_ARTIFACTS) {
+                //listeners will query the blackboard for the artifact type
+                artifacts = null;
+            } else {
+                artifacts.addAll(eventArtifacts);
+            }
+        }
+
+        ModuleDataEvent toEvent() {
+            if (artifacts == null) {
+                return new ModuleDataEvent(moduleName, artifactType);
+            }
+            return new ModuleDataEvent(moduleName, artifactType, artifacts);
+        }
+    }
+
+    IngestEventBus(PropertyChangeSupport pcs) {
+        this.pcs = pcs;
+        deliveryThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "IngestEventBus");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        deliveryThread.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    deliver();
+                } catch (Exception e) {
+                    logger.log(Level.SEVERE, "Error delivering ingest events", e);
+                }
+            }
+        }, DELIVERY_INTERVAL_MS, DELIVERY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Set the receiver of the messages posted to the bus
+     *
+     * @param messageSink message receiver, null to discard the messages
+     */
+    void setMessageSink(MessageSink messageSink) {
+        this.messageSink = messageSink;
+    }
+
+    /**
+     * Queue a module event (module started, completed, stopped) for delivery
+     *
+     * @param eventType event type
+     * @param moduleName name of the module
+     */
+    void fireModuleEvent(String eventType, String moduleName) {
+        moduleEvents.add(new PropertyChangeEvent(IngestManager.class, eventType, moduleName, null));
+    }
+
+    /**
+     * Queue a content event for delivery
+     *
+     * @param moduleContentEvent event to deliver
+     */
+    void fireModuleContentEvent(ModuleContentEvent moduleContentEvent) {
+        moduleEvents.add(new PropertyChangeEvent(IngestManager.class,
+                IngestManager.IngestModuleEvent.CONTENT_CHANGED.toString(), moduleContentEvent, null));
+    }
+
+    /**
+     * Coalesce a data event with the other data events of the same module and
+     * artifact type fired within the time window
+     *
+     * @param moduleDataEvent event to deliver
+     */
+    void fireModuleDataEvent(ModuleDataEvent moduleDataEvent) {
+        final String key = moduleDataEvent.getModuleName() + "|" + moduleDataEvent.getArtifactType();
+        synchronized (pendingDataEvents) {
+            PendingDataEvent pending = pendingDataEvents.get(key);
+            if (pending == null) {
+                pending = new PendingDataEvent(moduleDataEvent.getModuleName(), moduleDataEvent.getArtifactType());
+                pendingDataEvents.put(key, pending);
+            }
+            pending.add(moduleDataEvent);
+        }
+    }
+
+    /**
+     * Queue a message for the inbox. Never blocks.
+     *
+     * @param message message to deliver
+     */
+    void postMessage(IngestMessage message) {
+        if (message.getSource() == null || message.getMessageType() == IngestMessage.MessageType.ERROR) {
+            priorityMessages.add(message);
+        } else if (!messages.offer(message)) {
+            droppedMessages.incrementAndGet();
+        }
+    }
+
+    /**
+     * Discard the queued messages, e.g. when the inbox is cleared
+     */
+    void clearMessages() {
+        messages.clear();
+        priorityMessages.clear();
+        droppedMessages.set(0);
+    }
+
+    /**
+     * Deliver the queued events and a batch of messages
+     */
+    private void deliver() {
+        //data events coalesced so far are delivered before the module events fired after them
+        deliverDataEvents(!moduleEvents.isEmpty());
+
+        PropertyChangeEvent moduleEvent;
+        while ((moduleEvent = moduleEvents.poll()) != null) {
+            firePropertyChange(moduleEvent);
+        }
+
+        deliverMessages();
+    }
+
+    private void deliverDataEvents(boolean all) {
+        final List<ModuleDataEvent> toFire = new ArrayList<ModuleDataEvent>();
+        final long now = System.currentTimeMillis();
+        synchronized (pendingDataEvents) {
+            final Iterator<PendingDataEvent> it = pendingDataEvents.values().iterator();
+            while (it.hasNext()) {
+                final PendingDataEvent pending = it.next();
+                if (all || now - pending.firstEventTime >= DATA_EVENT_WINDOW_MS) {
+                    toFire.add(pending.toEvent());
+                    it.remove();
+                }
+            }
+        }
+
+        for (ModuleDataEvent event : toFire) {
+            firePropertyChange(new PropertyChangeEvent(IngestManager.class,
+                    IngestManager.IngestModuleEvent.DATA.toString(), event, null));
+        }
+    }
+
+    private void deliverMessages() {
+        final List<IngestMessage> batch = new ArrayList<IngestMessage>();
+        IngestMessage message;
+        while ((message = priorityMessages.poll()) != null) {
+            batch.add(message);
+        }
+        messages.drainTo(batch, MAX_MESSAGES_PER_DELIVERY);
+
+        final int dropped = droppedMessages.getAndSet(0);
+        if (dropped > 0) {
+            logger.log(Level.WARNING, "Inbox message queue full, dropped " + dropped + " ingest messages");
+            batch.add(IngestMessage.createManagerMessage("Ingest messages not shown",
+                    dropped + " ingest messages were not shown in the inbox, because modules posted messages faster "
+                    + "than they could be displayed. The results are available in the directory tree."));
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+        final MessageSink sink = messageSink;
+        if (sink != null) {
+            sink.deliver(batch);
+        }
+    }
+
+    private void firePropertyChange(PropertyChangeEvent event) {
+        try {
+            pcs.firePropertyChange(event);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Ingest event listener threw exception for event: " + event.getPropertyName(), e);
+        }
+    }
+}
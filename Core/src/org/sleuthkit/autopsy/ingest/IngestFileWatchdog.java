@@ -0,0 +1,230 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.ingest;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import org.sleuthkit.autopsy.coreutils.Logger;
+import org.sleuthkit.autopsy.ingest.IngestScheduler.FileScheduler.ProcessTask;
+
+/**
+ * Watchdog of the file ingest threads. Enforces a time budget on every
+ * process() call of a file module.
+ *
+ * A call that overruns its budget is marked as timed out and its thread is
+ * interrupted, so that modules doing interruptible I/O or checking the
+ * interrupted status can bail out early. If the call is still running after an
+ * additional grace period, the listener is notified that the call is abandoned,
+ * so that the file ingest pipeline can continue without the stuck thread.
+ */
+class IngestFileWatchdog {
+
+    private static final Logger logger = Logger.getLogger(IngestFileWatchdog.class.getName());
+    //how often the running calls are checked
+    private static final long CHECK_INTERVAL_MS = 1000;
+    //how long a timed out call can keep running after interrupted before it is abandoned
+    private static final long ABANDON_GRACE_MS = 30 * 1000;
+    private final ConcurrentHashMap<Thread, Call> calls = new ConcurrentHashMap<Thread, Call>();
+    private final Listener listener;
+    private ScheduledExecutorService checker;
+
+    /**
+     * Notified by the watchdog thread about calls overrunning their budget
+     */
+    interface Listener {
+
+        /**
+         * The call overran its budget and its thread has been interrupted
+         *
+         * @param call the timed out call
+         */
+        void timedOut(Call call);
+
+        /**
+         * The call did not return within the grace period after it timed out,
+         * its thread should be considered lost until the call returns
+         *
+         * @param call the abandoned call
+         */
+        void abandoned(Call call);
+    }
+
+    /**
+     * A process() call of a module on a file, watched by the watchdog
+     */
+    static class Call {
+
+        final Thread thread;
+        final IngestModuleAbstractFile module;
+        final ProcessTask task;
+        final long budgetMs;
+        private final long startTime;
+        private boolean done;
+        private boolean timedOut;
+        private boolean abandoned;
+
+        private Call(Thread thread, IngestModuleAbstractFile module, ProcessTask task, long budgetMs) {
+            this.thread = thread;
+            this.module = module;
+            this.task = task;
+            this.budgetMs = budgetMs;
+            this.startTime = System.currentTimeMillis();
+        }
+
+        synchronized boolean isTimedOut() {
+            return timedOut;
+        }
+
+        synchronized boolean isAbandoned() {
+            return abandoned;
+        }
+
+        long getElapsedMs() {
+            return System.currentTimeMillis() - startTime;
+        }
+
+        @Override
+        public String toString() {
+            return "Call{" + "module=" + module.getName() + ", file=" + task.file.getName()
+                    + " (" + task.file.getId() + "), budgetMs=" + budgetMs + ", elapsedMs=" + getElapsedMs() + '}';
+        }
+    }
+
+    IngestFileWatchdog(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Start the watchdog thread
+     */
+    synchronized void start() {
+        if (checker != null) {
+            return;
+        }
+        calls.clear();
+        checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "IngestFileWatchdog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        checker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the watchdog thread. Calls that are still running are no longer
+     * watched.
+     */
+    synchronized void stop() {
+        if (checker == null) {
+            return;
+        }
+        checker.shutdownNow();
+        checker = null;
+        calls.clear();
+    }
+
+    /**
+     * Start watching a process() call made by the current thread
+     *
+     * @param module module to be called
+     * @param task task with the file to be passed to the module
+     * @param budgetMs time budget of the call in ms, 0 or less for no budget
+     * @return the watched call, to be passed to end() when the call returns,
+     * or null if the call has no budget
+     */
+    Call begin(IngestModuleAbstractFile module, ProcessTask task, long budgetMs) {
+        if (budgetMs <= 0) {
+            return null;
+        }
+        final Call call = new Call(Thread.currentThread(), module, task, budgetMs);
+        calls.put(call.thread, call);
+        return call;
+    }
+
+    /**
+     * Stop watching the call. Must be called by the thread that made the
+     * call, once the call returned. Clears the interrupted status of the thread
+     * if it was set by the watchdog.
+     *
+     * @param call call returned by begin(), can be null
+     * @return true if the call overran its budget
+     */
+    boolean end(Call call) {
+        if (call == null) {
+            return false;
+        }
+        calls.remove(call.thread);
+        final boolean timedOut;
+        synchronized (call) {
+            call.done = true;
+            timedOut = call.timedOut;
+        }
+        if (timedOut) {
+            //clear the interrupt set by the watchdog, to keep the thread working
+            Thread.interrupted();
+        }
+        return timedOut;
+    }
+
+    private void check() {
+        for (Call call : calls.values()) {
+            final long elapsed = call.getElapsedMs();
+            boolean notifyTimedOut = false;
+            boolean notifyAbandoned = false;
+            synchronized (call) {
+                if (call.done) {
+                    continue;
+                }
+                if (!call.timedOut && elapsed > call.budgetMs) {
+                    call.timedOut = true;
+                    //interrupt while holding the lock, so that the thread is never interrupted after end()
+                    call.thread.interrupt();
+                    notifyTimedOut = true;
+                } else if (call.timedOut && !call.abandoned && elapsed > call.budgetMs + ABANDON_GRACE_MS) {
+                    call.abandoned = true;
+                    notifyAbandoned = true;
+                }
+            }
+
+            try {
+                if (notifyTimedOut) {
+                    logger.log(Level.WARNING, "File module call timed out, interrupting: " + call);
+                    listener.timedOut(call);
+                } else if (notifyAbandoned) {
+                    logger.log(Level.WARNING, "File module call did not return after interrupted, abandoning: " + call);
+                    listener.abandoned(call);
+                }
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Error notifying the file ingest watchdog listener", e);
+            }
+        }
+    }
+}
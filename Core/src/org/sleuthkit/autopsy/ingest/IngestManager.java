@@ -18,27 +18,38 @@
  */
 package org.sleuthkit.autopsy.ingest;
 
+import java.awt.EventQueue;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import org.sleuthkit.autopsy.coreutils.Logger;
+import org.sleuthkit.autopsy.casemodule.Case;
 import javax.swing.SwingWorker;
 import org.netbeans.api.progress.ProgressHandle;
 import org.netbeans.api.progress.ProgressHandleFactory;
 import org.openide.util.Cancellable;
+import org.sleuthkit.autopsy.coreutils.ModuleSettings;
 import org.sleuthkit.autopsy.coreutils.PlatformUtil;
-import org.sleuthkit.autopsy.coreutils.StopWatch;
 import org.sleuthkit.autopsy.ingest.IngestMessage.MessageType;
 import org.sleuthkit.autopsy.ingest.IngestScheduler.FileScheduler.ProcessTask;
 import org.sleuthkit.datamodel.AbstractFile;
@@ -66,16 +77,46 @@ public class IngestManager {
     //modules
     private List<IngestModuleDataSource> dataSourceModules;
     private List<IngestModuleAbstractFile> abstractFileModules;
-    // module return values
-    private final Map<String, IngestModuleAbstractFile.ProcessResult> abstractFileModulesRetValues = new HashMap<String, IngestModuleAbstractFile.ProcessResult>();
+    // module return values, kept per file ingest thread for the file currently processed by the thread
+    private final ThreadLocal<Map<String, IngestModuleAbstractFile.ProcessResult>> abstractFileModulesRetValues =
+            new ThreadLocal<Map<String, IngestModuleAbstractFile.ProcessResult>>() {
+                @Override
+                protected Map<String, IngestModuleAbstractFile.ProcessResult> initialValue() {
+                    return new HashMap<String, IngestModuleAbstractFile.ProcessResult>();
+                }
+            };
+    // header of the file currently processed by a file ingest thread, read once for all the modules
+    private final ThreadLocal<FileHeader> fileHeaders = new ThreadLocal<FileHeader>() {
+        @Override
+        protected FileHeader initialValue() {
+            return new FileHeader();
+        }
+    };
     //notifications
     private final static PropertyChangeSupport pcs = new PropertyChangeSupport(IngestManager.class);
+    //delivers the events and messages asynchronously, so that ingest does not block on listeners
+    private final static IngestEventBus eventBus = new IngestEventBus(pcs);
     //monitor
     private final IngestMonitor ingestMonitor = new IngestMonitor();
+    //live per module file ingest telemetry
+    private final IngestModuleTelemetry telemetry = IngestModuleTelemetry.getDefault();
+    //persistent ingest progress of the current case, to resume interrupted ingest
+    private final IngestCheckpoint checkpoint = new IngestCheckpoint();
     //module loader
     private IngestModuleLoader moduleLoader = null;
     //property file name id for the module
     public final static String MODULE_PROPERTIES = "ingest";
+    //number of file ingest threads setting
+    private final static String NUM_FILE_INGEST_THREADS_KEY = "NumFileIngestThreads";
+    private final static int MAX_NUM_FILE_INGEST_THREADS = 16;
+    //time budget of a file module process() call setting
+    private final static String FILE_MODULE_TIMEOUT_KEY = "FileModuleTimeoutSecs";
+    //off by default: hashing or carving large files and unallocated blocks can take arbitrarily long
+    private final static int DEFAULT_FILE_MODULE_TIMEOUT_SECS = 0;
+    //the budget grows with the file size, at the slowest expected processing rate
+    private final static long FILE_MODULE_TIMEOUT_MIN_BYTES_PER_SEC = 1024 * 1024;
+    //budget multiplier for the retry of the calls that timed out
+    private final static int DEFERRED_FILE_MODULE_TIMEOUT_FACTOR = 4;
 
     /**
      * Possible events about ingest modules Event listeners can get the event
@@ -164,6 +205,18 @@ public class IngestManager {
     void initUI() {
         if (this.ui == null) {
             this.ui = IngestMessageTopComponent.findInstance();
+            eventBus.setMessageSink(new IngestEventBus.MessageSink() {
+                @Override
+                public void deliver(final List<IngestMessage> messages) {
+                    //display the whole batch in a single EDT event
+                    EventQueue.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            ui.displayMessages(messages);
+                        }
+                    });
+                }
+            });
         }
     }
 
@@ -193,33 +246,93 @@ public class IngestManager {
         pcs.addPropertyChangeListener(l);
     }
 
-    static synchronized void fireModuleEvent(String eventType, String moduleName) {
-        pcs.firePropertyChange(eventType, moduleName, null);
+    /**
+     * Fire a module event to the listeners. Does not block, the event is
+     * delivered asynchronously, in order with the other module events.
+     */
+    static void fireModuleEvent(String eventType, String moduleName) {
+        eventBus.fireModuleEvent(eventType, moduleName);
     }
 
-    static synchronized void fireModuleDataEvent(ModuleDataEvent moduleDataEvent) {
-        pcs.firePropertyChange(IngestModuleEvent.DATA.toString(), moduleDataEvent, null);
+    /**
+     * Fire a data event to the listeners. Does not block, the data events of
+     * the same module and artifact type are coalesced and delivered
+     * asynchronously.
+     */
+    static void fireModuleDataEvent(ModuleDataEvent moduleDataEvent) {
+        eventBus.fireModuleDataEvent(moduleDataEvent);
     }
 
-    static synchronized void fireModuleContentEvent(ModuleContentEvent moduleContentEvent) {
-        pcs.firePropertyChange(IngestModuleEvent.CONTENT_CHANGED.toString(), moduleContentEvent, null);
+    /**
+     * Fire a content event to the listeners. Does not block, the event is
+     * delivered asynchronously, in order with the module events.
+     */
+    static void fireModuleContentEvent(ModuleContentEvent moduleContentEvent) {
+        eventBus.fireModuleContentEvent(moduleContentEvent);
     }
 
     /**
      * Returns the return value from a previously run module on the file being
-     * currently analyzed.
+     * currently analyzed by the calling file ingest thread.
      *
      * @param moduleName Name of module.
      * @returns Return value from that module if it was previously run.
      */
     IngestModuleAbstractFile.ProcessResult getAbstractFileModuleResult(String moduleName) {
-        synchronized (abstractFileModulesRetValues) {
-            if (abstractFileModulesRetValues.containsKey(moduleName)) {
-                return abstractFileModulesRetValues.get(moduleName);
-            } else {
-                return IngestModuleAbstractFile.ProcessResult.UNKNOWN;
-            }
+        final Map<String, IngestModuleAbstractFile.ProcessResult> retValues = abstractFileModulesRetValues.get();
+        if (retValues.containsKey(moduleName)) {
+            return retValues.get(moduleName);
+        } else {
+            return IngestModuleAbstractFile.ProcessResult.UNKNOWN;
+        }
+    }
+
+    /**
+     * Get the commit point of the files processed so far by the modules that
+     * commit their results later
+     *
+     * @return commit point to pass to resultsCommitted()
+     */
+    long getResultsCommitPoint() {
+        return checkpoint.getCommitPoint();
+    }
+
+    /**
+     * Record in the ingest checkpoint the files processed by a module up to a
+     * commit point, once the module has committed their results
+     *
+     * @param module module that committed its results
+     * @param commitPoint commit point taken before the commit started
+     */
+    void resultsCommitted(IngestModuleAbstractFile module, long commitPoint) {
+        checkpoint.resultsCommitted(module.getName(), commitPoint);
+    }
+
+    /**
+     * Record in the ingest checkpoint the files whose results a module could
+     * not commit, so that they are not recorded as completed
+     *
+     * @param module module that failed to commit the results
+     * @param fileIds ids of the files
+     */
+    void resultsFailed(IngestModuleAbstractFile module, Collection<Long> fileIds) {
+        checkpoint.resultsFailed(module.getName(), fileIds);
+    }
+
+    /**
+     * Returns the header of a file, with its detected type. The header of the
+     * file being currently analyzed by the calling file ingest thread was read
+     * before the modules were run, the header of another file is read.
+     *
+     * @param file file to get the header of
+     * @return the file header
+     */
+    FileHeader getFileHeader(AbstractFile file) {
+        final FileHeader fileHeader = fileHeaders.get();
+        if (fileHeader.getFileId() == file.getId()) {
+            return fileHeader;
         }
+        return FileHeader.read(file);
     }
 
     /**
@@ -230,13 +343,49 @@ public class IngestManager {
      * @param inputs input data sources  to enqueue and execute the ingest modules on
      */
     public void execute(final List<IngestModuleAbstract> modules, final List<Content> inputs) {
+        execute(modules, inputs, false);
+    }
+
+    /**
+     * Multiple data-sources version of execute() method, with resume mode.
+     *
+     * In resume mode, the progress of the interrupted ingest of the case is
+     * kept, and the modules are not run again on the data sources and files
+     * they already completed. Otherwise, if no ingest is running, the progress
+     * of the interrupted ingest is discarded.
+     *
+     * @param modules modules to execute on every data source
+     * @param inputs input data sources  to enqueue and execute the ingest modules on
+     * @param resume true to resume the interrupted ingest of the case
+     */
+    public void execute(final List<IngestModuleAbstract> modules, final List<Content> inputs, boolean resume) {
         logger.log(Level.INFO, "Will enqueue number of inputs: " + inputs.size() 
-                + " to " + modules.size() + " modules.");
+                + " to " + modules.size() + " modules" + (resume ? ", resuming interrupted ingest." : "."));
 
-        if (!isIngestRunning() && ui != null) {
+        final boolean ingestRunning = isIngestRunning();
+        if (!ingestRunning && ui != null) {
+            eventBus.clearMessages();
             ui.clearMessages();
         }
 
+        openCheckpoint();
+        if (!ingestRunning) {
+            if (resume) {
+                checkpoint.resume();
+            } else {
+                checkpoint.reset();
+            }
+        }
+        final List<Long> dataSourceIds = new ArrayList<Long>();
+        for (Content input : inputs) {
+            dataSourceIds.add(input.getId());
+        }
+        final List<String> moduleNames = new ArrayList<String>();
+        for (IngestModuleAbstract module : modules) {
+            moduleNames.add(module.getName());
+        }
+        checkpoint.ingestQueued(dataSourceIds, moduleNames, getProcessUnallocSpace());
+
         queueWorker = new EnqueueWorker(modules, inputs);
         queueWorker.execute();
 
@@ -267,6 +416,112 @@ public class IngestManager {
         execute(modules, inputs);
     }
 
+    /**
+     * Check if the current case has an interrupted ingest that can be resumed
+     * with resumeIngest()
+     *
+     * @return true if there is an ingest to resume
+     */
+    public boolean canResumeIngest() {
+        if (isIngestRunning()) {
+            return false;
+        }
+        openCheckpoint();
+        return checkpoint.hasInterruptedIngest();
+    }
+
+    /**
+     * Resume the interrupted ingest of the current case: reschedule its data
+     * sources and modules, skipping the data sources and files the modules
+     * already completed.
+     *
+     * @return true if the ingest was resumed, false if there was nothing to
+     * resume
+     */
+    public boolean resumeIngest() {
+        if (!canResumeIngest()) {
+            return false;
+        }
+
+        final List<Long> dataSourceIds = checkpoint.getDataSourceIds();
+        final List<Content> inputs = new ArrayList<Content>();
+        for (Content rootObject : Case.getCurrentCase().getRootObjects()) {
+            if (dataSourceIds.contains(rootObject.getId())) {
+                inputs.add(rootObject);
+            }
+        }
+
+        final Set<String> moduleNames = checkpoint.getModuleNames();
+        final List<IngestModuleAbstract> modules = new ArrayList<IngestModuleAbstract>();
+        for (IngestModuleAbstract module : enumerateDataSourceModules()) {
+            if (moduleNames.contains(module.getName())) {
+                modules.add(module);
+            }
+        }
+        for (IngestModuleAbstract module : enumerateAbstractFileModules()) {
+            if (moduleNames.contains(module.getName())) {
+                modules.add(module);
+            }
+        }
+
+        if (inputs.isEmpty() || modules.isEmpty()) {
+            logger.log(Level.WARNING, "Data sources or modules of the interrupted ingest not found, discarding ingest checkpoint");
+            discardInterruptedIngest();
+            return false;
+        }
+
+        setProcessUnallocSpace(checkpoint.getProcessUnallocSpace());
+        execute(modules, inputs, true);
+        return true;
+    }
+
+    /**
+     * Discard the progress of the interrupted ingest of the current case, if
+     * no ingest is running
+     */
+    public void discardInterruptedIngest() {
+        if (isIngestRunning()) {
+            return;
+        }
+        openCheckpoint();
+        checkpoint.reset();
+    }
+
+    private void openCheckpoint() {
+        if (Case.isCaseOpen()) {
+            checkpoint.open(Case.getCurrentCase().getCaseDirectory());
+        }
+    }
+
+    /**
+     * Record the completion of a data source module in the ingest checkpoint
+     *
+     * @param dataSource data source processed by the module
+     * @param module module that completed
+     */
+    void dataSourceModuleCompleted(Content dataSource, IngestModuleDataSource module) {
+        checkpoint.dataSourceModuleCompleted(dataSource.getId(), module.getName());
+        checkIngestFinished();
+    }
+
+    /**
+     * Record that a data source module was stopped before it completed, so
+     * that the ingest checkpoint is kept for resume
+     */
+    void dataSourceModuleStopped() {
+        checkpoint.setInterrupted();
+    }
+
+    /**
+     * Delete the ingest checkpoint once all ingest workers finished, unless
+     * the ingest was interrupted
+     */
+    private synchronized void checkIngestFinished() {
+        if (!isIngestRunning()) {
+            checkpoint.ingestFinished();
+        }
+    }
+
     /**
      * Schedule a file for ingest and add it to ongoing file ingest process on the same data source. 
      * Scheduler updates the current progress.
@@ -367,6 +622,7 @@ public class IngestManager {
 
         if (startAbstractFileIngester) {
             stats = new IngestManagerStats();
+            telemetry.reset();
             abstractFileIngester = new IngestAbstractFileProcessor();
             //init all fs modules, everytime new worker starts
             for (IngestModuleAbstractFile s : abstractFileModules) {
@@ -385,6 +641,9 @@ public class IngestManager {
      * stop currently running threads if any (e.g. when changing a case)
      */
     synchronized void stopAll() {
+        //keep the progress to resume
+        checkpoint.setInterrupted();
+
         //stop queue worker
         if (queueWorker != null) {
             queueWorker.cancel(true);
@@ -611,6 +870,78 @@ public class IngestManager {
         this.processUnallocSpace = processUnallocSpace;
     }
 
+    /**
+     * Get the number of threads the file ingest pipeline uses to process files
+     * concurrently. Read from the ingest module settings, and if not set,
+     * determined from the number of available processors.
+     *
+     * @return number of file ingest threads, at least 1
+     */
+    public int getNumFileIngestThreads() {
+        int numThreads = getDefaultNumFileIngestThreads();
+        final String setting = ModuleSettings.getConfigSetting(MODULE_PROPERTIES, NUM_FILE_INGEST_THREADS_KEY);
+        if (setting != null && !setting.isEmpty()) {
+            try {
+                numThreads = Integer.parseInt(setting.trim());
+            } catch (NumberFormatException e) {
+                logger.log(Level.WARNING, "Invalid number of file ingest threads setting: " + setting
+                        + ", using default: " + numThreads);
+            }
+        }
+
+        return Math.max(1, Math.min(numThreads, MAX_NUM_FILE_INGEST_THREADS));
+    }
+
+    /**
+     * Sets the number of threads the file ingest pipeline uses to process
+     * files. The setting takes effect the next time the file ingest pipeline
+     * is started.
+     *
+     * @param numThreads number of file ingest threads
+     */
+    public void setNumFileIngestThreads(int numThreads) {
+        ModuleSettings.setConfigSetting(MODULE_PROPERTIES, NUM_FILE_INGEST_THREADS_KEY, Integer.toString(numThreads));
+    }
+
+    /**
+     * Get the time budget of a single process() call of a file module, before
+     * it is extended with the size of the file (one more second per MB). A
+     * call that overruns the budget is interrupted, and if it does not
+     * complete, the file is retried with the module after all other files are
+     * processed, with a larger budget.
+     *
+     * @return time budget in seconds, 0 if the calls are not limited (default)
+     */
+    public int getFileModuleTimeoutSecs() {
+        int timeoutSecs = DEFAULT_FILE_MODULE_TIMEOUT_SECS;
+        final String setting = ModuleSettings.getConfigSetting(MODULE_PROPERTIES, FILE_MODULE_TIMEOUT_KEY);
+        if (setting != null && !setting.isEmpty()) {
+            try {
+                timeoutSecs = Integer.parseInt(setting.trim());
+            } catch (NumberFormatException e) {
+                logger.log(Level.WARNING, "Invalid file module timeout setting: " + setting
+                        + ", using default: " + timeoutSecs);
+            }
+        }
+
+        return Math.max(0, timeoutSecs);
+    }
+
+    /**
+     * Sets the time budget of a single process() call of a file module. The
+     * setting takes effect the next time the file ingest pipeline is started.
+     *
+     * @param timeoutSecs time budget in seconds, 0 not to limit the calls
+     */
+    public void setFileModuleTimeoutSecs(int timeoutSecs) {
+        ModuleSettings.setConfigSetting(MODULE_PROPERTIES, FILE_MODULE_TIMEOUT_KEY, Integer.toString(timeoutSecs));
+    }
+
+    private static int getDefaultNumFileIngestThreads() {
+        //leave some cores for the data source modules, UI and background module workers
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
     /**
      * returns ingest summary report (how many files ingested, any errors, etc)
      */
@@ -623,7 +954,8 @@ public class IngestManager {
 
     /**
      * Module publishes message using InegestManager handle Does not block. The
-     * message gets enqueued in the GUI thread and displayed in a widget
+     * message gets enqueued in the ingest event bus and displayed in a widget
+     * in batches, at a capped rate
      * IngestModule should make an attempt not to publish the same message
      * multiple times. Viewer will attempt to identify duplicate messages and
      * filter them out (slower)
@@ -636,9 +968,7 @@ public class IngestManager {
                 stats.addError(message.getSource());
             }
         }
-        if (ui != null) {
-            ui.displayMessage(message);
-        }
+        eventBus.postMessage(message);
     }
 
     /**
@@ -690,10 +1020,13 @@ public class IngestManager {
         private int errorsTotal;
         private Map<IngestModuleAbstract, Integer> errors;
         private final DateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        private final StopWatch timer = new StopWatch();
-        private IngestModuleAbstract currentModuleForTimer;
         //file module timing stats, datasource module timers are logged in IngestDataSourceThread class
         private final Map<String, Long> fileModuleTimers = new HashMap<String, Long>();
+        //file module calls that overran their time budget
+        private int timeoutsTotal;
+        private final Map<String, Integer> timeouts = new HashMap<String, Integer>();
+        private final List<String> timedOutFiles = new ArrayList<String>();
+        private static final int MAX_TIMED_OUT_FILES_REPORTED = 100;
 
         IngestManagerStats() {
             errors = new HashMap<IngestModuleAbstract, Integer>();
@@ -701,38 +1034,18 @@ public class IngestManager {
         }
 
         /**
-         * records start time of the file process for the module must be
-         * followed by logFileModuleEndProcess for the same module
-         *
-         * @param module to record start time for processing a file
-         */
-        void logFileModuleStartProcess(IngestModuleAbstract module) {
-            timer.reset();
-            timer.start();
-            currentModuleForTimer = module;
-        }
-
-        /**
-         * records stop time of the file process for the module must be preceded
-         * by logFileModuleStartProcess for the same module
+         * records time the module spent processing a single file. Can be
+         * called concurrently from multiple file ingest threads.
          *
-         * @param module to record stop time for processing a file
+         * @param module module that processed the file
+         * @param elapsed time in ms the module spent in process()
          */
-        void logFileModuleEndProcess(IngestModuleAbstract module) {
-            timer.stop();
-            if (module != currentModuleForTimer) {
-                logger.log(Level.WARNING, "Invalid module passed in to record stop processing: " + module.getName()
-                        + ", expected: " + currentModuleForTimer.getName());
-            } else {
-                final long elapsed = timer.getElapsedTime();
-                final long current = fileModuleTimers.get(module.getName());
-                fileModuleTimers.put(module.getName(), elapsed + current);
-            }
-
-            currentModuleForTimer = null;
+        synchronized void logFileModuleProcessTime(IngestModuleAbstract module, long elapsed) {
+            final Long current = fileModuleTimers.get(module.getName());
+            fileModuleTimers.put(module.getName(), current == null ? elapsed : elapsed + current);
         }
 
-        String getFileModuleStats() {
+        synchronized String getFileModuleStats() {
             StringBuilder sb = new StringBuilder();
             for (final String moduleName : fileModuleTimers.keySet()) {
                 sb.append(moduleName).append(" took: ")
@@ -743,7 +1056,7 @@ public class IngestManager {
         }
 
         @Override
-        public String toString() {
+        public synchronized String toString() {
             final String EOL = System.getProperty("line.separator");
             StringBuilder sb = new StringBuilder();
             if (startTime != null) {
@@ -769,15 +1082,29 @@ public class IngestManager {
                     sb.append("\t").append(moduleName).append(": ").append(errorsModule).append(EOL);
                 }
             }
+            sb.append("Total module timeouts: ").append(timeoutsTotal).append(EOL);
+            if (timeoutsTotal > 0) {
+                sb.append("Timeouts per module:").append(EOL);
+                for (String moduleName : timeouts.keySet()) {
+                    sb.append("\t").append(moduleName).append(": ").append(timeouts.get(moduleName)).append(EOL);
+                }
+                sb.append("Timed out files:").append(EOL);
+                for (String timedOutFile : timedOutFiles) {
+                    sb.append("\t").append(timedOutFile).append(EOL);
+                }
+            }
             return sb.toString();
         }
 
-        public String toHtmlString() {
+        public synchronized String toHtmlString() {
             StringBuilder sb = new StringBuilder();
             sb.append("<html>");
 
             sb.append("Ingest time: ").append(getTotalTimeString()).append("<br />");
             sb.append("Total errors: ").append(errorsTotal).append("<br />");
+            if (timeoutsTotal > 0) {
+                sb.append("Module timeouts: ").append(timeoutsTotal).append("<br />");
+            }
             /*
              if (errorsTotal > 0) {
              sb.append("Errors per module:");
@@ -792,7 +1119,7 @@ public class IngestManager {
             return sb.toString();
         }
 
-        void start() {
+        synchronized void start() {
             startTime = new Date();
 
             for (IngestModuleAbstractFile module : abstractFileModules) {
@@ -840,21 +1167,120 @@ public class IngestManager {
                 errors.put(source, curModuleErrorI + 1);
             }
         }
+
+        /**
+         * records a file module process() call that overran its time budget
+         *
+         * @param module module that timed out
+         * @param fileName name of the file the module was processing
+         */
+        synchronized void addTimeout(IngestModuleAbstract module, String fileName) {
+            ++timeoutsTotal;
+            final Integer curModuleTimeouts = timeouts.get(module.getName());
+            timeouts.put(module.getName(), curModuleTimeouts == null ? 1 : curModuleTimeouts + 1);
+            if (timedOutFiles.size() < MAX_TIMED_OUT_FILES_REPORTED) {
+                timedOutFiles.add(module.getName() + ": " + fileName);
+            }
+        }
     }
 
     /**
-     * File ingest pipeline processor. Worker thread that queries
-     * the scheduler for new files.  
+     * File ingest pipeline processor. Worker thread that starts a pool of file
+     * ingest threads, each of them concurrently querying the scheduler for new
+     * files and running the file through the file modules pipeline.
      * Modules are assumed to already be initialized. 
+     * Modules that are not thread-safe are serialized, so that only one file
+     * ingest thread at a time runs process() on them.
+     * Every process() call is watched by the watchdog, if the module time
+     * budget is set. Calls that overrun the budget are interrupted, and if they
+     * do not complete, deferred, to be retried with a larger budget once all
+     * other files are processed.
      * runs until AbstractFile queue is
      * consumed New instance is created and started when data arrives and
      * previous pipeline completed.
      */
-    private class IngestAbstractFileProcessor extends SwingWorker<Object, Void> {
+    private class IngestAbstractFileProcessor extends SwingWorker<Object, Void> implements IngestFileWatchdog.Listener {
 
         private Logger logger = Logger.getLogger(IngestAbstractFileProcessor.class.getName());
         //progress  bar
         private ProgressHandle progress;
+        private int totalEnqueuedFiles;
+        private int processedFiles;
+        //file ingest threads currently dequeuing or processing a file
+        private final AtomicInteger busyWorkers = new AtomicInteger();
+        //locks used to serialize process() calls of modules that are not thread-safe
+        private final ConcurrentHashMap<IngestModuleAbstractFile, ReentrantLock> moduleLocks =
+                new ConcurrentHashMap<IngestModuleAbstractFile, ReentrantLock>();
+        //how long an idle file ingest thread waits for files scheduled by modules of other threads
+        private static final int IDLE_WAIT_MS = 50;
+        private IngestScheduler.FileScheduler fileScheduler;
+        private ExecutorService fileIngestThreads;
+        //file ingest workers, by the thread running them
+        private final ConcurrentHashMap<Thread, FileIngestWorker> workers = new ConcurrentHashMap<Thread, FileIngestWorker>();
+        //guards the number of live workers and the abandoned status of the workers
+        private final Object workersLock = new Object();
+        private int liveWorkers;
+        //watchdog enforcing the time budget of the module calls
+        private final IngestFileWatchdog watchdog = new IngestFileWatchdog(this);
+        private long moduleTimeoutMs;
+        //module calls that timed out, to be retried after all files are processed
+        private final ConcurrentLinkedQueue<DeferredCall> deferredCalls = new ConcurrentLinkedQueue<DeferredCall>();
+        //modules not thread-safe with an abandoned call still holding the module lock
+        private final Set<IngestModuleAbstractFile> stalledModules =
+                Collections.newSetFromMap(new ConcurrentHashMap<IngestModuleAbstractFile, Boolean>());
+
+        /**
+         * File ingest thread body, either processing the scheduled files or
+         * retrying the deferred module calls
+         */
+        private class FileIngestWorker implements Runnable {
+
+            private final int id;
+            private final boolean retryDeferred;
+            //set when the watchdog abandons the worker stuck in a module call, guarded by workersLock
+            private boolean abandoned;
+
+            FileIngestWorker(int id, boolean retryDeferred) {
+                this.id = id;
+                this.retryDeferred = retryDeferred;
+            }
+
+            @Override
+            public void run() {
+                final Thread thread = Thread.currentThread();
+                workers.put(thread, this);
+                try {
+                    if (retryDeferred) {
+                        retryDeferredCalls(this);
+                    } else {
+                        processFiles(this);
+                    }
+                } finally {
+                    workers.remove(thread);
+                    synchronized (workersLock) {
+                        //an abandoned worker has already been replaced
+                        if (!abandoned) {
+                            --liveWorkers;
+                            workersLock.notifyAll();
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * A module call on a file that timed out, to be retried
+         */
+        private class DeferredCall {
+
+            private final ProcessTask fileTask;
+            private final IngestModuleAbstractFile module;
+
+            DeferredCall(ProcessTask fileTask, IngestModuleAbstractFile module) {
+                this.fileTask = fileTask;
+                this.module = module;
+            }
+        }
 
         @Override
         protected Object doInBackground() throws Exception {
@@ -881,76 +1307,391 @@ public class IngestManager {
                 }
             });
 
-            final IngestScheduler.FileScheduler fileScheduler = scheduler.getFileScheduler();
+            fileScheduler = scheduler.getFileScheduler();
 
             //initialize the progress bar
             progress.start();
             progress.switchToIndeterminate();
             //set initial totals and processed (to be updated as we process or new files are scheduled)
-            int totalEnqueuedFiles = fileScheduler.getFilesEnqueuedEst();
+            totalEnqueuedFiles = fileScheduler.getFilesEnqueuedEst();
             progress.switchToDeterminate(totalEnqueuedFiles);
-            int processedFiles = 0;
-            //process AbstractFiles queue
-            while (fileScheduler.hasNext()) {
-                final ProcessTask fileTask = fileScheduler.next();
-                final PipelineContext<IngestModuleAbstractFile> filepipelineContext = fileTask.context;
-                final ScheduledTask<IngestModuleAbstractFile> fileIngestTask = filepipelineContext.getScheduledTask();
-                final AbstractFile fileToProcess = fileTask.file;
-
-                //clear return values from modules for last file
-                synchronized (abstractFileModulesRetValues) {
-                    abstractFileModulesRetValues.clear();
+            processedFiles = 0;
+
+            moduleTimeoutMs = TimeUnit.SECONDS.toMillis(getFileModuleTimeoutSecs());
+            final int numThreads = getNumFileIngestThreads();
+            logger.log(Level.INFO, "Starting " + numThreads + " file ingest threads, file module time budget: "
+                    + moduleTimeoutMs + " ms");
+            watchdog.start();
+            //cached pool, to be able to replace threads abandoned by the watchdog
+            fileIngestThreads = Executors.newCachedThreadPool();
+            try {
+                //wait for the threads to consume the AbstractFiles queue
+                startWorkers(numThreads, false);
+                waitForWorkers();
+                logger.log(Level.INFO, "IngestManager: Finished processing files");
+
+                if (!deferredCalls.isEmpty() && !isCancelled()) {
+                    logger.log(Level.INFO, "Retrying " + deferredCalls.size() + " file module calls that timed out, with time budget: "
+                            + moduleTimeoutMs * DEFERRED_FILE_MODULE_TIMEOUT_FACTOR + " ms");
+                    startWorkers(Math.min(numThreads, deferredCalls.size()), true);
+                    waitForWorkers();
+                    logger.log(Level.INFO, "IngestManager: Finished retrying timed out file module calls");
                 }
+            } catch (InterruptedException e) {
+                logger.log(Level.INFO, "Terminating file ingest threads due to cancellation.");
+                fileIngestThreads.shutdownNow();
+                return null;
+            } finally {
+                watchdog.stop();
+                fileIngestThreads.shutdown();
+            }
 
-                logger.log(Level.INFO, "IngestManager: Processing: {0}", fileToProcess.getName());
-                progress.progress(fileToProcess.getName(), processedFiles);
-                for (IngestModuleAbstractFile module : fileIngestTask.getModules()) {
-                    //process the file with every file module
-                    if (isCancelled()) {
-                        logger.log(Level.INFO, "Terminating file ingest due to cancellation.");
-                        return null;
-                    }
+            return null;
+        }
+
+        private void startWorkers(int numWorkers, boolean retryDeferred) {
+            synchronized (workersLock) {
+                for (int i = 0; i < numWorkers; ++i) {
+                    ++liveWorkers;
+                    fileIngestThreads.submit(new FileIngestWorker(i, retryDeferred));
+                }
+            }
+        }
+
+        private void waitForWorkers() throws InterruptedException {
+            synchronized (workersLock) {
+                while (liveWorkers > 0) {
+                    workersLock.wait();
+                }
+            }
+        }
 
+        private boolean isAbandoned(FileIngestWorker worker) {
+            synchronized (workersLock) {
+                return worker.abandoned;
+            }
+        }
+
+        private void beginFile() {
+            busyWorkers.incrementAndGet();
+        }
+
+        /**
+         * @return number of threads still busy, -1 if the worker was abandoned
+         */
+        private int endFile(FileIngestWorker worker) {
+            synchronized (workersLock) {
+                //busy count of an abandoned worker has already been released
+                if (worker.abandoned) {
+                    return -1;
+                }
+                return busyWorkers.decrementAndGet();
+            }
+        }
+
+        /**
+         * Main loop of a single file ingest thread. Dequeues and processes
+         * files until the queue is consumed by all threads, or until ingest is
+         * cancelled.
+         *
+         * @param worker worker run by the thread, its id is used by the
+         * scheduler to pick the thread's file queue
+         */
+        private void processFiles(FileIngestWorker worker) {
+            while (!isCancelled() && !isAbandoned(worker)) {
+                //busy from before the dequeue: a thread scheduling files is busy until they are
+                //queued, so the last thread to find the queue empty is the only one left idle
+                beginFile();
+                final ProcessTask fileTask = fileScheduler.poll(worker.id);
+                if (fileTask == null) {
+                    if (endFile(worker) <= 0) {
+                        //queue consumed and no other thread could schedule more (e.g. derived) files
+                        break;
+                    }
                     try {
-                        stats.logFileModuleStartProcess(module);
-                        IngestModuleAbstractFile.ProcessResult result = module.process(filepipelineContext, fileToProcess);
-                        stats.logFileModuleEndProcess(module);
+                        Thread.sleep(IDLE_WAIT_MS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    continue;
+                }
 
-                        //store the result for subsequent modules for this file
-                        synchronized (abstractFileModulesRetValues) {
-                            abstractFileModulesRetValues.put(module.getName(), result);
-                        }
+                try {
+                    processFile(worker, fileTask);
+                } finally {
+                    endFile(worker);
+                }
+            } //end of while AbstractFiles in queue
+        }
 
-                    } catch (Exception e) {
-                        logger.log(Level.SEVERE, "Error: unexpected exception from module: " + module.getName(), e);
-                        stats.addError(module);
-                    } catch (OutOfMemoryError e) {
-                        logger.log(Level.SEVERE, "Error: out of memory from module: " + module.getName(), e);
-                        stats.addError(module);
+        /**
+         * Run a single file through every module of its pipeline
+         *
+         * @param worker worker processing the file
+         * @param fileTask task with the file and pipeline context
+         */
+        private void processFile(FileIngestWorker worker, ProcessTask fileTask) {
+            final ScheduledTask<IngestModuleAbstractFile> fileIngestTask = fileTask.context.getScheduledTask();
+            final AbstractFile fileToProcess = fileTask.file;
+
+            //clear return values from modules for last file processed by this thread
+            final Map<String, IngestModuleAbstractFile.ProcessResult> retValues = abstractFileModulesRetValues.get();
+            retValues.clear();
+
+            //file type detection stage: read the header once for all the modules
+            fileHeaders.get().reset(fileToProcess);
+
+            logger.log(Level.INFO, "IngestManager: Processing: {0}", fileToProcess.getName());
+            updateProgress(fileToProcess.getName(), false);
+            for (IngestModuleAbstractFile module : fileIngestTask.getModules()) {
+                //process the file with every file module
+                if (isCancelled()) {
+                    logger.log(Level.INFO, "Terminating file ingest due to cancellation.");
+                    return;
+                }
+
+                if (checkpoint.isFileCompleted(module.getName(), fileToProcess.getId())) {
+                    //completed before the ingest was interrupted
+                    continue;
+                }
+
+                if (!processModule(worker, fileTask, module, retValues, moduleTimeoutMs)) {
+                    break;
+                }
+            } //end for every module
+
+            //free the internal file resource after done with every module
+            fileToProcess.close();
+
+            updateProgress(fileToProcess.getName(), true);
+        }
+
+        /**
+         * Loop of a file ingest thread retrying the module calls that timed
+         * out, with a larger time budget. Results of the other modules for the
+         * file are not available to the module when retried.
+         *
+         * @param worker worker run by the thread
+         */
+        private void retryDeferredCalls(FileIngestWorker worker) {
+            final long budgetMs = moduleTimeoutMs * DEFERRED_FILE_MODULE_TIMEOUT_FACTOR;
+            DeferredCall deferredCall;
+            while (!isCancelled() && !isAbandoned(worker) && (deferredCall = deferredCalls.poll()) != null) {
+                final AbstractFile fileToProcess = deferredCall.fileTask.file;
+                final Map<String, IngestModuleAbstractFile.ProcessResult> retValues = abstractFileModulesRetValues.get();
+                retValues.clear();
+                fileHeaders.get().reset(fileToProcess);
+
+                logger.log(Level.INFO, "IngestManager: Retrying: " + fileToProcess.getName()
+                        + " with module: " + deferredCall.module.getName());
+                progress.progress("Retrying " + fileToProcess.getName());
+                beginFile();
+                try {
+                    processModule(worker, deferredCall.fileTask, deferredCall.module, retValues, budgetMs);
+                } finally {
+                    endFile(worker);
+                    fileToProcess.close();
+                }
+            }
+        }
+
+        /**
+         * Run a file through a single module, watched by the watchdog
+         *
+         * @param worker worker processing the file
+         * @param fileTask task with the file and pipeline context
+         * @param module module to run
+         * @param retValues return values of the modules for the file, updated
+         * with the module result
+         * @param baseBudgetMs time budget of the module call before it is
+         * extended with the file size, 0 if not limited
+         * @return false if the worker should stop processing the file
+         */
+        private boolean processModule(FileIngestWorker worker, ProcessTask fileTask, IngestModuleAbstractFile module,
+                Map<String, IngestModuleAbstractFile.ProcessResult> retValues, long baseBudgetMs) {
+            final AbstractFile fileToProcess = fileTask.file;
+            final long budgetMs = baseBudgetMs <= 0 ? 0
+                    : baseBudgetMs + Math.max(0, fileToProcess.getSize()) * 1000 / FILE_MODULE_TIMEOUT_MIN_BYTES_PER_SEC;
+
+            final ReentrantLock moduleLock = module.isThreadSafe() ? null : getModuleLock(module);
+            if (moduleLock != null) {
+                try {
+                    if (!lockModule(moduleLock, module, budgetMs)) {
+                        logger.log(Level.WARNING, "Module " + module.getName() + " busy with another file for longer than its time budget, "
+                                + "skipping file: " + fileToProcess.getName());
+                        stats.addTimeout(module, fileToProcess.getName());
+                        moduleNotCompleted(module, fileTask, worker.retryDeferred);
+                        retValues.put(module.getName(), IngestModuleAbstractFile.ProcessResult.ERROR);
+                        return true;
                     }
-                } //end for every module
-
-                //free the internal file resource after done with every module
-                fileToProcess.close();
-
-                int newTotalEnqueuedFiles = fileScheduler.getFilesEnqueuedEst();
-                if (newTotalEnqueuedFiles > totalEnqueuedFiles) {
-                    //update if new enqueued
-                    totalEnqueuedFiles = newTotalEnqueuedFiles + 1;// + processedFiles + 1;
-                    //processedFiles = 0;
-                    //reset
-                    progress.switchToIndeterminate();
-                    progress.switchToDeterminate(totalEnqueuedFiles);
+                } catch (InterruptedException e) {
+                    logger.log(Level.INFO, "Interrupted while waiting for module: " + module.getName());
+                    return false;
                 }
-                if (processedFiles < totalEnqueuedFiles) { //fix for now to handle the same datasource Content enqueued twice
-                    ++processedFiles;
+            }
+
+            final IngestFileWatchdog.Call call = watchdog.begin(module, fileTask, budgetMs);
+            boolean timedOut = false;
+            boolean processed = false;
+            try {
+                final long startTime = System.nanoTime();
+                IngestModuleAbstractFile.ProcessResult result = module.process(fileTask.context, fileToProcess);
+                final long elapsedNanos = System.nanoTime() - startTime;
+                stats.logFileModuleProcessTime(module, elapsedNanos / 1000000);
+                telemetry.record(module.getName(), fileToProcess.getId(), fileToProcess.getName(),
+                        fileToProcess.getSize(), elapsedNanos);
+
+                //store the result for subsequent modules for this file
+                retValues.put(module.getName(), result);
+                processed = true;
+
+            } catch (Exception e) {
+                if (call != null && call.isTimedOut()) {
+                    //most likely caused by the watchdog interrupt, already recorded as timeout
+                    logger.log(Level.WARNING, "Exception from module: " + module.getName() + " after it timed out", e);
+                } else {
+                    logger.log(Level.SEVERE, "Error: unexpected exception from module: " + module.getName(), e);
+                    stats.addError(module);
+                }
+            } catch (OutOfMemoryError e) {
+                logger.log(Level.SEVERE, "Error: out of memory from module: " + module.getName(), e);
+                stats.addError(module);
+            } finally {
+                timedOut = watchdog.end(call);
+                if (moduleLock != null) {
+                    moduleLock.unlock();
                 }
-                //--totalEnqueuedFiles;
+            }
 
+            if (processed) {
+                //a call completed after its budget is kept: re-running it would duplicate its results
+                if (module.hasDeferredCommit()) {
+                    //recorded once the module commits the results
+                    checkpoint.fileProcessed(module.getName(), fileToProcess.getId());
+                } else {
+                    checkpoint.fileCompleted(module.getName(), fileToProcess.getId());
+                }
+            } else if (timedOut) {
+                //the watchdog has already recorded the timeout
+                retValues.put(module.getName(), IngestModuleAbstractFile.ProcessResult.ERROR);
+                moduleNotCompleted(module, fileTask, worker.retryDeferred);
+            }
+            if (timedOut && call.isAbandoned()) {
+                logger.log(Level.INFO, "Abandoned call returned: " + call);
+                stalledModules.remove(module);
+            }
 
-            } //end of for every AbstractFile
-            logger.log(Level.INFO, "IngestManager: Finished processing files");
-            return null;
+            //a replacement has taken over for an abandoned worker
+            return !isAbandoned(worker);
+        }
+
+        /**
+         * Lock a module that is not thread-safe, waiting at most the module
+         * call time budget, and not at all if the module is stalled by an
+         * abandoned call
+         *
+         * @return true if locked
+         */
+        private boolean lockModule(ReentrantLock moduleLock, IngestModuleAbstractFile module, long budgetMs) throws InterruptedException {
+            if (budgetMs <= 0) {
+                moduleLock.lockInterruptibly();
+                return true;
+            }
+            if (moduleLock.tryLock()) {
+                return true;
+            }
+            if (stalledModules.contains(module)) {
+                return false;
+            }
+            return moduleLock.tryLock(budgetMs, TimeUnit.MILLISECONDS);
+        }
+
+        private ReentrantLock getModuleLock(IngestModuleAbstractFile module) {
+            ReentrantLock lock = moduleLocks.get(module);
+            if (lock == null) {
+                final ReentrantLock newLock = new ReentrantLock();
+                lock = moduleLocks.putIfAbsent(module, newLock);
+                if (lock == null) {
+                    lock = newLock;
+                }
+            }
+            return lock;
+        }
+
+        /**
+         * Defer a module call that timed out without completing, if it was not
+         * already a retry
+         *
+         * @param module module that timed out
+         * @param fileTask task with the file the module was processing
+         * @param retried true if the call was a retry with the larger budget
+         */
+        private void moduleNotCompleted(IngestModuleAbstractFile module, ProcessTask fileTask, boolean retried) {
+            if (!retried) {
+                deferredCalls.add(new DeferredCall(fileTask, module));
+                return;
+            }
+
+            stats.addError(module);
+            IngestManager.this.postMessage(IngestMessage.createManagerErrorMessage("File skipped by " + module.getName(),
+                    "Module " + module.getName() + " did not finish processing file " + fileTask.file.getName()
+                    + " (id: " + fileTask.file.getId() + ") within the extended time budget."));
+        }
+
+        @Override
+        public void timedOut(IngestFileWatchdog.Call call) {
+            //deferred once the call returns, only if it did not complete
+            stats.addTimeout(call.module, call.task.file.getName());
+        }
+
+        @Override
+        public void abandoned(IngestFileWatchdog.Call call) {
+            if (isCancelled()) {
+                return;
+            }
+            synchronized (workersLock) {
+                final FileIngestWorker worker = workers.get(call.thread);
+                if (worker == null || worker.abandoned || fileIngestThreads.isShutdown()) {
+                    return;
+                }
+                if (!call.module.isThreadSafe()) {
+                    //do not let other threads wait on the module lock
+                    stalledModules.add(call.module);
+                }
+
+                //replace the worker, so that the pipeline keeps running with the same number of threads
+                worker.abandoned = true;
+                busyWorkers.decrementAndGet();
+                --liveWorkers;
+                startWorkers(1, worker.retryDeferred);
+                logger.log(Level.WARNING, "Replaced file ingest thread stuck in module: " + call.module.getName());
+            }
+        }
+
+        /**
+         * Update the progress bar, shared by all file ingest threads
+         *
+         * @param fileName name of file being processed
+         * @param processed true if the file is done processing
+         */
+        private synchronized void updateProgress(String fileName, boolean processed) {
+            if (!processed) {
+                progress.progress(fileName, processedFiles);
+                return;
+            }
+
+            int newTotalEnqueuedFiles = fileScheduler.getFilesEnqueuedEst();
+            if (newTotalEnqueuedFiles > totalEnqueuedFiles) {
+                //update if new enqueued
+                totalEnqueuedFiles = newTotalEnqueuedFiles + 1;// + processedFiles + 1;
+                //processedFiles = 0;
+                //reset
+                progress.switchToIndeterminate();
+                progress.switchToDeterminate(totalEnqueuedFiles);
+            }
+            if (processedFiles < totalEnqueuedFiles) { //fix for now to handle the same datasource Content enqueued twice
+                ++processedFiles;
+            }
         }
 
         @Override
@@ -990,18 +1731,23 @@ public class IngestManager {
                 if (!this.isCancelled()) {
                     logger.log(Level.INFO, "Summary Report: " + stats.toString());
                     logger.log(Level.INFO, "File module timings: " + stats.getFileModuleStats());
+                    logger.log(Level.INFO, "File module telemetry: \n" + telemetry.getCsvReport());
+                    ingestMonitor.dumpTelemetry();
                     if (ui != null) {
                         logger.log(Level.INFO, "Ingest messages count: " + ui.getMessagesCount());
                     }
 
                     IngestManager.this.postMessage(IngestMessage.createManagerMessage("File Ingest Complete",
                             stats.toHtmlString()));
+                    checkIngestFinished();
                 }
             }
 
         }
 
         private void handleInterruption() {
+            //keep the progress to resume
+            checkpoint.setInterrupted();
             for (IngestModuleAbstractFile s : abstractFileModules) {
                 if (isModuleRunning(s)) {
                     try {
@@ -1104,6 +1850,11 @@ public class IngestManager {
 
                     switch (module.getType()) {
                         case DataSource:
+                            if (checkpoint.isDataSourceModuleCompleted(input.getId(), moduleName)) {
+                                logger.log(Level.INFO, "Skipping module " + moduleName + " already completed on input "
+                                        + inputName + " before the ingest was interrupted");
+                                break;
+                            }
                             final IngestModuleDataSource newModuleInstance =
                                     (IngestModuleDataSource) moduleLoader.getNewIngestModuleInstance(module);
                             if (newModuleInstance != null) {
@@ -19,6 +19,7 @@
 package org.sleuthkit.autopsy.ingest;
 
 import java.awt.CardLayout;
+import java.util.List;
 import org.sleuthkit.autopsy.coreutils.Logger;
 
 /**
@@ -82,6 +83,10 @@ public class IngestMessageMainPanel extends javax.swing.JPanel {
         messagePanel.addMessage(ingestMessage);
     }
 
+    public void addMessages(List<IngestMessage> ingestMessages) {
+        messagePanel.addMessages(ingestMessages);
+    }
+
     public void clearMessages() {
         messagePanel.clearMessages();
     }
@@ -303,6 +303,28 @@ class IngestMessagePanel extends JPanel implements TableModelListener {
         //messageTable.scrollRectToVisible(messageTable.getCellRect(messageTable.getRowCount() - 1, messageTable.getColumnCount(), true));
     }
 
+    /**
+     * Add a batch of messages, updating the table and the counts once for the
+     * whole batch
+     *
+     * @param messages messages to add, in order posted
+     */
+    public synchronized void addMessages(List<IngestMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        tableModel.addMessages(messages);
+
+        totalMessages += messages.size();
+        final int newMsgUnreadUnique = tableModel.getNumberUnreadGroups();
+
+        messagePcs.firePropertyChange(TOTAL_NUM_MESSAGES_CHANGED, 0, newMsgUnreadUnique);
+
+        this.totalMessagesNameVal.setText(Long.toString(totalMessages));
+        final int totalMessagesUnique = tableModel.getNumberGroups();
+        this.totalUniqueMessagesNameVal.setText(Integer.toString(totalMessagesUnique));
+    }
+
     public synchronized void clearMessages() {
         final int origMsgGroups = tableModel.getNumberUnreadGroups();
         totalMessages = 0;
@@ -484,6 +506,28 @@ class IngestMessagePanel extends JPanel implements TableModelListener {
         }
 
         synchronized public void addMessage(IngestMessage m) {
+            addMessage(m, true);
+        }
+
+        /**
+         * Add a batch of messages, with a single table change event for the
+         * whole batch
+         */
+        synchronized public void addMessages(List<IngestMessage> messages) {
+            for (IngestMessage m : messages) {
+                addMessage(m, false);
+            }
+            if (chronoSort == false) {
+                Collections.sort(messageData);
+            }
+            fireTableDataChanged();
+        }
+
+        /**
+         * @param fireEvents false not to fire table change events, to be fired
+         * by the caller for a batch of messages
+         */
+        private void addMessage(IngestMessage m, boolean fireEvents) {
             //check how many messages per module with the same uniqness
             //and add to existing group or create a new group
             IngestModuleAbstract module = m.getSource();
@@ -521,7 +565,9 @@ class IngestMessagePanel extends JPanel implements TableModelListener {
                         while ((toRemove = getTableEntryIndex(uniqueness)) != -1) {
                             messageData.remove(toRemove);
                             //remove the row, will be added to the bottom
-                            this.fireTableRowsDeleted(toRemove, toRemove);
+                            if (fireEvents) {
+                                this.fireTableRowsDeleted(toRemove, toRemove);
+                            }
                         }
 
                     } else if (uniqueGroupsCount == 1) {
@@ -537,7 +583,9 @@ class IngestMessagePanel extends JPanel implements TableModelListener {
                             while ((toRemove = getTableEntryIndex(uniqueness)) != -1) {
                                 messageData.remove(toRemove);
                                 //remove the row, will be added to the bottom
-                                this.fireTableRowsDeleted(toRemove, toRemove);
+                                if (fireEvents) {
+                                    this.fireTableRowsDeleted(toRemove, toRemove);
+                                }
                             }
 
                         } else {
@@ -563,6 +611,9 @@ class IngestMessagePanel extends JPanel implements TableModelListener {
 
             //add new or updated row to the bottom
             messageData.add(new TableEntry(messageGroup));
+            if (!fireEvents) {
+                return;
+            }
             int newRowIndex = messageData.size() -1;
             fireTableRowsInserted(newRowIndex, newRowIndex);
 
@@ -214,6 +214,9 @@ public final class IngestMessageTopComponent extends TopComponent implements Ing
             @Override
             public void propertyChange(PropertyChangeEvent evt) {
                 if (evt.getPropertyName().equals(Case.CASE_CURRENT_CASE)) {
+                    if (evt.getNewValue() != null) {
+                        offerResumeIngest();
+                    }
                     Case oldCase = (Case) evt.getOldValue();
                     if (oldCase == null) //nothing to do, new case had been opened
                     {
@@ -234,6 +237,33 @@ public final class IngestMessageTopComponent extends TopComponent implements Ing
         });
     }
 
+    /**
+     * Ask the user to resume the ingest of the opened case, if it was
+     * interrupted
+     */
+    private void offerResumeIngest() {
+        java.awt.EventQueue.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (manager == null) {
+                    manager = IngestManager.getDefault();
+                }
+                if (!Case.isCaseOpen() || !manager.canResumeIngest()) {
+                    return;
+                }
+                int ret = JOptionPane.showConfirmDialog(null,
+                        "The ingest of this case was interrupted before it completed.\n"
+                        + "Do you want to resume it? Files already processed will be skipped.",
+                        "Resume Ingest", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
+                if (ret == JOptionPane.YES_OPTION) {
+                    manager.resumeIngest();
+                } else {
+                    manager.discardInterruptedIngest();
+                }
+            }
+        });
+    }
+
     private void customizeComponents() {
         //custom GUI setup not done by builder
         messagePanel = new IngestMessageMainPanel();
@@ -292,8 +322,22 @@ public final class IngestMessageTopComponent extends TopComponent implements Ing
     @Override
     public void displayMessage(IngestMessage ingestMessage) {
         messagePanel.addMessage(ingestMessage);
+        notifyMessage(ingestMessage);
+    }
 
+    /**
+     * Display a batch of IngestMessages from modules (forwarded by
+     * IngestManager), updating the inbox once for the batch
+     */
+    @Override
+    public void displayMessages(List<IngestMessage> ingestMessages) {
+        messagePanel.addMessages(ingestMessages);
+        for (IngestMessage ingestMessage : ingestMessages) {
+            notifyMessage(ingestMessage);
+        }
+    }
 
+    private void notifyMessage(IngestMessage ingestMessage) {
         //post special messages to notification area
         MessageType ingestMessageType = ingestMessage.getMessageType();
         if (ingestMessageType.equals(MessageType.ERROR)
@@ -41,6 +41,52 @@ public abstract class IngestModuleAbstractFile extends IngestModuleAbstract {
         return ModuleType.AbstractFile;
     }
     
+    /**
+     * Used by the ingest manager to determine if process() can be invoked concurrently
+     * by multiple file ingest threads on this (singleton) module instance.
+     * Modules that do not override this method are treated as not thread-safe
+     * and their process() calls are serialized, i.e. only one file at a time
+     * is processed by the module, even if the file pipeline runs multiple threads.
+     * 
+     * @return true if process() can be safely called concurrently, false otherwise
+     */
+    public boolean isThreadSafe() {
+        return false;
+    }
+    
+    /**
+     * Used by the ingest manager to determine when a file processed by the
+     * module can be recorded as completed in the ingest checkpoint, and
+     * skipped if an interrupted ingest is resumed. Modules that do not
+     * override this method have their results stored when process() returns.
+     * Modules that store their results later, with a periodic commit, return
+     * true and report every durable commit with
+     * IngestServices.resultsCommitted(), otherwise the files they processed
+     * are processed again when resuming.
+     * 
+     * @return true if the results of process() are durable only after a
+     * later commit of the module, false otherwise
+     */
+    public boolean hasDeferredCommit() {
+        return false;
+    }
+    
+    /**
+     * Notification that a file was queued to be processed by the module, ahead
+     * of the process() call, e.g. to start reading or hashing its content in the
+     * background. The order and timing of the process() calls is not guaranteed,
+     * a queued file may be processed right away, much later, or not at all (if
+     * the ingest is cancelled).
+     * 
+     * Called by the scheduler threads, concurrently with process(): must return
+     * quickly and must be thread-safe. Does nothing by default.
+     * 
+     * @param pipelineContext the context in which the file will be processed
+     * @param abstractFile file queued
+     */
+    public void fileQueued(PipelineContext<IngestModuleAbstractFile> pipelineContext, AbstractFile abstractFile) {
+    }
+    
     /**
      * Entry point to process file / directory by the module.  
      * 
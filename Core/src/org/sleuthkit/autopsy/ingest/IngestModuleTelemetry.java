@@ -0,0 +1,412 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.ingest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.sleuthkit.autopsy.coreutils.Logger;
+
+/**
+ * Collects live per-module telemetry of the file ingest pipeline: process()
+ * latency histograms, files/sec and bytes/sec, and the slowest files processed
+ * by every module.
+ *
+ * The telemetry is available while ingest is running through JMX (registered as
+ * org.sleuthkit.autopsy.ingest:type=IngestModuleTelemetry) and is periodically
+ * dumped into the case log directory by the IngestMonitor.
+ *
+ * Recording is thread-safe and can be done concurrently by the file ingest
+ * threads.
+ */
+class IngestModuleTelemetry implements IngestModuleTelemetryMBean {
+
+    private static final Logger logger = Logger.getLogger(IngestModuleTelemetry.class.getName());
+    private static final String MBEAN_NAME = "org.sleuthkit.autopsy.ingest:type=IngestModuleTelemetry";
+    static final String CSV_FILE_NAME = "ingest_module_stats.csv";
+    static final String JSON_FILE_NAME = "ingest_module_stats.json";
+    //number of slowest files tracked per module
+    private static final int NUM_SLOWEST_FILES = 10;
+    private static IngestModuleTelemetry instance;
+    private final Map<String, ModuleTelemetry> modules = new ConcurrentHashMap<String, ModuleTelemetry>();
+    private volatile long startTime = System.currentTimeMillis();
+
+    private IngestModuleTelemetry() {
+    }
+
+    /**
+     * Get the telemetry singleton, and register it with the platform MBean
+     * server the first time it is called.
+     *
+     * @return the telemetry instance
+     */
+    static synchronized IngestModuleTelemetry getDefault() {
+        if (instance == null) {
+            instance = new IngestModuleTelemetry();
+            try {
+                MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+                mbs.registerMBean(instance, new ObjectName(MBEAN_NAME));
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Could not register ingest telemetry MBean", e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Clear the telemetry, to be called when a new file ingest is started
+     */
+    void reset() {
+        modules.clear();
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Record a single process() call of a module
+     *
+     * @param moduleName name of the module
+     * @param fileId id of the processed file
+     * @param fileName name of the processed file
+     * @param fileSize size of the processed file in bytes
+     * @param elapsedNanos time spent in process() in ns
+     */
+    void record(String moduleName, long fileId, String fileName, long fileSize, long elapsedNanos) {
+        ModuleTelemetry module = modules.get(moduleName);
+        if (module == null) {
+            synchronized (modules) {
+                module = modules.get(moduleName);
+                if (module == null) {
+                    module = new ModuleTelemetry(moduleName);
+                    modules.put(moduleName, module);
+                }
+            }
+        }
+        module.record(fileId, fileName, fileSize, elapsedNanos);
+    }
+
+    @Override
+    public String[] getModuleNames() {
+        List<String> names = new ArrayList<String>(modules.keySet());
+        Collections.sort(names);
+        return names.toArray(new String[names.size()]);
+    }
+
+    @Override
+    public long getTotalFilesProcessed() {
+        long total = 0;
+        for (ModuleTelemetry module : modules.values()) {
+            total += module.getCount();
+        }
+        return total;
+    }
+
+    @Override
+    public long getFilesProcessed(String moduleName) {
+        ModuleTelemetry module = modules.get(moduleName);
+        return module == null ? 0 : module.getCount();
+    }
+
+    @Override
+    public double getLatencyPercentileMs(String moduleName, double percentile) {
+        ModuleTelemetry module = modules.get(moduleName);
+        return module == null ? 0 : module.getPercentileMs(percentile);
+    }
+
+    @Override
+    public double getFilesPerSecond(String moduleName) {
+        ModuleTelemetry module = modules.get(moduleName);
+        return module == null ? 0 : module.getCount() / getElapsedSecs();
+    }
+
+    @Override
+    public double getBytesPerSecond(String moduleName) {
+        ModuleTelemetry module = modules.get(moduleName);
+        return module == null ? 0 : module.getBytes() / getElapsedSecs();
+    }
+
+    private double getElapsedSecs() {
+        return Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+    }
+
+    @Override
+    public String getCsvReport() {
+        final String EOL = System.getProperty("line.separator");
+        final double elapsedSecs = getElapsedSecs();
+        StringBuilder sb = new StringBuilder();
+        sb.append("module,files,bytes,total_ms,p50_ms,p95_ms,p99_ms,max_ms,files_per_sec,bytes_per_sec").append(EOL);
+        for (String moduleName : getModuleNames()) {
+            ModuleTelemetry module = modules.get(moduleName);
+            if (module == null) {
+                continue;
+            }
+            synchronized (module) {
+                sb.append('"').append(moduleName.replace("\"", "\"\"")).append('"').append(',')
+                        .append(module.count).append(',')
+                        .append(module.bytes).append(',')
+                        .append(module.totalNanos / 1000000).append(',')
+                        .append(format(module.getPercentileMs(50))).append(',')
+                        .append(format(module.getPercentileMs(95))).append(',')
+                        .append(format(module.getPercentileMs(99))).append(',')
+                        .append(format(module.maxNanos / 1000000.0)).append(',')
+                        .append(format(module.count / elapsedSecs)).append(',')
+                        .append(format(module.bytes / elapsedSecs)).append(EOL);
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String getJsonReport() {
+        final double elapsedSecs = getElapsedSecs();
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"elapsed_secs\":").append(format(elapsedSecs)).append(",\"modules\":[");
+        boolean firstModule = true;
+        for (String moduleName : getModuleNames()) {
+            ModuleTelemetry module = modules.get(moduleName);
+            if (module == null) {
+                continue;
+            }
+            if (!firstModule) {
+                sb.append(',');
+            }
+            firstModule = false;
+            synchronized (module) {
+                sb.append("{\"module\":\"").append(escapeJson(moduleName)).append('"')
+                        .append(",\"files\":").append(module.count)
+                        .append(",\"bytes\":").append(module.bytes)
+                        .append(",\"total_ms\":").append(module.totalNanos / 1000000)
+                        .append(",\"p50_ms\":").append(format(module.getPercentileMs(50)))
+                        .append(",\"p95_ms\":").append(format(module.getPercentileMs(95)))
+                        .append(",\"p99_ms\":").append(format(module.getPercentileMs(99)))
+                        .append(",\"max_ms\":").append(format(module.maxNanos / 1000000.0))
+                        .append(",\"files_per_sec\":").append(format(module.count / elapsedSecs))
+                        .append(",\"bytes_per_sec\":").append(format(module.bytes / elapsedSecs))
+                        .append(",\"slowest_files\":[");
+                boolean firstFile = true;
+                for (SlowFile slowFile : module.getSlowestFiles()) {
+                    if (!firstFile) {
+                        sb.append(',');
+                    }
+                    firstFile = false;
+                    sb.append("{\"id\":").append(slowFile.fileId)
+                            .append(",\"name\":\"").append(escapeJson(slowFile.fileName)).append('"')
+                            .append(",\"size\":").append(slowFile.fileSize)
+                            .append(",\"ms\":").append(format(slowFile.elapsedNanos / 1000000.0))
+                            .append('}');
+                }
+                sb.append("]}");
+            }
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    /**
+     * Write the CSV and JSON reports into the directory, overwriting the
+     * previous reports.
+     *
+     * @param dir directory to write the reports to, usually the case log
+     * directory
+     */
+    void dump(String dir) {
+        if (dir == null || dir.isEmpty() || modules.isEmpty()) {
+            return;
+        }
+        writeFile(new File(dir, CSV_FILE_NAME), getCsvReport());
+        writeFile(new File(dir, JSON_FILE_NAME), getJsonReport());
+    }
+
+    private void writeFile(File file, String content) {
+        Writer out = null;
+        try {
+            out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            out.write(content);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not write ingest telemetry to: " + file.getAbsolutePath(), ex);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Could not close ingest telemetry file: " + file.getAbsolutePath(), ex);
+                }
+            }
+        }
+    }
+
+    private static String format(double val) {
+        return String.format(Locale.US, "%.2f", val);
+    }
+
+    private static String escapeJson(String str) {
+        if (str == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(str.length());
+        for (int i = 0; i < str.length(); ++i) {
+            char c = str.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A file in the slowest files list of a module
+     */
+    private static class SlowFile {
+
+        final long fileId;
+        final String fileName;
+        final long fileSize;
+        final long elapsedNanos;
+
+        SlowFile(long fileId, String fileName, long fileSize, long elapsedNanos) {
+            this.fileId = fileId;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.elapsedNanos = elapsedNanos;
+        }
+    }
+
+    private static final Comparator<SlowFile> SLOW_FILE_COMPARATOR = new Comparator<SlowFile>() {
+        @Override
+        public int compare(SlowFile f1, SlowFile f2) {
+            return Long.compare(f1.elapsedNanos, f2.elapsedNanos);
+        }
+    };
+
+    /**
+     * Telemetry of a single module. Latencies are kept in a histogram with
+     * exponentially growing buckets (each bucket 25% wider than the previous
+     * one, starting at 1 us), which bounds the percentile error to 25%.
+     */
+    private static class ModuleTelemetry {
+
+        private static final double BUCKET_GROWTH = 1.25;
+        //covers latencies up to ~ 1.25^128 us
+        private static final int NUM_BUCKETS = 128;
+        private static final double LOG_BUCKET_GROWTH = Math.log(BUCKET_GROWTH);
+        private final String moduleName;
+        private final long[] buckets = new long[NUM_BUCKETS];
+        private long count;
+        private long bytes;
+        private long totalNanos;
+        private long maxNanos;
+        //min-heap, the fastest of the slowest files on top
+        private final PriorityQueue<SlowFile> slowestFiles = new PriorityQueue<SlowFile>(NUM_SLOWEST_FILES + 1, SLOW_FILE_COMPARATOR);
+
+        ModuleTelemetry(String moduleName) {
+            this.moduleName = moduleName;
+        }
+
+        synchronized void record(long fileId, String fileName, long fileSize, long elapsedNanos) {
+            ++count;
+            bytes += fileSize;
+            totalNanos += elapsedNanos;
+            maxNanos = Math.max(maxNanos, elapsedNanos);
+            ++buckets[getBucket(elapsedNanos)];
+
+            if (slowestFiles.size() < NUM_SLOWEST_FILES) {
+                slowestFiles.add(new SlowFile(fileId, fileName, fileSize, elapsedNanos));
+            } else if (slowestFiles.peek().elapsedNanos < elapsedNanos) {
+                slowestFiles.poll();
+                slowestFiles.add(new SlowFile(fileId, fileName, fileSize, elapsedNanos));
+            }
+        }
+
+        private static int getBucket(long elapsedNanos) {
+            final double micros = elapsedNanos / 1000.0;
+            if (micros <= 1) {
+                return 0;
+            }
+            final int bucket = (int) Math.ceil(Math.log(micros) / LOG_BUCKET_GROWTH);
+            return Math.min(bucket, NUM_BUCKETS - 1);
+        }
+
+        synchronized long getCount() {
+            return count;
+        }
+
+        synchronized long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @param percentile percentile in range (0, 100]
+         * @return upper bound of the bucket containing the percentile, in ms,
+         * capped at the max recorded latency
+         */
+        synchronized double getPercentileMs(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100.0);
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; ++i) {
+                seen += buckets[i];
+                if (seen >= rank && buckets[i] > 0) {
+                    final double upperMicros = Math.pow(BUCKET_GROWTH, i);
+                    return Math.min(upperMicros / 1000.0, maxNanos / 1000000.0);
+                }
+            }
+            return maxNanos / 1000000.0;
+        }
+
+        /**
+         * @return slowest files, slowest first
+         */
+        synchronized List<SlowFile> getSlowestFiles() {
+            List<SlowFile> ret = new ArrayList<SlowFile>(slowestFiles);
+            Collections.sort(ret, Collections.reverseOrder(SLOW_FILE_COMPARATOR));
+            return ret;
+        }
+
+        @Override
+        public String toString() {
+            return "ModuleTelemetry{" + "moduleName=" + moduleName + ", count=" + getCount() + '}';
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.ingest;
+
+/**
+ * JMX management interface of the file ingest module telemetry, to monitor
+ * the file ingest pipeline (e.g. with jconsole) while ingest is running.
+ */
+public interface IngestModuleTelemetryMBean {
+
+    /**
+     * @return names of the file modules with recorded telemetry
+     */
+    String[] getModuleNames();
+
+    /**
+     * @return total number of files processed by all the modules
+     */
+    long getTotalFilesProcessed();
+
+    /**
+     * @param moduleName module name
+     * @return number of files processed by the module
+     */
+    long getFilesProcessed(String moduleName);
+
+    /**
+     * @param moduleName module name
+     * @param percentile percentile in range (0, 100]
+     * @return approximate module process() latency percentile in ms
+     */
+    double getLatencyPercentileMs(String moduleName, double percentile);
+
+    /**
+     * @param moduleName module name
+     * @return files processed by the module per second since ingest started
+     */
+    double getFilesPerSecond(String moduleName);
+
+    /**
+     * @param moduleName module name
+     * @return bytes processed by the module per second since ingest started
+     */
+    double getBytesPerSecond(String moduleName);
+
+    /**
+     * @return the telemetry of all modules, in CSV format
+     */
+    String getCsvReport();
+
+    /**
+     * @return the telemetry of all modules, including the slowest files, in
+     * JSON format
+     */
+    String getJsonReport();
+}
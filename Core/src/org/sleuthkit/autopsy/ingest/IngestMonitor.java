@@ -91,6 +91,16 @@ public class IngestMonitor {
         return timer != null && timer.isRunning();
     }
 
+    /**
+     * Dump the current file ingest module telemetry into the case log
+     * directory
+     */
+    void dumpTelemetry() {
+        if (Case.isCaseOpen()) {
+            IngestModuleTelemetry.getDefault().dump(Case.getCurrentCase().getLogDirectoryPath());
+        }
+    }
+
     /**
      * Get free space in bytes of the drive where case dir resides
      *
@@ -156,6 +166,7 @@ public class IngestMonitor {
             }
 
             monitorMemory();
+            monitorTelemetry();
 
             if (checkDiskSpace() == false) {
                 //stop ingest if running
@@ -201,5 +212,14 @@ public class IngestMonitor {
         private void monitorMemory() {
             MONITOR_LOGGER.log(Level.INFO, PlatformUtil.getAllMemUsageInfo());
         }
+
+        /**
+         * Print the file ingest module telemetry to the monitor log, and dump
+         * it to the case log directory
+         */
+        private void monitorTelemetry() {
+            MONITOR_LOGGER.log(Level.INFO, "File ingest module telemetry:\n" + IngestModuleTelemetry.getDefault().getCsvReport());
+            dumpTelemetry();
+        }
     }
 }
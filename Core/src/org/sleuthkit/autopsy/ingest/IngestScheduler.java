@@ -25,8 +25,11 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -100,6 +103,16 @@ class IngestScheduler {
      *
      * getNext() will return next ProcessTask - tuple of (file, modules)
      *
+     * The scheduler supports multiple concurrent consumers (file ingest threads).
+     * Files ready to be processed are kept in lock-free queue shards, each consumer
+     * dequeues from its own shard and steals from the other shards when its shard is empty.
+     * Directories are expanded into the file shards by a separate prefetch thread,
+     * which stays ahead of the consumers, so that consumers never wait on the
+     * case database while other consumers hold the scheduler lock.
+     * The root and directory queues are not sharded and stay under the
+     * scheduler lock: they are used by schedule() and the prefetch thread,
+     * consumers only check them when the file shards are empty.
+     *
      */
     static class FileScheduler implements Iterator<FileScheduler.ProcessTask> {
         //root folders enqueued
@@ -107,11 +120,28 @@ class IngestScheduler {
         private TreeSet<ProcessTask> rootProcessTasks;
         //stack of current dirs to be processed recursively
         private List<ProcessTask> curDirProcessTasks;
-        //list of files being processed in the currently processed directory
-        private LinkedList<ProcessTask> curFileProcessTasks; //need to add to start and end quickly
+        //shards of files ready to be processed, need to add to start and end quickly
+        private final List<ConcurrentLinkedDeque<ProcessTask>> curFileProcessTasks;
+        //number of files in all the file shards
+        private final AtomicInteger curFileProcessTasksCount = new AtomicInteger();
+        //next shard to add files to
+        private final AtomicInteger nextShard = new AtomicInteger();
+        //directories currently being expanded by the prefetch thread, outside of the lock
+        //tasks removed from the scheduler during the expansion are also removed from this list
+        private final List<ProcessTask> expandingTasks = new ArrayList<ProcessTask>();
+        private Thread prefetchThread;
+        //bulk children queries and memoized file system info, for the current ingest
+        private final BulkFileTraversal bulkTraversal = new BulkFileTraversal();
         //estimated total files to be enqueued for currently scheduled content objects
-        private int filesEnqueuedEst;
-        private int filesDequeued;
+        private final AtomicInteger filesEnqueuedEst = new AtomicInteger();
+        private final AtomicInteger filesDequeued = new AtomicInteger();
+        //number of files the prefetch thread tries to keep ready in the file shards
+        private final static int PREFETCH_FILES_TARGET = 2000;
+        //time a consumer waits for the prefetch thread before rechecking the shards
+        private final static int CONSUMER_WAIT_MS = 100;
+        private final static int MAX_SHARDS = 16;
+        //max number of directories expanded with a single bulk children query
+        private final static int EXPAND_DIRS_BATCH = 500;
         private final static int FAT_NTFS_FLAGS =
                 TskData.TSK_FS_TYPE_ENUM.TSK_FS_TYPE_FAT12.getValue()
                 | TskData.TSK_FS_TYPE_ENUM.TSK_FS_TYPE_FAT16.getValue()
@@ -121,9 +151,11 @@ class IngestScheduler {
         private FileScheduler() {
             rootProcessTasks = new TreeSet<ProcessTask>(new RootTaskComparator());
             curDirProcessTasks = new ArrayList<ProcessTask>();
-            curFileProcessTasks = new LinkedList<ProcessTask>();
-            filesEnqueuedEst = 0;
-            filesDequeued = 0;
+            final int numShards = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_SHARDS));
+            curFileProcessTasks = new ArrayList<ConcurrentLinkedDeque<ProcessTask>>(numShards);
+            for (int i = 0; i < numShards; ++i) {
+                curFileProcessTasks.add(new ConcurrentLinkedDeque<ProcessTask>());
+            }
         }
 
         @Override
@@ -137,19 +169,22 @@ class IngestScheduler {
             for (ProcessTask task : curDirProcessTasks) {
                 sb.append(task.toString()).append(" ");
             }
-            sb.append("\nCurFiles, size: ").append(curFileProcessTasks.size());
-            for (ProcessTask task : curFileProcessTasks) {
-                sb.append(task.toString()).append(" ");
+            sb.append("\nCurFiles, size: ").append(curFileProcessTasksCount.get());
+            for (ConcurrentLinkedDeque<ProcessTask> shard : curFileProcessTasks) {
+                for (ProcessTask task : shard) {
+                    sb.append(task.toString()).append(" ");
+                }
             }
             return sb.toString();
         }
 
         float getPercentageDone() {
-            if (filesEnqueuedEst == 0) {
+            final int enqueuedEst = filesEnqueuedEst.get();
+            if (enqueuedEst == 0) {
                 return 0;
             }
 
-            return ((100.f) * filesDequeued) / filesEnqueuedEst;
+            return ((100.f) * filesDequeued.get()) / enqueuedEst;
 
         }
 
@@ -182,7 +217,7 @@ class IngestScheduler {
          * @return total number of files
          */
         int getFilesEnqueuedEst() {
-            return filesEnqueuedEst;
+            return filesEnqueuedEst.get();
         }
 
         /**
@@ -192,7 +227,7 @@ class IngestScheduler {
          * @return number of files dequeued so far
          */
         int getFilesDequeued() {
-            return filesDequeued;
+            return filesDequeued.get();
         }
 
         /**
@@ -315,7 +350,7 @@ class IngestScheduler {
          *
          * @param task tasks similar to this one should be removed
          */
-        private void removeDupTasks(ScheduledTask task) {
+        private synchronized void removeDupTasks(ScheduledTask task) {
             final Content inputContent = task.getContent();
 
             //remove from root queue
@@ -336,14 +371,26 @@ class IngestScheduler {
             }
             curDirProcessTasks.removeAll(toRemove);
 
-            //remove from file queue
+            //discard children of the dirs currently being expanded
             toRemove = new ArrayList<ProcessTask>();
-            for (ProcessTask pt : curFileProcessTasks) {
+            for (ProcessTask pt : expandingTasks) {
                 if (pt.context.getScheduledTask().getContent().equals(inputContent)) {
                     toRemove.add(pt);
                 }
             }
-            curFileProcessTasks.removeAll(toRemove);
+            expandingTasks.removeAll(toRemove);
+
+            //remove from file queues
+            for (ConcurrentLinkedDeque<ProcessTask> shard : curFileProcessTasks) {
+                Iterator<ProcessTask> it = shard.iterator();
+                while (it.hasNext()) {
+                    ProcessTask pt = it.next();
+                    if (pt.context.getScheduledTask().getContent().equals(inputContent)
+                            && shard.removeFirstOccurrence(pt)) {
+                        curFileProcessTasksCount.decrementAndGet();
+                    }
+                }
+            }
 
 
         }
@@ -360,7 +407,7 @@ class IngestScheduler {
          * @param originalContext original content schedule context that was used
          * to schedule the parent origin content, with the modules, settings, etc.
          */
-        synchronized void schedule(AbstractFile file, PipelineContext originalContext) {
+        void schedule(AbstractFile file, PipelineContext originalContext) {
             ScheduledTask originalTask = originalContext.getScheduledTask();
 
             //skip if task contains no modules
@@ -370,8 +417,9 @@ class IngestScheduler {
 
             ProcessTask fileTask = new ProcessTask(file, originalContext);
             if (shouldEnqueueTask(fileTask)) {
-                this.curFileProcessTasks.addFirst(fileTask);
-                ++filesEnqueuedEst;
+                addFileTask(fileTask, true);
+                filesEnqueuedEst.incrementAndGet();
+                notifyFileQueued(fileTask);
             }
 
 
@@ -398,7 +446,7 @@ class IngestScheduler {
                 //reset counters if the same content enqueued twice
                 //Note, not very accurate, because we may have processed some files from 
                 //another content
-                this.filesDequeued = 0;
+                this.filesDequeued.set(0);
             }
 
             //remove duplicate scheduled tasks still in queues for this content if enqueued previously
@@ -406,110 +454,356 @@ class IngestScheduler {
 
             List<ProcessTask> rootTasks = ProcessTask.createFromScheduledTask(context);
 
+            //(re)load the file systems info used by the bulk traversal, new content could add file systems
+            try {
+                bulkTraversal.load(Case.getCurrentCase().getSleuthkitCase());
+            } catch (TskCoreException ex) {
+                logger.log(Level.WARNING, "Could not load file systems info, directories will be expanded one at a time", ex);
+                bulkTraversal.clear();
+            }
+
             //adds and resorts the tasks
             this.rootProcessTasks.addAll(rootTasks);
 
             //update approx count of files to process in queues
-            this.filesEnqueuedEst = this.queryNumFilesinEnqueuedContents();
+            this.filesEnqueuedEst.set(this.queryNumFilesinEnqueuedContents());
 
-            //reshuffle/update the dir and file level queues if needed
-            updateQueues();
+            //wake up the prefetch thread to expand the new dirs to the file queues
+            startPrefetch();
+            notifyAll();
 
         }
 
+        /**
+         * Check if there is more tasks to process, either already in the file
+         * queues, or pending to be expanded from the directory queues.
+         *
+         * @return true if more tasks enqueued
+         */
         @Override
-        public synchronized boolean hasNext() {
-            boolean hasNext = !this.curFileProcessTasks.isEmpty();
+        public boolean hasNext() {
+            boolean hasNext = curFileProcessTasksCount.get() > 0 || hasPendingDirs();
 
             if (!hasNext) {
                 //reset counters
-                filesDequeued = 0;
-                filesEnqueuedEst = 0;
+                filesDequeued.set(0);
+                filesEnqueuedEst.set(0);
             }
 
             return hasNext;
         }
 
+        private synchronized boolean hasPendingDirs() {
+            return !rootProcessTasks.isEmpty() || !curDirProcessTasks.isEmpty() || !expandingTasks.isEmpty();
+        }
+
         @Override
-        public synchronized ProcessTask next() {
-            if (!hasNext()) {
+        public ProcessTask next() {
+            final ProcessTask task = poll(0);
+            if (task == null) {
                 throw new IllegalStateException("No next ProcessTask, check hasNext() first!");
             }
+            return task;
+        }
+
+        /**
+         * Atomically check for and dequeue the next task. To be used by
+         * concurrent file ingest threads, where a separate hasNext() and next()
+         * call pair could race with another consumer.
+         *
+         * @return next ProcessTask, or null if there is no more tasks enqueued
+         */
+        ProcessTask poll() {
+            return poll(0);
+        }
 
-            //dequeue the last in the list
-            final ProcessTask task = curFileProcessTasks.pollLast();
+        /**
+         * Dequeue the next task for the consumer. The task is taken from the
+         * consumer's own file queue shard, or stolen from another shard if the
+         * consumer shard is empty. If the file shards are empty and directories
+         * are still being expanded, waits for the prefetch thread.
+         *
+         * @param consumerId id of the consumer (file ingest thread), used to
+         * pick its file queue shard
+         * @return next ProcessTask, or null if there is no more tasks enqueued
+         */
+        ProcessTask poll(int consumerId) {
+            final int numShards = curFileProcessTasks.size();
+            final int ownShard = Math.abs(consumerId % numShards);
+            while (true) {
+                //dequeue the last in own shard, or the first in the other shards
+                ProcessTask task = curFileProcessTasks.get(ownShard).pollLast();
+                for (int i = 1; task == null && i < numShards; ++i) {
+                    task = curFileProcessTasks.get((ownShard + i) % numShards).pollFirst();
+                }
 
-            //continue shifting to file queue until not empty
-            while (curFileProcessTasks.isEmpty()
-                    && !(this.rootProcessTasks.isEmpty() && this.curDirProcessTasks.isEmpty())) {
-                updateQueues();
-            }
+                if (task != null) {
+                    if (curFileProcessTasksCount.decrementAndGet() < PREFETCH_FILES_TARGET / 2) {
+                        wakePrefetch();
+                    }
+                    filesDequeued.incrementAndGet();
+                    return task;
+                }
 
-            ++filesDequeued;
+                synchronized (this) {
+                    if (curFileProcessTasksCount.get() > 0) {
+                        //files added since we checked the shards
+                        continue;
+                    }
+                    if (!hasPendingDirs()) {
+                        //reset counters
+                        filesDequeued.set(0);
+                        filesEnqueuedEst.set(0);
+                        return null;
+                    }
+                    //let the prefetch thread expand more dirs
+                    notifyAll();
+                    try {
+                        wait(CONSUMER_WAIT_MS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                }
+            }
+        }
 
-            return task;
+        /**
+         * Add a file task to one of the file queue shards, picked round-robin
+         *
+         * @param task task to add
+         * @param processLast true if the task should be added to the end of
+         * the processing order, false if it is to be processed early
+         */
+        private void addFileTask(ProcessTask task, boolean processLast) {
+            final ConcurrentLinkedDeque<ProcessTask> shard = curFileProcessTasks.get(
+                    Math.abs(nextShard.getAndIncrement() % curFileProcessTasks.size()));
+            if (processLast) {
+                shard.addFirst(task);
+            } else {
+                shard.addLast(task);
+            }
+            curFileProcessTasksCount.incrementAndGet();
+        }
 
+        /**
+         * Notify the modules of a task that its file was queued, so that they
+         * can start reading ahead. Must not be called with the scheduler lock
+         * held.
+         *
+         * @param task task added to the file queues
+         */
+        private void notifyFileQueued(ProcessTask task) {
+            for (IngestModuleAbstractFile module : task.context.getScheduledTask().getModules()) {
+                try {
+                    module.fileQueued(task.context, task.file);
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Exception in module " + module.getName() + " notified of queued file: " + task.file.getName(), e);
+                }
+            }
         }
 
-        private synchronized void updateQueues() {
-            //if file queue is empty, grab the next one from the dir stack
-            //if dir stack is empty, grab one from root dir queue first
-            //when pop from dir stack, get children of popped, and push them back onto stack
+        private synchronized void wakePrefetch() {
+            notifyAll();
+        }
 
-            if (!this.curFileProcessTasks.isEmpty()) {
+        /**
+         * Start the prefetch thread if not already running
+         */
+        private synchronized void startPrefetch() {
+            if (prefetchThread != null && prefetchThread.isAlive()) {
                 return;
             }
-
-            //no file queue tasks
-            //grab from dir stack, if available
-            if (this.curDirProcessTasks.isEmpty()) {
-                //grab from root dir sorted queue
-                if (!rootProcessTasks.isEmpty()) {
-                    ProcessTask rootTask = this.rootProcessTasks.pollFirst();
-                    curDirProcessTasks.add(rootTask);
+            prefetchThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    prefetch();
                 }
-            }
+            }, "IngestScheduler file prefetch");
+            prefetchThread.setDaemon(true);
+            prefetchThread.start();
+        }
 
-            if (!this.curDirProcessTasks.isEmpty()) {
-                //pop and push AbstractFile directory children if any
-                //add the popped and its leaf children onto cur file list
-                ProcessTask parentTask = curDirProcessTasks.remove(curDirProcessTasks.size() - 1);
-                final AbstractFile parentFile = parentTask.file;
-                //add popped to file list
-                if (shouldEnqueueTask(parentTask)) {
-                    this.curFileProcessTasks.addLast(parentTask);
+        /**
+         * Prefetch thread loop. Keeps the file queue shards filled up to
+         * PREFETCH_FILES_TARGET files by expanding the directories in the dir
+         * stack, or the next root dir in the priority order if the stack is empty.
+         * Up to EXPAND_DIRS_BATCH directories from the top of the stack are
+         * expanded at once.
+         */
+        private void prefetch() {
+            while (true) {
+                final List<ProcessTask> parentTasks = new ArrayList<ProcessTask>();
+                synchronized (this) {
+                    while (curFileProcessTasksCount.get() >= PREFETCH_FILES_TARGET
+                            || (rootProcessTasks.isEmpty() && curDirProcessTasks.isEmpty())) {
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            logger.log(Level.INFO, "File prefetch thread interrupted");
+                            prefetchThread = null;
+                            return;
+                        }
+                    }
+
+                    //grab from dir stack, if available
+                    //if dir stack is empty, grab one from root dir queue first
+                    if (curDirProcessTasks.isEmpty()) {
+                        //grab from root dir sorted queue
+                        curDirProcessTasks.add(rootProcessTasks.pollFirst());
+                    }
+                    while (!curDirProcessTasks.isEmpty() && parentTasks.size() < EXPAND_DIRS_BATCH) {
+                        parentTasks.add(curDirProcessTasks.remove(curDirProcessTasks.size() - 1));
+                    }
+                    expandingTasks.addAll(parentTasks);
                 }
+
+                final List<ProcessTask> addedTasks = new ArrayList<ProcessTask>();
                 try {
-                    //get children, and if leafs, schedule to file queue
-                    //otherwise push to curDir stack
+                    //expand the dirs without holding the lock, so consumers are not blocked
+                    final List<ExpandedDir> expandedDirs = expandDirs(parentTasks);
+
+                    synchronized (this) {
+                        for (ExpandedDir expandedDir : expandedDirs) {
+                            //skip children of dirs removed from the scheduler while expanding
+                            if (!expandingTasks.contains(expandedDir.parentTask)) {
+                                continue;
+                            }
+                            curDirProcessTasks.addAll(expandedDir.childDirTasks);
+                            for (ProcessTask childTask : expandedDir.childFileTasks) {
+                                addFileTask(childTask, false);
+                                addedTasks.add(childTask);
+                            }
+                        }
+                    }
+                } catch (RuntimeException | Error ex) {
+                    //keep the thread alive, the consumers wait for it until the dirs are expanded
+                    logger.log(Level.SEVERE, "Error expanding directories, their files are not ingested: " + parentTasks, ex);
+                } finally {
+                    synchronized (this) {
+                        expandingTasks.removeAll(parentTasks);
+                        //wake up waiting consumers
+                        notifyAll();
+                    }
+                }
+
+                //notify the modules outside of the lock
+                for (ProcessTask addedTask : addedTasks) {
+                    notifyFileQueued(addedTask);
+                }
+            }
+        }
+
+        /**
+         * Result of expanding a directory task
+         */
+        private static class ExpandedDir {
+
+            final ProcessTask parentTask;
+            //directory tasks to push on the dir stack
+            final List<ProcessTask> childDirTasks = new ArrayList<ProcessTask>();
+            //file tasks ready to be processed, including the parent if it should be processed
+            final List<ProcessTask> childFileTasks = new ArrayList<ProcessTask>();
 
-                    //TODO use the new more specific method to get list of AbstractFile
-                    List<Content> children = parentFile.getChildren();
-                    for (Content c : children) {
-                        if (c instanceof AbstractFile) {
-                            AbstractFile childFile = (AbstractFile) c;
-                            ProcessTask childTask = new ProcessTask(parentTask, childFile);
+            ExpandedDir(ProcessTask parentTask) {
+                this.parentTask = parentTask;
+            }
+        }
 
+        /**
+         * Expand the directory tasks to their children tasks, using bulk
+         * children queries if the file systems info is loaded, or a
+         * getChildren() query per directory otherwise.
+         *
+         * @param parentTasks directory tasks to expand, in the order popped
+         * from the dir stack
+         * @return expanded dirs, in the same order as parentTasks
+         */
+        private List<ExpandedDir> expandDirs(List<ProcessTask> parentTasks) {
+            final List<ExpandedDir> expandedDirs = new ArrayList<ExpandedDir>();
+            if (bulkTraversal.isLoaded()) {
+                final List<Long> parentIds = new ArrayList<Long>();
+                for (ProcessTask parentTask : parentTasks) {
+                    parentIds.add(parentTask.file.getId());
+                }
+                try {
+                    final Map<Long, List<BulkFileTraversal.ChildFile>> children = bulkTraversal.getChildren(parentIds);
+                    for (ProcessTask parentTask : parentTasks) {
+                        final ExpandedDir expandedDir = new ExpandedDir(parentTask);
+                        expandedDirs.add(expandedDir);
+                        if (shouldEnqueueTask(parentTask)) {
+                            expandedDir.childFileTasks.add(parentTask);
+                        }
+                        final List<BulkFileTraversal.ChildFile> parentChildren = children.get(parentTask.file.getId());
+                        if (parentChildren == null) {
+                            continue;
+                        }
+                        for (BulkFileTraversal.ChildFile child : parentChildren) {
+                            final AbstractFile childFile = child.file;
                             if (childFile.isDir()) {
-                                this.curDirProcessTasks.add(childTask);
-                            } else {
-                                if (shouldEnqueueTask(childTask)) {
-                                    this.curFileProcessTasks.addLast(childTask);
-                                }
+                                expandedDir.childDirTasks.add(new ProcessTask(parentTask, childFile));
+                            } else if (shouldEnqueueChild(child, parentTask.context)) {
+                                //only create the task if it is going to be enqueued
+                                expandedDir.childFileTasks.add(new ProcessTask(parentTask, childFile));
                             }
-
                         }
                     }
-                } catch (TskCoreException ex) {
-                    logger.log(Level.SEVERE, "Could not get children of file and update file queues: "
-                            + parentFile.getName(), ex);
+                    return expandedDirs;
+                } catch (TskCoreException | RuntimeException ex) {
+                    logger.log(Level.WARNING, "Could not get children of directories in bulk, "
+                            + "expanding one directory at a time", ex);
+                    expandedDirs.clear();
                 }
+            }
 
+            for (ProcessTask parentTask : parentTasks) {
+                expandedDirs.add(expandDir(parentTask));
+            }
+            return expandedDirs;
+        }
+
+        /**
+         * Expand the directory task to its children tasks
+         *
+         * @param parentTask directory task to expand, it is also added to the
+         * file tasks if it should be processed
+         * @return the expanded dir
+         */
+        private static ExpandedDir expandDir(ProcessTask parentTask) {
+            final ExpandedDir expandedDir = new ExpandedDir(parentTask);
+            //pop and push AbstractFile directory children if any
+            //add the popped and its leaf children onto cur file list
+            final AbstractFile parentFile = parentTask.file;
+            //add popped to file list
+            if (shouldEnqueueTask(parentTask)) {
+                expandedDir.childFileTasks.add(parentTask);
             }
+            try {
+                //get children, and if leafs, schedule to file queue
+                //otherwise push to curDir stack
+
+                //TODO use the new more specific method to get list of AbstractFile
+                List<Content> children = parentFile.getChildren();
+                for (Content c : children) {
+                    if (c instanceof AbstractFile) {
+                        AbstractFile childFile = (AbstractFile) c;
+                        ProcessTask childTask = new ProcessTask(parentTask, childFile);
+
+                        if (childFile.isDir()) {
+                            expandedDir.childDirTasks.add(childTask);
+                        } else {
+                            if (shouldEnqueueTask(childTask)) {
+                                expandedDir.childFileTasks.add(childTask);
+                            }
+                        }
 
-            //logger.info("\nAAA ROOTS " + this.rootProcessTasks);
-            //logger.info("\nAAA STACK " + this.curDirProcessTasks);
-            //logger.info("\nAAA CURFILES " + this.curFileProcessTasks);
+                    }
+                }
+            } catch (TskCoreException | RuntimeException ex) {
+                logger.log(Level.SEVERE, "Could not get children of file and update file queues: "
+                        + parentFile.getName(), ex);
+            }
+            return expandedDir;
         }
 
         @Override
@@ -536,33 +830,40 @@ class IngestScheduler {
             for (ProcessTask task : curDirProcessTasks) {
                 contentSet.add(task.context.getScheduledTask().getContent());
             }
-            for (ProcessTask task : curFileProcessTasks) {
+            for (ProcessTask task : expandingTasks) {
                 contentSet.add(task.context.getScheduledTask().getContent());
             }
+            for (ConcurrentLinkedDeque<ProcessTask> shard : curFileProcessTasks) {
+                for (ProcessTask task : shard) {
+                    contentSet.add(task.context.getScheduledTask().getContent());
+                }
+            }
 
             return new ArrayList<Content>(contentSet);
         }
 
         synchronized boolean hasModuleEnqueued(IngestModuleAbstractFile module) {
             for (ProcessTask task : rootProcessTasks) {
-                for (IngestModuleAbstractFile m : task.context.getScheduledTask().getModules()) {
-                    if (m.getName().equals(module.getName())) {
-                        return true;
-                    }
+                if (hasModule(task, module)) {
+                    return true;
                 }
             }
 
             for (ProcessTask task : curDirProcessTasks) {
-                for (IngestModuleAbstractFile m : task.context.getScheduledTask().getModules()) {
-                    if (m.getName().equals(module.getName())) {
-                        return true;
-                    }
+                if (hasModule(task, module)) {
+                    return true;
                 }
             }
 
-            for (ProcessTask task : curFileProcessTasks) {
-                for (IngestModuleAbstractFile m : task.context.getScheduledTask().getModules()) {
-                    if (m.getName().equals(module.getName())) {
+            for (ProcessTask task : expandingTasks) {
+                if (hasModule(task, module)) {
+                    return true;
+                }
+            }
+
+            for (ConcurrentLinkedDeque<ProcessTask> shard : curFileProcessTasks) {
+                for (ProcessTask task : shard) {
+                    if (hasModule(task, module)) {
                         return true;
                     }
                 }
@@ -571,10 +872,25 @@ class IngestScheduler {
             return false;
         }
 
+        private static boolean hasModule(ProcessTask task, IngestModuleAbstractFile module) {
+            for (IngestModuleAbstractFile m : task.context.getScheduledTask().getModules()) {
+                if (m.getName().equals(module.getName())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         synchronized void empty() {
             this.rootProcessTasks.clear();
             this.curDirProcessTasks.clear();
-            this.curFileProcessTasks.clear();
+            this.expandingTasks.clear();
+            for (ConcurrentLinkedDeque<ProcessTask> shard : curFileProcessTasks) {
+                while (shard.pollFirst() != null) {
+                    curFileProcessTasksCount.decrementAndGet();
+                }
+            }
+            notifyAll();
         }
 
         /**
@@ -588,15 +904,7 @@ class IngestScheduler {
         private static boolean shouldEnqueueTask(final ProcessTask processTask) {
             final AbstractFile aFile = processTask.file;
 
-            //if it's unalloc file, skip if so scheduled
-            if (processTask.context.isProcessUnalloc() == false
-                    && aFile.getType().equals(TSK_DB_FILES_TYPE_ENUM.UNALLOC_BLOCKS //unalloc files
-                    )) {
-                return false;
-            }
-
-            String fileName = aFile.getName();
-            if (fileName.equals(".") || fileName.equals("..")) {
+            if (!shouldEnqueueFileName(aFile, processTask.context)) {
                 return false;
             } else if (aFile instanceof org.sleuthkit.datamodel.File) {
                 final org.sleuthkit.datamodel.File f = (File) aFile;
@@ -626,24 +934,87 @@ class IngestScheduler {
                     logger.log(Level.WARNING, "Could not check if should enqueue the file: " + f.getName(), ex);
                 }
 
-                if (isInRootDir && f.getMetaAddr() < 32) {
-                    String name = f.getName();
+                return !isFatNtfsSpecialFile(f, isInRootDir);
+            }
 
-                    if (name.length() > 0
-                            && name.charAt(0) == '$'
-                            && name.contains(":")) {
-                        return false;
-                    }
-                } else {
+
+            return true;
+        }
+
+        /**
+         * Check if the child file returned by the bulk traversal meets criteria
+         * to be enqueued. Same checks as shouldEnqueueTask(), but uses the
+         * memoized file system info instead of querying the file system and
+         * parent directory of the file.
+         *
+         * @param child child file to check
+         * @param context context the child would be scheduled with
+         * @return true if should be enqueued, false otherwise
+         */
+        private boolean shouldEnqueueChild(final BulkFileTraversal.ChildFile child, final PipelineContext<IngestModuleAbstractFile> context) {
+            final AbstractFile aFile = child.file;
+
+            if (!shouldEnqueueFileName(aFile, context)) {
+                return false;
+            } else if (aFile instanceof org.sleuthkit.datamodel.File) {
+                Integer fsType = bulkTraversal.getFsType(child.fsObjId);
+                if (fsType == null) {
+                    fsType = TskData.TSK_FS_TYPE_ENUM.TSK_FS_TYPE_UNSUPP.getValue();
+                }
+
+                if ((fsType & FAT_NTFS_FLAGS) == 0) {
+                    //not fat or ntfs, accept all files
                     return true;
                 }
 
+                return !isFatNtfsSpecialFile(aFile, bulkTraversal.isRootDir(child.parentId));
             }
 
+            return true;
+        }
 
+        /**
+         * Checks of the file type and name, that do not need any additional
+         * case database queries
+         *
+         * @return true if the file passes the checks, false if should be skipped
+         */
+        private static boolean shouldEnqueueFileName(final AbstractFile aFile, final PipelineContext<IngestModuleAbstractFile> context) {
+            //if it's unalloc file, skip if so scheduled
+            if (context.isProcessUnalloc() == false
+                    && aFile.getType().equals(TSK_DB_FILES_TYPE_ENUM.UNALLOC_BLOCKS //unalloc files
+                    )) {
+                return false;
+            }
+
+            String fileName = aFile.getName();
+            if (fileName.equals(".") || fileName.equals("..")) {
+                return false;
+            }
             return true;
         }
 
+        /**
+         * Check for files in root dir, starting with $, containing : (not default attributes)
+         * with meta address < 32, i.e. some special large NTFS and FAT files
+         *
+         * @param f file on a FAT or NTFS file system
+         * @param isInRootDir true if the file parent is the root dir
+         * @return true if the file is a special file to skip
+         */
+        private static boolean isFatNtfsSpecialFile(final AbstractFile f, boolean isInRootDir) {
+            if (isInRootDir && f.getMetaAddr() < 32) {
+                String name = f.getName();
+
+                if (name.length() > 0
+                        && name.charAt(0) == '$'
+                        && name.contains(":")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         /**
          * Root dir sorter
          */
@@ -20,6 +20,7 @@
 
 package org.sleuthkit.autopsy.ingest;
 
+import java.util.Collection;
 import java.util.Map;
 import java.util.logging.Level;
 import org.sleuthkit.autopsy.casemodule.Case;
@@ -164,6 +165,60 @@ public class IngestServices {
         return manager.getAbstractFileModuleResult(moduleName);
     }
     
+    /**
+     * Facility for a file ingest module that commits its results later (see
+     * IngestModuleAbstractFile.hasDeferredCommit()) to get the commit point of
+     * the files processed so far. To be called before the module starts
+     * committing, and passed to resultsCommitted() once the commit is durable.
+     *
+     * @return commit point of the files processed so far
+     */
+    public long getResultsCommitPoint() {
+        return manager.getResultsCommitPoint();
+    }
+
+    /**
+     * Facility for a file ingest module that commits its results later to
+     * report a durable commit. The files processed by the module before the
+     * commit point are recorded as completed in the ingest checkpoint, and
+     * are not processed again by the module if the ingest is resumed.
+     *
+     * @param module module that committed its results
+     * @param commitPoint commit point from getResultsCommitPoint(), taken
+     * before the commit started
+     */
+    public void resultsCommitted(IngestModuleAbstractFile module, long commitPoint) {
+        manager.resultsCommitted(module, commitPoint);
+    }
+
+    /**
+     * Facility for a file ingest module that commits its results later to
+     * report files whose results could not be committed. These files are not
+     * recorded as completed by the next commits, and are processed again by
+     * the module if the ingest is resumed. To be called before reporting the
+     * commit that should have included them.
+     *
+     * @param module module that failed to commit the results
+     * @param fileIds ids of the files
+     */
+    public void resultsFailed(IngestModuleAbstractFile module, Collection<Long> fileIds) {
+        manager.resultsFailed(module, fileIds);
+    }
+
+    /**
+     * Facility for a file ingest module to get the header of a file and its
+     * detected MIME type. The header of the file currently processed in the
+     * file ingest pipeline is read and its type detected once, for all the
+     * modules.
+     *
+     * @param file file to get the header of, normally the file passed to
+     * process()
+     * @return the header of the file, valid until process() returns
+     */
+    public FileHeader getFileHeader(AbstractFile file) {
+        return manager.getFileHeader(file);
+    }
+
     /**
      * Gets a specific name/value configuration setting for a module
      * @param moduleName moduleName identifier unique to that module
@@ -19,6 +19,7 @@
 
 package org.sleuthkit.autopsy.ingest;
 
+import java.util.List;
 import org.sleuthkit.datamodel.Content;
 
 /**
@@ -26,6 +27,7 @@ import org.sleuthkit.datamodel.Content;
  */
 public interface IngestUI {
     void displayMessage(final IngestMessage message);
+    void displayMessages(final List<IngestMessage> messages);
     int getMessagesCount();
     void clearMessages();
     void restoreMessages();
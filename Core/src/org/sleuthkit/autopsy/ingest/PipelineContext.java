@@ -19,6 +19,7 @@
 package org.sleuthkit.autopsy.ingest;
 
 import java.util.Objects;
+import org.sleuthkit.datamodel.AbstractFile;
 
 
 /**
@@ -48,6 +49,18 @@ public class PipelineContext <T extends IngestModuleAbstract> {
     }
 
 
+    /**
+     * Returns the header of a file processed in the pipeline, with its
+     * detected MIME type. Same as IngestServices.getFileHeader().
+     *
+     * @param file file to get the header of, normally the file passed to
+     * process()
+     * @return the header of the file, valid until process() returns
+     */
+    public FileHeader getFileHeader(AbstractFile file) {
+        return IngestServices.getDefault().getFileHeader(file);
+    }
+
     /**
      * Returns value of if unallocated space is going to be scheduled.
      * @return True if pipeline is processing unallocated space. 
@@ -29,7 +29,6 @@ import com.drew.metadata.exif.GpsDirectory;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
@@ -60,9 +59,7 @@ public final class ExifParserFileIngestModule extends IngestModuleAbstractFile {
     final public static String MODULE_NAME = "Exif Parser";
     final public static String MODULE_VERSION = "1.0";
     
-    private static final int readHeaderSize = 2;
-    private final byte[] fileHeaderBuffer = new byte[readHeaderSize];
-    private static final char JPEG_SIGNATURE_BE = 0xFFD8;
+    private static final byte[] JPEG_SIGNATURE = {(byte) 0xFF, (byte) 0xD8};
     
     private static final Logger logger = Logger.getLogger(ExifParserFileIngestModule.class.getName());
     private static ExifParserFileIngestModule defaultInstance = null;
@@ -210,26 +207,8 @@ public final class ExifParserFileIngestModule extends IngestModuleAbstractFile {
      * @return true if jpeg file, false otherwise
      */
     private boolean isJpegFileHeader(AbstractFile file) {
-        if (file.getSize() < readHeaderSize) {
-            return false;
-        }
-        
-        int bytesRead = 0;
-        try {
-            bytesRead = file.read(fileHeaderBuffer, 0, readHeaderSize);
-        } catch (TskCoreException ex) {
-            //ignore if can't read the first few bytes, not a JPEG
-            return false;
-        }
-        if (bytesRead != readHeaderSize) {
-            return false;
-        }
-        
-        ByteBuffer bytes = ByteBuffer.wrap(fileHeaderBuffer);
-        char signature = bytes.getChar();
-        
-        return signature == JPEG_SIGNATURE_BE;
-        
+        //header read once by the file type detection stage of the pipeline
+        return services.getFileHeader(file).startsWith(JPEG_SIGNATURE);
     }
     
 
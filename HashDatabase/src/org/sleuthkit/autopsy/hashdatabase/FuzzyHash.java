@@ -0,0 +1,297 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.hashdatabase;
+
+/**
+ * Context triggered piecewise hash (CTPH) of a file, in the format of ssdeep:
+ * blocksize:signature:signature at double the blocksize.
+ *
+ * A rolling hash over a 7 byte window triggers the end of a piece when it
+ * matches the block size, so that the pieces (and their characters in the
+ * signature) are the same in files that share content, wherever the content
+ * is. Files are compared by the edit distance of their signatures.
+ *
+ * The block size is picked from the size of the file, known before it is read,
+ * so that the file is hashed in a single pass. The signatures of the lower
+ * block sizes are computed in the same pass, for the files with too few
+ * triggers at the picked block size (ssdeep re-reads those files).
+ *
+ * Not thread-safe, a hasher is used by a single thread for a single file.
+ */
+class FuzzyHash {
+
+    private static final int ROLLING_WINDOW = 7;
+    private static final int MIN_BLOCKSIZE = 3;
+    private static final int SPAMSUM_LENGTH = 64;
+    private static final int HASH_PRIME = 0x01000193;
+    private static final int HASH_INIT = 0x28021967;
+    //lower block sizes hashed in the same pass, below the one picked from the size
+    private static final int LOWER_LEVELS = 2;
+    private static final char[] B64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    //rolling hash state
+    private final byte[] window = new byte[ROLLING_WINDOW];
+    private int h1, h2, h3, n;
+    //hashed block sizes are MIN_BLOCKSIZE << level, for the levels from firstLevel
+    private final int firstLevel;
+    private final int numLevels;
+    //piece hashes and signatures of every level, full and half length
+    private final int[] pieceHashes;
+    private final int[] halfPieceHashes;
+    private final StringBuilder[] signatures;
+    private final StringBuilder[] halfSignatures;
+    private long totalSize = 0;
+
+    /**
+     * @param size size of the file to hash
+     */
+    FuzzyHash(long size) {
+        int level = 0;
+        while (((long) MIN_BLOCKSIZE << level) * SPAMSUM_LENGTH < size) {
+            ++level;
+        }
+        firstLevel = Math.max(0, level - LOWER_LEVELS);
+        //also the double of the picked block size, for the second signature
+        numLevels = level - firstLevel + 2;
+        pieceHashes = new int[numLevels];
+        halfPieceHashes = new int[numLevels];
+        signatures = new StringBuilder[numLevels];
+        halfSignatures = new StringBuilder[numLevels];
+        for (int i = 0; i < numLevels; ++i) {
+            pieceHashes[i] = HASH_INIT;
+            halfPieceHashes[i] = HASH_INIT;
+            signatures[i] = new StringBuilder(SPAMSUM_LENGTH);
+            halfSignatures[i] = new StringBuilder(SPAMSUM_LENGTH / 2);
+        }
+    }
+
+    /**
+     * Hash a block of the file, in order
+     */
+    void update(byte[] buffer, int offset, int length) {
+        final long firstBlockSize = (long) MIN_BLOCKSIZE << firstLevel;
+        for (int i = offset; i < offset + length; ++i) {
+            final byte c = buffer[i];
+            final long rolling = roll(c) & 0xFFFFFFFFL;
+            for (int level = 0; level < numLevels; ++level) {
+                pieceHashes[level] = (pieceHashes[level] * HASH_PRIME) ^ (c & 0xFF);
+                halfPieceHashes[level] = (halfPieceHashes[level] * HASH_PRIME) ^ (c & 0xFF);
+            }
+
+            //a trigger at a block size is also a trigger at the lower ones
+            long blockSize = firstBlockSize;
+            for (int level = 0; level < numLevels && rolling % blockSize == blockSize - 1; ++level) {
+                if (signatures[level].length() < SPAMSUM_LENGTH - 1) {
+                    signatures[level].append(B64[(pieceHashes[level] & 0x7FFFFFFF) % 64]);
+                    pieceHashes[level] = HASH_INIT;
+                }
+                if (halfSignatures[level].length() < SPAMSUM_LENGTH / 2 - 1) {
+                    halfSignatures[level].append(B64[(halfPieceHashes[level] & 0x7FFFFFFF) % 64]);
+                    halfPieceHashes[level] = HASH_INIT;
+                }
+                blockSize <<= 1;
+            }
+        }
+        totalSize += length;
+    }
+
+    /**
+     * Get the hash of the file, once all of it was hashed
+     *
+     * @return the hash, blocksize:signature:signature
+     */
+    String digest() {
+        //use a lower block size if the picked one had too few triggers
+        int level = numLevels - 2;
+        while (level > 0 && signatures[level].length() < SPAMSUM_LENGTH / 2) {
+            --level;
+        }
+        final long blockSize = (long) MIN_BLOCKSIZE << (firstLevel + level);
+        final StringBuilder hash = new StringBuilder(SPAMSUM_LENGTH * 3 / 2 + 16);
+        hash.append(blockSize).append(':');
+        hash.append(signatures[level]);
+        if (totalSize > 0 && pieceHashes[level] != HASH_INIT) {
+            hash.append(B64[(pieceHashes[level] & 0x7FFFFFFF) % 64]);
+        }
+        hash.append(':');
+        hash.append(halfSignatures[level + 1]);
+        if (totalSize > 0 && halfPieceHashes[level + 1] != HASH_INIT) {
+            hash.append(B64[(halfPieceHashes[level + 1] & 0x7FFFFFFF) % 64]);
+        }
+        return hash.toString();
+    }
+
+    private int roll(byte b) {
+        final int c = b & 0xFF;
+        h2 -= h1;
+        h2 += ROLLING_WINDOW * c;
+        h1 += c;
+        h1 -= window[n % ROLLING_WINDOW] & 0xFF;
+        window[n % ROLLING_WINDOW] = b;
+        ++n;
+        h3 <<= 5;
+        h3 ^= c;
+        return h1 + h2 + h3;
+    }
+
+    /**
+     * Compare two fuzzy hashes
+     *
+     * @param hash1 first hash
+     * @param hash2 second hash
+     * @return match score, from 0 (no similarity) to 100 (identical), 0 if a
+     * hash is malformed or the block sizes are not comparable
+     */
+    static int compare(String hash1, String hash2) {
+        final String[] parts1 = hash1.split(":", 3);
+        final String[] parts2 = hash2.split(":", 3);
+        if (parts1.length != 3 || parts2.length != 3) {
+            return 0;
+        }
+        final long blockSize1;
+        final long blockSize2;
+        try {
+            blockSize1 = Long.parseLong(parts1[0]);
+            blockSize2 = Long.parseLong(parts2[0]);
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+        if (!areBlockSizesComparable(blockSize1, blockSize2)) {
+            return 0;
+        }
+
+        final String s1a = eliminateSequences(parts1[1]);
+        final String s1b = eliminateSequences(parts1[2]);
+        final String s2a = eliminateSequences(parts2[1]);
+        final String s2b = eliminateSequences(parts2[2]);
+        if (blockSize1 == blockSize2 && s1a.equals(s2a)) {
+            return 100;
+        }
+
+        if (blockSize1 == blockSize2) {
+            return Math.max(scoreStrings(s1a, s2a, blockSize1), scoreStrings(s1b, s2b, blockSize1 * 2));
+        } else if (blockSize1 == blockSize2 * 2) {
+            return scoreStrings(s1a, s2b, blockSize1);
+        } else {
+            return scoreStrings(s1b, s2a, blockSize2);
+        }
+    }
+
+    /**
+     * Get the block size of a hash
+     *
+     * @param hash fuzzy hash
+     * @return the block size, or -1 if malformed
+     */
+    static long getBlockSize(String hash) {
+        final int sep = hash.indexOf(':');
+        if (sep <= 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(hash.substring(0, sep));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Check if hashes of two block sizes can be compared: the signatures of
+     * the same or double block size are compared
+     */
+    static boolean areBlockSizesComparable(long blockSize1, long blockSize2) {
+        return blockSize1 == blockSize2 || blockSize1 == blockSize2 * 2 || blockSize2 == blockSize1 * 2;
+    }
+
+    /**
+     * Remove the runs of more than 3 identical characters, which carry little
+     * information and inflate the scores
+     */
+    private static String eliminateSequences(String s) {
+        final StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); ++i) {
+            final char c = s.charAt(i);
+            if (i >= 3 && c == s.charAt(i - 1) && c == s.charAt(i - 2) && c == s.charAt(i - 3)) {
+                continue;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static int scoreStrings(String s1, String s2, long blockSize) {
+        if (s1.length() > SPAMSUM_LENGTH || s2.length() > SPAMSUM_LENGTH) {
+            return 0;
+        }
+        //unrelated content unless a full window of pieces is shared
+        if (!hasCommonSubstring(s1, s2)) {
+            return 0;
+        }
+
+        long score = editDistance(s1, s2);
+        //scale to the length of the strings, then to 0-100
+        score = (score * SPAMSUM_LENGTH) / (s1.length() + s2.length());
+        score = (100 * score) / SPAMSUM_LENGTH;
+        if (score >= 100) {
+            return 0;
+        }
+        score = 100 - score;
+
+        //small block sizes: do not exaggerate the match of small files
+        final long maxBlockSizeCap = (99 + ROLLING_WINDOW) / ROLLING_WINDOW * MIN_BLOCKSIZE;
+        if (blockSize < maxBlockSizeCap) {
+            final long cap = blockSize / MIN_BLOCKSIZE * Math.min(s1.length(), s2.length());
+            score = Math.min(score, cap);
+        }
+        return (int) score;
+    }
+
+    private static boolean hasCommonSubstring(String s1, String s2) {
+        if (s1.length() < ROLLING_WINDOW || s2.length() < ROLLING_WINDOW) {
+            return false;
+        }
+        for (int i = 0; i <= s1.length() - ROLLING_WINDOW; ++i) {
+            if (s2.contains(s1.substring(i, i + ROLLING_WINDOW))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Edit distance, with substitutions costing a removal and an insertion
+     */
+    private static int editDistance(String s1, String s2) {
+        int[] prev = new int[s2.length() + 1];
+        int[] cur = new int[s2.length() + 1];
+        for (int j = 0; j <= s2.length(); ++j) {
+            prev[j] = j;
+        }
+        for (int i = 1; i <= s1.length(); ++i) {
+            cur[0] = i;
+            for (int j = 1; j <= s2.length(); ++j) {
+                final int replaceCost = s1.charAt(i - 1) == s2.charAt(j - 1) ? 0 : 2;
+                cur[j] = Math.min(Math.min(prev[j] + 1, cur[j - 1] + 1), prev[j - 1] + replaceCost);
+            }
+            final int[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+        return prev[s2.length()];
+    }
+}
@@ -21,6 +21,8 @@ package org.sleuthkit.autopsy.hashdatabase;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import javax.swing.SwingWorker;
@@ -58,6 +60,9 @@ public class HashDb implements Comparable<HashDb> {
     
     // Suffix added to the end of a database name to get its index file
     private static final String INDEX_SUFFIX = "-md5.idx";
+    // Added to the end of a database name, with a version, to get its binary index files
+    private static final String BINARY_INDEX_INFIX = "-md5.";
+    private static final String BINARY_INDEX_SUFFIX = ".bin";
     
     private String name;
     private List<String> databasePaths; // TODO: Length limited to one for now...
@@ -161,6 +166,82 @@ public class HashDb implements Comparable<HashDb> {
         return new File(toIndexPath(databasePaths.get(0))); // TODO: support multiple paths
     }
 
+    /**
+     * Gets the binary index file, imported in Java for the lookups in memory.
+     * Each import writes a new version, the previous ones may still be mapped
+     * and can't be replaced on Windows.
+     * @return a File initialized with the path of the latest binary index
+     * version of the database, version 0 if none
+     */
+    File binaryIndexFile() {
+        return binaryIndexFile(latestBinaryIndexVersion());
+    }
+
+    /**
+     * Gets the file of the next binary index version, to import into
+     * @return a File initialized with a binary index path not used yet
+     */
+    File nextBinaryIndexFile() {
+        return binaryIndexFile(latestBinaryIndexVersion() + 1);
+    }
+
+    private File binaryIndexFile(long version) {
+        return new File(databasePaths.get(0) + BINARY_INDEX_INFIX + version + BINARY_INDEX_SUFFIX); // TODO: support multiple paths
+    }
+
+    /**
+     * Deletes the binary index versions older than the latest one, those
+     * still mapped are deleted after a next import
+     */
+    private void deleteOldBinaryIndexes() {
+        final long latest = latestBinaryIndexVersion();
+        for (long version : binaryIndexVersions()) {
+            if (version < latest) {
+                binaryIndexFile(version).delete();
+            }
+        }
+    }
+
+    private long latestBinaryIndexVersion() {
+        long latest = 0;
+        for (long version : binaryIndexVersions()) {
+            latest = Math.max(latest, version);
+        }
+        return latest;
+    }
+
+    private List<Long> binaryIndexVersions() {
+        final File database = new File(databasePaths.get(0));
+        final String prefix = database.getName() + BINARY_INDEX_INFIX;
+        final List<Long> versions = new ArrayList<Long>();
+        final String[] names = database.getAbsoluteFile().getParentFile().list();
+        if (names == null) {
+            return versions;
+        }
+        for (String fileName : names) {
+            if (fileName.startsWith(prefix) && fileName.endsWith(BINARY_INDEX_SUFFIX)) {
+                try {
+                    versions.add(Long.parseLong(fileName.substring(prefix.length(), fileName.length() - BINARY_INDEX_SUFFIX.length())));
+                } catch (NumberFormatException ex) {
+                    //not a binary index version
+                }
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Checks if the binary index can be used for the lookups in memory
+     * @return true if there is a binary index not older than the database
+     * file, or than the index if there is no database file
+     */
+    boolean binaryIndexIsCurrent() {
+        File bi = binaryIndexFile();
+        File db = databaseExists() ? databaseFile() : indexFile();
+
+        return bi.exists() && db.exists() && !isOlderThan(bi, db);
+    }
+
     /**
      * Checks if the index file is older than the database file
      * @return true if there is are files at the index path and the database
@@ -272,6 +353,7 @@ public class HashDb implements Comparable<HashDb> {
     private class CreateIndex extends SwingWorker<Object,Void> {
 
         private ProgressHandle progress;
+        private volatile TskException nativeIndexError;
         
         CreateIndex(){};
 
@@ -289,7 +371,37 @@ public class HashDb implements Comparable<HashDb> {
             */
             progress.start();
             progress.switchToIndeterminate();
-            SleuthkitJNI.createLookupIndex(databasePaths.get(0));
+            
+            // The native lookups read the index of Sleuth Kit, built meanwhile
+            final Thread nativeIndexer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SleuthkitJNI.createLookupIndex(databasePaths.get(0));
+                    } catch (TskException ex) {
+                        nativeIndexError = ex;
+                    }
+                }
+            }, "Native-hash-index");
+            nativeIndexer.start();
+            
+            // The lookups in memory map the binary index, imported with progress
+            if (databaseExists()) {
+                try {
+                    new HashSetImporter(databaseFile(), nextBinaryIndexFile(), progress).importHashes();
+                    deleteOldBinaryIndexes();
+                } catch (IOException ex) {
+                    Logger.getLogger(HashDb.class.getName()).log(Level.WARNING, "Error importing hash database " + name
+                            + ", the lookups in memory will load its index", ex);
+                }
+            }
+            
+            progress.switchToIndeterminate();
+            progress.progress("Building the native index");
+            nativeIndexer.join();
+            if (nativeIndexError != null) {
+                throw nativeIndexError;
+            }
             return null;
         }
 
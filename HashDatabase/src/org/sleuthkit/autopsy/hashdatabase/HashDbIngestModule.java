@@ -18,14 +18,21 @@
  */
 package org.sleuthkit.autopsy.hashdatabase;
 
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import org.openide.util.Exceptions;
 import org.sleuthkit.autopsy.casemodule.Case;
 import org.sleuthkit.autopsy.coreutils.Logger;
+import org.sleuthkit.autopsy.hashdatabase.MultiDigest.HashType;
 import org.sleuthkit.autopsy.ingest.PipelineContext;
 import org.sleuthkit.autopsy.ingest.IngestMessage;
 import org.sleuthkit.autopsy.ingest.IngestModuleAbstractFile;
@@ -54,6 +61,9 @@ public class HashDbIngestModule extends IngestModuleAbstractFile {
     public final static String MODULE_DESCRIPTION = "Identifies known and notables files using supplied hash databases, such as a standard NSRL database.";
     final public static String MODULE_VERSION = "1.0";
     private static final Logger logger = Logger.getLogger(HashDbIngestModule.class.getName());
+    //custom attribute of the fuzzy hashes, added to the case on first use
+    static final String FUZZY_HASH_ATTR_TYPE_NAME = "TSK_HASH_SSDEEP";
+    private static final String FUZZY_HASH_ATTR_DISPLAY_NAME = "Fuzzy Hash (ssdeep)";
     private IngestServices services;
     private SleuthkitCase skCase;
     private static int messageId = 0;
@@ -69,9 +79,33 @@ public class HashDbIngestModule extends IngestModuleAbstractFile {
     private Map<Integer, HashDb> knownBadSets = new HashMap<>();
     private HashDbManagementPanel panel;
     private final Hash hasher = new Hash();
+    //hashes the queued files ahead of their processing, null if no hashes are needed
+    private volatile ReadAheadHasher readAheadHasher;
+    //hashes computed in addition to MD5, stored as attributes of a general info artifact
+    private Set<HashType> extraHashTypes = EnumSet.noneOf(HashType.class);
+    private int fuzzyHashAttrTypeId = -1;
+    //hash sets loaded in memory, by index path, kept for the next ingests of the case while the memory is not needed
+    private final Map<String, SoftReference<InMemoryHashSet>> loadedHashSets = new ConcurrentHashMap<>();
+    //in-memory sets of the current ingest, by known bad database handle, published by the loader thread
+    //the sets not (yet) loaded are looked up in their native index
+    private final Map<Integer, InMemoryHashSet> knownBadMemorySets = new ConcurrentHashMap<>();
+    private volatile InMemoryHashSet nsrlMemorySet;
+    //guarded by knownBadMemorySets
+    private Thread hashSetLoader;
 
     private HashDbIngestModule() {
         knownBadCount = 0;
+
+        Case.addPropertyChangeListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                if (evt.getPropertyName().equals(Case.CASE_CURRENT_CASE) && evt.getNewValue() == null) {
+                    //the case is closed, release the loaded sets
+                    stopHashSetLoader();
+                    loadedHashSets.clear();
+                }
+            }
+        });
     }
 
     public static synchronized HashDbIngestModule getDefault() {
@@ -110,6 +144,27 @@ public class HashDbIngestModule extends IngestModuleAbstractFile {
                 }
             }
 
+            stopHashSetLoader();
+            if (hdbxml.getInMemory() && (nsrlIsSet || knownBadIsSet)) {
+                startHashSetLoader(hdbxml.getInMemoryMaxMb() * 1024L * 1024L);
+            } else {
+                loadedHashSets.clear();
+            }
+
+            extraHashTypes = hdbxml.getExtraHashTypes();
+            fuzzyHashAttrTypeId = -1;
+            if (extraHashTypes.contains(HashType.FUZZY)) {
+                fuzzyHashAttrTypeId = getFuzzyHashAttrTypeId(skCase, true);
+                if (fuzzyHashAttrTypeId < 0) {
+                    extraHashTypes.remove(HashType.FUZZY);
+                }
+            }
+
+            stopReadAheadHasher();
+            if (nsrlIsSet || knownBadIsSet || calcHashesIsSet) {
+                readAheadHasher = new ReadAheadHasher(skCase, extraHashTypes);
+            }
+
             if (!nsrlIsSet) {
                 this.services.postMessage(IngestMessage.createWarningMessage(++messageId, this, "No NSRL database set", "Known file search will not be executed."));
             }
@@ -125,6 +180,8 @@ public class HashDbIngestModule extends IngestModuleAbstractFile {
 
     @Override
     public void complete() {
+        stopReadAheadHasher();
+        stopHashSetLoader();
         if ((knownBadIsSet) || (nsrlIsSet)) {
             StringBuilder detailsSb = new StringBuilder();
             //details
@@ -154,6 +211,173 @@ public class HashDbIngestModule extends IngestModuleAbstractFile {
         }
     }
 
+    /**
+     * Get the type of the fuzzy hash attributes of a case
+     *
+     * @param skCase the case
+     * @param add true to add the type to the case if not added yet
+     * @return the type id, or -1 if not added yet or on error
+     */
+    static int getFuzzyHashAttrTypeId(SleuthkitCase skCase, boolean add) {
+        int typeId = -1;
+        try {
+            typeId = skCase.getAttrTypeID(FUZZY_HASH_ATTR_TYPE_NAME);
+        } catch (TskException ex) {
+            //not added yet
+        }
+        if (typeId < 0 && add) {
+            try {
+                typeId = skCase.addAttrType(FUZZY_HASH_ATTR_TYPE_NAME, FUZZY_HASH_ATTR_DISPLAY_NAME);
+            } catch (TskException ex) {
+                logger.log(Level.WARNING, "Could not add the fuzzy hash attribute type, fuzzy hashes will not be calculated", ex);
+            }
+        }
+        return typeId;
+    }
+
+    private void stopReadAheadHasher() {
+        final ReadAheadHasher hasherToStop = readAheadHasher;
+        readAheadHasher = null;
+        if (hasherToStop != null) {
+            hasherToStop.stop();
+        }
+    }
+
+    /**
+     * Load the hash sets of the ingest in memory in the background, known bad
+     * sets first, within the memory budget. The sets too large for the
+     * remaining budget are looked up in their native index.
+     *
+     * @param maxBytes max. memory used by the loaded sets
+     */
+    private void startHashSetLoader(final long maxBytes) {
+        final Map<Integer, HashDb> knownBadToLoad = new HashMap<>(knownBadSets);
+        final HashDb nsrlToLoad = nsrlIsSet ? nsrlSet : null;
+        final Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                //sets not used by this ingest are not kept
+                final Map<String, InMemoryHashSet> previouslyLoaded = new HashMap<>();
+                for (Map.Entry<String, SoftReference<InMemoryHashSet>> entry : loadedHashSets.entrySet()) {
+                    final InMemoryHashSet set = entry.getValue().get();
+                    if (set != null) {
+                        previouslyLoaded.put(entry.getKey(), set);
+                    }
+                }
+                loadedHashSets.clear();
+
+                //the sets must also fit the free heap, with room left for the other modules
+                final Runtime runtime = Runtime.getRuntime();
+                long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+                for (InMemoryHashSet set : previouslyLoaded.values()) {
+                    freeHeap += set.getSize();
+                }
+                long budget = Math.min(maxBytes, freeHeap / 2);
+
+                for (Map.Entry<Integer, HashDb> entry : knownBadToLoad.entrySet()) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    final InMemoryHashSet set = loadHashSet(entry.getValue(), previouslyLoaded, budget);
+                    if (set != null) {
+                        budget -= set.getSize();
+                        publishHashSet(entry.getKey(), set);
+                    }
+                }
+                if (nsrlToLoad != null && !Thread.currentThread().isInterrupted()) {
+                    final InMemoryHashSet set = loadHashSet(nsrlToLoad, previouslyLoaded, budget);
+                    if (set != null) {
+                        publishHashSet(null, set);
+                    }
+                }
+            }
+        }, "Hash-set-loader");
+        loader.setDaemon(true);
+        synchronized (knownBadMemorySets) {
+            hashSetLoader = loader;
+        }
+        loader.start();
+    }
+
+    /**
+     * Use a set loaded in memory for the lookups, unless the loader was stopped
+     * (the ingest may be over, or another one started)
+     *
+     * @param knownBadHandle handle of the known bad database, null for NSRL
+     * @param set the loaded set
+     */
+    private void publishHashSet(Integer knownBadHandle, InMemoryHashSet set) {
+        synchronized (knownBadMemorySets) {
+            if (hashSetLoader != Thread.currentThread()) {
+                return;
+            }
+            if (knownBadHandle != null) {
+                knownBadMemorySets.put(knownBadHandle, set);
+            } else {
+                nsrlMemorySet = set;
+            }
+        }
+    }
+
+    /**
+     * Load the index of a hash set in memory, or reuse it if loaded by a
+     * previous ingest and current
+     *
+     * @param db hash set to load
+     * @param previouslyLoaded sets loaded by the previous ingests, by index path
+     * @param budget memory left for the set
+     * @return the set, or null if too large or could not be loaded
+     */
+    private InMemoryHashSet loadHashSet(HashDb db, Map<String, InMemoryHashSet> previouslyLoaded, long budget) {
+        //the binary index is mapped rather than loaded, if imported
+        final boolean mapBinaryIndex = db.binaryIndexIsCurrent();
+        final java.io.File indexFile = mapBinaryIndex ? db.binaryIndexFile() : db.indexFile();
+        final String indexPath = indexFile.getAbsolutePath();
+        InMemoryHashSet set = previouslyLoaded.get(indexPath);
+        if (set == null || !set.isCurrent()) {
+            set = null;
+            final long estimatedSize = mapBinaryIndex ? InMemoryHashSet.estimateMappedSize(indexFile) : InMemoryHashSet.estimateSize(indexFile);
+            if (estimatedSize > budget) {
+                logger.log(Level.INFO, "Hash set " + db.getName() + " too large to be loaded in memory (" + estimatedSize
+                        + " bytes, " + budget + " bytes left), using its index");
+                return null;
+            }
+            try {
+                final long loadStart = System.currentTimeMillis();
+                set = mapBinaryIndex ? InMemoryHashSet.map(indexFile) : InMemoryHashSet.load(indexFile);
+                logger.log(Level.INFO, "Loaded hash set " + db.getName() + " in memory: " + set.getNumHashes() + " hashes, "
+                        + set.getSize() + " bytes, in " + (System.currentTimeMillis() - loadStart) + " ms");
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Could not load hash set " + db.getName() + " in memory, using its index", ex);
+                return null;
+            } catch (OutOfMemoryError ex) {
+                logger.log(Level.WARNING, "Not enough memory to load hash set " + db.getName() + " in memory, using its index");
+                return null;
+            }
+        }
+        if (set.getSize() > budget) {
+            return null;
+        }
+        loadedHashSets.put(indexPath, new SoftReference<>(set));
+        return set;
+    }
+
+    /**
+     * Stop the loader, without waiting for the set being loaded, and look up
+     * the hashes in the native indexes. The loaded sets are then only softly
+     * reachable, for the next ingests.
+     */
+    private void stopHashSetLoader() {
+        synchronized (knownBadMemorySets) {
+            if (hashSetLoader != null) {
+                hashSetLoader.interrupt();
+                hashSetLoader = null;
+            }
+            knownBadMemorySets.clear();
+            nsrlMemorySet = null;
+        }
+    }
+
     private void clearHashDatabaseHandles() {
         try {
             skCase.clearLookupDatabases();
@@ -170,6 +394,8 @@ public class HashDbIngestModule extends IngestModuleAbstractFile {
      */
     @Override
     public void stop() {
+        stopReadAheadHasher();
+        stopHashSetLoader();
         clearHashDatabaseHandles();
     }
 
@@ -195,6 +421,20 @@ public class HashDbIngestModule extends IngestModuleAbstractFile {
     }
 
 
+    @Override
+    public void fileQueued(PipelineContext<IngestModuleAbstractFile> pipelineContext, AbstractFile file) {
+        final ReadAheadHasher readAhead = readAheadHasher;
+        if (readAhead == null
+                || file.getType().equals(TskData.TSK_DB_FILES_TYPE_ENUM.UNALLOC_BLOCKS)
+                || file.isDir() || file.getSize() <= 0) {
+            return;
+        }
+        final String md5Hash = file.getMd5Hash();
+        if (md5Hash == null || md5Hash.isEmpty() || !extraHashTypes.isEmpty()) {
+            readAhead.queue(file);
+        }
+    }
+
     @Override
     public ProcessResult process(PipelineContext<IngestModuleAbstractFile>pipelineContext, AbstractFile file) {
         //skip unalloc
@@ -295,6 +535,51 @@ public class HashDbIngestModule extends IngestModuleAbstractFile {
 
     }
 
+    /**
+     * Store the hashes of a file other than MD5 in a general info artifact.
+     * The hashes already stored by a previous ingest of the file are not
+     * added again.
+     *
+     * @param file hashed file
+     * @param hashes hashes of the file
+     */
+    private void addHashesArtifact(AbstractFile file, Map<HashType, String> hashes) {
+        try {
+            final Map<Integer, String> attrs = new HashMap<>();
+            if (hashes.containsKey(HashType.SHA1)) {
+                attrs.put(ATTRIBUTE_TYPE.TSK_HASH_SHA1.getTypeID(), hashes.get(HashType.SHA1));
+            }
+            if (hashes.containsKey(HashType.SHA256)) {
+                attrs.put(ATTRIBUTE_TYPE.TSK_HASH_SHA2_256.getTypeID(), hashes.get(HashType.SHA256));
+            }
+            if (hashes.containsKey(HashType.FUZZY)) {
+                attrs.put(fuzzyHashAttrTypeId, hashes.get(HashType.FUZZY));
+            }
+
+            //the general info artifact with the hashes of this module, if stored before
+            BlackboardArtifact hashesArtifact = null;
+            for (BlackboardArtifact artifact : file.getArtifacts(ARTIFACT_TYPE.TSK_GEN_INFO)) {
+                for (BlackboardAttribute attr : artifact.getAttributes()) {
+                    if (MODULE_NAME.equals(attr.getModuleName())) {
+                        hashesArtifact = artifact;
+                        attrs.remove(attr.getAttributeTypeID());
+                    }
+                }
+            }
+            if (attrs.isEmpty()) {
+                return;
+            }
+            if (hashesArtifact == null) {
+                hashesArtifact = file.newArtifact(ARTIFACT_TYPE.TSK_GEN_INFO);
+            }
+            for (Map.Entry<Integer, String> attr : attrs.entrySet()) {
+                hashesArtifact.addAttribute(new BlackboardAttribute(attr.getKey(), MODULE_NAME, attr.getValue()));
+            }
+        } catch (TskException ex) {
+            logger.log(Level.WARNING, "Error storing the hashes of file " + file.getName(), ex);
+        }
+    }
+
     private ProcessResult processFile(AbstractFile file) {
         // bail out if we have no hashes set
         if ((nsrlIsSet == false) && (knownBadIsSet == false) && (calcHashesIsSet == false)) {
@@ -304,6 +589,46 @@ public class HashDbIngestModule extends IngestModuleAbstractFile {
         // calc hash value
         String name = file.getName();
         String md5Hash = file.getMd5Hash();
+        final boolean calcMd5 = md5Hash == null || md5Hash.isEmpty();
+        final boolean calcExtra = !extraHashTypes.isEmpty() && !file.isDir() && file.getSize() > 0;
+        Map<HashType, String> hashes = null;
+        final ReadAheadHasher readAhead = readAheadHasher;
+        if ((calcMd5 || calcExtra) && readAhead != null) {
+            //hashed ahead, or being hashed
+            try {
+                long calcstart = System.currentTimeMillis();
+                hashes = readAhead.getHashes(file);
+                calctime += (System.currentTimeMillis() - calcstart);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                logger.log(Level.WARNING, "Interrupted while waiting for the hash of file " + name);
+                return ProcessResult.ERROR;
+            }
+        }
+        if (hashes == null && calcExtra) {
+            //all the hashes from a single read of the file
+            try {
+                long calcstart = System.currentTimeMillis();
+                final Set<HashType> hashTypes = EnumSet.copyOf(extraHashTypes);
+                hashTypes.add(HashType.MD5);
+                hashes = MultiDigest.compute(file, hashTypes);
+                if (calcMd5) {
+                    skCase.setMd5Hash(file, hashes.get(HashType.MD5));
+                }
+                calctime += (System.currentTimeMillis() - calcstart);
+            } catch (TskCoreException ex) {
+                logger.log(Level.WARNING, "Error calculating hashes of file " + name, ex);
+                services.postMessage(IngestMessage.createErrorMessage(++messageId, HashDbIngestModule.this, "Read Error: " + name,
+                        "Error encountered while calculating the hash values for " + name + "."));
+                return ProcessResult.ERROR;
+            }
+        }
+        if (hashes != null && calcMd5) {
+            md5Hash = hashes.get(HashType.MD5);
+        }
+        if (hashes != null && calcExtra) {
+            addHashesArtifact(file, hashes);
+        }
         if (md5Hash == null || md5Hash.isEmpty()) {
             try {
                 long calcstart = System.currentTimeMillis();
@@ -328,7 +653,12 @@ public class HashDbIngestModule extends IngestModuleAbstractFile {
 
                 try {
                     long lookupstart = System.currentTimeMillis();
-                    status = skCase.knownBadLookupMd5(md5Hash, entry.getKey());
+                    final InMemoryHashSet memorySet = knownBadMemorySets.get(entry.getKey());
+                    if (memorySet != null) {
+                        status = memorySet.contains(md5Hash) ? TskData.FileKnown.BAD : TskData.FileKnown.UKNOWN;
+                    } else {
+                        status = skCase.knownBadLookupMd5(md5Hash, entry.getKey());
+                    }
                     lookuptime += (System.currentTimeMillis() - lookupstart);
                 } catch (TskException ex) {
                     logger.log(Level.WARNING, "Couldn't lookup known bad hash for file " + name + " - see sleuthkit log for details", ex);
@@ -358,7 +688,12 @@ public class HashDbIngestModule extends IngestModuleAbstractFile {
         if (!foundBad && nsrlIsSet) {
             try {
                 long lookupstart = System.currentTimeMillis();
-                status = skCase.nsrlLookupMd5(md5Hash);
+                final InMemoryHashSet memorySet = nsrlMemorySet;
+                if (memorySet != null) {
+                    status = memorySet.contains(md5Hash) ? TskData.FileKnown.KNOWN : TskData.FileKnown.UKNOWN;
+                } else {
+                    status = skCase.nsrlLookupMd5(md5Hash);
+                }
                 lookuptime += (System.currentTimeMillis() - lookupstart);
             } catch (TskException ex) {
                 logger.log(Level.WARNING, "Couldn't lookup NSRL hash for file " + name + " - see sleuthkit log for details", ex);
@@ -60,6 +60,32 @@ public class HashDbSearchManager {
         }
     }
 
+    /**
+     * Displays the results of a search still running, the nodes are created
+     * as the files are added to the factory.
+     * @param factory  factory of the running search
+     * @param numFound files found so far
+     * @return the window of the results, to update the number of files found
+     */
+    static DataResultTopComponent showRunningSearch(HashDbSearchResultFactory factory, int numFound) {
+        Node rootNode = new AbstractNode(Children.create(factory, true));
+        final String pathText = "MD5 Hash Search";
+        DataResultTopComponent searchResultWin = DataResultTopComponent.createInstance("MD5 Hash Search", pathText, rootNode, numFound);
+        searchResultWin.requestActive();
+        return searchResultWin;
+    }
+
+    /**
+     * Displays the files found by a similar file search, best match first.
+     * @param files files found
+     */
+    static void showSimilarFiles(Collection<AbstractFile> files) {
+        Node rootNode = new AbstractNode(Children.create(new HashDbSearchResultFactory(files), true));
+        final String pathText = "Similar File Search";
+        TopComponent searchResultWin = DataResultTopComponent.createInstance("Similar File Search", pathText, rootNode, files.size());
+        searchResultWin.requestActive();
+    }
+
     /**
      * Takes the key values, creates nodes through the HashDbSearchResultFactory, and
      * displays it in the TopComponet.
@@ -20,6 +20,9 @@ package org.sleuthkit.autopsy.hashdatabase;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import org.openide.nodes.ChildFactory;
 import org.openide.nodes.Node;
 import org.sleuthkit.autopsy.datamodel.FileNode;
@@ -30,16 +33,63 @@ import org.sleuthkit.datamodel.AbstractFile;
  * Factory class to create a KeyValueFileNode for each KeyValueContent in the Collection.
  */
 public class HashDbSearchResultFactory extends ChildFactory<AbstractFile> {
+    //wait for more files of a running search, before showing the ones added so far
+    private static final int PENDING_FILES_WAIT_MS = 500;
     Collection<AbstractFile>  kvContents;
+    //files of a running search not made keys yet, null for the results of a completed search
+    private final BlockingQueue<AbstractFile> pendingFiles;
+    private volatile boolean searchDone = true;
     
     HashDbSearchResultFactory(Collection<AbstractFile> kvContents) {
         this.kvContents = kvContents;
+        this.pendingFiles = null;
+    }
+    
+    /**
+     * Create a factory for the results of a search still running: the nodes
+     * are created as the files are added, until the search is done.
+     */
+    HashDbSearchResultFactory() {
+        this.kvContents = null;
+        this.pendingFiles = new LinkedBlockingQueue<AbstractFile>();
+        this.searchDone = false;
+    }
+    
+    /**
+     * Add files found by the running search, thread-safe
+     */
+    void addFiles(Collection<AbstractFile> files) {
+        pendingFiles.addAll(files);
+    }
+    
+    /**
+     * Notify that the running search is done (or cancelled), after all its
+     * files were added
+     */
+    void setSearchDone() {
+        searchDone = true;
     }
     
     @Override
     protected boolean createKeys(List<AbstractFile> toPopulate) {
-        toPopulate.addAll(kvContents);
-        return true;
+        if (pendingFiles == null) {
+            toPopulate.addAll(kvContents);
+            return true;
+        }
+        
+        //called again while not done, with the keys so far shown in between
+        final boolean done = searchDone;
+        try {
+            final AbstractFile file = pendingFiles.poll(PENDING_FILES_WAIT_MS, TimeUnit.MILLISECONDS);
+            if (file != null) {
+                toPopulate.add(file);
+                pendingFiles.drainTo(toPopulate);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+        return done && pendingFiles.isEmpty();
     }
 
     @Override
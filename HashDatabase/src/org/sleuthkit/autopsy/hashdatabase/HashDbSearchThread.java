@@ -20,7 +20,6 @@ package org.sleuthkit.autopsy.hashdatabase;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.CancellationException;
 import java.util.logging.Level;
 import org.sleuthkit.autopsy.coreutils.Logger;
@@ -29,15 +28,23 @@ import javax.swing.SwingWorker;
 import org.netbeans.api.progress.ProgressHandle;
 import org.netbeans.api.progress.ProgressHandleFactory;
 import org.openide.util.Cancellable;
+import org.sleuthkit.autopsy.corecomponents.DataResultTopComponent;
 import org.sleuthkit.datamodel.AbstractFile;
-import org.sleuthkit.datamodel.FsContent;
 
-class HashDbSearchThread extends SwingWorker<Object,Void> {
+/**
+ * Searches the files with the hashes in bulk, and shows the first files found
+ * while the rest of the hashes are searched.
+ */
+class HashDbSearchThread extends SwingWorker<Object,Integer> {
     private Logger logger = Logger.getLogger(HashDbSearchThread.class.getName());
     private ProgressHandle progress;
-    private Map<String, List<AbstractFile>> map;
     private ArrayList<String> hashes = new ArrayList<String>();
     private AbstractFile file;
+    //files found so far, the factory gets them as they are found
+    private final HashDbSearchResultFactory results = new HashDbSearchResultFactory();
+    private volatile int numFound = 0;
+    //opened on the first files found, only accessed on the EDT
+    private DataResultTopComponent resultsWin;
     
     HashDbSearchThread(AbstractFile file) {
         this.file = file;
@@ -65,15 +72,51 @@ class HashDbSearchThread extends SwingWorker<Object,Void> {
         progress.start();
         progress.switchToIndeterminate();
         
-        // Do the querying
-        map = HashDbSearcher.findFilesBymd5(hashes, progress, this);
+        // Do the querying, the results are shown as they are found
+        HashDbSearcher.findFilesByMd5(hashes, new HashDbSearcher.FilesFoundListener() {
+            @Override
+            public void filesFound(List<AbstractFile> files) {
+                // If its a right click action, we are given the file right
+                // clicked, so we can remove that from the search
+                if (file != null) {
+                    files = new ArrayList<AbstractFile>(files);
+                    files.remove(file);
+                }
+                if (!files.isEmpty()) {
+                    results.addFiles(files);
+                    numFound += files.size();
+                    publish(numFound);
+                }
+            }
+        }, progress, this);
         logger.log(Level.INFO, "Done background processing");
         
         return null;
     }
+    
+    @Override
+    protected void process(List<Integer> numsFound) {
+        showResults();
+    }
+    
+    /**
+     * Open the results window on the first files found, and update the
+     * number of files found
+     */
+    private void showResults() {
+        if (numFound == 0) {
+            return;
+        }
+        if (resultsWin == null) {
+            resultsWin = HashDbSearchManager.showRunningSearch(results, numFound);
+        } else {
+            resultsWin.setNumMatches(numFound);
+        }
+    }
         
     @Override
     protected void done() {
+        results.setSearchDone();
         try {
             super.get(); //block and get all exceptions thrown while doInBackground()
         } catch (CancellationException ex) {
@@ -86,23 +129,16 @@ class HashDbSearchThread extends SwingWorker<Object,Void> {
             progress.finish();
             if (!this.isCancelled()) {
                 logger.log(Level.INFO, "File search by MD5 hash completed without cancellation.");
-                // If its a right click action, we are given an FsContent which
-                // is the file right clicked, so we can remove that from the search
-                if(file!=null) {
-                    boolean quit = true;
-                    for(List<AbstractFile> files: map.values()) {
-                        files.remove(file);
-                        if(!files.isEmpty()) {
-                            quit = false;
-                        }
-                    }
-                    if(quit) {
+                if (numFound == 0) {
+                    if (file != null) {
                         JOptionPane.showMessageDialog(null, "No other files with the same MD5 hash were found.");
-                        return;
+                    } else {
+                        JOptionPane.showMessageDialog(null, "No results were found.");
                     }
+                    return;
                 }
-                HashDbSearchManager man = new HashDbSearchManager(map);
-                man.execute();
+                // the last files found may not be processed yet
+                showResults();
             } else {
                 logger.log(Level.INFO, "File search by MD5 hash was canceled.");
             }
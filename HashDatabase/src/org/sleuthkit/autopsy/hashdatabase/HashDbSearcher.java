@@ -18,22 +18,52 @@
  */
 package org.sleuthkit.autopsy.hashdatabase;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
 import javax.swing.SwingWorker;
 import org.netbeans.api.progress.ProgressHandle;
 import org.sleuthkit.autopsy.casemodule.Case;
+import org.sleuthkit.autopsy.coreutils.Logger;
 import org.sleuthkit.datamodel.AbstractFile;
+import org.sleuthkit.datamodel.BlackboardArtifact;
+import org.sleuthkit.datamodel.BlackboardArtifact.ARTIFACT_TYPE;
+import org.sleuthkit.datamodel.BlackboardAttribute;
 import org.sleuthkit.datamodel.FsContent;
 import org.sleuthkit.datamodel.SleuthkitCase;
+import org.sleuthkit.datamodel.TskCoreException;
 
 /**
  * Searches by MD5 hash to find all files with the same hash, and
  * subsequently the same content.
  */
 public class HashDbSearcher {
+
+    private static final Logger logger = Logger.getLogger(HashDbSearcher.class.getName());
+    //hashes searched per query by the bulk search
+    private static final int BULK_SEARCH_CHUNK_SIZE = 5000;
+
+    /**
+     * Receives the files found by a bulk search, as they are found
+     */
+    interface FilesFoundListener {
+
+        /**
+         * @param files files found by a query of the search, not empty
+         */
+        void filesFound(List<AbstractFile> files);
+    }
     
     /**
      * Given a string hash value, find all files with that hash.
@@ -53,38 +83,90 @@ public class HashDbSearcher {
      * @return a Map of md5 hashes mapped to the list of files hit
      */
     static Map<String, List<AbstractFile>> findFilesBymd5(List<String> md5Hash) {
-        Map<String, List<AbstractFile>> map = new LinkedHashMap<String, List<AbstractFile>>();
-        for(String md5 : md5Hash) {
-            List<AbstractFile> files = findFilesByMd5(md5);
-            if(!files.isEmpty()) {
-                map.put(md5, files);
-            }
-        }
-        return map;
+        return findFilesBymd5(md5Hash, null, null);
     }
     // Same as above, but with a given ProgressHandle to accumulate and StringWorker to check if cancelled
     static Map<String, List<AbstractFile>> findFilesBymd5(List<String> md5Hash, ProgressHandle progress, SwingWorker<Object,Void> worker) {
-        Map<String, List<AbstractFile>> map = new LinkedHashMap<String, List<AbstractFile>>();
-        if(!worker.isCancelled()) {
-            progress.switchToDeterminate(md5Hash.size());
-            int size = 0;
-            for(String md5 : md5Hash) {
-                if(worker.isCancelled()) {
-                    break;
+        final Map<String, List<AbstractFile>> map = new LinkedHashMap<String, List<AbstractFile>>();
+        findFilesByMd5(md5Hash, new FilesFoundListener() {
+            @Override
+            public void filesFound(List<AbstractFile> files) {
+                for (AbstractFile file : files) {
+                    final String md5 = file.getMd5Hash();
+                    List<AbstractFile> md5Files = map.get(md5);
+                    if (md5Files == null) {
+                        md5Files = new ArrayList<AbstractFile>();
+                        map.put(md5, md5Files);
+                    }
+                    md5Files.add(file);
                 }
-                List<AbstractFile> files = findFilesByMd5(md5);
-                if(!files.isEmpty()) {
-                    map.put(md5, files);
+            }
+        }, progress, worker);
+        return map;
+    }
+
+    /**
+     * Given a list of string hash values, find all files with any of the
+     * hashes in bulk: a single query per chunk of hashes, instead of a query
+     * per hash. The files are passed to the listener after each query, so
+     * that the first results can be shown while the rest is searched.
+     * @param md5Hashes hash values to match files with, invalid ones are skipped
+     * @param listener  receives the files found
+     * @param progress  progress of the search, or null
+     * @param worker    checked between the queries if cancelled, or null
+     * @return the number of files found
+     */
+    static int findFilesByMd5(Collection<String> md5Hashes, FilesFoundListener listener, ProgressHandle progress, SwingWorker<?, ?> worker) {
+        //the hashes are in the queries, only let valid ones through
+        final Set<String> hashes = new LinkedHashSet<String>();
+        for (String md5 : md5Hashes) {
+            if (md5 != null && md5.trim().matches("[a-fA-F0-9]{32}")) {
+                hashes.add(md5.trim().toLowerCase(Locale.ROOT));
+            } else {
+                logger.log(Level.WARNING, "Skipping invalid MD5 hash in search: " + md5);
+            }
+        }
+        final SleuthkitCase skCase = Case.getCurrentCase().getSleuthkitCase();
+        if (progress != null) {
+            progress.switchToDeterminate(hashes.size());
+        }
+
+        int numSearched = 0;
+        int numFound = 0;
+        final StringBuilder query = new StringBuilder();
+        final List<String> hashesList = new ArrayList<String>(hashes);
+        for (int chunkStart = 0; chunkStart < hashesList.size(); chunkStart += BULK_SEARCH_CHUNK_SIZE) {
+            if (worker != null && worker.isCancelled()) {
+                break;
+            }
+            final List<String> chunk = hashesList.subList(chunkStart, Math.min(hashesList.size(), chunkStart + BULK_SEARCH_CHUNK_SIZE));
+            query.setLength(0);
+            query.append("md5 IN (");
+            for (int i = 0; i < chunk.size(); ++i) {
+                if (i > 0) {
+                    query.append(',');
                 }
-                size++;
-                if(!worker.isCancelled()) {
-                    progress.progress(size);
+                query.append('\'').append(chunk.get(i)).append('\'');
+            }
+            query.append(')');
+
+            try {
+                final List<AbstractFile> files = skCase.findAllFilesWhere(query.toString());
+                if (!files.isEmpty()) {
+                    numFound += files.size();
+                    listener.filesFound(files);
                 }
+            } catch (TskCoreException ex) {
+                logger.log(Level.WARNING, "Error searching files by MD5 hash", ex);
+            }
+            numSearched += chunk.size();
+            if (progress != null && (worker == null || !worker.isCancelled())) {
+                progress.progress(numSearched);
             }
         }
-        return map;
+        return numFound;
     }
-    
+
     /**
      * Given a file, returns a list of all files with the same
      * hash as the given file.
@@ -100,6 +182,102 @@ public class HashDbSearcher {
         }
     }
     
+    /**
+     * Get the fuzzy hash of a file, stored by the ingest module.
+     * @param file  file fuzzy hashed
+     * @return the fuzzy hash, or null if the file was not fuzzy hashed
+     */
+    static String getFuzzyHash(AbstractFile file) {
+        final SleuthkitCase skCase = Case.getCurrentCase().getSleuthkitCase();
+        final int attrTypeId = HashDbIngestModule.getFuzzyHashAttrTypeId(skCase, false);
+        if (attrTypeId < 0) {
+            return null;
+        }
+        try {
+            for (BlackboardArtifact artifact : file.getArtifacts(ARTIFACT_TYPE.TSK_GEN_INFO)) {
+                for (BlackboardAttribute attr : artifact.getAttributes()) {
+                    if (attr.getAttributeTypeID() == attrTypeId) {
+                        return attr.getValueString();
+                    }
+                }
+            }
+        } catch (TskCoreException ex) {
+            logger.log(Level.WARNING, "Could not get the fuzzy hash of file " + file.getName(), ex);
+        }
+        return null;
+    }
+
+    /**
+     * Given a fuzzy hash, find the files with similar content, among the
+     * files fuzzy hashed by the ingest module.
+     * @param fuzzyHash fuzzy hash to compare the files with
+     * @param minScore  minimum match score of the files, 1 to 100
+     * @return a Map of the similar files to their match score, best match first
+     */
+    @SuppressWarnings("deprecation")
+    static Map<AbstractFile, Integer> findSimilarFiles(String fuzzyHash, int minScore) {
+        final Map<AbstractFile, Integer> similarFiles = new LinkedHashMap<AbstractFile, Integer>();
+        final long blockSize = FuzzyHash.getBlockSize(fuzzyHash);
+        final SleuthkitCase skCase = Case.getCurrentCase().getSleuthkitCase();
+        final int attrTypeId = HashDbIngestModule.getFuzzyHashAttrTypeId(skCase, false);
+        if (blockSize <= 0 || attrTypeId < 0) {
+            return similarFiles;
+        }
+
+        //only the hashes of comparable block sizes can match, select only those
+        final StringBuilder query = new StringBuilder();
+        query.append("SELECT blackboard_artifacts.obj_id, blackboard_attributes.value_text FROM blackboard_attributes ");
+        query.append("INNER JOIN blackboard_artifacts ON (blackboard_attributes.artifact_id = blackboard_artifacts.artifact_id) ");
+        query.append("WHERE blackboard_attributes.attribute_type_id = ").append(attrTypeId);
+        query.append(" AND blackboard_attributes.value_type = ").append(BlackboardAttribute.TSK_BLACKBOARD_ATTRIBUTE_VALUE_TYPE.STRING.getType());
+        query.append(" AND (blackboard_attributes.value_text LIKE '").append(blockSize).append(":%'");
+        query.append(" OR blackboard_attributes.value_text LIKE '").append(blockSize * 2).append(":%'");
+        if (blockSize % 2 == 0) {
+            query.append(" OR blackboard_attributes.value_text LIKE '").append(blockSize / 2).append(":%'");
+        }
+        query.append(")");
+
+        final Map<Long, Integer> scores = new HashMap<Long, Integer>();
+        ResultSet rs = null;
+        try {
+            rs = skCase.runQuery(query.toString());
+            while (rs.next()) {
+                final long objId = rs.getLong(1);
+                final int score = FuzzyHash.compare(fuzzyHash, rs.getString(2));
+                final Integer prevScore = scores.get(objId);
+                if (score >= minScore && (prevScore == null || prevScore < score)) {
+                    scores.put(objId, score);
+                }
+            }
+        } catch (SQLException ex) {
+            logger.log(Level.WARNING, "Could not search the fuzzy hashes", ex);
+        } finally {
+            if (rs != null) {
+                try {
+                    skCase.closeRunQuery(rs);
+                } catch (SQLException ex) {
+                    logger.log(Level.WARNING, "Error closing result set after searching the fuzzy hashes", ex);
+                }
+            }
+        }
+
+        final List<Map.Entry<Long, Integer>> sorted = new ArrayList<Map.Entry<Long, Integer>>(scores.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<Long, Integer>>() {
+            @Override
+            public int compare(Map.Entry<Long, Integer> e1, Map.Entry<Long, Integer> e2) {
+                return e2.getValue().compareTo(e1.getValue());
+            }
+        });
+        for (Map.Entry<Long, Integer> entry : sorted) {
+            try {
+                similarFiles.put(skCase.getAbstractFileById(entry.getKey()), entry.getValue());
+            } catch (TskCoreException ex) {
+                logger.log(Level.WARNING, "Could not get the similar file with id " + entry.getKey(), ex);
+            }
+        }
+        return similarFiles;
+    }
+
     /**
      * Checks if the search feature is ready/enabled. Does so by checking
      * if there are no Fs files in tsk_files that have and empty md5.
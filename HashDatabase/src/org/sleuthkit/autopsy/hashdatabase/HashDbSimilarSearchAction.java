@@ -0,0 +1,119 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.hashdatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.logging.Level;
+import javax.swing.JOptionPane;
+import javax.swing.SwingWorker;
+import org.openide.nodes.Node;
+import org.openide.util.HelpCtx;
+import org.openide.util.actions.CallableSystemAction;
+import org.sleuthkit.autopsy.coreutils.Logger;
+import org.sleuthkit.autopsy.directorytree.SimilarFileSearchProvider;
+import org.sleuthkit.datamodel.AbstractFile;
+
+/**
+ * Searches for files with content similar to the given Node's file, by
+ * comparing the fuzzy hashes computed by the ingest module. This action
+ * should only be available from Nodes with specific Content attached; it is
+ * manually programmed into a Node's available actions.
+ */
+public class HashDbSimilarSearchAction extends CallableSystemAction implements SimilarFileSearchProvider {
+
+    private static final Logger logger = Logger.getLogger(HashDbSimilarSearchAction.class.getName());
+    //min. match score of the fuzzy hashes of the files found, 1 to 100
+    private static final int MIN_SIMILARITY_SCORE = 50;
+    private AbstractFile file;
+    private static HashDbSimilarSearchAction instance = null;
+
+    HashDbSimilarSearchAction() {
+        super();
+    }
+
+    public static HashDbSimilarSearchAction getDefault() {
+        if (instance == null) {
+            instance = new HashDbSimilarSearchAction();
+        }
+        return instance;
+    }
+
+    @Override
+    public void search(Node contentNode) {
+        this.file = contentNode.getLookup().lookup(AbstractFile.class);
+        performAction();
+    }
+
+    /**
+     * Find the files similar to this' file. file should be previously set by
+     * calling the search function, which in turn calls performAction.
+     */
+    @Override
+    public void performAction() {
+        if (file == null) {
+            return;
+        }
+        final String fuzzyHash = HashDbSearcher.getFuzzyHash(file);
+        if (fuzzyHash == null) {
+            JOptionPane.showMessageDialog(null, "This file has no fuzzy hash, run HashDB ingest with fuzzy hashing first.",
+                    "Similar File Search", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        final AbstractFile searchedFile = file;
+        new SwingWorker<List<AbstractFile>, Void>() {
+            @Override
+            protected List<AbstractFile> doInBackground() {
+                final List<AbstractFile> files = new ArrayList<AbstractFile>(
+                        HashDbSearcher.findSimilarFiles(fuzzyHash, MIN_SIMILARITY_SCORE).keySet());
+                files.remove(searchedFile);
+                return files;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    final List<AbstractFile> files = get();
+                    if (files.isEmpty()) {
+                        JOptionPane.showMessageDialog(null, "No other files with similar content were found.");
+                    } else {
+                        HashDbSearchManager.showSimilarFiles(files);
+                    }
+                } catch (CancellationException ex) {
+                    logger.log(Level.INFO, "Similar file search was canceled.");
+                } catch (InterruptedException ex) {
+                    logger.log(Level.INFO, "Similar file search was interrupted.");
+                } catch (Exception ex) {
+                    logger.log(Level.SEVERE, "Fatal error during similar file search.", ex);
+                }
+            }
+        }.execute();
+    }
+
+    @Override
+    public String getName() {
+        return "Similar File Search";
+    }
+
+    @Override
+    public HelpCtx getHelpCtx() {
+        return HelpCtx.DEFAULT_HELP;
+    }
+}
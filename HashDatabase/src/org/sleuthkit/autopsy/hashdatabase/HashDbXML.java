@@ -21,7 +21,9 @@ package org.sleuthkit.autopsy.hashdatabase;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
@@ -33,6 +35,7 @@ import org.sleuthkit.autopsy.coreutils.Logger;
 import org.sleuthkit.autopsy.coreutils.PlatformUtil;
 import org.sleuthkit.autopsy.coreutils.XMLUtil;
 import org.sleuthkit.autopsy.hashdatabase.HashDb.DBType;
+import org.sleuthkit.autopsy.hashdatabase.MultiDigest.HashType;
 import org.sleuthkit.datamodel.SleuthkitJNI;
 import org.sleuthkit.datamodel.TskCoreException;
 import org.w3c.dom.Document;
@@ -54,6 +57,13 @@ public class HashDbXML {
     private static final String CUR_HASHSET_FILE = PlatformUtil.getUserConfigDirectory() + File.separator + CUR_HASHSETS_FILE_NAME;
     private static final String SET_CALC = "hash_calculate";
     private static final String SET_VALUE = "value";
+    private static final String SET_IN_MEMORY = "hash_in_memory";
+    private static final String SET_IN_MEMORY_MAX_MB = "max_mb";
+    private static final int DEFAULT_IN_MEMORY_MAX_MB = 512;
+    private static final String SET_DIGESTS = "hash_digests";
+    private static final String SET_DIGEST_SHA1 = "sha1";
+    private static final String SET_DIGEST_SHA256 = "sha256";
+    private static final String SET_DIGEST_FUZZY = "fuzzy";
     private static final Logger logger = Logger.getLogger(HashDbXML.class.getName());
     private static HashDbXML currentInstance;
     
@@ -61,6 +71,10 @@ public class HashDbXML {
     private HashDb nsrlSet;
     private String xmlFile;
     private boolean calculate;
+    private boolean inMemory = false;
+    private int inMemoryMaxMb = DEFAULT_IN_MEMORY_MAX_MB;
+    //hashes computed in addition to MD5
+    private final Set<HashType> extraHashTypes = EnumSet.noneOf(HashType.class);
     
     private HashDbXML(String xmlFile) {
         knownBadSets = new ArrayList<HashDb>();
@@ -187,6 +201,63 @@ public class HashDbXML {
         return this.calculate;
     }
     
+    /**
+     * Sets whether the hash sets are loaded in memory for the ingest lookups
+     * @param set true to look up the hashes in memory
+     */
+    public void setInMemory(boolean set) {
+        this.inMemory = set;
+    }
+    
+    /**
+     * Returns whether the hash sets are loaded in memory for the ingest lookups
+     * @return true if the hashes are looked up in memory
+     */
+    public boolean getInMemory() {
+        return this.inMemory;
+    }
+    
+    /**
+     * Sets the max. memory used by the hash sets loaded in memory
+     * @param maxMb max. memory in MB, sets above it are looked up in their index
+     */
+    public void setInMemoryMaxMb(int maxMb) {
+        this.inMemoryMaxMb = maxMb;
+    }
+    
+    /**
+     * Returns the max. memory used by the hash sets loaded in memory
+     * @return max. memory in MB
+     */
+    public int getInMemoryMaxMb() {
+        return this.inMemoryMaxMb;
+    }
+    
+    /**
+     * Sets whether a hash is computed in addition to MD5 when calculating the
+     * hashes
+     * @param hashType SHA-1, SHA-256 or fuzzy hash
+     * @param set true to compute the hash
+     */
+    void setExtraHashType(HashType hashType, boolean set) {
+        if (hashType == HashType.MD5) {
+            return;
+        }
+        if (set) {
+            extraHashTypes.add(hashType);
+        } else {
+            extraHashTypes.remove(hashType);
+        }
+    }
+    
+    /**
+     * Returns the hashes computed in addition to MD5
+     * @return SHA-1, SHA-256 and/or fuzzy hash, empty if only MD5
+     */
+    Set<HashType> getExtraHashTypes() {
+        return EnumSet.copyOf(extraHashTypes);
+    }
+    
     /**
      * writes out current sets file replacing the last one
      */
@@ -250,6 +321,17 @@ public class HashDbXML {
             Element setCalc = doc.createElement(SET_CALC);
             setCalc.setAttribute(SET_VALUE, calcValue);
             rootEl.appendChild(setCalc);
+            
+            Element setInMemory = doc.createElement(SET_IN_MEMORY);
+            setInMemory.setAttribute(SET_VALUE, Boolean.toString(inMemory));
+            setInMemory.setAttribute(SET_IN_MEMORY_MAX_MB, Integer.toString(inMemoryMaxMb));
+            rootEl.appendChild(setInMemory);
+            
+            Element setDigests = doc.createElement(SET_DIGESTS);
+            setDigests.setAttribute(SET_DIGEST_SHA1, Boolean.toString(extraHashTypes.contains(HashType.SHA1)));
+            setDigests.setAttribute(SET_DIGEST_SHA256, Boolean.toString(extraHashTypes.contains(HashType.SHA256)));
+            setDigests.setAttribute(SET_DIGEST_FUZZY, Boolean.toString(extraHashTypes.contains(HashType.FUZZY)));
+            rootEl.appendChild(setDigests);
 
             success = XMLUtil.saveDoc(HashDbXML.class, xmlFile, ENCODING, doc);
         } catch (ParserConfigurationException e) {
@@ -354,6 +436,32 @@ public class HashDbXML {
             final String value = calcEl.getAttribute(SET_VALUE);
             calculate = Boolean.parseBoolean(value);
         }
+        
+        //optional, not in the sets files of older versions
+        NodeList digestsList = root.getElementsByTagName(SET_DIGESTS);
+        extraHashTypes.clear();
+        for(int i=0; i<digestsList.getLength(); i++) {
+            Element digestsEl = (Element) digestsList.item(i);
+            setExtraHashType(HashType.SHA1, Boolean.parseBoolean(digestsEl.getAttribute(SET_DIGEST_SHA1)));
+            setExtraHashType(HashType.SHA256, Boolean.parseBoolean(digestsEl.getAttribute(SET_DIGEST_SHA256)));
+            setExtraHashType(HashType.FUZZY, Boolean.parseBoolean(digestsEl.getAttribute(SET_DIGEST_FUZZY)));
+        }
+        
+        NodeList inMemoryList = root.getElementsByTagName(SET_IN_MEMORY);
+        inMemory = false;
+        inMemoryMaxMb = DEFAULT_IN_MEMORY_MAX_MB;
+        for(int i=0; i<inMemoryList.getLength(); i++) {
+            Element inMemoryEl = (Element) inMemoryList.item(i);
+            inMemory = Boolean.parseBoolean(inMemoryEl.getAttribute(SET_VALUE));
+            final String maxMb = inMemoryEl.getAttribute(SET_IN_MEMORY_MAX_MB);
+            if (!maxMb.isEmpty()) {
+                try {
+                    inMemoryMaxMb = Integer.parseInt(maxMb);
+                } catch (NumberFormatException e) {
+                    logger.log(Level.WARNING, "Invalid max. memory of the in-memory hash sets: " + maxMb);
+                }
+            }
+        }
         return true;
     }
     
@@ -0,0 +1,633 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.hashdatabase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import org.netbeans.api.progress.ProgressHandle;
+import org.sleuthkit.autopsy.coreutils.Logger;
+
+/**
+ * Imports the MD5 hashes of a hash set database into a compact binary index,
+ * which InMemoryHashSet memory-maps for the lookups.
+ *
+ * The database is read in chunks, parsed and sorted in parallel. The sorted
+ * chunks are kept in memory up to a bound, then merged into a sorted run file.
+ * The runs are finally merged into the index: the sorted unique hashes, 16
+ * bytes each, after a header.
+ *
+ * Supported databases: NSRL (NSRLFile.txt), md5sum output, EnCase hash sets
+ * and plain lists of hashes, one per line.
+ */
+class HashSetImporter {
+
+    private static final Logger logger = Logger.getLogger(HashSetImporter.class.getName());
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int MD5_HEX_LEN = 32;
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    //bytes looked at to detect the format
+    private static final int DETECT_LEN = 64 * 1024;
+    private static final byte[] ENCASE_MAGIC = {'H', 'A', 'S', 'H', 0x0d, 0x0a, (byte) 0xff, 0x00};
+    private static final int ENCASE_HEADER_LEN = 1152;
+    private static final int ENCASE_RECORD_LEN = 18;
+    //max. memory of the sorted chunks, before they are merged to a run file
+    private static final long MAX_RUN_MEMORY = 256L * 1024 * 1024;
+    private static final int MERGE_BUFFER_SIZE = 1024 * 1024;
+    //progress units: parsing, then merging
+    private static final int PARSE_WORKUNITS = 800;
+    private static final int TOTAL_WORKUNITS = 1000;
+    private static final int[] HEX_VALUES = new int[256];
+
+    static {
+        Arrays.fill(HEX_VALUES, -1);
+        for (int i = 0; i < 16; ++i) {
+            HEX_VALUES[Character.forDigit(i, 16)] = i;
+            HEX_VALUES[Character.toUpperCase(Character.forDigit(i, 16))] = i;
+        }
+    }
+
+    /**
+     * Formats of hash set databases
+     */
+    enum Format {
+
+        NSRL, ///< CSV with a header naming the MD5 column
+        ENCASE, ///< binary, 18 byte records after a header
+        TEXT ///< lines starting with an MD5 hash: md5sum output, plain lists
+    }
+    private final File databaseFile;
+    private final File indexFile;
+    private final ProgressHandle progress;
+    private final int numThreads;
+    private final long maxRunMemory;
+    private final List<File> runFiles = new ArrayList<File>();
+    private Format format;
+    //column of the MD5 hashes in a NSRL database
+    private int nsrlMd5Column;
+    private long startTime;
+
+    /**
+     * @param databaseFile hash set database to import
+     * @param indexFile binary index to write once complete, a new file: the
+     * previous index may still be mapped
+     * @param progress progress of the import, started by the caller
+     */
+    HashSetImporter(File databaseFile, File indexFile, ProgressHandle progress) {
+        this.databaseFile = databaseFile;
+        this.indexFile = indexFile;
+        this.progress = progress;
+        this.numThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        this.maxRunMemory = Math.max(CHUNK_SIZE, Math.min(MAX_RUN_MEMORY, Runtime.getRuntime().maxMemory() / 4));
+    }
+
+    /**
+     * Import the hashes of the database into the index
+     *
+     * @return number of unique hashes imported
+     * @throws IOException if the database could not be read or the index
+     * written
+     * @throws InterruptedException if interrupted, the index is not written
+     */
+    long importHashes() throws IOException, InterruptedException {
+        startTime = System.currentTimeMillis();
+        format = detectFormat();
+        logger.log(Level.INFO, "Importing hash set " + databaseFile.getPath() + ", format " + format);
+        progress.switchToDeterminate(TOTAL_WORKUNITS);
+
+        final File tempIndexFile = new File(indexFile.getPath() + ".tmp");
+        try {
+            final List<long[]> sortedChunks = parseAndSort();
+            final long numHashes = merge(sortedChunks, tempIndexFile);
+            if (!tempIndexFile.renameTo(indexFile)) {
+                throw new IOException("Could not write the binary index " + indexFile.getPath());
+            }
+            logger.log(Level.INFO, "Imported " + numHashes + " hashes of " + databaseFile.getPath() + " in "
+                    + (System.currentTimeMillis() - startTime) + " ms");
+            progress.progress(TOTAL_WORKUNITS);
+            return numHashes;
+        } finally {
+            for (File runFile : runFiles) {
+                runFile.delete();
+            }
+            runFiles.clear();
+            tempIndexFile.delete();
+        }
+    }
+
+    /**
+     * Detect the format from the start of the database
+     */
+    private Format detectFormat() throws IOException {
+        final byte[] start = new byte[(int) Math.min(DETECT_LEN, databaseFile.length())];
+        final InputStream in = new FileInputStream(databaseFile);
+        try {
+            int read = 0;
+            while (read < start.length) {
+                final int r = in.read(start, read, start.length - read);
+                if (r < 0) {
+                    break;
+                }
+                read += r;
+            }
+        } finally {
+            in.close();
+        }
+
+        if (start.length >= ENCASE_MAGIC.length && Arrays.equals(Arrays.copyOf(start, ENCASE_MAGIC.length), ENCASE_MAGIC)) {
+            return Format.ENCASE;
+        }
+        //NSRL header: "SHA-1","MD5","CRC32","FileName",...
+        int lineEnd = 0;
+        while (lineEnd < start.length && start[lineEnd] != '\n') {
+            ++lineEnd;
+        }
+        final String[] columns = new String(start, 0, lineEnd, ASCII).trim().split(",");
+        for (int i = 0; i < columns.length; ++i) {
+            if (columns[i].replace("\"", "").trim().equalsIgnoreCase("MD5")) {
+                nsrlMd5Column = i;
+                return Format.NSRL;
+            }
+        }
+        return Format.TEXT;
+    }
+
+    /**
+     * Read the database in chunks, parsed and sorted by the worker threads.
+     * The sorted chunks over the memory bound are merged into run files.
+     *
+     * @return the sorted chunks left in memory
+     */
+    private List<long[]> parseAndSort() throws IOException, InterruptedException {
+        final long length = databaseFile.length();
+        final List<long[]> sortedChunks = new ArrayList<long[]>();
+        long sortedChunksMemory = 0;
+
+        //bounded number of chunk buffers, reused once parsed
+        final BlockingQueue<byte[]> freeBuffers = new LinkedBlockingQueue<byte[]>();
+        for (int i = 0; i < numThreads * 2; ++i) {
+            freeBuffers.add(new byte[CHUNK_SIZE]);
+        }
+        final ExecutorService parseThreads = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "Hash-set-import-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        final Queue<Future<long[]>> parsing = new LinkedList<Future<long[]>>();
+
+        final InputStream in = new FileInputStream(databaseFile);
+        try {
+            long offset = 0;
+            if (format == Format.ENCASE) {
+                offset = skipFully(in, ENCASE_HEADER_LEN);
+            }
+            //incomplete line or record at the end of the previous chunk
+            byte[] carry = new byte[0];
+            boolean eof = false;
+            while (!eof) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                final byte[] buffer = freeBuffers.take();
+                System.arraycopy(carry, 0, buffer, 0, carry.length);
+                int filled = carry.length;
+                while (filled < buffer.length) {
+                    final int read = in.read(buffer, filled, buffer.length - filled);
+                    if (read < 0) {
+                        eof = true;
+                        break;
+                    }
+                    filled += read;
+                    offset += read;
+                }
+
+                final int chunkLength = eof ? filled : chunkEnd(buffer, filled);
+                carry = Arrays.copyOfRange(buffer, chunkLength, filled);
+                parsing.add(parseThreads.submit(new ParseChunk(buffer, chunkLength, freeBuffers)));
+
+                //collect the parsed chunks in order, without waiting for the ones in progress
+                while (!parsing.isEmpty() && (parsing.peek().isDone() || parsing.size() > numThreads)) {
+                    final long[] sorted = getParsed(parsing.poll());
+                    sortedChunks.add(sorted);
+                    sortedChunksMemory += (long) sorted.length * 8;
+                }
+                if (sortedChunksMemory > maxRunMemory) {
+                    writeRun(sortedChunks);
+                    sortedChunks.clear();
+                    sortedChunksMemory = 0;
+                }
+                reportParseProgress(offset, length);
+            }
+            while (!parsing.isEmpty()) {
+                sortedChunks.add(getParsed(parsing.poll()));
+            }
+        } finally {
+            in.close();
+            parseThreads.shutdownNow();
+        }
+        return sortedChunks;
+    }
+
+    private static long skipFully(InputStream in, long len) throws IOException {
+        long skipped = 0;
+        while (skipped < len) {
+            final long s = in.skip(len - skipped);
+            if (s <= 0) {
+                break;
+            }
+            skipped += s;
+        }
+        return skipped;
+    }
+
+    /**
+     * Get the end of the complete lines or records of a chunk, the rest is
+     * carried to the next chunk
+     */
+    private int chunkEnd(byte[] buffer, int filled) {
+        if (format == Format.ENCASE) {
+            return filled - filled % ENCASE_RECORD_LEN;
+        }
+        int end = filled;
+        while (end > 0 && buffer[end - 1] != '\n') {
+            --end;
+        }
+        //a line longer than a chunk is not a hash line, drop its start
+        return end > 0 ? end : filled;
+    }
+
+    private static long[] getParsed(Future<long[]> parsed) throws IOException, InterruptedException {
+        try {
+            return parsed.get();
+        } catch (ExecutionException ex) {
+            throw new IOException("Error parsing the hash set", ex.getCause());
+        }
+    }
+
+    private void reportParseProgress(long offset, long length) {
+        final long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        final long mbPerSec = offset * 1000 / elapsed / (1024 * 1024);
+        final int workunits = length > 0 ? (int) (offset * PARSE_WORKUNITS / length) : PARSE_WORKUNITS;
+        progress.progress("Reading " + (offset / (1024 * 1024)) + " of " + (length / (1024 * 1024)) + " MB ("
+                + mbPerSec + " MB/s)", Math.min(PARSE_WORKUNITS, workunits));
+    }
+
+    /**
+     * Parses and sorts a chunk of the database, then frees its buffer
+     */
+    private class ParseChunk implements Callable<long[]> {
+
+        private final byte[] buffer;
+        private final int length;
+        private final BlockingQueue<byte[]> freeBuffers;
+
+        ParseChunk(byte[] buffer, int length, BlockingQueue<byte[]> freeBuffers) {
+            this.buffer = buffer;
+            this.length = length;
+            this.freeBuffers = freeBuffers;
+        }
+
+        @Override
+        public long[] call() {
+            long[] hashes;
+            int numHashes;
+            try {
+                if (format == Format.ENCASE) {
+                    numHashes = length / ENCASE_RECORD_LEN;
+                    hashes = new long[2 * numHashes];
+                    for (int i = 0; i < numHashes; ++i) {
+                        hashes[2 * i] = readLong(buffer, i * ENCASE_RECORD_LEN);
+                        hashes[2 * i + 1] = readLong(buffer, i * ENCASE_RECORD_LEN + 8);
+                    }
+                } else {
+                    hashes = new long[Math.max(2, length / 16)];
+                    numHashes = 0;
+                    int lineStart = 0;
+                    while (lineStart < length) {
+                        int lineEnd = lineStart;
+                        while (lineEnd < length && buffer[lineEnd] != '\n') {
+                            ++lineEnd;
+                        }
+                        final int hashStart = format == Format.NSRL ? nsrlHashStart(lineStart, lineEnd) : lineStart;
+                        if (hashStart >= 0 && isHash(buffer, hashStart, lineEnd)) {
+                            if (2 * numHashes + 2 > hashes.length) {
+                                hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                            }
+                            hashes[2 * numHashes] = parseHex(buffer, hashStart);
+                            hashes[2 * numHashes + 1] = parseHex(buffer, hashStart + 16);
+                            ++numHashes;
+                        }
+                        lineStart = lineEnd + 1;
+                    }
+                }
+            } finally {
+                freeBuffers.add(buffer);
+            }
+
+            numHashes = InMemoryHashSet.sortUnique(hashes, numHashes);
+            return 2 * numHashes < hashes.length ? Arrays.copyOf(hashes, 2 * numHashes) : hashes;
+        }
+
+        /**
+         * Find the MD5 field of a NSRL line, quoted or not
+         *
+         * @return start of the field, -1 if not found
+         */
+        private int nsrlHashStart(int lineStart, int lineEnd) {
+            int pos = lineStart;
+            boolean quoted = false;
+            for (int column = 0; column < nsrlMd5Column && pos < lineEnd; ++pos) {
+                if (buffer[pos] == '"') {
+                    quoted = !quoted;
+                } else if (buffer[pos] == ',' && !quoted) {
+                    ++column;
+                }
+            }
+            if (pos < lineEnd && buffer[pos] == '"') {
+                ++pos;
+            }
+            return pos < lineEnd ? pos : -1;
+        }
+    }
+
+    /**
+     * Check if a line has a MD5 hash at a position, not followed by more hex
+     */
+    private static boolean isHash(byte[] buffer, int start, int lineEnd) {
+        if (lineEnd - start < MD5_HEX_LEN) {
+            return false;
+        }
+        for (int i = start; i < start + MD5_HEX_LEN; ++i) {
+            if (HEX_VALUES[buffer[i] & 0xFF] < 0) {
+                return false;
+            }
+        }
+        return lineEnd == start + MD5_HEX_LEN || HEX_VALUES[buffer[start + MD5_HEX_LEN] & 0xFF] < 0;
+    }
+
+    private static long parseHex(byte[] buffer, int start) {
+        long value = 0;
+        for (int i = start; i < start + 16; ++i) {
+            value = (value << 4) | HEX_VALUES[buffer[i] & 0xFF];
+        }
+        return value;
+    }
+
+    private static long readLong(byte[] buffer, int start) {
+        long value = 0;
+        for (int i = start; i < start + 8; ++i) {
+            value = (value << 8) | (buffer[i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Merge sorted chunks into a new run file
+     */
+    private void writeRun(List<long[]> sortedChunks) throws IOException {
+        final File runFile = File.createTempFile("hashset", ".run", indexFile.getAbsoluteFile().getParentFile());
+        runFiles.add(runFile);
+        final List<HashSource> sources = new ArrayList<HashSource>();
+        for (long[] chunk : sortedChunks) {
+            sources.add(new ArraySource(chunk));
+        }
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), MERGE_BUFFER_SIZE));
+        try {
+            mergeSources(sources, out, 0, 0);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Merge the run files and the sorted chunks left into the index
+     *
+     * @return number of unique hashes written
+     */
+    private long merge(List<long[]> sortedChunks, File outFile) throws IOException, InterruptedException {
+        final List<HashSource> sources = new ArrayList<HashSource>();
+        long totalHashes = 0;
+        try {
+            for (File runFile : runFiles) {
+                sources.add(new RunFileSource(runFile));
+                totalHashes += runFile.length() / 16;
+            }
+            for (long[] chunk : sortedChunks) {
+                sources.add(new ArraySource(chunk));
+                totalHashes += chunk.length / 2;
+            }
+            progress.progress("Merging " + sources.size() + " sorted runs", PARSE_WORKUNITS);
+
+            final long numHashes;
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFile), MERGE_BUFFER_SIZE));
+            try {
+                //header written once the number of hashes is known
+                out.write(new byte[InMemoryHashSet.BINARY_INDEX_HEADER_LEN]);
+                numHashes = mergeSources(sources, out, totalHashes, TOTAL_WORKUNITS - PARSE_WORKUNITS);
+            } finally {
+                out.close();
+            }
+            final byte[] header = new byte[InMemoryHashSet.BINARY_INDEX_HEADER_LEN];
+            InMemoryHashSet.writeBinaryIndexHeader(header, numHashes);
+            final RandomAccessFile raf = new RandomAccessFile(outFile, "rw");
+            try {
+                raf.write(header);
+            } finally {
+                raf.close();
+            }
+            return numHashes;
+        } finally {
+            for (HashSource source : sources) {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * K-way merge of sorted sources, without the duplicates
+     *
+     * @param sources sources to merge
+     * @param out where the merged hashes are written
+     * @param totalHashes hashes in the sources, for the progress
+     * @param workunits progress units of the merge, 0 for no progress
+     * @return number of unique hashes written
+     */
+    private long mergeSources(List<HashSource> sources, DataOutputStream out, long totalHashes, int workunits) throws IOException {
+        //binary heap of the sources not exhausted, by their current hash
+        final HashSource[] heap = new HashSource[sources.size()];
+        int heapSize = 0;
+        for (HashSource source : sources) {
+            if (source.next()) {
+                heap[heapSize++] = source;
+            }
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; --i) {
+            siftDown(heap, i, heapSize);
+        }
+
+        long numWritten = 0;
+        long numMerged = 0;
+        boolean first = true;
+        long last0 = 0;
+        long last1 = 0;
+        while (heapSize > 0) {
+            final HashSource top = heap[0];
+            if (first || InMemoryHashSet.compare(last0, last1, top.hash0, top.hash1) != 0) {
+                out.writeLong(top.hash0);
+                out.writeLong(top.hash1);
+                last0 = top.hash0;
+                last1 = top.hash1;
+                first = false;
+                ++numWritten;
+            }
+            if (!top.next()) {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(heap, 0, heapSize);
+
+            if (workunits > 0 && ++numMerged % (1024 * 1024) == 0) {
+                progress.progress("Merging: " + numWritten + " unique hashes",
+                        PARSE_WORKUNITS + (int) (Math.min(numMerged, totalHashes) * workunits / Math.max(1, totalHashes)));
+            }
+        }
+        return numWritten;
+    }
+
+    private static void siftDown(HashSource[] heap, int root, int size) {
+        while (true) {
+            int child = 2 * root + 1;
+            if (child >= size) {
+                return;
+            }
+            if (child + 1 < size && heap[child + 1].compareTo(heap[child]) < 0) {
+                ++child;
+            }
+            if (heap[root].compareTo(heap[child]) <= 0) {
+                return;
+            }
+            final HashSource t = heap[root];
+            heap[root] = heap[child];
+            heap[child] = t;
+            root = child;
+        }
+    }
+
+    /**
+     * Sorted hashes to merge, with the current one
+     */
+    private abstract static class HashSource implements Comparable<HashSource> {
+
+        long hash0;
+        long hash1;
+
+        /**
+         * Move to the next hash
+         *
+         * @return false if no more hashes
+         */
+        abstract boolean next() throws IOException;
+
+        void close() {
+        }
+
+        @Override
+        public int compareTo(HashSource o) {
+            return InMemoryHashSet.compare(hash0, hash1, o.hash0, o.hash1);
+        }
+    }
+
+    private static class ArraySource extends HashSource {
+
+        private final long[] hashes;
+        private int pos = 0;
+
+        ArraySource(long[] hashes) {
+            this.hashes = hashes;
+        }
+
+        @Override
+        boolean next() {
+            if (pos >= hashes.length) {
+                return false;
+            }
+            hash0 = hashes[pos];
+            hash1 = hashes[pos + 1];
+            pos += 2;
+            return true;
+        }
+    }
+
+    private static class RunFileSource extends HashSource {
+
+        private final DataInputStream in;
+
+        RunFileSource(File runFile) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), MERGE_BUFFER_SIZE));
+        }
+
+        @Override
+        boolean next() throws IOException {
+            try {
+                hash0 = in.readLong();
+                hash1 = in.readLong();
+                return true;
+            } catch (EOFException ex) {
+                return false;
+            }
+        }
+
+        @Override
+        void close() {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Error closing a run file of the hash set import", ex);
+            }
+        }
+    }
+}
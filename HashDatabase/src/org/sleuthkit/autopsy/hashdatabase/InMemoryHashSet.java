@@ -0,0 +1,389 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.hashdatabase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * MD5 hashes of a hash set, loaded in memory from the index of the set, for
+ * lookups without the native index.
+ *
+ * The hashes are kept as pairs of longs in a single sorted array (16 bytes per
+ * hash), looked up by binary search. The array is either loaded from the text
+ * index, or memory-mapped from the binary index written by HashSetImporter. A
+ * Bloom filter in front of the array rejects most of the hashes not in the set
+ * without searching. Lookups do not allocate.
+ *
+ * Immutable once loaded, thread-safe.
+ */
+class InMemoryHashSet {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int MD5_HEX_LEN = 32;
+    //approx. length of an index line: hash, separator, offset in the database and new line
+    private static final int INDEX_LINE_LEN = MD5_HEX_LEN + 1 + 16 + 1;
+    //Bloom filter bits per hash and hash functions, ~1% false positives
+    private static final int BLOOM_BITS_PER_HASH = 10;
+    private static final int BLOOM_NUM_HASHES = 5;
+    //header of the binary index: magic and number of hashes
+    private static final byte[] BINARY_INDEX_MAGIC = "HASHIDX1".getBytes(ASCII);
+    static final int BINARY_INDEX_HEADER_LEN = BINARY_INDEX_MAGIC.length + 8;
+    private final File indexFile;
+    private final long indexModified;
+    private final long indexLength;
+    //high and low words of the sorted hashes, compared unsigned
+    //so that the order is the hex order of the index
+    private final LongBuffer hashes;
+    private final int numHashes;
+    private final boolean mapped;
+    private final long[] bloom;
+    private final long bloomMask;
+
+    private InMemoryHashSet(File indexFile, LongBuffer hashes, int numHashes, boolean mapped) {
+        this.indexFile = indexFile;
+        this.indexModified = indexFile.lastModified();
+        this.indexLength = indexFile.length();
+        this.hashes = hashes;
+        this.numHashes = numHashes;
+        this.mapped = mapped;
+
+        final long numBits = Long.highestOneBit(Math.max(64L, (long) numHashes * BLOOM_BITS_PER_HASH) - 1) << 1;
+        bloom = new long[(int) (numBits >>> 6)];
+        bloomMask = numBits - 1;
+        for (int i = 0; i < numHashes; ++i) {
+            addToBloom(hashes.get(2 * i), hashes.get(2 * i + 1));
+        }
+    }
+
+    /**
+     * Estimate the memory needed to load the index of a hash set
+     *
+     * @param indexFile index file of the set
+     * @return estimated bytes used once loaded
+     */
+    static long estimateSize(File indexFile) {
+        final long numHashes = indexFile.length() / INDEX_LINE_LEN;
+        return numHashes * 16 + numHashes * BLOOM_BITS_PER_HASH * 2 / 8;
+    }
+
+    /**
+     * Estimate the heap needed to map the binary index of a hash set, the
+     * mapped hashes are not on the heap
+     *
+     * @param binaryIndexFile binary index file of the set
+     * @return estimated bytes used once mapped
+     */
+    static long estimateMappedSize(File binaryIndexFile) {
+        final long numHashes = Math.max(0, binaryIndexFile.length() - BINARY_INDEX_HEADER_LEN) / 16;
+        return numHashes * BLOOM_BITS_PER_HASH * 2 / 8;
+    }
+
+    /**
+     * Write the header of a binary index
+     *
+     * @param header buffer of BINARY_INDEX_HEADER_LEN bytes to fill
+     * @param numHashes number of hashes following the header
+     */
+    static void writeBinaryIndexHeader(byte[] header, long numHashes) {
+        System.arraycopy(BINARY_INDEX_MAGIC, 0, header, 0, BINARY_INDEX_MAGIC.length);
+        for (int i = 0; i < 8; ++i) {
+            header[BINARY_INDEX_MAGIC.length + i] = (byte) (numHashes >>> (56 - 8 * i));
+        }
+    }
+
+    /**
+     * Map the binary index of a hash set, written by HashSetImporter: the
+     * header, then the sorted unique hashes as pairs of big endian longs
+     *
+     * @param binaryIndexFile binary index file of the set
+     * @return the mapped hash set
+     * @throws IOException if the index could not be mapped or is not valid
+     */
+    static InMemoryHashSet map(File binaryIndexFile) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(binaryIndexFile, "r");
+        try {
+            final byte[] header = new byte[BINARY_INDEX_HEADER_LEN];
+            raf.readFully(header);
+            final byte[] expected = new byte[BINARY_INDEX_HEADER_LEN];
+            final long numHashes = (raf.length() - BINARY_INDEX_HEADER_LEN) / 16;
+            writeBinaryIndexHeader(expected, numHashes);
+            if (!Arrays.equals(header, expected) || raf.length() != BINARY_INDEX_HEADER_LEN + numHashes * 16) {
+                throw new IOException("Not a valid binary hash index: " + binaryIndexFile.getPath());
+            }
+            if (numHashes * 16 > Integer.MAX_VALUE) {
+                throw new IOException("Binary hash index too large to be mapped: " + binaryIndexFile.getPath());
+            }
+            //the mapping stays valid once the file is closed
+            final LongBuffer hashes = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, BINARY_INDEX_HEADER_LEN, numHashes * 16).asLongBuffer();
+            return new InMemoryHashSet(binaryIndexFile, hashes, (int) numHashes, true);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Load the hashes of a set from its index
+     *
+     * @param indexFile index file of the set, in the text format written by
+     * the Sleuth Kit
+     * @return the loaded hash set
+     * @throws IOException if the index could not be read
+     */
+    static InMemoryHashSet load(File indexFile) throws IOException {
+        long[] hashes = new long[(int) Math.min(Integer.MAX_VALUE - 1, 2 * (indexFile.length() / INDEX_LINE_LEN) + 2)];
+        int numHashes = 0;
+        boolean sorted = true;
+        final long[] parsed = new long[2];
+
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), ASCII), 1024 * 1024);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                //header lines have a longer key, made of zeros
+                final int sep = line.indexOf('|');
+                if (sep != MD5_HEX_LEN || !parse(line, parsed)) {
+                    continue;
+                }
+                if (2 * numHashes + 2 > hashes.length) {
+                    hashes = Arrays.copyOf(hashes, Math.max(hashes.length * 3 / 2, 2 * numHashes + 2));
+                }
+                if (numHashes > 0) {
+                    final int cmp = compare(hashes[2 * numHashes - 2], hashes[2 * numHashes - 1], parsed[0], parsed[1]);
+                    if (cmp == 0) {
+                        //same hash at multiple offsets of the database
+                        continue;
+                    } else if (cmp > 0) {
+                        sorted = false;
+                    }
+                }
+                hashes[2 * numHashes] = parsed[0];
+                hashes[2 * numHashes + 1] = parsed[1];
+                ++numHashes;
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (!sorted) {
+            numHashes = sortUnique(hashes, numHashes);
+        }
+        if (2 * numHashes < hashes.length) {
+            hashes = Arrays.copyOf(hashes, 2 * numHashes);
+        }
+        return new InMemoryHashSet(indexFile, LongBuffer.wrap(hashes), numHashes, false);
+    }
+
+    /**
+     * Check if the index the set was loaded from is unchanged
+     *
+     * @return true if the loaded hashes are current
+     */
+    boolean isCurrent() {
+        return indexFile.exists() && indexFile.lastModified() == indexModified && indexFile.length() == indexLength;
+    }
+
+    /**
+     * @return number of hashes in the set
+     */
+    int getNumHashes() {
+        return numHashes;
+    }
+
+    /**
+     * @return heap bytes used by the hashes and the Bloom filter, the hashes
+     * of a mapped set are not counted
+     */
+    long getSize() {
+        return (mapped ? 0 : (long) hashes.capacity() * 8) + (long) bloom.length * 8;
+    }
+
+    /**
+     * Look up a hash
+     *
+     * @param md5Hash MD5 hash in hex
+     * @return true if the hash is in the set
+     */
+    boolean contains(String md5Hash) {
+        if (md5Hash == null || md5Hash.length() != MD5_HEX_LEN || !isHex(md5Hash)) {
+            return false;
+        }
+        final long key0 = parseHex(md5Hash, 0);
+        final long key1 = parseHex(md5Hash, 16);
+        if (!mayContain(key0, key1)) {
+            return false;
+        }
+
+        int lo = 0;
+        int hi = numHashes - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int cmp = compare(hashes.get(2 * mid), hashes.get(2 * mid + 1), key0, key1);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addToBloom(long key0, long key1) {
+        long h = key1;
+        final long step = key0 | 1;
+        for (int i = 0; i < BLOOM_NUM_HASHES; ++i) {
+            final long bit = h & bloomMask;
+            bloom[(int) (bit >>> 6)] |= 1L << (bit & 63);
+            h += step;
+        }
+    }
+
+    private boolean mayContain(long key0, long key1) {
+        long h = key1;
+        final long step = key0 | 1;
+        for (int i = 0; i < BLOOM_NUM_HASHES; ++i) {
+            final long bit = h & bloomMask;
+            if ((bloom[(int) (bit >>> 6)] & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+            h += step;
+        }
+        return true;
+    }
+
+    /**
+     * Parse the hash at the start of an index line into the two keys
+     *
+     * @return false if not a hash
+     */
+    private static boolean parse(String line, long[] keys) {
+        if (!isHex(line)) {
+            return false;
+        }
+        final long high = parseHex(line, 0);
+        final long low = parseHex(line, 16);
+        if (high == 0 && low == 0) {
+            //header
+            return false;
+        }
+        keys[0] = high;
+        keys[1] = low;
+        return true;
+    }
+
+    /**
+     * Check if a string starts with an MD5 hash in hex
+     */
+    private static boolean isHex(String s) {
+        for (int i = 0; i < MD5_HEX_LEN; ++i) {
+            if (Character.digit(s.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse 16 hex digits, checked by isHex()
+     */
+    private static long parseHex(String s, int start) {
+        long value = 0;
+        for (int i = start; i < start + 16; ++i) {
+            value = (value << 4) | Character.digit(s.charAt(i), 16);
+        }
+        return value;
+    }
+
+    /**
+     * Compare two hashes, as pairs of longs compared unsigned
+     */
+    static int compare(long a0, long a1, long b0, long b1) {
+        if (a0 != b0) {
+            return (a0 ^ Long.MIN_VALUE) < (b0 ^ Long.MIN_VALUE) ? -1 : 1;
+        }
+        if (a1 != b1) {
+            return (a1 ^ Long.MIN_VALUE) < (b1 ^ Long.MIN_VALUE) ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Heap sort the hash pairs in place and remove the duplicates
+     *
+     * @param hashes hash pairs
+     * @param numHashes number of hash pairs to sort
+     * @return number of unique hashes
+     */
+    static int sortUnique(long[] hashes, int numHashes) {
+        for (int i = numHashes / 2 - 1; i >= 0; --i) {
+            siftDown(hashes, i, numHashes);
+        }
+        for (int end = numHashes - 1; end > 0; --end) {
+            swap(hashes, 0, end);
+            siftDown(hashes, 0, end);
+        }
+
+        int unique = 0;
+        for (int i = 0; i < numHashes; ++i) {
+            if (unique > 0 && compare(hashes[2 * unique - 2], hashes[2 * unique - 1], hashes[2 * i], hashes[2 * i + 1]) == 0) {
+                continue;
+            }
+            hashes[2 * unique] = hashes[2 * i];
+            hashes[2 * unique + 1] = hashes[2 * i + 1];
+            ++unique;
+        }
+        return unique;
+    }
+
+    private static void siftDown(long[] hashes, int root, int end) {
+        while (true) {
+            int child = 2 * root + 1;
+            if (child >= end) {
+                return;
+            }
+            if (child + 1 < end && compare(hashes[2 * child], hashes[2 * child + 1], hashes[2 * child + 2], hashes[2 * child + 3]) < 0) {
+                ++child;
+            }
+            if (compare(hashes[2 * root], hashes[2 * root + 1], hashes[2 * child], hashes[2 * child + 1]) >= 0) {
+                return;
+            }
+            swap(hashes, root, child);
+            root = child;
+        }
+    }
+
+    private static void swap(long[] hashes, int i, int j) {
+        final long t0 = hashes[2 * i];
+        final long t1 = hashes[2 * i + 1];
+        hashes[2 * i] = hashes[2 * j];
+        hashes[2 * i + 1] = hashes[2 * j + 1];
+        hashes[2 * j] = t0;
+        hashes[2 * j + 1] = t1;
+    }
+}
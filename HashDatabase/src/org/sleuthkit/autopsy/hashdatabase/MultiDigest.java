@@ -0,0 +1,148 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.hashdatabase;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import org.sleuthkit.datamodel.AbstractFile;
+import org.sleuthkit.datamodel.TskCoreException;
+
+/**
+ * Computes several hashes of a file in a single read: every block of the file
+ * is fed to all the enabled digests.
+ *
+ * Not thread-safe, a digest is used by a single thread for a single file.
+ */
+class MultiDigest {
+
+    /**
+     * Hashes computed by the module
+     */
+    enum HashType {
+
+        MD5("MD5"), ///< always computed, stored in the file
+        SHA1("SHA-1"),
+        SHA256("SHA-256"),
+        FUZZY(null); ///< ssdeep-style context triggered piecewise hash
+        private final String algorithm;
+
+        private HashType(String algorithm) {
+            this.algorithm = algorithm;
+        }
+
+        /**
+         * @return name of the JCA algorithm, null for the fuzzy hash
+         */
+        String getAlgorithm() {
+            return algorithm;
+        }
+    }
+    //size of the reads of compute()
+    private static final int READ_SIZE = 1024 * 1024;
+    private final Map<HashType, MessageDigest> digests = new EnumMap<HashType, MessageDigest>(HashType.class);
+    private final FuzzyHash fuzzyHash;
+
+    /**
+     * @param hashTypes hashes to compute
+     * @param size size of the file, to pick the block size of the fuzzy hash
+     * @throws NoSuchAlgorithmException if an algorithm is not supported
+     */
+    MultiDigest(Set<HashType> hashTypes, long size) throws NoSuchAlgorithmException {
+        for (HashType hashType : hashTypes) {
+            if (hashType.getAlgorithm() != null) {
+                digests.put(hashType, MessageDigest.getInstance(hashType.getAlgorithm()));
+            }
+        }
+        fuzzyHash = hashTypes.contains(HashType.FUZZY) ? new FuzzyHash(size) : null;
+    }
+
+    /**
+     * Hash the next block of the file
+     */
+    void update(byte[] buffer, int offset, int length) {
+        for (MessageDigest digest : digests.values()) {
+            digest.update(buffer, offset, length);
+        }
+        if (fuzzyHash != null) {
+            fuzzyHash.update(buffer, offset, length);
+        }
+    }
+
+    /**
+     * Get the hashes, once the whole file was hashed
+     *
+     * @return the hashes in lower case hex, or in the ssdeep format for the
+     * fuzzy hash
+     */
+    Map<HashType, String> digest() {
+        final Map<HashType, String> hashes = new EnumMap<HashType, String>(HashType.class);
+        for (Map.Entry<HashType, MessageDigest> entry : digests.entrySet()) {
+            hashes.put(entry.getKey(), toHex(entry.getValue().digest()));
+        }
+        if (fuzzyHash != null) {
+            hashes.put(HashType.FUZZY, fuzzyHash.digest());
+        }
+        return hashes;
+    }
+
+    /**
+     * Read a file and compute its hashes
+     *
+     * @param file file to hash
+     * @param hashTypes hashes to compute
+     * @return the hashes
+     * @throws TskCoreException if the file could not be read
+     */
+    static Map<HashType, String> compute(AbstractFile file, Set<HashType> hashTypes) throws TskCoreException {
+        final long size = file.getSize();
+        final MultiDigest multiDigest;
+        try {
+            multiDigest = new MultiDigest(hashTypes, size);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new TskCoreException("Hash algorithm not supported: " + ex.getMessage());
+        }
+        final byte[] buffer = new byte[(int) Math.max(1, Math.min(READ_SIZE, size))];
+        long offset = 0;
+        while (offset < size) {
+            final int read = file.read(buffer, offset, Math.min(buffer.length, size - offset));
+            if (read <= 0) {
+                break;
+            }
+            multiDigest.update(buffer, 0, read);
+            offset += read;
+        }
+        return multiDigest.digest();
+    }
+
+    /**
+     * Format a hash as lower case hex, zero padded like the hashes computed by
+     * the datamodel
+     */
+    static String toHex(byte[] hash) {
+        final StringBuilder hex = new StringBuilder(new BigInteger(1, hash).toString(16));
+        while (hex.length() < hash.length * 2) {
+            hex.insert(0, '0');
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.hashdatabase;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import org.sleuthkit.autopsy.coreutils.Logger;
+import org.sleuthkit.autopsy.hashdatabase.MultiDigest.HashType;
+import org.sleuthkit.datamodel.AbstractFile;
+import org.sleuthkit.datamodel.SleuthkitCase;
+import org.sleuthkit.datamodel.TskCoreException;
+
+/**
+ * Hashing stage of the hash lookup module, computing the hashes of the files
+ * queued for ingest before the module processes them:
+ *
+ * - a reader thread reads the content of the queued files in large sequential
+ * reads, one file after the other, into a bounded pool of buffers (the
+ * read-ahead)
+ * - a pool of digest threads computes the hashes from the buffers, one file per
+ * thread, while the reader reads the next files. All the enabled hashes of a
+ * file are computed from the same buffers.
+ * - a writer thread stores the MD5 hashes in the case database in batches
+ *
+ * The files are read in the reverse order they are queued, which is the order
+ * the file ingest threads take them from their queues. When the module
+ * processes a file, it waits for its hashes if the file is being hashed, and
+ * stores the MD5 hash itself if not stored yet, so that the downstream modules
+ * get it from getMd5Hash(). Files not hashed yet are hashed by the module, on
+ * the ingest thread.
+ *
+ * Thread-safe.
+ */
+class ReadAheadHasher {
+
+    private static final Logger logger = Logger.getLogger(ReadAheadHasher.class.getName());
+    //size of the sequential reads
+    private static final int READ_SIZE = 1024 * 1024;
+    //max. content read ahead of the digest threads, in buffers of READ_SIZE
+    private static final int MAX_READ_AHEAD_BUFFERS = 64;
+    //max. files waiting to be read, the oldest ones are dropped
+    private static final int MAX_QUEUED_FILES = 2000;
+    //hashes stored by the writer in a batch, and max. time a hash waits for its batch
+    private static final int WRITE_BATCH_SIZE = 200;
+    private static final long WRITE_BATCH_INTERVAL_MS = 1000;
+    private static final long POLL_INTERVAL_MS = 100;
+    private static final AtomicInteger instanceCount = new AtomicInteger();
+    private final SleuthkitCase skCase;
+    private final Set<HashType> hashTypes;
+    //files waiting to be read, the last queued is read first
+    private final LinkedBlockingDeque<Entry> queuedFiles = new LinkedBlockingDeque<Entry>();
+    //files queued, being hashed, or hashed and not yet processed by the module, by id
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+    private final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<byte[]>(MAX_READ_AHEAD_BUFFERS);
+    //hashed files waiting to be stored
+    private final BlockingQueue<Entry> hashedFiles = new LinkedBlockingQueue<Entry>();
+    private final ExecutorService digestThreads;
+    private final Thread readerThread;
+    private final Thread writerThread;
+    private volatile boolean stopped = false;
+    //number of files hashed and bytes read
+    private final AtomicInteger filesHashed = new AtomicInteger();
+    private volatile long bytesRead = 0;
+
+    private enum State {
+
+        QUEUED, ///< waiting to be read
+        HASHING, ///< being read and hashed
+        HASHED, ///< hash computed, not yet stored
+        STORED, ///< hash stored in the case database
+        FAILED, ///< could not be read or hashed
+        CLAIMED ///< taken by the module before being read, hashed by the module
+    }
+
+    /**
+     * A queued file and its hash
+     */
+    private static class Entry {
+
+        private final AbstractFile file;
+        //guarded by the entry
+        private State state = State.QUEUED;
+        private Map<HashType, String> hashes;
+        //blocks of content read by the reader, consumed by the digest thread of the file
+        private final BlockingQueue<Block> blocks = new LinkedBlockingQueue<Block>();
+
+        Entry(AbstractFile file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * A block of content read from a file, or the end of the file
+     */
+    private static class Block {
+
+        private static final Block END = new Block(null, 0);
+        private static final Block ERROR = new Block(null, -1);
+        private final byte[] buffer;
+        private final int length;
+
+        Block(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Create and start the hashing threads
+     *
+     * @param skCase case of the files, to store the hashes in
+     * @param hashTypes hashes to compute, including MD5
+     */
+    ReadAheadHasher(SleuthkitCase skCase, Set<HashType> hashTypes) {
+        this.skCase = skCase;
+        this.hashTypes = EnumSet.copyOf(hashTypes);
+        this.hashTypes.add(HashType.MD5);
+        for (int i = 0; i < MAX_READ_AHEAD_BUFFERS; ++i) {
+            freeBuffers.add(new byte[READ_SIZE]);
+        }
+
+        final int instance = instanceCount.incrementAndGet();
+        final int numDigestThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        digestThreads = Executors.newFixedThreadPool(numDigestThreads, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "Hash-digest-" + instance + "-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readFiles();
+            }
+        }, "Hash-reader-" + instance);
+        readerThread.setDaemon(true);
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                storeHashes();
+            }
+        }, "Hash-writer-" + instance);
+        writerThread.setDaemon(true);
+
+        readerThread.start();
+        writerThread.start();
+    }
+
+    /**
+     * Queue a file to be hashed ahead of its processing. The oldest queued
+     * file not yet read is dropped if too many files are queued.
+     *
+     * @param file file to hash, must have content
+     */
+    void queue(AbstractFile file) {
+        if (stopped) {
+            return;
+        }
+        final Entry entry = new Entry(file);
+        if (entries.putIfAbsent(file.getId(), entry) != null) {
+            //already queued
+            return;
+        }
+        queuedFiles.addLast(entry);
+
+        while (queuedFiles.size() > MAX_QUEUED_FILES) {
+            final Entry dropped = queuedFiles.pollFirst();
+            if (dropped == null) {
+                break;
+            }
+            synchronized (dropped) {
+                if (dropped.state == State.QUEUED) {
+                    dropped.state = State.CLAIMED;
+                    entries.remove(dropped.file.getId(), dropped);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the hashes of a file being processed by the module. Waits for the
+     * hashes if the file is being hashed, and stores the MD5 hash in the case
+     * database if not stored yet.
+     *
+     * @param file file being processed
+     * @return the hashes, or null if the file was not hashed ahead (not
+     * queued, not read yet, or failed) and is to be hashed by the caller
+     * @throws InterruptedException if interrupted while waiting for the hashes
+     */
+    Map<HashType, String> getHashes(AbstractFile file) throws InterruptedException {
+        final Entry entry = entries.remove(file.getId());
+        if (entry == null) {
+            return null;
+        }
+        synchronized (entry) {
+            if (entry.state == State.QUEUED) {
+                //not read yet, hashed faster by the caller than waiting for the reader
+                entry.state = State.CLAIMED;
+                return null;
+            }
+            while (entry.state == State.HASHING) {
+                entry.wait();
+            }
+            if (entry.state == State.HASHED) {
+                store(entry);
+            }
+            return entry.hashes;
+        }
+    }
+
+    /**
+     * Stop the hashing threads, and drop the queued files and the hashes not
+     * yet stored. Does not wait for the threads.
+     */
+    void stop() {
+        stopped = true;
+        readerThread.interrupt();
+        writerThread.interrupt();
+        digestThreads.shutdownNow();
+        for (Entry entry : entries.values()) {
+            synchronized (entry) {
+                if (entry.state == State.QUEUED || entry.state == State.HASHING) {
+                    entry.state = State.FAILED;
+                    entry.notifyAll();
+                }
+            }
+        }
+        entries.clear();
+        queuedFiles.clear();
+        hashedFiles.clear();
+        logger.log(Level.INFO, "Stopped read-ahead hashing, files hashed: " + filesHashed.get()
+                + ", bytes read: " + bytesRead);
+    }
+
+    /**
+     * Reader thread loop, reads the queued files one after the other and hands
+     * their content to the digest threads
+     */
+    private void readFiles() {
+        try {
+            while (!stopped) {
+                final Entry entry = queuedFiles.pollLast(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (entry == null) {
+                    continue;
+                }
+                synchronized (entry) {
+                    if (entry.state != State.QUEUED) {
+                        //claimed by the module or dropped
+                        continue;
+                    }
+                    entry.state = State.HASHING;
+                }
+                try {
+                    digestThreads.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            digest(entry);
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    //the digest threads were shut down
+                    synchronized (entry) {
+                        if (entry.state == State.HASHING) {
+                            entry.state = State.FAILED;
+                            entry.notifyAll();
+                        }
+                    }
+                    logger.log(Level.INFO, "Read-ahead hashing stopped");
+                    return;
+                }
+                read(entry);
+            }
+        } catch (InterruptedException ex) {
+            //stopped
+        }
+    }
+
+    /**
+     * Read the content of a file sequentially into blocks, followed by END,
+     * or by ERROR if the file could not be read
+     *
+     * @param entry entry of the file
+     * @throws InterruptedException if interrupted while waiting for a free
+     * buffer
+     */
+    private void read(Entry entry) throws InterruptedException {
+        final AbstractFile file = entry.file;
+        final long size = file.getSize();
+        long offset = 0;
+        //buffer taken and not handed to the digest thread yet
+        byte[] buffer = null;
+        try {
+            while (offset < size) {
+                buffer = freeBuffers.take();
+                final int read = file.read(buffer, offset, Math.min(READ_SIZE, size - offset));
+                if (read <= 0) {
+                    break;
+                }
+                entry.blocks.put(new Block(buffer, read));
+                buffer = null;
+                offset += read;
+                bytesRead += read;
+            }
+            entry.blocks.put(Block.END);
+        } catch (TskCoreException | RuntimeException ex) {
+            //the digest thread marks the file failed, the module hashes it
+            logger.log(Level.WARNING, "Error reading ahead file " + file.getName() + " (id: " + file.getId() + ")", ex);
+            entry.blocks.put(Block.ERROR);
+        } finally {
+            if (buffer != null) {
+                freeBuffers.offer(buffer);
+            }
+        }
+    }
+
+    /**
+     * Digest thread task, computes the hash of a file from its blocks. The
+     * blocks are consumed up to the end of the file also if the hash fails,
+     * so that their buffers are returned.
+     *
+     * @param entry entry of the file
+     */
+    private void digest(Entry entry) {
+        Map<HashType, String> hashes = null;
+        try {
+            MultiDigest digest = null;
+            try {
+                digest = new MultiDigest(hashTypes, entry.file.getSize());
+            } catch (NoSuchAlgorithmException ex) {
+                logger.log(Level.SEVERE, "Hash algorithm not supported", ex);
+            }
+            while (true) {
+                final Block block = entry.blocks.take();
+                if (block == Block.END) {
+                    if (digest != null) {
+                        hashes = digest.digest();
+                    }
+                    break;
+                } else if (block == Block.ERROR) {
+                    break;
+                }
+                try {
+                    if (digest != null) {
+                        digest.update(block.buffer, 0, block.length);
+                    }
+                } catch (RuntimeException ex) {
+                    logger.log(Level.WARNING, "Error hashing file " + entry.file.getName() + " (id: " + entry.file.getId() + ")", ex);
+                    digest = null;
+                } finally {
+                    freeBuffers.offer(block.buffer);
+                }
+            }
+        } catch (InterruptedException ex) {
+            //stopped
+        } catch (RuntimeException ex) {
+            logger.log(Level.WARNING, "Error hashing file " + entry.file.getName() + " (id: " + entry.file.getId() + ")", ex);
+        }
+
+        //release the buffers of a file that failed or was stopped
+        Block block;
+        while ((block = entry.blocks.poll()) != null) {
+            if (block.buffer != null) {
+                freeBuffers.offer(block.buffer);
+            }
+        }
+
+        synchronized (entry) {
+            if (entry.state != State.HASHING) {
+                return;
+            }
+            if (hashes != null) {
+                entry.hashes = hashes;
+                entry.state = State.HASHED;
+                filesHashed.incrementAndGet();
+                hashedFiles.offer(entry);
+            } else {
+                entry.state = State.FAILED;
+            }
+            entry.notifyAll();
+        }
+    }
+
+    /**
+     * Writer thread loop, stores the computed hashes in batches
+     */
+    private void storeHashes() {
+        final List<Entry> batch = new ArrayList<Entry>(WRITE_BATCH_SIZE);
+        try {
+            while (!stopped) {
+                final Entry first = hashedFiles.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                //collect the hashes computed until the batch is full or the interval elapsed
+                final long batchEnd = System.currentTimeMillis() + WRITE_BATCH_INTERVAL_MS;
+                while (batch.size() < WRITE_BATCH_SIZE) {
+                    final long wait = batchEnd - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    final Entry next = hashedFiles.poll(wait, TimeUnit.MILLISECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    hashedFiles.drainTo(batch, WRITE_BATCH_SIZE - batch.size());
+                }
+
+                for (Entry entry : batch) {
+                    if (stopped) {
+                        break;
+                    }
+                    synchronized (entry) {
+                        //not stored yet by the module
+                        if (entry.state == State.HASHED) {
+                            store(entry);
+                        }
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException ex) {
+            //stopped
+        }
+    }
+
+    /**
+     * Store the MD5 hash of a file in the case database, which also sets it in
+     * the file object. Called with the entry lock held.
+     *
+     * @param entry entry of the hashed file
+     */
+    private void store(Entry entry) {
+        final String storedMd5Hash = entry.file.getMd5Hash();
+        if (storedMd5Hash == null || storedMd5Hash.isEmpty()) {
+            try {
+                skCase.setMd5Hash(entry.file, entry.hashes.get(HashType.MD5));
+            } catch (TskCoreException ex) {
+                logger.log(Level.WARNING, "Error storing the hash of file " + entry.file.getName() + " (id: " + entry.file.getId() + ")", ex);
+            }
+        }
+        //the hashes are still returned to the module for the lookups
+        entry.state = State.STORED;
+        if (hashTypes.size() == 1) {
+            //only MD5, the module gets the stored hash from the file
+            entries.remove(entry.file.getId(), entry);
+        }
+    }
+}
@@ -61,6 +61,8 @@ class AbstractFileChunk {
             success = false;
             throw new IngesterException("Problem ingesting file string chunk: " + parent.getSourceFile().getId() + ", chunk: " + chunkID, ingEx);
         }
+        //report the hits of the literal keywords right away
+        KeywordSearchIngestModule.getDefault().matchChunk(parent.getSourceFile(), content, (int) contentSize, indexCharset);
         return success;
     }
     
@@ -36,15 +36,15 @@ import org.sleuthkit.datamodel.ReadContentInputStream;
  * Extractor of text from HTML supported AbstractFile content. Extracted text is
  * divided into chunks and indexed with Solr. If HTML extraction succeeds,
  * chunks are indexed with Solr.
+ *
+ * Not thread-safe, every indexing thread uses its own extractor.
  */
 public class AbstractFileHtmlExtract implements AbstractFileExtract {
 
     private static final Logger logger = Logger.getLogger(AbstractFileHtmlExtract.class.getName());
     static final Charset outCharset = Server.DEFAULT_INDEXED_TEXT_CHARSET;
-    static final int MAX_EXTR_TEXT_CHARS = 512 * 1024;
-    private static final int SINGLE_READ_CHARS = 1024;
-    private static final int EXTRA_CHARS = 128; //for whitespace
-    private static final char[] TEXT_CHUNK_BUF = new char[MAX_EXTR_TEXT_CHARS];
+    //chunker of this extractor, an extractor instance is used by a single indexing thread
+    private final TextChunker chunker = new TextChunker(outCharset);
     private KeywordSearchIngestModule module;
     private Ingester ingester;
     private AbstractFile sourceFile;
@@ -117,57 +117,12 @@ public class AbstractFileHtmlExtract implements AbstractFileExtract {
             }
 
             success = true;
-            long readSize;
-            long totalRead = 0;
-            boolean eof = false;
-            //we read max 1024 chars at time, this seems to max what this Reader would return
-            while (!eof && (readSize = reader.read(TEXT_CHUNK_BUF, 0, SINGLE_READ_CHARS)) != -1) {
-                totalRead += readSize;
-
-                //consume more bytes to fill entire chunk (leave EXTRA_CHARS to end the word)
-                while ((totalRead < MAX_EXTR_TEXT_CHARS - SINGLE_READ_CHARS - EXTRA_CHARS)
-                        && (readSize = reader.read(TEXT_CHUNK_BUF, (int) totalRead, SINGLE_READ_CHARS)) != -1) {
-                    totalRead += readSize;
-                }
-                if (readSize == -1) {
-                    //this is the last chunk
-                    eof = true;
-                } else {
-                    //try to read until whitespace to not break words
-                    while ((totalRead < MAX_EXTR_TEXT_CHARS - 1)
-                            && !Character.isWhitespace(TEXT_CHUNK_BUF[(int) totalRead - 1])
-                            && (readSize = reader.read(TEXT_CHUNK_BUF, (int) totalRead, 1)) != -1) {
-                        totalRead += readSize;
-                    }
-                    if (readSize == -1) {
-                        //this is the last chunk
-                        eof = true;
-                    }
-                }
-
-                //logger.log(Level.INFO, "TOTAL READ SIZE: " + totalRead + " file: " + sourceFile.getName());
-                //encode to bytes to index as byte stream
-                String extracted;
-                //add BOM and trim the 0 bytes
-                //set initial size to chars read + bom - try to prevent from resizing
-                StringBuilder sb = new StringBuilder((int) totalRead + 1000);
-                //inject BOM here (saves byte buffer realloc later), will be converted to specific encoding BOM
-                //sb.append(UTF16BOM); disabled BOM, not needing as bypassing Tika
-                if (totalRead < MAX_EXTR_TEXT_CHARS) {
-                    sb.append(TEXT_CHUNK_BUF, 0, (int) totalRead);
-                } else {
-                    sb.append(TEXT_CHUNK_BUF);
-                }
-
-                //reset for next chunk
-                totalRead = 0;
-                extracted = sb.toString();
-
-                //converts BOM automatically to charSet encoding
-                byte[] encodedBytes = extracted.getBytes(outCharset);
+            //chunks are split at whitespace and encoded by the chunker into its reused buffer
+            chunker.reset(reader);
+            while (chunker.next()) {
                 AbstractFileChunk chunk = new AbstractFileChunk(this, this.numChunks + 1);
                 try {
-                    chunk.index(ingester, encodedBytes, encodedBytes.length, outCharset);
+                    chunk.index(ingester, chunker.getChunkBytes(), chunker.getChunkLength(), outCharset);
                     ++this.numChunks;
                 } catch (Ingester.IngesterException ingEx) {
                     success = false;
@@ -176,9 +131,9 @@ public class AbstractFileHtmlExtract implements AbstractFileExtract {
                     throw ingEx; //need to rethrow/return to signal error and move on
                 }
 
-                //check if need invoke commit/search between chunks
-                //not to delay commit if timer has gone off
-                module.checkRunCommitSearch();
+                //check if need invoke search between chunks
+                //not to delay search if timer has gone off
+                module.checkRunSearch();
             }
         } catch (IOException ex) {
             logger.log(Level.WARNING, "Unable to read content stream from " + sourceFile.getId() + ": " + sourceFile.getName(), ex);
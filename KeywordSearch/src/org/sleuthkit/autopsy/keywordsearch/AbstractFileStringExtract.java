@@ -21,19 +21,35 @@ package org.sleuthkit.autopsy.keywordsearch;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import org.sleuthkit.autopsy.coreutils.Logger;
 import org.sleuthkit.autopsy.coreutils.StringExtract.StringExtractUnicodeTable.SCRIPT;
 import org.sleuthkit.autopsy.keywordsearch.Ingester.IngesterException;
 import org.sleuthkit.datamodel.AbstractFile;
+import org.sleuthkit.datamodel.TskCoreException;
+import org.sleuthkit.datamodel.TskData;
 
 /**
  * Takes an AbstractFile, extract strings, converts into chunks (associated with
  * the original source file) up to 1MB then and indexes chunks as text with Solr
+ *
+ * Not thread-safe, every indexing thread uses its own extractor.
  */
 class AbstractFileStringExtract implements AbstractFileExtract {
 
@@ -42,9 +58,36 @@ class AbstractFileStringExtract implements AbstractFileExtract {
     private int numChunks;
     private static final Logger logger = Logger.getLogger(AbstractFileStringExtract.class.getName());
     static final long MAX_STRING_CHUNK_SIZE = 1 * 1024 * 1024L;
+    //unallocated and unused blocks files from this size are extracted by byte ranges, in parallel
+    private static final long MIN_RANGE_EXTRACT_SIZE = 64 * 1024 * 1024L;
+    //size of the byte ranges, fixed so that the chunk ids of a file are always the same
+    private static final long EXTRACT_RANGE_SIZE = 8 * 1024 * 1024L;
+    //bytes searched from the nominal range boundary for a break, where no string can cross
+    private static final int RANGE_BREAK_SEARCH_SIZE = 64 * 1024;
+    //zero bytes of a break: a UTF-16 NUL at both alignments
+    private static final int RANGE_BREAK_ZEROS = 4;
+    //chunks of a range extracted and not indexed yet, the extractor thread waits for the indexing thread past this
+    private static final int MAX_QUEUED_RANGE_CHUNKS = 2;
+    private static final int NUM_RANGE_EXTRACT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    //ranges of a file extracted ahead of the range being indexed
+    private static final int MAX_RANGES_AHEAD = NUM_RANGE_EXTRACT_THREADS;
+    //extractor threads shared by the indexing threads
+    private static final ExecutorService rangeExtractExecutor = Executors.newFixedThreadPool(NUM_RANGE_EXTRACT_THREADS,
+            new ThreadFactory() {
+                private final AtomicInteger threadNum = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread t = new Thread(r, "String-extract-" + threadNum.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
     private AbstractFile sourceFile;
-    //single static buffer for all extractions.  Safe, indexing can only happen in one thread
-    private static final byte[] STRING_CHUNK_BUF = new byte[(int) MAX_STRING_CHUNK_SIZE];
+    //chunk buffer of this extractor, an extractor instance is used by a single indexing thread
+    private final byte[] stringChunkBuf = new byte[(int) MAX_STRING_CHUNK_SIZE];
+    //chunk buffers of the ranges, returned once indexed for the next ranges of the file
+    private final ConcurrentLinkedQueue<byte[]> rangeChunkBufs = new ConcurrentLinkedQueue<byte[]>();
     //private static final int BOM_LEN = 3; 
     private static final int BOM_LEN = 0;  //disabled prepending of BOM
     private static final Charset INDEX_CHARSET = Server.DEFAULT_INDEXED_TEXT_CHARSET;
@@ -56,9 +99,9 @@ class AbstractFileStringExtract implements AbstractFileExtract {
     //disabled prepending of BOM
     //static {
     //prepend UTF-8 BOM to start of the buffer
-    //STRING_CHUNK_BUF[0] = (byte) 0xEF;
-    //STRING_CHUNK_BUF[1] = (byte) 0xBB;
-    //STRING_CHUNK_BUF[2] = (byte) 0xBF;
+    //stringChunkBuf[0] = (byte) 0xEF;
+    //stringChunkBuf[1] = (byte) 0xBB;
+    //stringChunkBuf[2] = (byte) 0xBF;
     //}
     public AbstractFileStringExtract() {
         this.module = KeywordSearchIngestModule.getDefault();
@@ -116,30 +159,27 @@ class AbstractFileStringExtract implements AbstractFileExtract {
             return true;
         }
 
-        InputStream stringStream = null;
-        //check which extract stream to use
-        if (extractScripts.size() == 1 && extractScripts.get(0).equals(SCRIPT.LATIN_1)) {
-            //optimal for english, english only
-            stringStream = new AbstractFileStringStream(sourceFile, INDEX_CHARSET);
-        } else {
-            stringStream = new AbstractFileStringIntStream(
-                    sourceFile, extractScripts, extractUTF8, extractUTF16, INDEX_CHARSET);
+        if (isRangeExtractSupported(sourceFile)) {
+            return indexRanges(extractUTF8, extractUTF16);
         }
 
+        InputStream stringStream = createStringStream(sourceFile, extractScripts, extractUTF8, extractUTF16,
+                0, sourceFile.getSize());
+
 
         try {
             success = true;
             //break input stream into chunks 
 
             long readSize = 0;
-            while ((readSize = stringStream.read(STRING_CHUNK_BUF, BOM_LEN, (int) MAX_STRING_CHUNK_SIZE - BOM_LEN)) != -1) {
+            while ((readSize = stringStream.read(stringChunkBuf, BOM_LEN, (int) MAX_STRING_CHUNK_SIZE - BOM_LEN)) != -1) {
                 //FileOutputStream debug = new FileOutputStream("c:\\temp\\" + sourceFile.getName() + Integer.toString(this.numChunks+1));
-                //debug.write(STRING_CHUNK_BUF, 0, (int)readSize);
+                //debug.write(stringChunkBuf, 0, (int)readSize);
 
                 AbstractFileChunk chunk = new AbstractFileChunk(this, this.numChunks + 1);
 
                 try {
-                    chunk.index(ingester, STRING_CHUNK_BUF, readSize + BOM_LEN, INDEX_CHARSET);
+                    chunk.index(ingester, stringChunkBuf, readSize + BOM_LEN, INDEX_CHARSET);
                     ++this.numChunks;
                 } catch (IngesterException ingEx) {
                     success = false;
@@ -147,9 +187,9 @@ class AbstractFileStringExtract implements AbstractFileExtract {
                     throw ingEx; //need to rethrow/return to signal error and move on
                 }
 
-                //check if need invoke commit/search between chunks
-                //not to delay commit if timer has gone off
-                module.checkRunCommitSearch();
+                //check if need invoke search between chunks
+                //not to delay search if timer has gone off
+                module.checkRunSearch();
 
                 //debug.close();    
             }
@@ -173,6 +213,231 @@ class AbstractFileStringExtract implements AbstractFileExtract {
         return success;
     }
 
+    /**
+     * Create the stream of strings extracted from a byte range of the file
+     */
+    private static InputStream createStringStream(AbstractFile file, List<SCRIPT> scripts, boolean extractUTF8,
+            boolean extractUTF16, long startOffset, long endOffset) {
+        //check which extract stream to use
+        if (scripts.size() == 1 && scripts.get(0).equals(SCRIPT.LATIN_1)) {
+            //optimal for english, english only
+            return new AbstractFileStringStream(file, INDEX_CHARSET, extractUTF8, extractUTF16, startOffset, endOffset);
+        } else {
+            return new AbstractFileStringIntStream(
+                    file, scripts, extractUTF8, extractUTF16, INDEX_CHARSET, startOffset, endOffset);
+        }
+    }
+
+    /**
+     * Check if the strings of the file are extracted by byte ranges in
+     * parallel: large unallocated and unused blocks files
+     */
+    private static boolean isRangeExtractSupported(AbstractFile file) {
+        final TskData.TSK_DB_FILES_TYPE_ENUM type = file.getType();
+        return (type.equals(TskData.TSK_DB_FILES_TYPE_ENUM.UNALLOC_BLOCKS)
+                || type.equals(TskData.TSK_DB_FILES_TYPE_ENUM.UNUSED_BLOCKS))
+                && file.getSize() >= MIN_RANGE_EXTRACT_SIZE;
+    }
+
+    /**
+     * Extract the strings of the file by byte ranges, in parallel, and index
+     * them in chunks.
+     *
+     * The ranges are extracted ahead by the extractor threads, and their chunks
+     * are indexed in file order by the calling thread, as they are extracted.
+     * A range extractor waits while MAX_QUEUED_RANGE_CHUNKS of its chunks are
+     * not indexed yet, and the chunk buffers are reused. The ranges end at a
+     * break past their nominal end, so that the strings are not cut or
+     * extracted twice. The chunks of a range are not packed with the strings
+     * of the next range, so the chunk ids depend only on the file content and
+     * the range size, not on the thread timing.
+     *
+     * @param extractUTF8 whether to extract utf8 encoding
+     * @param extractUTF16 whether to extract utf16 encoding
+     * @return true if all the ranges were extracted and indexed
+     * @throws IngesterException if a chunk could not be indexed or the thread
+     * was interrupted
+     */
+    private boolean indexRanges(boolean extractUTF8, boolean extractUTF16) throws IngesterException {
+        final long fileSize = sourceFile.getSize();
+        final List<SCRIPT> scripts = new ArrayList<SCRIPT>(extractScripts);
+        final Deque<RangeExtractTask> ranges = new ArrayDeque<RangeExtractTask>();
+        long nextRangeOffset = 0;
+        try {
+            while (nextRangeOffset < fileSize || !ranges.isEmpty()) {
+                while (nextRangeOffset < fileSize && ranges.size() < MAX_RANGES_AHEAD) {
+                    final RangeExtractTask range = new RangeExtractTask(sourceFile, scripts, extractUTF8, extractUTF16,
+                            nextRangeOffset, nextRangeOffset + EXTRACT_RANGE_SIZE, rangeChunkBufs);
+                    range.future = rangeExtractExecutor.submit(range);
+                    ranges.add(range);
+                    nextRangeOffset += EXTRACT_RANGE_SIZE;
+                }
+
+                final RangeExtractTask range = ranges.peek();
+                final StringChunk stringChunk = range.chunks.take();
+                if (stringChunk == StringChunk.END_OF_RANGE) {
+                    //reports the extraction error, if any
+                    range.future.get();
+                    ranges.poll();
+                    continue;
+                }
+                AbstractFileChunk chunk = new AbstractFileChunk(this, this.numChunks + 1);
+                try {
+                    chunk.index(ingester, stringChunk.buf, stringChunk.size, INDEX_CHARSET);
+                    ++this.numChunks;
+                } catch (IngesterException ingEx) {
+                    logger.log(Level.WARNING, "Ingester had a problem with extracted strings from file '" + sourceFile.getName() + "' (id: " + sourceFile.getId() + ").", ingEx);
+                    throw ingEx; //need to rethrow/return to signal error and move on
+                } finally {
+                    //the content of the chunk is copied by the ingester
+                    rangeChunkBufs.add(stringChunk.buf);
+                }
+
+                //check if need invoke search between chunks
+                //not to delay search if timer has gone off
+                module.checkRunSearch();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IngesterException("Interrupted extracting strings from file: " + sourceFile.getName() + " (id: " + sourceFile.getId() + ")", ex);
+        } catch (ExecutionException ex) {
+            logger.log(Level.WARNING, "Unable to extract strings from file: " + sourceFile.getName(), ex.getCause());
+            return false;
+        } finally {
+            for (RangeExtractTask range : ranges) {
+                range.future.cancel(true);
+            }
+        }
+
+        //after all chunks, ingest the parent file without content itself, and store numChunks
+        ingester.ingest(this);
+        return true;
+    }
+
+    /**
+     * Find where a range of the file starts or ends: at a run of zero bytes
+     * from the nominal offset, in the middle of the run, where no string of
+     * any encoding continues. At the nominal offset if there is no such run
+     * close enough.
+     *
+     * @param file the file
+     * @param offset nominal start or end offset of a range
+     * @param buf buffer to read the bytes from the offset in
+     * @return the offset of the break
+     */
+    private static long findRangeBreak(AbstractFile file, long offset, byte[] buf) throws IOException {
+        if (offset <= 0 || offset >= file.getSize()) {
+            return Math.min(Math.max(offset, 0), file.getSize());
+        }
+        final int read;
+        try {
+            read = file.read(buf, offset, buf.length);
+        } catch (TskCoreException ex) {
+            throw new IOException("Could not read file: " + file.getName() + " at offset: " + offset, ex);
+        }
+        int zeros = 0;
+        for (int i = 0; i < read; ++i) {
+            if (buf[i] != 0) {
+                zeros = 0;
+            } else if (++zeros == RANGE_BREAK_ZEROS) {
+                return offset + i + 1 - RANGE_BREAK_ZEROS / 2;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Chunk of strings extracted from a byte range
+     */
+    private static class StringChunk {
+
+        //marks the end of the chunks of a range
+        private static final StringChunk END_OF_RANGE = new StringChunk(null, 0);
+        private final byte[] buf;
+        private final int size;
+
+        StringChunk(byte[] buf, int size) {
+            this.buf = buf;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Extracts the strings of a byte range of the file into chunks, queued
+     * for the indexing thread and followed by END_OF_RANGE, also if the
+     * extraction fails
+     */
+    private static class RangeExtractTask implements Callable<Void> {
+
+        private final AbstractFile file;
+        private final List<SCRIPT> scripts;
+        private final boolean extractUTF8;
+        private final boolean extractUTF16;
+        private final long startOffset;
+        private final long endOffset;
+        private final ConcurrentLinkedQueue<byte[]> freeBufs;
+        private final BlockingQueue<StringChunk> chunks = new ArrayBlockingQueue<StringChunk>(MAX_QUEUED_RANGE_CHUNKS);
+        private Future<Void> future;
+
+        RangeExtractTask(AbstractFile file, List<SCRIPT> scripts, boolean extractUTF8, boolean extractUTF16,
+                long startOffset, long endOffset, ConcurrentLinkedQueue<byte[]> freeBufs) {
+            this.file = file;
+            this.scripts = scripts;
+            this.extractUTF8 = extractUTF8;
+            this.extractUTF16 = extractUTF16;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.freeBufs = freeBufs;
+        }
+
+        @Override
+        public Void call() throws IOException, InterruptedException {
+            try {
+                extract();
+            } catch (InterruptedException ex) {
+                //cancelled, the range is not waited for anymore
+                throw ex;
+            } catch (IOException | RuntimeException ex) {
+                chunks.put(StringChunk.END_OF_RANGE);
+                throw ex;
+            }
+            if (!Thread.currentThread().isInterrupted()) {
+                chunks.put(StringChunk.END_OF_RANGE);
+            }
+            return null;
+        }
+
+        private void extract() throws IOException, InterruptedException {
+            final byte[] breakBuf = new byte[RANGE_BREAK_SEARCH_SIZE];
+            final long start = findRangeBreak(file, startOffset, breakBuf);
+            final long end = findRangeBreak(file, endOffset, breakBuf);
+            if (start >= end) {
+                return;
+            }
+            final InputStream stringStream = createStringStream(file, scripts, extractUTF8, extractUTF16, start, end);
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    byte[] buf = freeBufs.poll();
+                    if (buf == null) {
+                        buf = new byte[(int) MAX_STRING_CHUNK_SIZE];
+                    }
+                    int size = 0;
+                    int read;
+                    while (size < buf.length && (read = stringStream.read(buf, size, buf.length - size)) != -1) {
+                        size += read;
+                    }
+                    if (size == 0) {
+                        freeBufs.add(buf);
+                        break;
+                    }
+                    chunks.put(new StringChunk(buf, size));
+                }
+            } finally {
+                stringStream.close();
+            }
+        }
+    }
+
     @Override
     public boolean isContentTypeSpecific() {
         return true;
@@ -34,7 +34,7 @@ import org.sleuthkit.datamodel.TskCoreException;
  * object, extract international strings from the file and read output as a
  * stream of UTF-8 strings as encoded bytes.
  *
- * Currently not-thread safe (reusing static buffers for efficiency)
+ * Not thread-safe, the read buffer is reused by the streams of a thread
  */
 public class AbstractFileStringIntStream extends InputStream {
 
@@ -42,8 +42,16 @@ public class AbstractFileStringIntStream extends InputStream {
     private final byte[] oneCharBuf = new byte[1];
     private final StringExtract stringExtractor;
     private static final int FILE_BUF_SIZE = 1024 * 1024;
-    private static final byte[] fileReadBuff = new byte[FILE_BUF_SIZE]; //NOTE: need to run all stream extraction in same thread
+    //file read buffer, reused by all the streams of a thread
+    private static final ThreadLocal<byte[]> fileReadBuffs = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[FILE_BUF_SIZE];
+        }
+    };
+    private final byte[] fileReadBuff = fileReadBuffs.get();
     private long fileReadOffset = 0L;
+    private final long endOffset; //offset in the file to stop extracting at
     private byte[] convertBuff; //stores extracted string encoded as bytes, before returned to user
     private int convertBuffOffset = 0; //offset to start returning data to user on next read()
     private int bytesInConvertBuff = 0; //amount of data currently in the buffer
@@ -67,7 +75,26 @@ public class AbstractFileStringIntStream extends InputStream {
      */
     public AbstractFileStringIntStream(AbstractFile content, List<SCRIPT> scripts, boolean extractUTF8, 
            boolean extractUTF16, Charset outCharset) {
+        this(content, scripts, extractUTF8, extractUTF16, outCharset, 0, content.getSize());
+    }
+
+    /**
+     * Constructs new stream object that does conversion from a byte range of
+     * the file, to extracted strings, then to byte stream
+     *
+     * @param content input content to process and turn into a stream to convert into strings
+     * @param scripts a list of scripts to consider
+     * @param extractUTF8 whether to extract utf8 encoding
+     * @param extractUTF16 whether to extract utf16 encoding
+     * @param outCharset encoding to use in the output byte stream
+     * @param startOffset offset in the file to start extracting at
+     * @param endOffset offset in the file to stop extracting at
+     */
+    public AbstractFileStringIntStream(AbstractFile content, List<SCRIPT> scripts, boolean extractUTF8, 
+           boolean extractUTF16, Charset outCharset, long startOffset, long endOffset) {
         this.content = content;
+        this.fileReadOffset = startOffset;
+        this.endOffset = Math.min(endOffset, content.getSize());
         this.stringExtractor = new StringExtract();
         this.stringExtractor.setEnabledScripts(scripts);
         this.extractUTF8 = extractUTF8;
@@ -105,7 +132,7 @@ public class AbstractFileStringIntStream extends InputStream {
             return -1;
         }
 
-        long fileSize = content.getSize();
+        final long fileSize = endOffset;
         if (fileSize == 0) {
             return -1;
         }
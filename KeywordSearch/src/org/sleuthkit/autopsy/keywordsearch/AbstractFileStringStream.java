@@ -21,8 +21,9 @@ package org.sleuthkit.autopsy.keywordsearch;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.util.logging.Level;
 import org.sleuthkit.autopsy.coreutils.Logger;
-import org.sleuthkit.autopsy.coreutils.StringExtract;
+import org.sleuthkit.autopsy.coreutils.StringScanner;
 import org.sleuthkit.datamodel.AbstractFile;
 import org.sleuthkit.datamodel.TskException;
 
@@ -32,33 +33,41 @@ import org.sleuthkit.datamodel.TskException;
  * 
  * Note: the utility supports extraction of only LATIN script and UTF8, UTF16LE, UTF16BE encodings
  * and uses a brute force encoding detection - it's fast but could apply multiple encodings on the same string.
+ * The file is read in large blocks and all the encodings are detected in a single pass by StringScanner.
  * 
  * For other script/languages support and better encoding detection use AbstractFileStringIntStream streaming class,
  * which wraps around StringExtract extractor.
  */
 public class AbstractFileStringStream extends InputStream {
 
+    private static final int READ_BUF_SIZE = 1024 * 1024;
+    //read and converted strings buffers, reused by all the streams of a thread
+    private static final ThreadLocal<byte[]> readBufs = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[READ_BUF_SIZE];
+        }
+    };
+    private static final ThreadLocal<byte[]> convertBufs = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[StringScanner.getMaxOutputLength(READ_BUF_SIZE)];
+        }
+    };
+    private static final Charset SCANNER_CHARSET = Charset.forName("UTF-8");
+    private static final Logger logger = Logger.getLogger(AbstractFileStringStream.class.getName());
     //args
-    private AbstractFile content;
-    private Charset outputCharset;
+    private final AbstractFile content;
+    private final Charset outputCharset;
     //internal data
-    private long contentOffset = 0; //offset in fscontent read into curReadBuf
-    private static final int READ_BUF_SIZE = 256;
-    private static final byte[] curReadBuf = new byte[READ_BUF_SIZE];
-    private int bytesInReadBuf = 0;
-    private int readBufOffset = 0; //offset in read buf processed
-    private StringBuilder curString = new StringBuilder();
-    private int curStringLen = 0;
-    private StringBuilder tempString = new StringBuilder();
-    private int tempStringLen = 0;
+    private final StringScanner scanner;
+    private long contentOffset = 0; //offset in content of the next block to read
+    private final long endOffset; //offset in content to stop extracting at
+    private byte[] convertBuf; //strings extracted from the last block, encoded
+    private int convertBufOffset = 0; //offset in convertBuf to return data from on next read()
+    private int bytesInConvertBuf = 0;
     private boolean isEOF = false;
-    private boolean stringAtTempBoundary = false; //if temp has part of string that didn't make it in previous read()
-    private boolean stringAtBufBoundary = false; //if read buffer has string being processed, continue as string from prev read() in next read()
-    private boolean inString = false; //if current temp has min chars required
-    private static final byte[] oneCharBuf = new byte[1];
-    private final int MIN_PRINTABLE_CHARS = 4; //num. of chars needed to qualify as a char string
-    private static final String NLS = Character.toString((char) 10); //new line
-    private static final Logger logger = Logger.getLogger(AbstractFileStringStream.class.getName());
+    private final byte[] oneCharBuf = new byte[1];
 
     /**
      * Construct new string stream from FsContent
@@ -71,10 +80,7 @@ public class AbstractFileStringStream extends InputStream {
      * preserved for next read.
      */
     public AbstractFileStringStream(AbstractFile content, Charset outputCharset, boolean preserveOnBuffBoundary) {
-        this.content = content;
-        this.outputCharset = outputCharset;
-        //this.preserveOnBuffBoundary = preserveOnBuffBoundary;
-        //logger.log(Level.INFO, "FILE: " + content.getParentPath() + "/" + content.getName());
+        this(content, outputCharset, false, false);
     }
 
     /**
@@ -88,6 +94,38 @@ public class AbstractFileStringStream extends InputStream {
         this(content, outCharset, false);
     }
 
+    /**
+     * Construct new string stream from FsContent, for the encodings specified
+     *
+     * @param content to extract strings from
+     * @param outCharset target charset to encode into bytes and index as, e.g. UTF-8
+     * @param extractUTF8 whether to extract multi-byte UTF-8 chars, in addition to ASCII
+     * @param extractUTF16 whether to extract UTF-16LE and UTF-16BE strings
+     */
+    public AbstractFileStringStream(AbstractFile content, Charset outCharset, boolean extractUTF8, boolean extractUTF16) {
+        this(content, outCharset, extractUTF8, extractUTF16, 0, content.getSize());
+    }
+
+    /**
+     * Construct new string stream from a byte range of FsContent, for the
+     * encodings specified
+     *
+     * @param content to extract strings from
+     * @param outCharset target charset to encode into bytes and index as, e.g. UTF-8
+     * @param extractUTF8 whether to extract multi-byte UTF-8 chars, in addition to ASCII
+     * @param extractUTF16 whether to extract UTF-16LE and UTF-16BE strings
+     * @param startOffset offset in content to start extracting at
+     * @param endOffset offset in content to stop extracting at
+     */
+    public AbstractFileStringStream(AbstractFile content, Charset outCharset, boolean extractUTF8, boolean extractUTF16,
+            long startOffset, long endOffset) {
+        this.content = content;
+        this.contentOffset = startOffset;
+        this.endOffset = Math.min(endOffset, content.getSize());
+        this.outputCharset = outCharset;
+        this.scanner = new StringScanner(extractUTF8, extractUTF16);
+    }
+
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
         if (b == null) {
@@ -98,176 +136,60 @@ public class AbstractFileStringStream extends InputStream {
             return 0;
         }
 
-        long fileSize = content.getSize();
-        if (fileSize == 0) {
-            return -1;
-        }
-
-        if (isEOF) {
-            return -1;
-        }
-
-
-        if (stringAtTempBoundary) {
-            //append entire temp string residual from previous read()
-            //because qualified string was broken down into 2 parts
-            appendResetTemp();
-
-            stringAtTempBoundary = false;
-            //there could be more to this string in fscontent/buffer
-        }
-
-        boolean singleConsecZero = false; //preserve the current sequence of chars if 1 consecutive zero char
-        int newCurLen = curStringLen + tempStringLen;
-
-
-        while (newCurLen < len) {
-            //need to extract more strings
-            if (readBufOffset > bytesInReadBuf - 1) {
-                //no more bytes to process into strings, read them
-                try {
-                    bytesInReadBuf = 0;
-                    bytesInReadBuf = content.read(curReadBuf, contentOffset, READ_BUF_SIZE);
-                } catch (TskException ex) {
-                    if (curStringLen > 0 || tempStringLen >= MIN_PRINTABLE_CHARS) {
-                        appendResetTemp();
-                        //have some extracted string, return that, and fail next time
-                        isEOF = true;
-                        int copied = copyToReturn(b, off, len);
-                        return copied;
-                    } else {
-                        return -1; //EOF
-                    }
-                }
-                if (bytesInReadBuf < 1) {
-                    if (curStringLen > 0 || tempStringLen >= MIN_PRINTABLE_CHARS) {
-                        appendResetTemp();
-                        //have some extracted string, return that, and fail next time
-                        isEOF = true;
-                        int copied = copyToReturn(b, off, len);
-                        return copied;
-                    } else {
-                        return -1; //EOF
-                    }
+        //fill the user buffer with the strings extracted
+        int copied = 0;
+        while (copied < len) {
+            if (convertBufOffset == bytesInConvertBuf) {
+                if (isEOF) {
+                    break;
                 }
-                //increment content offset for next read
-                contentOffset += bytesInReadBuf;
-                //reset read buf position
-                readBufOffset = 0;
+                convert();
+                continue;
             }
-            //get char from cur read buf
-            char c = (char) curReadBuf[readBufOffset++];
-            if (c == 0 && singleConsecZero == false) {
-                //preserve the current sequence if max consec. 1 zero char 
-                singleConsecZero = true;
-            } else {
-                singleConsecZero = false;
-            }
-            if (StringExtract.isPrintableAscii(c)) {
-                tempString.append(c);
-                ++tempStringLen;
-                if (tempStringLen >= MIN_PRINTABLE_CHARS) {
-                    inString = true;
-                }
-
-                //boundary case when temp has still chars - handled after the loop
-            } else if (!singleConsecZero) {
-                //break the string, clear temp
-                if (tempStringLen >= MIN_PRINTABLE_CHARS
-                        || stringAtBufBoundary) {
-                    //append entire temp string with new line
-                    tempString.append(NLS);
-                    ++tempStringLen;
+            final int toCopy = Math.min(bytesInConvertBuf - convertBufOffset, len - copied);
+            System.arraycopy(convertBuf, convertBufOffset, b, off + copied, toCopy);
+            convertBufOffset += toCopy;
+            copied += toCopy;
+        }
 
-                    curString.append(tempString);
-                    curStringLen += tempStringLen;
+        return copied == 0 ? -1 : copied;
+    }
 
-                    stringAtBufBoundary = false;
-                }
-                //reset temp
-                tempString = new StringBuilder();
-                tempStringLen = 0;
+    /**
+     * Read the next block of the file and extract its strings into convertBuf
+     */
+    private void convert() {
+        final byte[] readBuf = readBufs.get();
+        convertBuf = convertBufs.get();
+        convertBufOffset = 0;
+        bytesInConvertBuf = 0;
+
+        int bytesRead = 0;
+        final long toRead = Math.min(READ_BUF_SIZE, endOffset - contentOffset);
+        if (toRead > 0) {
+            try {
+                bytesRead = content.read(readBuf, contentOffset, toRead);
+            } catch (TskException ex) {
+                logger.log(Level.WARNING, "Error reading file: " + content.getName() + " at offset: " + contentOffset, ex);
+                bytesRead = 0;
             }
-
-            newCurLen = curStringLen + tempStringLen;
-        }
-
-        //check if still in string state, so that next chars in read buf bypass min chars check
-        //and qualify as string even if less < min chars required
-        if (inString) {
-            inString = false; //reset
-            stringAtBufBoundary = true; //will bypass the check
         }
 
-        //check if temp still has chars to qualify as a string
-        //we might need to break up temp into 2 parts for next read() call
-        //consume as many as possible to fill entire user buffer
-        if (tempStringLen >= MIN_PRINTABLE_CHARS) {
-            if (newCurLen > len) {
-                int appendChars = len - curStringLen;
-                //save part for next user read(), need to break up temp string
-                //do not append new line
-                String toAppend = tempString.substring(0, appendChars);
-                String newTemp = tempString.substring(appendChars);
-
-                curString.append(toAppend);
-                curStringLen += appendChars;
-
-                tempString = new StringBuilder(newTemp);
-                tempStringLen = newTemp.length();
-
-                stringAtTempBoundary = true;
-
-            } else {
-                //append entire temp
-                curString.append(tempString);
-                curStringLen += tempStringLen;
-
-                //reset temp
-                tempString = new StringBuilder();
-                tempStringLen = 0;
-
-            }
+        if (bytesRead < 1) {
+            //return the strings extracted so far, and fail next time
+            bytesInConvertBuf = scanner.finish(convertBuf, 0);
+            isEOF = true;
         } else {
-            //if temp has a few chars, not qualified as string for now, 
-            //will be processed during next read() call
+            contentOffset += bytesRead;
+            bytesInConvertBuf = scanner.scan(readBuf, 0, bytesRead, convertBuf, 0);
         }
 
-        //copy current strings to user
-        final int copied = copyToReturn(b, off, len);
-        //there may be still chars in read buffer or  tempString, for next read()
-
-        return copied;
-    }
-
-    //append temp buffer to cur string buffer and reset temp, if enough chars
-    //does not append new line
-    private void appendResetTemp() {
-        if (tempStringLen >= MIN_PRINTABLE_CHARS) {
-            curString.append(tempString);
-            curStringLen += tempStringLen;
-            tempString = new StringBuilder();
-            tempStringLen = 0;
+        if (!SCANNER_CHARSET.equals(outputCharset) && bytesInConvertBuf > 0) {
+            convertBuf = new String(convertBuf, 0, bytesInConvertBuf, SCANNER_CHARSET).getBytes(outputCharset);
+            bytesInConvertBuf = convertBuf.length;
         }
     }
 
-    //copy currently extracted string to user buffer
-    //and reset for next read() call
-    private int copyToReturn(byte[] b, int off, long len) {
-
-        final String curStringS = curString.toString();
-        //logger.log(Level.INFO, curStringS);
-        byte[] stringBytes = curStringS.getBytes(outputCharset);
-        System.arraycopy(stringBytes, 0, b, off, Math.min(curStringLen, (int) len));
-        //logger.log(Level.INFO, curStringS);
-        //copied all string, reset
-        curString = new StringBuilder();
-        int ret = curStringLen;
-        curStringLen = 0;
-        return ret;
-
-    }
-
     @Override
     public int read() throws IOException {
         final int read = read(oneCharBuf, 0, 1);
@@ -281,8 +203,8 @@ public class AbstractFileStringStream extends InputStream {
 
     @Override
     public int available() throws IOException {
-        //we don't know how many bytes in curReadBuf may end up as strings
-        return 0;
+        //strings already extracted, we don't know how many bytes in the next block may end up as strings
+        return bytesInConvertBuf - convertBufOffset;
     }
 
     @Override
@@ -291,4 +213,4 @@ public class AbstractFileStringStream extends InputStream {
         //but it could be more efficient
         return super.skip(n);
     }
-}
\ No newline at end of file
+}
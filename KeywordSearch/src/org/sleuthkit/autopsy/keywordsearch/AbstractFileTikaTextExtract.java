@@ -31,6 +31,7 @@ import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
@@ -54,22 +55,29 @@ import org.sleuthkit.autopsy.keywordsearch.Ingester.IngesterException;
  * This Tika extraction/chunking utility is useful for large files of Tika
  * parsers-supported content type.
  *
+ * Not thread-safe, every indexing thread uses its own extractor.
  */
 public class AbstractFileTikaTextExtract implements AbstractFileExtract {
 
     private static final Logger logger = Logger.getLogger(IngestModuleAbstractFile.class.getName());
     private static final Charset OUTPUT_CHARSET = Server.DEFAULT_INDEXED_TEXT_CHARSET;
-    static final int MAX_EXTR_TEXT_CHARS = 512 * 1024;
-    private static final int SINGLE_READ_CHARS = 1024;
-    private static final int EXTRA_CHARS = 128; //for whitespace
-    private static final char[] TEXT_CHUNK_BUF = new char[MAX_EXTR_TEXT_CHARS];
+    //chunker of this extractor, an extractor instance is used by a single indexing thread
+    private final TextChunker chunker = new TextChunker(OUTPUT_CHARSET);
     //private Tika tika;
     private KeywordSearchIngestModule module;
-    private static Ingester ingester;
+    private Ingester ingester;
     private AbstractFile sourceFile; //currently processed file
     private int numChunks = 0;
     //private static final String UTF16BOM = "\uFEFF"; disabled prepending of BOM
-    private final ExecutorService tikaParseExecutor = Executors.newSingleThreadExecutor();
+    //shared by the extractors of all indexing threads, a thread hung in a Tika parse does not block the others
+    private static final ExecutorService tikaParseExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "Tika-parse");
+            t.setDaemon(true);
+            return t;
+        }
+    });
     private final List<String> TIKA_SUPPORTED_TYPES = new ArrayList<String>();
 
     AbstractFileTikaTextExtract() {
@@ -154,72 +162,25 @@ public class AbstractFileTikaTextExtract implements AbstractFileExtract {
             }
 
             success = true;
-            long readSize;
-            long totalRead = 0;
-            boolean eof = false;
-            //we read max 1024 chars at time, this seems to max what this Reader would return
-            while (!eof && (readSize = reader.read(TEXT_CHUNK_BUF, 0, SINGLE_READ_CHARS)) != -1) {
-                totalRead += readSize;
-
-                //consume more bytes to fill entire chunk (leave EXTRA_CHARS to end the word)
-                while ((totalRead < MAX_EXTR_TEXT_CHARS - SINGLE_READ_CHARS - EXTRA_CHARS)
-                        && (readSize = reader.read(TEXT_CHUNK_BUF, (int) totalRead, SINGLE_READ_CHARS)) != -1) {
-                    totalRead += readSize;
-                }
-                if (readSize == -1) {
-                    //this is the last chunk
-                    eof = true;
-                } else {
-                    //try to read char-by-char until whitespace to not break words
-                    while ((totalRead < MAX_EXTR_TEXT_CHARS - 1)
-                            && !Character.isWhitespace(TEXT_CHUNK_BUF[(int) totalRead - 1])
-                            && (readSize = reader.read(TEXT_CHUNK_BUF, (int) totalRead, 1)) != -1) {
-                        totalRead += readSize;
-                    }
-                    if (readSize == -1) {
-                        //this is the last chunk
-                        eof = true;
+            //chunks are split at whitespace and encoded by the chunker into its reused buffer
+            chunker.reset(reader);
+            boolean metaIndexed = false;
+            while (!metaIndexed) {
+                if (chunker.next()) {
+                    //append meta data if last chunk
+                    if (chunker.isLastChunk()) {
+                        chunker.append(getMetaText(meta));
+                        metaIndexed = true;
                     }
-
-
-                }
-
-                //logger.log(Level.INFO, "TOTAL READ SIZE: " + totalRead + " file: " + sourceFile.getName());
-                //encode to bytes to index as byte stream
-                String extracted;
-                //add BOM and trim the 0 bytes
-                //set initial size to chars read + bom + metadata (roughly) - try to prevent from resizing
-                StringBuilder sb = new StringBuilder((int) totalRead + 1000);
-                //inject BOM here (saves byte buffer realloc later), will be converted to specific encoding BOM
-                //sb.append(UTF16BOM); disabled prepending of BOM
-                if (totalRead < MAX_EXTR_TEXT_CHARS) {
-                    sb.append(TEXT_CHUNK_BUF, 0, (int) totalRead);
                 } else {
-                    sb.append(TEXT_CHUNK_BUF);
+                    //the text ended on a full chunk (or is empty), index the meta data as a chunk of its own
+                    chunker.setChunk(getMetaText(meta));
+                    metaIndexed = true;
                 }
 
-                //reset for next chunk
-                totalRead = 0;
-
-                //append meta data if last chunk
-                if (eof) {
-                    //sort meta data keys
-                    List<String> sortedKeyList = Arrays.asList(meta.names());
-                    Collections.sort(sortedKeyList);
-                    sb.append("\n\n------------------------------METADATA------------------------------\n\n");
-                    for (String key : sortedKeyList) {
-                        String value = meta.get(key);
-                        sb.append(key).append(": ").append(value).append("\n");
-                    }
-                }
-
-                extracted = sb.toString();
-
-                //converts BOM automatically to charSet encoding
-                byte[] encodedBytes = extracted.getBytes(OUTPUT_CHARSET);
                 AbstractFileChunk chunk = new AbstractFileChunk(this, this.numChunks + 1);
                 try {
-                    chunk.index(ingester, encodedBytes, encodedBytes.length, OUTPUT_CHARSET);
+                    chunk.index(ingester, chunker.getChunkBytes(), chunker.getChunkLength(), OUTPUT_CHARSET);
                     ++this.numChunks;
                 } catch (Ingester.IngesterException ingEx) {
                     success = false;
@@ -228,9 +189,9 @@ public class AbstractFileTikaTextExtract implements AbstractFileExtract {
                     throw ingEx; //need to rethrow/return to signal error and move on
                 }
 
-                //check if need invoke commit/search between chunks
-                //not to delay commit if timer has gone off
-                module.checkRunCommitSearch();
+                //check if need invoke search between chunks
+                //not to delay search if timer has gone off
+                module.checkRunSearch();
             }
         } catch (IOException ex) {
             final String msg = "Exception: Unable to read Tika content stream from " + sourceFile.getId() + ": " + sourceFile.getName();
@@ -263,6 +224,25 @@ public class AbstractFileTikaTextExtract implements AbstractFileExtract {
         return success;
     }
 
+    /**
+     * Format the meta data to index with the text, sorted by key
+     *
+     * @param meta meta data of the file from Tika
+     * @return the meta data text
+     */
+    private static String getMetaText(Metadata meta) {
+        //sort meta data keys
+        List<String> sortedKeyList = Arrays.asList(meta.names());
+        Collections.sort(sortedKeyList);
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n\n------------------------------METADATA------------------------------\n\n");
+        for (String key : sortedKeyList) {
+            String value = meta.get(key);
+            sb.append(key).append(": ").append(value).append("\n");
+        }
+        return sb.toString();
+    }
+
     @Override
     public boolean isContentTypeSpecific() {
         return true;
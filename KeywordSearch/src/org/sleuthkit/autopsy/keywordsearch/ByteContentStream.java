@@ -47,6 +47,7 @@ public class ByteContentStream implements ContentStream {
 
     public ByteContentStream(byte [] content, long contentSize, AbstractContent aContent, Charset charset) {
         this.content = content;
+        this.contentSize = contentSize;
         this.aContent = aContent;
         this.charset = charset;
         stream = new ByteArrayInputStream(content, 0, (int)contentSize);
@@ -0,0 +1,228 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.keywordsearch;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import org.sleuthkit.autopsy.coreutils.Logger;
+
+/**
+ * Bounded LRU cache of the Solr results used to display the keyword hits in a
+ * file: the number of chunks of the files, the hits of a query in a file, and
+ * the highlighted markup of the chunks, keyed by file, chunk and query.
+ *
+ * The cache is cleared when the index is committed (the results may have
+ * changed) or the core is closed. The markup of the chunks next to the
+ * displayed one is prefetched by a background thread, so that paging through
+ * the hits of a file does not wait for Solr.
+ *
+ * Thread-safe.
+ */
+class HighlightCache {
+
+    private static final Logger logger = Logger.getLogger(HighlightCache.class.getName());
+    private static final int MAX_CACHED_FILES = 256;
+    //a markup is up to ~1MB, bounds the memory used by the cache
+    private static final int MAX_CACHED_MARKUPS = 32;
+    //prefetches waiting to be run, the oldest ones are dropped when paging fast
+    private static final int MAX_QUEUED_PREFETCHES = 4;
+    private static HighlightCache instance;
+    private final Map<Long, Integer> numChunks = new LruMap<Long, Integer>(MAX_CACHED_FILES);
+    private final Map<String, Map<String, List<ContentHit>>> fileHits = new LruMap<String, Map<String, List<ContentHit>>>(MAX_CACHED_FILES);
+    private final Map<String, Markup> markups = new LruMap<String, Markup>(MAX_CACHED_MARKUPS);
+    //incremented when the cache is cleared, results queried before are not cached
+    private long epoch = 0;
+    private final ExecutorService prefetchExecutor;
+
+    /**
+     * Highlighted markup of a chunk
+     */
+    static class Markup {
+
+        private final String html;
+        private final int numHits;
+
+        /**
+         * @param html the markup
+         * @param numHits number of highlighted hits in the markup, -1 if no
+         * matches
+         */
+        Markup(String html, int numHits) {
+            this.html = html;
+            this.numHits = numHits;
+        }
+
+        String getHtml() {
+            return html;
+        }
+
+        int getNumHits() {
+            return numHits;
+        }
+    }
+
+    /**
+     * LinkedHashMap in access order, evicting the least recently used entry
+     * above the capacity
+     */
+    private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+        private final int capacity;
+
+        LruMap(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private HighlightCache() {
+        prefetchExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED_PREFETCHES), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "Highlight-prefetch");
+                t.setDaemon(true);
+                return t;
+            }
+        }, new ThreadPoolExecutor.DiscardOldestPolicy());
+    }
+
+    static synchronized HighlightCache getDefault() {
+        if (instance == null) {
+            instance = new HighlightCache();
+        }
+        return instance;
+    }
+
+    /**
+     * Get the key of the markup of a chunk
+     *
+     * @param contentId id of the file
+     * @param chunkId chunk of the file, 0 if not chunked
+     * @param query highlight query
+     * @return the key
+     */
+    static String getMarkupKey(long contentId, int chunkId, String query) {
+        return Long.toString(contentId) + Server.ID_CHUNK_SEP + chunkId + "|" + query;
+    }
+
+    /**
+     * Get the key of the hits of a query in a file
+     *
+     * @param contentId id of the file
+     * @param query query
+     * @param isRegex whether the query is a regex
+     * @return the key
+     */
+    static String getHitsKey(long contentId, String query, boolean isRegex) {
+        return Long.toString(contentId) + "|" + isRegex + "|" + query;
+    }
+
+    /**
+     * Get the current epoch, to pass to the put methods with the results
+     * queried after this call
+     *
+     * @return the epoch
+     */
+    synchronized long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Clear the cache, e.g. when the index is committed
+     */
+    synchronized void clear() {
+        ++epoch;
+        numChunks.clear();
+        fileHits.clear();
+        markups.clear();
+    }
+
+    synchronized Integer getNumChunks(long contentId) {
+        return numChunks.get(contentId);
+    }
+
+    synchronized void putNumChunks(long contentId, int chunks, long queryEpoch) {
+        if (queryEpoch == epoch) {
+            numChunks.put(contentId, chunks);
+        }
+    }
+
+    synchronized Map<String, List<ContentHit>> getHits(String hitsKey) {
+        return fileHits.get(hitsKey);
+    }
+
+    synchronized void putHits(String hitsKey, Map<String, List<ContentHit>> hits, long queryEpoch) {
+        if (queryEpoch == epoch) {
+            fileHits.put(hitsKey, hits);
+        }
+    }
+
+    synchronized Markup getMarkup(String markupKey) {
+        return markups.get(markupKey);
+    }
+
+    synchronized void putMarkup(String markupKey, Markup markup, long queryEpoch) {
+        if (queryEpoch == epoch) {
+            markups.put(markupKey, markup);
+        }
+    }
+
+    /**
+     * Query and cache the markup of a chunk in the background, if not cached
+     *
+     * @param markupKey key of the markup
+     * @param loader queries the markup, returns null on error
+     */
+    void prefetchMarkup(final String markupKey, final Callable<Markup> loader) {
+        if (getMarkup(markupKey) != null) {
+            return;
+        }
+        prefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (getMarkup(markupKey) != null) {
+                    return;
+                }
+                final long queryEpoch = getEpoch();
+                try {
+                    final Markup markup = loader.call();
+                    if (markup != null) {
+                        putMarkup(markupKey, markup, queryEpoch);
+                    }
+                } catch (Exception ex) {
+                    logger.log(Level.WARNING, "Could not prefetch markup: " + markupKey, ex);
+                }
+            }
+        });
+    }
+}
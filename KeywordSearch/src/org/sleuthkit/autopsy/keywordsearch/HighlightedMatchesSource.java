@@ -25,6 +25,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import org.sleuthkit.autopsy.coreutils.Logger;
 import org.apache.solr.client.solrj.SolrQuery;
@@ -38,7 +39,8 @@ import org.sleuthkit.datamodel.Content;
 
 /**
  * Gets extracted content from Solr with the parts that match the query
- * highlighted
+ * highlighted. The Solr results are cached in the HighlightCache, and the
+ * pages next to the current one are prefetched.
  */
 class HighlightedMatchesSource implements MarkupSource, HighlightLookup {
 
@@ -63,6 +65,7 @@ class HighlightedMatchesSource implements MarkupSource, HighlightLookup {
     private Map<String, List<ContentHit>> hits = null; //original hits that may get passed in
     private String originalQuery = null; //or original query if hits are not available
     private boolean inited = false;
+    private final HighlightCache cache = HighlightCache.getDefault();
     private static final boolean DEBUG = (Version.getBuildType() == Version.Type.DEVELOPMENT);
 
     HighlightedMatchesSource(Content content, String keywordHitQuery, boolean isRegex) {
@@ -101,14 +104,21 @@ class HighlightedMatchesSource implements MarkupSource, HighlightLookup {
         if (inited) {
             return;
         }
-        try {
-            this.numberPages = solrServer.queryNumFileChunks(content.getId());
-        } catch (KeywordSearchModuleException ex) {
-            logger.log(Level.WARNING, "Could not get number pages for content: " + content.getId());
-            return;
-        } catch (NoOpenCoreException ex) {
-            logger.log(Level.WARNING, "Could not get number pages for content: " + content.getId());
-            return;
+        final Integer cachedNumberPages = cache.getNumChunks(content.getId());
+        if (cachedNumberPages != null) {
+            this.numberPages = cachedNumberPages;
+        } else {
+            final long queryEpoch = cache.getEpoch();
+            try {
+                this.numberPages = solrServer.queryNumFileChunks(content.getId());
+            } catch (KeywordSearchModuleException ex) {
+                logger.log(Level.WARNING, "Could not get number pages for content: " + content.getId());
+                return;
+            } catch (NoOpenCoreException ex) {
+                logger.log(Level.WARNING, "Could not get number pages for content: " + content.getId());
+                return;
+            }
+            cache.putNumChunks(content.getId(), this.numberPages, queryEpoch);
         }
 
         if (this.numberPages == 0) {
@@ -122,6 +132,10 @@ class HighlightedMatchesSource implements MarkupSource, HighlightLookup {
             //extract pages of interest, sorted
             final long contentId = content.getId();
 
+            final String hitsKey = HighlightCache.getHitsKey(contentId, keywordHitQuery, isRegex);
+            if (hits == null) {
+                hits = cache.getHits(hitsKey);
+            }
             if (hits == null) {
                 //special case, aka in case of dir tree, we don't know which chunks
                 //reperform search query for the content to get matching chunks info
@@ -142,12 +156,14 @@ class HighlightedMatchesSource implements MarkupSource, HighlightLookup {
                 chunksQuery = new LuceneQuery(keywordQuery);
                 KeywordQueryFilter contentIdFilter = new KeywordQueryFilter(FilterType.CHUNK, contentId);
                 chunksQuery.addFilter(contentIdFilter);
+                final long queryEpoch = cache.getEpoch();
                 try {
                     hits = chunksQuery.performQuery();
                 } catch (NoOpenCoreException ex) {
                     logger.log(Level.INFO, "Could not get chunk info and get highlights", ex);
                     return;
                 }
+                cache.putHits(hitsKey, hits, queryEpoch);
             }
 
             //organize the hits by page, filter as needed
@@ -291,12 +307,76 @@ class HighlightedMatchesSource implements MarkupSource, HighlightLookup {
     public String getMarkup() {
         init(); //inits once
 
-        String highLightField = null;
+        final int page = this.currentPage;
+        final String markupKey = HighlightCache.getMarkupKey(content.getId(), hasChunks ? page : 0, getHighlightQuery());
+        HighlightCache.Markup markup = cache.getMarkup(markupKey);
+        if (markup == null) {
+            final long queryEpoch = cache.getEpoch();
+            markup = queryMarkup(page);
+            if (markup == null) {
+                return "";
+            }
+            cache.putMarkup(markupKey, markup, queryEpoch);
+        }
+
+        if (markup.getNumHits() >= 0) {
+            //store total hits for this page, now that we know it
+            this.hitsPages.put(page, markup.getNumHits());
+            if (this.currentItem() == 0 && this.hasNextItem()) {
+                this.nextItem();
+            }
+        }
+
+        prefetchAdjacentPages(page);
+
+        return markup.getHtml();
+    }
+
+    /**
+     * Query and cache the markup of the pages before and after the page in
+     * the background
+     */
+    private void prefetchAdjacentPages(int page) {
+        if (!hasChunks) {
+            return;
+        }
+        final int idx = pages.indexOf(page);
+        if (idx < 0) {
+            return;
+        }
+        final String highlightQuery = getHighlightQuery();
+        if (idx < pages.size() - 1) {
+            prefetchPage(pages.get(idx + 1), highlightQuery);
+        }
+        if (idx > 0) {
+            prefetchPage(pages.get(idx - 1), highlightQuery);
+        }
+    }
+
+    private void prefetchPage(final int page, String highlightQuery) {
+        cache.prefetchMarkup(HighlightCache.getMarkupKey(content.getId(), page, highlightQuery),
+                new Callable<HighlightCache.Markup>() {
+                    @Override
+                    public HighlightCache.Markup call() {
+                        return queryMarkup(page);
+                    }
+                });
+    }
+
+    /**
+     * @return the highlight field of the query
+     */
+    private String getHighlightField() {
+        return isRegex ? LuceneQuery.HIGHLIGHT_FIELD_REGEX : LuceneQuery.HIGHLIGHT_FIELD_LITERAL;
+    }
 
+    /**
+     * @return the Solr query highlighting the hits
+     */
+    private String getHighlightQuery() {
         String highlightQuery = keywordHitQuery;
 
         if (isRegex) {
-            highLightField = LuceneQuery.HIGHLIGHT_FIELD_REGEX;
             //escape special lucene chars if not already escaped (if not a compound query)
             //TODO a better way to mark it a compound highlight query
             final String findSubstr = LuceneQuery.HIGHLIGHT_FIELD_REGEX + ":";
@@ -304,19 +384,15 @@ class HighlightedMatchesSource implements MarkupSource, HighlightLookup {
                 highlightQuery = KeywordSearchUtil.escapeLuceneQuery(highlightQuery);
             }
         } else {
-            highLightField = LuceneQuery.HIGHLIGHT_FIELD_LITERAL;
             //escape special lucene chars always for literal queries query
             highlightQuery = KeywordSearchUtil.escapeLuceneQuery(highlightQuery);
         }
 
-        SolrQuery q = new SolrQuery();
-        q.setShowDebugInfo(DEBUG); //debug
-
         String queryStr = null;
 
         if (isRegex) {
             StringBuilder sb = new StringBuilder();
-            sb.append(highLightField).append(":");
+            sb.append(getHighlightField()).append(":");
             if (group) {
                 sb.append("\"");
             }
@@ -330,14 +406,29 @@ class HighlightedMatchesSource implements MarkupSource, HighlightLookup {
             //always force grouping/quotes
             queryStr = KeywordSearchUtil.quoteQuery(highlightQuery);
         }
+        return queryStr;
+    }
+
+    /**
+     * Query the highlighted markup of a page. Does not change the state of
+     * the source, can be called by the prefetch thread.
+     *
+     * @param page the page
+     * @return the markup, or null if the query failed
+     */
+    private HighlightCache.Markup queryMarkup(int page) {
+        final String highLightField = getHighlightField();
+
+        SolrQuery q = new SolrQuery();
+        q.setShowDebugInfo(DEBUG); //debug
 
-        q.setQuery(queryStr);
+        q.setQuery(getHighlightQuery());
 
         final long contentId = content.getId();
 
         String contentIdStr = Long.toString(contentId);
         if (hasChunks) {
-            contentIdStr += "_" + Integer.toString(this.currentPage);
+            contentIdStr += "_" + Integer.toString(page);
         }
 
 
@@ -364,25 +455,22 @@ class HighlightedMatchesSource implements MarkupSource, HighlightLookup {
 
             Map<String, List<String>> responseHighlightID = responseHighlight.get(contentIdStr);
             if (responseHighlightID == null) {
-                return NO_MATCHES;
+                return new HighlightCache.Markup(NO_MATCHES, -1);
             }
             List<String> contentHighlights = responseHighlightID.get(highLightField);
             if (contentHighlights == null) {
-                return NO_MATCHES;
+                return new HighlightCache.Markup(NO_MATCHES, -1);
             } else {
                 // extracted content (minus highlight tags) is HTML-escaped
                 String highlightedContent = contentHighlights.get(0).trim();
-                highlightedContent = insertAnchors(highlightedContent);
-
-
-                return "<html><pre>" + highlightedContent + "</pre></html>";
+                return insertAnchors(highlightedContent);
             }
         } catch (NoOpenCoreException ex) {
-            logger.log(Level.WARNING, "Couldn't query markup for page: " + currentPage, ex);
-            return "";
+            logger.log(Level.WARNING, "Couldn't query markup for page: " + page, ex);
+            return null;
         } catch (KeywordSearchModuleException ex) {
-            logger.log(Level.WARNING, "Could not query markup for page: " + currentPage, ex);
-            return "";
+            logger.log(Level.WARNING, "Could not query markup for page: " + page, ex);
+            return null;
         }
     }
 
@@ -409,7 +497,7 @@ class HighlightedMatchesSource implements MarkupSource, HighlightLookup {
         return this.hitsPages.get(this.currentPage);
     }
 
-    private String insertAnchors(String searchableContent) {
+    private static HighlightCache.Markup insertAnchors(String searchableContent) {
         int searchOffset = 0;
         int index = -1;
 
@@ -428,13 +516,7 @@ class HighlightedMatchesSource implements MarkupSource, HighlightLookup {
             ++count;
         }
 
-        //store total hits for this page, now that we know it
-        this.hitsPages.put(this.currentPage, count);
-        if (this.currentItem() == 0 && this.hasNextItem()) {
-            this.nextItem();
-        }
-
-        return buf.toString();
+        return new HighlightCache.Markup("<html><pre>" + buf.toString() + "</pre></html>", count);
     }
     //dummy instance for Lookup only
     private static HighlightLookup instance = null;
@@ -0,0 +1,130 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.keywordsearch;
+
+/**
+ * Decides when the index is committed, from the amount of uncommitted data and
+ * from how long the previous commits took.
+ *
+ * - a hard commit (flushing the index to disk) is due when enough documents or
+ * content were indexed since the last hard commit, or when the max. interval
+ * elapsed. It is never due sooner than the min. interval, which grows with the
+ * commit latency, so that commits take a bounded share of the indexing time:
+ * small cases are not committed after every few files, and the commits of
+ * huge indexes do not follow each other.
+ * - a soft commit (making the indexed documents searchable, without flushing)
+ * is due when documents were indexed since the last commit and the soft
+ * commit interval elapsed, which also grows with the soft commit latency.
+ *
+ * Thread-safe.
+ */
+class IndexCommitPolicy {
+
+    //uncommitted amounts that make a hard commit due
+    static final long MAX_UNCOMMITTED_DOCS = 20000;
+    static final long MAX_UNCOMMITTED_CONTENT_CHARS = 256 * 1024 * 1024L;
+    //bounds of the hard commit interval
+    private static final long MIN_HARD_COMMIT_INTERVAL_MS = 30 * 1000;
+    private static final long MAX_HARD_COMMIT_INTERVAL_MS = 15 * 60 * 1000;
+    //bounds of the soft commit interval
+    private static final long MIN_SOFT_COMMIT_INTERVAL_MS = 5 * 1000;
+    private static final long MAX_SOFT_COMMIT_INTERVAL_MS = 2 * 60 * 1000;
+    //the interval after a commit is at least this many times the commit latency,
+    //i.e. commits take at most ~10% of the time
+    private static final int LATENCY_INTERVAL_RATIO = 10;
+    private long lastHardCommitTime;
+    private long lastSoftCommitTime;
+    private long hardCommitIntervalMs = MIN_HARD_COMMIT_INTERVAL_MS;
+    private long softCommitIntervalMs = MIN_SOFT_COMMIT_INTERVAL_MS;
+
+    IndexCommitPolicy() {
+        reset();
+    }
+
+    /**
+     * Restart the intervals from now, e.g. when an ingest starts
+     */
+    synchronized void reset() {
+        lastHardCommitTime = lastSoftCommitTime = System.currentTimeMillis();
+        hardCommitIntervalMs = MIN_HARD_COMMIT_INTERVAL_MS;
+        softCommitIntervalMs = MIN_SOFT_COMMIT_INTERVAL_MS;
+    }
+
+    /**
+     * Check if a hard commit is due
+     *
+     * @param uncommittedDocs documents indexed since the last hard commit
+     * @param uncommittedContentChars content chars indexed since the last hard
+     * commit
+     * @return true if the index should be hard committed now
+     */
+    synchronized boolean isHardCommitDue(long uncommittedDocs, long uncommittedContentChars) {
+        if (uncommittedDocs == 0) {
+            return false;
+        }
+        final long elapsed = System.currentTimeMillis() - lastHardCommitTime;
+        if (elapsed < hardCommitIntervalMs) {
+            return false;
+        }
+        return uncommittedDocs >= MAX_UNCOMMITTED_DOCS
+                || uncommittedContentChars >= MAX_UNCOMMITTED_CONTENT_CHARS
+                || elapsed >= MAX_HARD_COMMIT_INTERVAL_MS;
+    }
+
+    /**
+     * Check if a soft commit is due
+     *
+     * @param unsearchableDocs documents indexed since the last (hard or soft)
+     * commit
+     * @return true if the index should be soft committed now
+     */
+    synchronized boolean isSoftCommitDue(long unsearchableDocs) {
+        return unsearchableDocs > 0
+                && System.currentTimeMillis() - lastSoftCommitTime >= softCommitIntervalMs;
+    }
+
+    /**
+     * Record a hard commit, which also makes the documents searchable
+     *
+     * @param startTime time the commit started
+     * @param latencyMs how long the commit took
+     */
+    synchronized void hardCommitDone(long startTime, long latencyMs) {
+        lastHardCommitTime = startTime;
+        lastSoftCommitTime = startTime;
+        hardCommitIntervalMs = bound(latencyMs * LATENCY_INTERVAL_RATIO,
+                MIN_HARD_COMMIT_INTERVAL_MS, MAX_HARD_COMMIT_INTERVAL_MS);
+    }
+
+    /**
+     * Record a soft commit
+     *
+     * @param startTime time the commit started
+     * @param latencyMs how long the commit took
+     */
+    synchronized void softCommitDone(long startTime, long latencyMs) {
+        lastSoftCommitTime = startTime;
+        softCommitIntervalMs = bound(latencyMs * LATENCY_INTERVAL_RATIO,
+                MIN_SOFT_COMMIT_INTERVAL_MS, MAX_SOFT_COMMIT_INTERVAL_MS);
+    }
+
+    private static long bound(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
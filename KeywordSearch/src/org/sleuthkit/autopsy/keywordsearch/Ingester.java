@@ -23,14 +23,26 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import org.apache.solr.client.solrj.SolrRequest.METHOD;
 import org.apache.solr.client.solrj.SolrServerException;
@@ -44,6 +56,7 @@ import org.openide.util.Exceptions;
 import org.sleuthkit.autopsy.casemodule.Case;
 import org.sleuthkit.autopsy.coreutils.Logger;
 import org.sleuthkit.autopsy.datamodel.ContentUtils;
+import org.sleuthkit.autopsy.ingest.IngestServices;
 import org.sleuthkit.autopsy.keywordsearch.Server.SolrServerNoPortException;
 import org.sleuthkit.datamodel.AbstractContent;
 import org.sleuthkit.datamodel.AbstractFile;
@@ -60,12 +73,17 @@ import org.sleuthkit.datamodel.SleuthkitCase;
 import org.sleuthkit.datamodel.TskCoreException;
 
 /**
- * Handles indexing files on a Solr core.
+ * Handles indexing files on a Solr core. Thread-safe: the files can be indexed
+ * by multiple threads. The documents are queued and sent to Solr in batches by
+ * the update threads, commit() waits for the queued documents to be sent.
+ * During ingest, the index is committed automatically by the commit thread,
+ * as decided by the IndexCommitPolicy, so that the indexing threads never
+ * wait for commits.
  */
 public class Ingester {
 
     private static final Logger logger = Logger.getLogger(Ingester.class.getName());
-    private boolean uncommitedIngests = false;
+    private volatile boolean uncommitedIngests = false;
     private final ExecutorService upRequestExecutor = Executors.newSingleThreadExecutor();
     private final Server solrServer = KeywordSearch.getServer();
     private final GetContentFieldsV getContentFieldsV = new GetContentFieldsV();
@@ -74,11 +92,82 @@ public class Ingester {
     //for ingesting chunk as SolrInputDocument (non-content-streaming, by-pass tika)
     //TODO use a streaming way to add content to /update handler
     private final static int MAX_DOC_CHUNK_SIZE = 1024*1024;
-    private final byte[] docChunkContentBuf = new byte[MAX_DOC_CHUNK_SIZE];
+    //chunk read buffer of every indexing thread
+    private final ThreadLocal<byte[]> docChunkContentBuf = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[MAX_DOC_CHUNK_SIZE];
+        }
+    };
     private static final String docContentEncoding = "UTF-8";
+    
+    //index update pipeline: the indexing threads queue the documents,
+    //the update threads send them to Solr in batches, over multiple connections
+    private static final int NUM_UPDATE_THREADS = Server.MAX_SOLR_CONNECTIONS / 2;
+    //bounds the memory used by documents waiting to be sent (up to ~2MB per chunk document)
+    private static final int MAX_QUEUED_DOCS = 4 * NUM_UPDATE_THREADS;
+    private static final int MAX_BATCH_DOCS = 32;
+    private static final long MAX_BATCH_CONTENT_CHARS = 4 * 1024 * 1024L;
+    private final BlockingQueue<UpdateDocument> updateQueue = new ArrayBlockingQueue<UpdateDocument>(MAX_QUEUED_DOCS);
+    private final ExecutorService updateExecutor;
+    //number of documents queued or being sent, per flush epoch
+    private final TreeMap<Long, Integer> pendingDocs = new TreeMap<Long, Integer>();
+    //the flush epoch is also the indexing generation of the documents, stored in the index.
+    //Starts from the current time, so that generations keep growing across application restarts
+    private long curEpoch = System.currentTimeMillis(); //guarded by pendingDocs
+    private volatile long committedGeneration = 0;
+    private final AtomicInteger failedDocs = new AtomicInteger();
+    //files with documents Solr failed to index since the last commit
+    private final Set<Long> failedFileIds = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    //automatic commits
+    private static final long COMMIT_CHECK_INTERVAL_MS = 1000;
+    private final IndexCommitPolicy commitPolicy = new IndexCommitPolicy();
+    private final ScheduledExecutorService commitExecutor;
+    private volatile boolean autoCommit = false;
+    //the ingest module whose processed files are durable once the index is committed
+    private volatile KeywordSearchIngestModule resultsModule = null;
+    //serializes the hard and soft commits
+    private final Object commitLock = new Object();
+    //sent to Solr since the last hard commit
+    private final AtomicLong uncommittedDocs = new AtomicLong();
+    private final AtomicLong uncommittedContentChars = new AtomicLong();
+    //sent to Solr since the last hard or soft commit
+    private final AtomicLong unsearchableDocs = new AtomicLong();
 
 
     private Ingester() {
+        updateExecutor = Executors.newFixedThreadPool(NUM_UPDATE_THREADS, new ThreadFactory() {
+            private int threadNum = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "Ingester-update-" + (++threadNum));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        for (int i = 0; i < NUM_UPDATE_THREADS; ++i) {
+            updateExecutor.submit(new UpdateTask());
+        }
+
+        commitExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "Ingester-commit");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        commitExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkAutoCommit();
+                } catch (Exception e) {
+                    logger.log(Level.SEVERE, "Error in automatic index commit", e);
+                }
+            }
+        }, COMMIT_CHECK_INTERVAL_MS, COMMIT_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
 
     public static synchronized Ingester getDefault() {
@@ -286,8 +375,20 @@ public class Ingester {
         //using size here, but we are no longer ingesting entire files
         //size is normally a chunk size, up to 1MB
     
-        if (size > 0) {
+        if (size > 0 && cs instanceof ByteContentStream) {
+            //decode the chunk bytes directly, the extractors reuse their buffers only after this returns
+            final ByteContentStream bcs = (ByteContentStream) cs;
+            try {
+                updateDoc.addField(Server.Schema.CONTENT.toString(),
+                        new String(bcs.getByteContent(), 0, bcs.getSize().intValue(), docContentEncoding));
+            } catch (UnsupportedEncodingException ex) {
+                Exceptions.printStackTrace(ex);
+                updateDoc.addField(Server.Schema.CONTENT.toString(), "");
+            }
+        }
+        else if (size > 0) {
  
+            final byte[] docChunkContentBuf = this.docChunkContentBuf.get();
             InputStream is = null;
             int read = 0;
             try {
@@ -303,7 +404,7 @@ public class Ingester {
                 }
             }
 
-            if (read != 0) {
+            if (read > 0) {
                 String s = "";
                 try {
                     s = new String(docChunkContentBuf, 0, read, docContentEncoding);
@@ -321,15 +422,206 @@ public class Ingester {
         }
         
 
+        queueDocument(updateDoc, cs.getName());
+    }
+
+    /**
+     * Queue the document to be sent to Solr by the update threads. Blocks
+     * while the queue is full, so that the indexing threads do not get ahead
+     * of Solr.
+     *
+     * @param doc document to add to the index
+     * @param name name of the content, for logging
+     * @throws IngesterException if interrupted while waiting for room in the
+     * queue
+     */
+    private void queueDocument(SolrInputDocument doc, String name) throws IngesterException {
+        final UpdateDocument updateDoc;
+        synchronized (pendingDocs) {
+            doc.setField(Server.Schema.INDEX_GEN.toString(), curEpoch);
+            updateDoc = new UpdateDocument(doc, curEpoch);
+            final Integer pending = pendingDocs.get(curEpoch);
+            pendingDocs.put(curEpoch, pending == null ? 1 : pending + 1);
+        }
         try {
-            //TODO consider timeout thread, or vary socket timeout based on size of indexed content
-            solrServer.addDocument(updateDoc);
+            updateQueue.put(updateDoc);
             uncommitedIngests = true;
-        } catch (KeywordSearchModuleException ex) {
-            throw new IngesterException("Error ingestint document: " + cs.getName(), ex);
+        } catch (InterruptedException ex) {
+            updateDone(updateDoc);
+            Thread.currentThread().interrupt();
+            throw new IngesterException("Interrupted while queuing document for indexing: " + name, ex);
+        }
+    }
+
+    /**
+     * Mark the document as sent (or failed) by an update thread
+     *
+     * @param updateDoc document that is no longer pending
+     */
+    private void updateDone(UpdateDocument updateDoc) {
+        synchronized (pendingDocs) {
+            final int pending = pendingDocs.get(updateDoc.epoch) - 1;
+            if (pending == 0) {
+                pendingDocs.remove(updateDoc.epoch);
+                pendingDocs.notifyAll();
+            } else {
+                pendingDocs.put(updateDoc.epoch, pending);
+            }
+        }
+    }
+
+    /**
+     * Wait until the documents queued before this call have been sent to
+     * Solr. Documents queued concurrently by other indexing threads are not
+     * waited for.
+     *
+     * @return indexing generation of the documents waited for, or -1 if
+     * interrupted
+     */
+    private long waitForQueuedDocuments() {
+        synchronized (pendingDocs) {
+            final long epoch = curEpoch++;
+            try {
+                while (!pendingDocs.isEmpty() && pendingDocs.firstKey() <= epoch) {
+                    pendingDocs.wait();
+                }
+            } catch (InterruptedException ex) {
+                logger.log(Level.WARNING, "Interrupted while waiting for queued documents to be indexed");
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+            return epoch;
+        }
+    }
+
+    /**
+     * Get the latest indexing generation committed (hard or soft). The
+     * documents of this and of the previous generations are searchable,
+     * except for the documents Solr failed to index.
+     *
+     * @return the latest committed generation, 0 if nothing committed yet
+     */
+    long getCommittedGeneration() {
+        return committedGeneration;
+    }
+
+    /**
+     * Get the length of the text content of the document
+     *
+     * @param doc document
+     * @return number of chars of the content field
+     */
+    private static long getContentLength(SolrInputDocument doc) {
+        final Object content = doc.getFieldValue(Server.Schema.CONTENT.toString());
+        return content instanceof String ? ((String) content).length() : 0;
+    }
+
+    /**
+     * Document queued for the update threads
+     */
+    private static class UpdateDocument {
+
+        private final SolrInputDocument doc;
+        private final long epoch;
+
+        UpdateDocument(SolrInputDocument doc, long epoch) {
+            this.doc = doc;
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * Update thread loop. Takes the queued documents, and sends them to Solr
+     * in batches of documents, as many as are available up to the batch
+     * limits, with a single /update request per batch.
+     */
+    private class UpdateTask implements Runnable {
+
+        private final List<UpdateDocument> batch = new ArrayList<UpdateDocument>();
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    batch.add(updateQueue.take());
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                long batchChars = getContentLength(batch.get(0).doc);
+                UpdateDocument updateDoc;
+                while (batch.size() < MAX_BATCH_DOCS && batchChars < MAX_BATCH_CONTENT_CHARS
+                        && (updateDoc = updateQueue.poll()) != null) {
+                    batch.add(updateDoc);
+                    batchChars += getContentLength(updateDoc.doc);
+                }
+
+                try {
+                    sendBatch();
+                } catch (Exception ex) {
+                    //keep the update thread alive
+                    for (UpdateDocument failed : batch) {
+                        documentFailed(failed.doc);
+                    }
+                    logger.log(Level.SEVERE, "Unexpected error sending " + batch.size() + " documents to Solr", ex);
+                } finally {
+                    //counted before marked done, so that a commit waiting for them counts them as committed
+                    uncommittedDocs.addAndGet(batch.size());
+                    uncommittedContentChars.addAndGet(batchChars);
+                    unsearchableDocs.addAndGet(batch.size());
+                    for (UpdateDocument done : batch) {
+                        updateDone(done);
+                    }
+                    batch.clear();
+                }
+            }
         }
 
+        private void sendBatch() {
+            final List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>(batch.size());
+            for (UpdateDocument updateDoc : batch) {
+                docs.add(updateDoc.doc);
+            }
+            try {
+                solrServer.addDocuments(docs);
+            } catch (NoOpenCoreException ex) {
+                for (SolrInputDocument doc : docs) {
+                    documentFailed(doc);
+                }
+                logger.log(Level.WARNING, "No open core, could not index " + docs.size() + " documents", ex);
+            } catch (KeywordSearchModuleException ex) {
+                if (docs.size() == 1) {
+                    documentFailed(docs.get(0));
+                    logger.log(Level.WARNING, "Error ingesting document: " + docs.get(0).getFieldValue(Server.Schema.ID.toString()), ex);
+                    return;
+                }
+                //retry the documents one by one, so that a bad document does not fail the batch
+                for (SolrInputDocument doc : docs) {
+                    try {
+                        solrServer.addDocuments(Collections.singletonList(doc));
+                    } catch (NoOpenCoreException | KeywordSearchModuleException docEx) {
+                        documentFailed(doc);
+                        logger.log(Level.WARNING, "Error ingesting document: " + doc.getFieldValue(Server.Schema.ID.toString()), docEx);
+                    }
+                }
+            }
+        }
+    }
 
+    /**
+     * Record a document Solr failed to index, and its file, reported at the
+     * next commit
+     *
+     * @param doc document not indexed
+     */
+    private void documentFailed(SolrInputDocument doc) {
+        failedDocs.incrementAndGet();
+        final String docId = String.valueOf(doc.getFieldValue(Server.Schema.ID.toString()));
+        final int sep = docId.indexOf(Server.ID_CHUNK_SEP);
+        try {
+            failedFileIds.add(Long.parseLong(sep < 0 ? docId : docId.substring(0, sep)));
+        } catch (NumberFormatException ex) {
+            logger.log(Level.WARNING, "Unexpected id of document not indexed: " + docId);
+        }
     }
 
     /**
@@ -363,14 +655,22 @@ public class Ingester {
         try {
             f.get(getTimeout(size), TimeUnit.SECONDS);
         } catch (TimeoutException te) {
-            logger.log(Level.WARNING, "Solr timeout encountered, trying to restart Solr");
-            //restart may be needed to recover from some error conditions
-            hardSolrRestart();
+            if (solrServer.isEmbedded()) {
+                //the request is still running in this process, a restart would close the core under it
+                logger.log(Level.WARNING, "Embedded Solr timeout encountered");
+            } else {
+                logger.log(Level.WARNING, "Solr timeout encountered, trying to restart Solr");
+                //restart may be needed to recover from some error conditions
+                hardSolrRestart();
+            }
             throw new IngesterException("Solr index request time out for id: " + fields.get("id") + ", name: " + fields.get("file_name"));
         } catch (Exception e) {
             throw new IngesterException("Problem posting content to Solr, id: " + fields.get("id") + ", name: " + fields.get("file_name"), e);
         }
         uncommitedIngests = true;
+        uncommittedDocs.incrementAndGet();
+        uncommittedContentChars.addAndGet(size);
+        unsearchableDocs.incrementAndGet();
     }
 
     /**
@@ -461,21 +761,148 @@ public class Ingester {
         }
     }
 
+    /**
+     * Start committing the index automatically while documents are indexed,
+     * e.g. when an ingest starts. Every hard commit, automatic or not, is
+     * reported to the ingest as the commit of the files processed by the
+     * module so far, except for the files Solr failed to index, which are
+     * reported to the module.
+     *
+     * @param module ingest module indexing the files
+     */
+    void startAutoCommit(KeywordSearchIngestModule module) {
+        resultsModule = module;
+        commitPolicy.reset();
+        autoCommit = true;
+    }
+
+    /**
+     * Stop committing the index automatically, e.g. when an ingest ends.
+     * commit() should be called to commit the remaining documents.
+     */
+    void stopAutoCommit() {
+        autoCommit = false;
+    }
+
+    /**
+     * Run by the commit thread: commit if the policy says so
+     */
+    private void checkAutoCommit() {
+        if (!autoCommit) {
+            return;
+        }
+        if (commitPolicy.isHardCommitDue(uncommittedDocs.get(), uncommittedContentChars.get())) {
+            logger.log(Level.INFO, "Commiting index, uncommitted documents: " + uncommittedDocs.get()
+                    + ", content chars: " + uncommittedContentChars.get());
+            commit();
+            //signal a potential change in number of indexed files
+            try {
+                final int numIndexedFiles = solrServer.queryNumIndexedFiles();
+                KeywordSearch.fireNumIndexedFilesChange(null, new Integer(numIndexedFiles));
+            } catch (NoOpenCoreException ex) {
+                logger.log(Level.WARNING, "Error executing Solr query to check number of indexed files: ", ex);
+            } catch (KeywordSearchModuleException ex) {
+                logger.log(Level.WARNING, "Error executing Solr query to check number of indexed files: ", ex);
+            }
+        } else if (commitPolicy.isSoftCommitDue(unsearchableDocs.get())) {
+            softCommit();
+        }
+    }
+
     /**
      * Tells Solr to commit (necessary before ingested files will appear in
-     * searches)
+     * searches). Flushes the index to disk, blocks until done.
      */
     void commit() {
-        try {
-            solrServer.commit();
-            uncommitedIngests = false;
-        } catch (NoOpenCoreException ex) {
-            logger.log(Level.WARNING, "Error commiting index", ex);
-        } catch (SolrServerException ex) {
-            logger.log(Level.WARNING, "Error commiting index", ex);
+        synchronized (commitLock) {
+            //the files processed so far have queued their documents already
+            final KeywordSearchIngestModule module = resultsModule;
+            final long commitPoint = module != null ? IngestServices.getDefault().getResultsCommitPoint() : 0;
+            //the documents queued so far need to be sent to be committed
+            final long generation = waitForQueuedDocuments();
+            final int failed = failedDocs.getAndSet(0);
+            final List<Long> failedFiles = new ArrayList<Long>(failedFileIds);
+            failedFileIds.removeAll(failedFiles);
+            if (failed > 0) {
+                logger.log(Level.WARNING, "Solr could not index " + failed + " documents of " + failedFiles.size()
+                        + " files since the last commit");
+            }
+            if (module != null && !failedFiles.isEmpty()) {
+                //not recorded as completed by this commit or the next ones, indexed again on resume
+                IngestServices.getDefault().resultsFailed(module, failedFiles);
+                module.filesNotIndexed(failedFiles);
+            }
+            final long docs = uncommittedDocs.getAndSet(0);
+            final long contentChars = uncommittedContentChars.getAndSet(0);
+            final long unsearchable = unsearchableDocs.getAndSet(0);
+            final long startTime = System.currentTimeMillis();
+            try {
+                solrServer.commit();
+                final long latency = System.currentTimeMillis() - startTime;
+                commitPolicy.hardCommitDone(startTime, latency);
+                logger.log(Level.INFO, "Index committed, documents: " + docs + ", latency (ms): " + latency);
+                uncommitedIngests = false;
+                setCommittedGeneration(generation);
+                if (module != null) {
+                    IngestServices.getDefault().resultsCommitted(module, commitPoint);
+                }
+            } catch (NoOpenCoreException ex) {
+                logger.log(Level.WARNING, "Error commiting index", ex);
+                restoreUncommitted(docs, contentChars, unsearchable);
+            } catch (SolrServerException ex) {
+                logger.log(Level.WARNING, "Error commiting index", ex);
+                restoreUncommitted(docs, contentChars, unsearchable);
+            }
+        }
+    }
+
+    /**
+     * Make the documents indexed so far searchable (near real time), without
+     * flushing the index to disk. Blocks until done.
+     */
+    void softCommit() {
+        synchronized (commitLock) {
+            final long generation = waitForQueuedDocuments();
+            final long unsearchable = unsearchableDocs.getAndSet(0);
+            if (unsearchable == 0) {
+                //nothing sent since the last commit, the documents waited for are already searchable
+                setCommittedGeneration(generation);
+                return;
+            }
+            final long startTime = System.currentTimeMillis();
+            try {
+                solrServer.softCommit();
+                commitPolicy.softCommitDone(startTime, System.currentTimeMillis() - startTime);
+                setCommittedGeneration(generation);
+            } catch (NoOpenCoreException ex) {
+                logger.log(Level.WARNING, "Error soft commiting index", ex);
+                restoreUncommitted(0, 0, unsearchable);
+            } catch (SolrServerException ex) {
+                logger.log(Level.WARNING, "Error soft commiting index", ex);
+                restoreUncommitted(0, 0, unsearchable);
+            }
         }
     }
 
+    private void setCommittedGeneration(long generation) {
+        synchronized (pendingDocs) {
+            if (generation > committedGeneration) {
+                committedGeneration = generation;
+                //newly searchable documents may change the cached hits
+                HighlightCache.getDefault().clear();
+            }
+        }
+    }
+
+    /**
+     * Count the documents of a failed commit as not committed again
+     */
+    private void restoreUncommitted(long docs, long contentChars, long unsearchable) {
+        uncommittedDocs.addAndGet(docs);
+        uncommittedContentChars.addAndGet(contentChars);
+        unsearchableDocs.addAndGet(unsearchable);
+    }
+
     /**
      * Helper to set document fields
      *
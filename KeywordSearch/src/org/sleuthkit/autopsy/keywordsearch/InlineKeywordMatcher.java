@@ -0,0 +1,603 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.keywordsearch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import org.openide.modules.InstalledFileLocator;
+import org.sleuthkit.autopsy.coreutils.Logger;
+
+/**
+ * Matches literal keywords in the text of the chunks as they are indexed, so
+ * that the hits can be reported without querying Solr.
+ *
+ * Only the keywords that the index analyzes as plain words are matched: words
+ * of letters and digits separated by whitespace, not stop words and without
+ * synonyms. The text is split into words the way the index tokenizer splits
+ * it: case is ignored, a keyword matches whole tokens only, and the
+ * punctuation that joins words into a single token (e.g. "john.smith",
+ * "1,000", "foo_bar") is part of the token. The ideographic and south-east
+ * Asian scripts, which the tokenizer splits differently, are not matched.
+ * The normalized keywords are matched with an Aho-Corasick automaton, in a
+ * single pass over the text.
+ *
+ * The automaton is only run on text that has a word equal to the first word of
+ * a keyword. This is checked first with a Bloom filter of the first words,
+ * which is small enough to stay in the CPU cache even for thousands of
+ * keywords, so that most chunks are rejected at the cost of a hash per word.
+ *
+ * Immutable and thread-safe, shared by the indexing threads.
+ */
+class InlineKeywordMatcher {
+
+    private static final Logger logger = Logger.getLogger(InlineKeywordMatcher.class.getName());
+    //index analyzer files with the words that are not indexed as written
+    private static final String[] ANALYZER_WORD_FILES = {"solr/solr/conf/stopwords.txt", "solr/solr/conf/synonyms.txt"};
+    private static volatile Set<String> analyzedWords;
+    private static final int BLOOM_BITS_PER_KEYWORD = 16;
+    private static final int BLOOM_HASHES = 3;
+    private static final int MIN_BLOOM_BITS = 1024;
+    //context chars on each side of the hit in the snippet
+    private static final int SNIPPET_CONTEXT_CHARS = LuceneQuery.SNIPPET_LENGTH / 2;
+    //hit delimiter of the snippets, the same as in the Solr snippets
+    private static final char SNIPPET_HIT_DELIM = '\u00AB';
+    private final Map<Keyword, KeywordSearchListsAbstract.KeywordSearchList> keywordToList;
+    private final Keyword[] keywords;
+    //normalized length of the keywords
+    private final int[] keywordLengths;
+    //next keyword with the same normalized form, or -1
+    private final int[] nextSameKeyword;
+    private final int maxKeywordLength;
+    private final long[] bloom;
+    private final int bloomMask;
+    //automaton, by state: sorted transition chars and the next states,
+    //failure link, first keyword ending at the state (or -1),
+    //next state on the failure chain with a keyword ending (or -1)
+    private final char[][] labels;
+    private final int[][] next;
+    private final int[] fail;
+    private final int[] output;
+    private final int[] outputLink;
+
+    /**
+     * Build the matcher of the literal keywords
+     *
+     * @param keywordToList the literal keywords to match, with the list they
+     * are reported in. Keywords that are not plain words cannot be matched
+     * inline and are ignored.
+     * @param analyzedWords lower case stop words and synonyms of the index
+     * analyzer, keywords with these words are ignored
+     */
+    InlineKeywordMatcher(Map<Keyword, KeywordSearchListsAbstract.KeywordSearchList> keywordToList, Set<String> analyzedWords) {
+        final List<Keyword> matchedKeywords = new ArrayList<Keyword>();
+        final List<String> normalized = new ArrayList<String>();
+        for (Keyword keyword : keywordToList.keySet()) {
+            if (keyword.isLiteral() && isPlainKeyword(keyword.getQuery(), analyzedWords)) {
+                matchedKeywords.add(keyword);
+                normalized.add(normalize(keyword.getQuery()));
+            }
+        }
+
+        final Map<Keyword, KeywordSearchListsAbstract.KeywordSearchList> matchedToList =
+                new HashMap<Keyword, KeywordSearchListsAbstract.KeywordSearchList>();
+        for (Keyword keyword : matchedKeywords) {
+            matchedToList.put(keyword, keywordToList.get(keyword));
+        }
+        this.keywordToList = Collections.unmodifiableMap(matchedToList);
+
+        final int numKeywords = matchedKeywords.size();
+        keywords = matchedKeywords.toArray(new Keyword[numKeywords]);
+        keywordLengths = new int[numKeywords];
+        nextSameKeyword = new int[numKeywords];
+
+        //Bloom filter of the first words, power of 2 bits
+        int bloomBits = MIN_BLOOM_BITS;
+        while (bloomBits < numKeywords * BLOOM_BITS_PER_KEYWORD) {
+            bloomBits <<= 1;
+        }
+        bloom = new long[bloomBits / 64];
+        bloomMask = bloomBits - 1;
+
+        //trie of the normalized keywords
+        final List<TreeMap<Character, Integer>> children = new ArrayList<TreeMap<Character, Integer>>();
+        final List<Integer> outputs = new ArrayList<Integer>();
+        children.add(new TreeMap<Character, Integer>());
+        outputs.add(-1);
+        int maxLength = 0;
+        for (int k = 0; k < numKeywords; ++k) {
+            final String norm = normalized.get(k);
+            keywordLengths[k] = norm.length();
+            maxLength = Math.max(maxLength, norm.length());
+
+            final int firstWordEnd = norm.indexOf(' ');
+            addToBloom(wordHash(norm, 0, firstWordEnd < 0 ? norm.length() : firstWordEnd));
+
+            int state = 0;
+            for (int i = 0; i < norm.length(); ++i) {
+                final Character c = norm.charAt(i);
+                Integer child = children.get(state).get(c);
+                if (child == null) {
+                    child = children.size();
+                    children.add(new TreeMap<Character, Integer>());
+                    outputs.add(-1);
+                    children.get(state).put(c, child);
+                }
+                state = child;
+            }
+            nextSameKeyword[k] = outputs.get(state);
+            outputs.set(state, k);
+        }
+        maxKeywordLength = maxLength;
+
+        final int numStates = children.size();
+        labels = new char[numStates][];
+        next = new int[numStates][];
+        output = new int[numStates];
+        for (int s = 0; s < numStates; ++s) {
+            final TreeMap<Character, Integer> stateChildren = children.get(s);
+            labels[s] = new char[stateChildren.size()];
+            next[s] = new int[stateChildren.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> child : stateChildren.entrySet()) {
+                labels[s][i] = child.getKey();
+                next[s][i] = child.getValue();
+                ++i;
+            }
+            output[s] = outputs.get(s);
+        }
+
+        //failure and output links, breadth first
+        fail = new int[numStates];
+        outputLink = new int[numStates];
+        outputLink[0] = -1;
+        final Queue<Integer> queue = new ArrayDeque<Integer>();
+        queue.add(0);
+        while (!queue.isEmpty()) {
+            final int s = queue.poll();
+            for (int i = 0; i < labels[s].length; ++i) {
+                final char c = labels[s][i];
+                final int t = next[s][i];
+                int f = fail[s];
+                while (f != 0 && child(f, c) < 0) {
+                    f = fail[f];
+                }
+                final int g = child(f, c);
+                fail[t] = (g >= 0 && g != t) ? g : 0;
+                outputLink[t] = output[fail[t]] >= 0 ? fail[t] : outputLink[fail[t]];
+                queue.add(t);
+            }
+        }
+    }
+
+    /**
+     * @return true if there are no keywords to match
+     */
+    boolean isEmpty() {
+        return keywords.length == 0;
+    }
+
+    /**
+     * Check if the keyword is matched inline
+     *
+     * @param keyword the keyword
+     * @return true if the hits of the keyword are found by this matcher
+     */
+    boolean contains(Keyword keyword) {
+        return keywordToList.containsKey(keyword);
+    }
+
+    /**
+     * @return the keywords matched inline
+     */
+    Set<Keyword> getKeywords() {
+        return keywordToList.keySet();
+    }
+
+    /**
+     * @param keyword a keyword matched inline
+     * @return the list the hits of the keyword are reported in
+     */
+    KeywordSearchListsAbstract.KeywordSearchList getList(Keyword keyword) {
+        return keywordToList.get(keyword);
+    }
+
+    /**
+     * Find the keywords in the text
+     *
+     * @param text the text, e.g. of a chunk
+     * @return the keywords found, with the snippet of their first hit, in
+     * the order found
+     */
+    Map<Keyword, String> match(CharSequence text) {
+        if (keywords.length == 0 || !mayMatch(text)) {
+            return Collections.<Keyword, String>emptyMap();
+        }
+
+        final Map<Keyword, String> hits = new LinkedHashMap<Keyword, String>();
+        final int len = text.length();
+        //offsets in the text of the last normalized chars
+        final int[] offsets = new int[maxKeywordLength];
+        int normalizedLen = 0;
+        boolean lastSpace = true;
+        int state = 0;
+        for (int i = 0; i < len; ++i) {
+            final char c = text.charAt(i);
+            final char n;
+            if (isWordChar(c)) {
+                n = Character.toLowerCase(c);
+                lastSpace = false;
+            } else if (isTokenChar(text, i)) {
+                //part of the token, but never of a keyword
+                n = c;
+                lastSpace = false;
+            } else if (lastSpace) {
+                continue;
+            } else {
+                n = ' ';
+                lastSpace = true;
+            }
+            offsets[normalizedLen % maxKeywordLength] = i;
+            ++normalizedLen;
+            state = step(state, n);
+
+            for (int s = output[state] >= 0 ? state : outputLink[state]; s >= 0; s = outputLink[s]) {
+                for (int k = output[s]; k >= 0; k = nextSameKeyword[k]) {
+                    if (hits.containsKey(keywords[k])) {
+                        continue;
+                    }
+                    final int start = offsets[(normalizedLen - keywordLengths[k]) % maxKeywordLength];
+                    //whole tokens only
+                    if ((start > 0 && isTokenChar(text, start - 1))
+                            || (i + 1 < len && isTokenChar(text, i + 1))) {
+                        continue;
+                    }
+                    hits.put(keywords[k], getSnippet(text, start, i + 1));
+                }
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Check with the Bloom filter if a word of the text may be the first word
+     * of a keyword. No false negatives.
+     *
+     * @param text the text
+     * @return false if no keyword can match the text
+     */
+    private boolean mayMatch(CharSequence text) {
+        final int len = text.length();
+        int hash = 0;
+        boolean inWord = false;
+        for (int i = 0; i <= len; ++i) {
+            final char c = i < len ? text.charAt(i) : ' ';
+            if (isWordChar(c)) {
+                hash = 31 * hash + Character.toLowerCase(c);
+                inWord = true;
+            } else if (inWord) {
+                if (isInBloom(hash)) {
+                    return true;
+                }
+                hash = 0;
+                inWord = false;
+            }
+        }
+        return false;
+    }
+
+    private int child(int state, char c) {
+        final int i = Arrays.binarySearch(labels[state], c);
+        return i >= 0 ? next[state][i] : -1;
+    }
+
+    private int step(int state, char c) {
+        while (true) {
+            final int n = child(state, c);
+            if (n >= 0) {
+                return n;
+            }
+            if (state == 0) {
+                return 0;
+            }
+            state = fail[state];
+        }
+    }
+
+    private void addToBloom(int hash) {
+        final int hash2 = bloomHash2(hash);
+        for (int i = 0; i < BLOOM_HASHES; ++i) {
+            final int bit = (hash + i * hash2) & bloomMask;
+            bloom[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private boolean isInBloom(int hash) {
+        final int hash2 = bloomHash2(hash);
+        for (int i = 0; i < BLOOM_HASHES; ++i) {
+            final int bit = (hash + i * hash2) & bloomMask;
+            if ((bloom[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Second hash of the double hashing of the Bloom filter, odd
+     */
+    private static int bloomHash2(int hash) {
+        final int h = hash * 0x9E3779B9;
+        return (h ^ (h >>> 16)) | 1;
+    }
+
+    /**
+     * Hash of a normalized word, the same as computed by mayMatch()
+     */
+    private static int wordHash(String normalized, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; ++i) {
+            hash = 31 * hash + normalized.charAt(i);
+        }
+        return hash;
+    }
+
+    /**
+     * Check if a keyword is analyzed by the index as plain words: words of
+     * letters and digits separated by whitespace, none of them a stop word or
+     * a synonym
+     *
+     * @param keyword the keyword
+     * @param analyzedWords lower case stop words and synonyms
+     * @return true if the hits of the keyword can be found inline
+     */
+    static boolean isPlainKeyword(String keyword, Set<String> analyzedWords) {
+        boolean hasWord = false;
+        int wordStart = -1;
+        for (int i = 0; i <= keyword.length(); ++i) {
+            final char c = i < keyword.length() ? keyword.charAt(i) : ' ';
+            if (Character.isWhitespace(c)) {
+                if (wordStart >= 0) {
+                    if (analyzedWords.contains(keyword.substring(wordStart, i).toLowerCase())) {
+                        return false;
+                    }
+                    hasWord = true;
+                    wordStart = -1;
+                }
+            } else if (isWordChar(c)) {
+                if (wordStart < 0) {
+                    wordStart = i;
+                }
+            } else {
+                return false;
+            }
+        }
+        return hasWord;
+    }
+
+    /**
+     * Check if a char is a letter or digit of a script tokenized into words
+     * of consecutive letters and digits
+     */
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) && (c < '\u0E00' || !isSplitScript(c));
+    }
+
+    /**
+     * Check if a letter is of a script the tokenizer splits into single chars
+     * or by dictionary, which are not matched inline
+     */
+    private static boolean isSplitScript(char c) {
+        switch (Character.UnicodeScript.of(c)) {
+            case HAN:
+            case HIRAGANA:
+            case KATAKANA:
+            case THAI:
+            case LAO:
+            case KHMER:
+            case MYANMAR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Check if the char at the offset is part of a token of the index, with
+     * the word break rules of the tokenizer: letters and digits, the marks,
+     * format chars and connectors attached to them, and the punctuation
+     * joining letters (e.g. '.', ':', '\'') or digits (e.g. '.', ',')
+     */
+    private static boolean isTokenChar(CharSequence text, int i) {
+        final char c = text.charAt(i);
+        if (isWordChar(c)) {
+            return true;
+        }
+        switch (Character.getType(c)) {
+            case Character.NON_SPACING_MARK:
+            case Character.ENCLOSING_MARK:
+            case Character.COMBINING_SPACING_MARK:
+            case Character.FORMAT:
+            case Character.CONNECTOR_PUNCTUATION:
+            case Character.SURROGATE:
+                return true;
+            default:
+                break;
+        }
+        if (i == 0 || i + 1 >= text.length()) {
+            return false;
+        }
+        final char prev = text.charAt(i - 1);
+        final char next = text.charAt(i + 1);
+        final boolean letters = Character.isLetter(prev) && Character.isLetter(next);
+        final boolean digits = Character.isDigit(prev) && Character.isDigit(next);
+        switch (c) {
+            //MidNumLet
+            case '.':
+            case '\'':
+            case '\u2018':
+            case '\u2019':
+            case '\u2024':
+            case '\uFE52':
+            case '\uFF07':
+            case '\uFF0E':
+                return letters || digits;
+            //MidLetter
+            case ':':
+            case '\u00B7':
+            case '\u0387':
+            case '\u05F4':
+            case '\u2027':
+            case '\uFE13':
+            case '\uFE55':
+            case '\uFF1A':
+                return letters;
+            //MidNum
+            case ',':
+            case ';':
+            case '\u037E':
+            case '\u0589':
+            case '\u060C':
+            case '\u060D':
+            case '\u066C':
+            case '\u07F8':
+            case '\u2044':
+            case '\uFE10':
+            case '\uFE14':
+            case '\uFE50':
+            case '\uFE54':
+            case '\uFF0C':
+            case '\uFF1B':
+                return digits;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Get the words of the index analyzer files that are not indexed as
+     * written: the stop words, removed from the index, and the synonyms,
+     * expanded in the queries. Loaded once.
+     *
+     * @return lower case words of the stop words and synonyms files
+     */
+    static Set<String> getAnalyzedWords() {
+        if (analyzedWords == null) {
+            final Set<String> words = new HashSet<String>();
+            for (String path : ANALYZER_WORD_FILES) {
+                final File file = InstalledFileLocator.getDefault().locate(path, InlineKeywordMatcher.class.getPackage().getName(), false);
+                if (file == null) {
+                    logger.log(Level.WARNING, "Index analyzer file not found: " + path);
+                    continue;
+                }
+                loadWords(file, words);
+            }
+            analyzedWords = Collections.unmodifiableSet(words);
+        }
+        return analyzedWords;
+    }
+
+    private static void loadWords(File file, Set<String> words) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#")) {
+                    continue;
+                }
+                //every word of the line, whatever the separators
+                int wordStart = -1;
+                for (int i = 0; i <= line.length(); ++i) {
+                    if (i < line.length() && Character.isLetterOrDigit(line.charAt(i))) {
+                        if (wordStart < 0) {
+                            wordStart = i;
+                        }
+                    } else if (wordStart >= 0) {
+                        words.add(line.substring(wordStart, i).toLowerCase());
+                        wordStart = -1;
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error reading index analyzer file: " + file, ex);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Error closing index analyzer file: " + file, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Normalize a keyword: lower case words separated by a single space
+     *
+     * @param keyword the keyword
+     * @return the normalized keyword, empty if it has no word chars
+     */
+    private static String normalize(String keyword) {
+        final StringBuilder sb = new StringBuilder(keyword.length());
+        boolean lastSpace = true;
+        for (int i = 0; i < keyword.length(); ++i) {
+            final char c = keyword.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(Character.toLowerCase(c));
+                lastSpace = false;
+            } else if (!lastSpace) {
+                sb.append(' ');
+                lastSpace = true;
+            }
+        }
+        if (sb.length() > 0 && lastSpace) {
+            sb.setLength(sb.length() - 1);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the snippet of a hit, with the context around the hit
+     */
+    private static String getSnippet(CharSequence text, int start, int end) {
+        final int from = Math.max(0, start - SNIPPET_CONTEXT_CHARS);
+        final int to = Math.min(text.length(), end + SNIPPET_CONTEXT_CHARS);
+        final StringBuilder sb = new StringBuilder(to - from + 2);
+        sb.append(text, from, start).append(SNIPPET_HIT_DELIM)
+                .append(text, start, end).append(SNIPPET_HIT_DELIM)
+                .append(text, end, to);
+        return sb.toString().trim();
+    }
+}
@@ -47,6 +47,19 @@ public class Installer extends ModuleInstall {
         Case.addPropertyChangeListener(new KeywordSearch.CaseChangeListener());
 
         final Server server = KeywordSearch.getServer();
+        if (server.isEmbedded()) {
+            //no process or ports to check, the embedded server is ready when started
+            try {
+                server.start();
+            } catch (SolrServerNoPortException npe) {
+                logger.log(Level.SEVERE, "Starting embedded server failed. ", npe);
+                reportEmbeddedInitError();
+            } catch (KeywordSearchModuleException e) {
+                logger.log(Level.SEVERE, "Starting embedded server failed. ", e);
+                reportEmbeddedInitError();
+            }
+            return;
+        }
         int retries = SERVER_START_RETRIES;
 
         //TODO revise this logic, handle other server types, move some logic to Server class
@@ -223,6 +236,19 @@ public class Installer extends ModuleInstall {
         });
     }
 
+    private void reportEmbeddedInitError() {
+        WindowManager.getDefault().invokeWhenUIReady(new Runnable() {
+            @Override
+            public void run() {
+                final String msg = "Embedded indexing server could not be started. "
+                        + " Consider setting " + Server.PROPERTIES_EMBEDDED + " to false in "
+                        + Server.PROPERTIES_FILE + " property file in the application user folder"
+                        + " to run the indexing server as a separate process.";
+                MessageNotifyUtil.Notify.error("Error initializing Keyword Search module", msg);
+            }
+        });
+    }
+
     private void reportInitError() {
         WindowManager.getDefault().invokeWhenUIReady(new Runnable() {
             @Override
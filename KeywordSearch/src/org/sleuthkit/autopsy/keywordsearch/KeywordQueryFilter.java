@@ -26,15 +26,18 @@ import java.util.Set;
  *
  * Filter to restrict query only specific files, chunks, images
  * Single filter supports multiple ids per file/chunk/image, that act as OR filter
+ * Index generation filter restricts query to documents indexed within a range of generations
  */
 public class KeywordQueryFilter {
 
     public static enum FilterType {
 
-        FILE, CHUNK, DATA_SOURCE
+        FILE, CHUNK, DATA_SOURCE, INDEX_GENERATION
     };
     private Set<Long>idFilters;
     private FilterType filterType;
+    private long fromGeneration;
+    private long toGeneration;
 
     public KeywordQueryFilter(FilterType filterType, long id) {
         this.filterType = filterType;
@@ -47,6 +50,20 @@ public class KeywordQueryFilter {
         this.idFilters = ids;
     }
 
+    /**
+     * Create filter restricting the query to the documents indexed after the
+     * fromGeneration, up to and including the toGeneration
+     *
+     * @param fromGeneration generation already searched (exclusive)
+     * @param toGeneration last generation to search (inclusive)
+     */
+    public KeywordQueryFilter(long fromGeneration, long toGeneration) {
+        this.filterType = FilterType.INDEX_GENERATION;
+        this.idFilters = new HashSet<Long>();
+        this.fromGeneration = fromGeneration;
+        this.toGeneration = toGeneration;
+    }
+
     public Set<Long> getIdFilters() {
         return idFilters;
     }
@@ -59,6 +76,12 @@ public class KeywordQueryFilter {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         String id = null;
+
+        if (filterType == FilterType.INDEX_GENERATION) {
+            sb.append(Server.Schema.INDEX_GEN.toString());
+            sb.append(":{").append(fromGeneration).append(" TO ").append(toGeneration).append("]");
+            return sb.toString();
+        }
         
         Iterator<Long>it = idFilters.iterator();
         for (int i = 0; it.hasNext(); ++i) {
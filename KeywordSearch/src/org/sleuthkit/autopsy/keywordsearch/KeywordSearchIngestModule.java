@@ -20,18 +20,20 @@ package org.sleuthkit.autopsy.keywordsearch;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.IOException;
-import java.io.InputStream;
 import java.lang.Long;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
@@ -39,7 +41,6 @@ import org.sleuthkit.autopsy.coreutils.Logger;
 import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
 import javax.swing.Timer;
-import org.apache.tika.Tika;
 import org.netbeans.api.progress.aggregate.AggregateProgressFactory;
 import org.netbeans.api.progress.aggregate.AggregateProgressHandle;
 import org.netbeans.api.progress.aggregate.ProgressContributor;
@@ -63,7 +64,6 @@ import org.sleuthkit.datamodel.BlackboardAttribute;
 import org.sleuthkit.datamodel.AbstractFile;
 import org.sleuthkit.datamodel.Content;
 import org.sleuthkit.datamodel.Image;
-import org.sleuthkit.datamodel.ReadContentInputStream;
 import org.sleuthkit.datamodel.SleuthkitCase;
 import org.sleuthkit.datamodel.TskCoreException;
 import org.sleuthkit.datamodel.TskData;
@@ -72,10 +72,13 @@ import org.sleuthkit.datamodel.TskData.FileKnown;
 /**
  * An ingest module on a file level Performs indexing of allocated and Solr
  * supported files, string extraction and indexing of unallocated and not Solr
- * supported files Index commit is done periodically (determined by user set
- * ingest update interval) Runs a periodic keyword / regular expression search
+ * supported files Index commit is done adaptively by the Ingester, as
+ * documents are indexed. Runs a periodic (determined by user set ingest
+ * update interval) keyword / regular expression search
  * on currently configured lists for ingest and writes results to blackboard
- * Reports interesting events to Inbox and to viewers
+ * Literal keywords are matched inline, as the chunks are indexed, and their
+ * hits are written right away. Reports interesting events to Inbox and to
+ * viewers
  *
  * Registered as a module in layer.xml
  */
@@ -103,40 +106,50 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
     private static KeywordSearchIngestModule instance = null;
     private IngestServices services;
     private Ingester ingester = null;
-    private volatile boolean commitIndex = false; //whether to commit index next time
     private volatile boolean runSearcher = false; //whether to run searcher next time
     private List<Keyword> keywords; //keywords to search
     private List<String> keywordLists; // lists currently being searched
     private Map<String, KeywordSearchListsAbstract.KeywordSearchList> keywordToList; //keyword to list name mapping
-    private Timer commitTimer;
     private Timer searchTimer;
     private Indexer indexer;
     private Searcher currentSearcher;
     private Searcher finalSearcher;
     private volatile boolean searcherDone = true; //mark as done, until it's inited
-    private Map<Keyword, List<Long>> currentResults;
+    private Map<Keyword, List<Long>> currentResults; //guarded by itself
+    //literal keywords of the lists, matched inline in the chunks as they are indexed
+    private volatile InlineKeywordMatcher inlineMatcher;
+    //literal keywords whose hits in all the documents indexed in this ingest
+    //are found inline, so that they are not searched with Solr anymore
+    private Set<Keyword> inlineCoveredKeywords;
+    //per keyword query, the latest indexing generation searched in this ingest,
+    //so that a search only needs to cover the documents indexed since
+    private Map<Keyword, Long> searchedGenerations;
     //only search images from current ingest, not images previously ingested/indexed
     //accessed read-only by searcher thread
     private Set<Long> curDataSourceIds;
     private static final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock(true); //use fairness policy
     private static final Lock searcherLock = rwLock.writeLock();
-    private volatile int messageID = 0;
+    private final AtomicInteger messageID = new AtomicInteger();
     private boolean processedFiles;
     private volatile boolean finalSearcherDone = true;  //mark as done, until it's inited
     private final String hashDBModuleName = "Hash Lookup"; //NOTE this needs to match the HashDB module getName()
     private SleuthkitCase caseHandle = null;
-    private static List<AbstractFileExtract> textExtractors;
-    private static AbstractFileStringExtract stringExtractor;
-    private boolean initialized = false;
+    //string extraction settings of the current ingest, used by the extractors of the indexing threads
+    private List<SCRIPT> stringExtractScripts;
+    private Map<String, String> stringExtractOptions;
+    private volatile boolean initialized = false;
     private KeywordSearchConfigurationPanel panel;
-    private Tika tikaFormatDetector;
     
 
     private enum IngestStatus {
 
-        INGESTED, EXTRACTED_INGESTED, SKIPPED, INGESTED_META
+        INGESTED, EXTRACTED_INGESTED, SKIPPED, INGESTED_META, SKIPPED_ERROR_INDEXING
     };
     private Map<Long, IngestStatus> ingestStatus;
+    //files with documents Solr failed to index, reported at the commits after their processing
+    private final Set<Long> notIndexedFiles = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    //file ids listed in the message of files not indexed
+    private static final int MAX_NOT_INDEXED_FILES_LISTED = 20;
 
     //private constructor to ensure singleton instance 
     private KeywordSearchIngestModule() {
@@ -154,6 +167,29 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
         return instance;
     }
 
+    /**
+     * Files are indexed concurrently by the file ingest threads, each thread
+     * extracts text with its own extractors, and the Ingester sends the
+     * chunks to Solr in batches
+     *
+     * @return true
+     */
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    /**
+     * The indexed files are durable once the index is committed, the Ingester
+     * reports its hard commits to the ingest
+     *
+     * @return true
+     */
+    @Override
+    public boolean hasDeferredCommit() {
+        return true;
+    }
+
     @Override
     public ProcessResult process(PipelineContext<IngestModuleAbstractFile> pipelineContext, AbstractFile abstractFile) {
 
@@ -189,8 +225,8 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
             processedFiles = true;
         }
 
-        //check if it's time to commit after previous processing
-        checkRunCommitSearch();
+        //check if it's time to search after previous processing
+        checkRunSearch();
 
         //index the file and content (if the content is supported)
         indexer.indexFile(abstractFile, true);
@@ -210,7 +246,7 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
         }
 
         //logger.log(Level.INFO, "complete()");
-        commitTimer.stop();
+        ingester.stopAutoCommit();
 
         //NOTE, we let the 1 before last searcher complete fully, and enqueue the last one
 
@@ -260,8 +296,8 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
     public void stop() {
         logger.log(Level.INFO, "stop()");
 
-        //stop timer
-        commitTimer.stop();
+        //stop automatic commits
+        ingester.stopAutoCommit();
         //stop currentSearcher
         if (currentSearcher != null) {
             currentSearcher.cancel(true);
@@ -288,26 +324,27 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
      */
     private void cleanup() {
         ingestStatus.clear();
-        currentResults.clear();
+        notIndexedFiles.clear();
+        synchronized (currentResults) {
+            currentResults.clear();
+        }
+        searchedGenerations.clear();
+        inlineMatcher = null;
+        inlineCoveredKeywords.clear();
         curDataSourceIds.clear();
         currentSearcher = null;
         //finalSearcher = null; //do not collect, might be finalizing
 
-        commitTimer.stop();
         searchTimer.stop();
-        commitTimer = null;
         searchTimer = null;
 
-        textExtractors.clear();
-        textExtractors = null;
-        stringExtractor = null;
+        stringExtractScripts = null;
+        stringExtractOptions = null;
 
         keywords.clear();
         keywordLists.clear();
         keywordToList.clear();
 
-        tikaFormatDetector = null;
-
         initialized = false;
     }
 
@@ -339,8 +376,6 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
 
         caseHandle = Case.getCurrentCase().getSleuthkitCase();
 
-        tikaFormatDetector = new Tika();
-
         ingester = Server.getIngester();
 
         final Server server = KeywordSearch.getServer();
@@ -349,7 +384,7 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
                 String msg = "Keyword search server was not properly initialized, cannot run keyword search ingest. ";
                 logger.log(Level.SEVERE, msg);
                 String details = msg + "Please try stopping old java Solr process (if it exists) and restart the application.";
-                services.postMessage(IngestMessage.createErrorMessage(++messageID, instance, msg, details));
+                services.postMessage(IngestMessage.createErrorMessage(messageID.incrementAndGet(), instance, msg, details));
                 return;
 
             }
@@ -358,31 +393,24 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
             //this means Solr is not properly initialized
             String msg = "Keyword search server was not properly initialized, cannot run keyword search ingest. ";
             String details = msg + "Please try stopping old java Solr process (if it exists) and restart the application.";
-            services.postMessage(IngestMessage.createErrorMessage(++messageID, instance, msg, details));
+            services.postMessage(IngestMessage.createErrorMessage(messageID.incrementAndGet(), instance, msg, details));
             return;
         }
 
 
-        //initialize extractors
-        stringExtractor = new AbstractFileStringExtract();
-        stringExtractor.setScripts(KeywordSearchSettings.getStringExtractScripts());
-        stringExtractor.setOptions(KeywordSearchSettings.getStringExtractOptions());
+        //extractors are initialized by the indexing threads, with the settings of this ingest
+        stringExtractScripts = KeywordSearchSettings.getStringExtractScripts();
+        stringExtractOptions = KeywordSearchSettings.getStringExtractOptions();
 
 
         //log the scripts used for debugging
         final StringBuilder sbScripts = new StringBuilder();
-        for (SCRIPT s : KeywordSearchSettings.getStringExtractScripts()) {
+        for (SCRIPT s : stringExtractScripts) {
             sbScripts.append(s.name()).append(" ");
         }
         logger.log(Level.INFO, "Using string extract scripts: " + sbScripts.toString());
 
-        textExtractors = new ArrayList<AbstractFileExtract>();
-        //order matters, more specific extractors first
-        textExtractors.add(new AbstractFileHtmlExtract());
-        textExtractors.add(new AbstractFileTikaTextExtract());
-
-
-        ingestStatus = new HashMap<Long, IngestStatus>();
+        ingestStatus = new ConcurrentHashMap<Long, IngestStatus>();
 
         keywords = new ArrayList<Keyword>();
         keywordLists = new ArrayList<String>();
@@ -390,8 +418,13 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
 
         initKeywords();
 
+        //nothing indexed yet, the literal keywords of the lists are found inline only
+        inlineCoveredKeywords = Collections.newSetFromMap(new ConcurrentHashMap<Keyword, Boolean>());
+        inlineCoveredKeywords.addAll(inlineMatcher.getKeywords());
+        logger.log(Level.INFO, "Matching inline " + inlineCoveredKeywords.size() + " literal keywords");
+
         if (keywords.isEmpty() || keywordLists.isEmpty()) {
-            services.postMessage(IngestMessage.createWarningMessage(++messageID, instance, "No keywords in keyword list.", "Only indexing will be done and and keyword search will be skipped (you can still add keyword lists using the Keyword Lists - Add to Ingest)."));
+            services.postMessage(IngestMessage.createWarningMessage(messageID.incrementAndGet(), instance, "No keywords in keyword list.", "Only indexing will be done and and keyword search will be skipped (you can still add keyword lists using the Keyword Lists - Add to Ingest)."));
         }
 
         processedFiles = false;
@@ -399,21 +432,20 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
         searcherDone = true; //make sure to start the initial currentSearcher
         //keeps track of all results per run not to repeat reporting the same hits
         currentResults = new HashMap<Keyword, List<Long>>();
+        searchedGenerations = new ConcurrentHashMap<Keyword, Long>();
 
-        curDataSourceIds = new HashSet<Long>();
+        curDataSourceIds = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
 
         indexer = new Indexer();
 
         final int updateIntervalMs = KeywordSearchSettings.getUpdateFrequency().getTime() * 60 * 1000;
-        logger.log(Level.INFO, "Using commit interval (ms): " + updateIntervalMs);
         logger.log(Level.INFO, "Using searcher interval (ms): " + updateIntervalMs);
 
-        commitTimer = new Timer(updateIntervalMs, new CommitTimerAction());
         searchTimer = new Timer(updateIntervalMs, new SearchTimerAction());
 
         initialized = true;
 
-        commitTimer.start();
+        ingester.startAutoCommit(this);
         searchTimer.start();
     }
 
@@ -496,7 +528,10 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
         int indexed_meta = 0;
         int indexed_extr = 0;
         int skipped = 0;
-        for (IngestStatus s : ingestStatus.values()) {
+        int skipped_error = 0;
+        for (Map.Entry<Long, IngestStatus> entry : ingestStatus.entrySet()) {
+            //the indexing errors are reported after the status of the file is set
+            final IngestStatus s = notIndexedFiles.contains(entry.getKey()) ? IngestStatus.SKIPPED_ERROR_INDEXING : entry.getValue();
             switch (s) {
                 case INGESTED:
                     ++indexed;
@@ -510,6 +545,9 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
                 case SKIPPED:
                     ++skipped;
                     break;
+                case SKIPPED_ERROR_INDEXING:
+                    ++skipped_error;
+                    break;
                 default:
                     ;
             }
@@ -519,12 +557,36 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
         msg.append("Indexed files: ").append(indexed).append("<br />Indexed strings: ").append(indexed_extr);
         msg.append("<br />Indexed meta-data only: ").append(indexed_meta).append("<br />");
         msg.append("<br />Skipped files: ").append(skipped).append("<br />");
+        msg.append("<br />Files with indexing errors: ").append(skipped_error).append("<br />");
         String indexStats = msg.toString();
         logger.log(Level.INFO, "Keyword Indexing Completed: " + indexStats);
-        services.postMessage(IngestMessage.createMessage(++messageID, MessageType.INFO, this, "Keyword Indexing Results", indexStats));
+        services.postMessage(IngestMessage.createMessage(messageID.incrementAndGet(), MessageType.INFO, this, "Keyword Indexing Results", indexStats));
 
     }
 
+    /**
+     * Report files Solr failed to index, called by the ingester at commit
+     *
+     * @param fileIds ids of the files
+     */
+    void filesNotIndexed(Collection<Long> fileIds) {
+        notIndexedFiles.addAll(fileIds);
+        final StringBuilder details = new StringBuilder();
+        details.append("The content of these files is not searchable, they are indexed again if the ingest is resumed.<br />");
+        details.append("File ids: ");
+        int listed = 0;
+        for (Long fileId : fileIds) {
+            if (listed++ == MAX_NOT_INDEXED_FILES_LISTED) {
+                details.append("...");
+                break;
+            }
+            details.append(fileId).append(" ");
+        }
+        final String msg = "Could not index " + fileIds.size() + " files";
+        logger.log(Level.WARNING, msg + ", file ids: " + fileIds);
+        services.postMessage(IngestMessage.createErrorMessage(messageID.incrementAndGet(), instance, msg, details.toString()));
+    }
+
     /**
      * Helper method to notify listeners on index update
      */
@@ -585,47 +647,226 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
 
         logger.log(Level.INFO, "Set new effective keyword lists: " + sb.toString());
 
+        //literal keywords of the lists to match inline in the chunks indexed from now on
+        final Map<Keyword, KeywordSearchListsAbstract.KeywordSearchList> inlineKeywords =
+                new HashMap<Keyword, KeywordSearchListsAbstract.KeywordSearchList>();
+        for (String listName : keywordLists) {
+            final KeywordSearchListsAbstract.KeywordSearchList list = loader.getList(listName);
+            for (Keyword keyword : list.getKeywords()) {
+                if (keyword.isLiteral() && !inlineKeywords.containsKey(keyword)) {
+                    inlineKeywords.put(keyword, list);
+                }
+            }
+        }
+        inlineMatcher = new InlineKeywordMatcher(inlineKeywords, InlineKeywordMatcher.getAnalyzedWords());
+    }
+
+    /**
+     * Check if the hits of a keyword in this ingest are all found inline
+     *
+     * @param keyword the keyword
+     * @param matcher the current inline matcher
+     * @return true if the keyword does not need to be searched with Solr
+     */
+    private boolean isCoveredInline(Keyword keyword, InlineKeywordMatcher matcher) {
+        return matcher != null && matcher.contains(keyword) && inlineCoveredKeywords.contains(keyword);
     }
 
-    List<String> getKeywordLists() {
-        return keywordLists == null ? new ArrayList<String>() : keywordLists;
+    /**
+     * Match the literal keywords in a chunk that was just indexed, and write
+     * the hits. Called by the indexing threads.
+     *
+     * @param file file of the chunk
+     * @param content encoded text of the chunk
+     * @param contentLength length of the text in bytes
+     * @param charset encoding of the text
+     */
+    void matchChunk(AbstractFile file, byte[] content, int contentLength, Charset charset) {
+        final InlineKeywordMatcher matcher = inlineMatcher;
+        if (initialized == false || matcher == null || matcher.isEmpty()) {
+            return;
+        }
+        writeInlineHits(matcher, file, matcher.match(charset.decode(ByteBuffer.wrap(content, 0, contentLength))));
+    }
+
+    /**
+     * Match the literal keywords in the name of a file, which is indexed with
+     * every document of the file
+     *
+     * @param file the file
+     */
+    private void matchFileName(AbstractFile file) {
+        final InlineKeywordMatcher matcher = inlineMatcher;
+        if (matcher == null || matcher.isEmpty()) {
+            return;
+        }
+        writeInlineHits(matcher, file, matcher.match(file.getName()));
     }
 
     /**
-     * Check if time to commit, if so, run commit. Then run search if search
-     * timer is also set.
+     * Write the inline hits not written yet in this ingest to the blackboard,
+     * posting the inbox messages and the data event
+     *
+     * @param matcher the matcher that found the hits
+     * @param file the file with the hits
+     * @param hits keywords found, with their snippet
      */
-    void checkRunCommitSearch() {
-        if (commitIndex) {
-            logger.log(Level.INFO, "Commiting index");
-            commit();
-            commitIndex = false;
-
-            //after commit, check if time to run searcher
-            //NOTE commit/searcher timings don't need to align
-            //in worst case, we will run search next time after commit timer goes off, or at the end of ingest
-            if (searcherDone && runSearcher) {
-                //start search if previous not running
-                if (keywordLists != null && !keywordLists.isEmpty()) {
-                    currentSearcher = new Searcher(keywordLists);
-                    currentSearcher.execute();//searcher will stop timer and restart timer when done
-                }
+    private void writeInlineHits(InlineKeywordMatcher matcher, AbstractFile file, Map<Keyword, String> hits) {
+        if (hits.isEmpty()) {
+            return;
+        }
+        final Collection<BlackboardArtifact> newArtifacts = new ArrayList<BlackboardArtifact>();
+        for (Map.Entry<Keyword, String> hit : hits.entrySet()) {
+            final Keyword keyword = hit.getKey();
+            if (!addCurrentResult(keyword, file.getId())) {
+                //already written
+                continue;
+            }
+            final KeywordSearchListsAbstract.KeywordSearchList list = matcher.getList(keyword);
+            final KeywordWriteResult written = new LuceneQuery(keyword).writeToBlackBoard(keyword.getQuery(), file, hit.getValue(), list.getName());
+            if (written == null) {
+                logger.log(Level.WARNING, "BB artifact for keyword hit not written, file: " + file + ", hit: " + keyword.toString());
+                continue;
             }
+            newArtifacts.add(written.getArtifact());
+            postHitMessage(true, written, file, list);
+        }
+        if (!newArtifacts.isEmpty()) {
+            services.fireModuleDataEvent(new ModuleDataEvent(MODULE_NAME, ARTIFACT_TYPE.TSK_KEYWORD_HIT, newArtifacts));
         }
     }
 
     /**
-     * CommitTimerAction to run by commitTimer Sets a flag to indicate we are
-     * ready for commit
+     * Record a hit of a keyword in a file, if not recorded yet in this ingest
+     *
+     * @param keyword the keyword
+     * @param fileId id of the file with the hit
+     * @return true if the hit is new
      */
-    private class CommitTimerAction implements ActionListener {
+    private boolean addCurrentResult(Keyword keyword, long fileId) {
+        synchronized (currentResults) {
+            List<Long> fileIds = currentResults.get(keyword);
+            if (fileIds == null) {
+                fileIds = new ArrayList<Long>();
+                currentResults.put(keyword, fileIds);
+            } else if (fileIds.contains(fileId)) {
+                return false;
+            }
+            fileIds.add(fileId);
+            return true;
+        }
+    }
 
-        private final Logger logger = Logger.getLogger(CommitTimerAction.class.getName());
+    /**
+     * Post the inbox message of a keyword hit written to the blackboard, if
+     * the list of the keyword is set to post messages
+     *
+     * @param isLiteral whether the hit is of a literal keyword or a regex
+     * @param written the written hit
+     * @param hitFile the file with the hit
+     * @param list the list of the keyword
+     */
+    private void postHitMessage(boolean isLiteral, KeywordWriteResult written, AbstractFile hitFile,
+            KeywordSearchListsAbstract.KeywordSearchList list) {
+        //generate a data message for each artifact
+        StringBuilder subjectSb = new StringBuilder();
+        StringBuilder detailsSb = new StringBuilder();
+        //final int hitFiles = newResults.size();
+
+        if (!isLiteral) {
+            subjectSb.append("RegExp hit: ");
+        } else {
+            subjectSb.append("Keyword hit: ");
+        }
+        //subjectSb.append("<");
+        String uniqueKey = null;
+        BlackboardAttribute attr = written.getAttribute(BlackboardAttribute.ATTRIBUTE_TYPE.TSK_KEYWORD.getTypeID());
+        if (attr != null) {
+            final String keyword = attr.getValueString();
+            subjectSb.append(keyword);
+            uniqueKey = keyword.toLowerCase();
+        }
 
-        @Override
-        public void actionPerformed(ActionEvent e) {
-            commitIndex = true;
-            logger.log(Level.INFO, "CommitTimer awake");
+        //subjectSb.append(">");
+        //String uniqueKey = queryStr;
+
+        //details
+        detailsSb.append("<table border='0' cellpadding='4' width='280'>");
+        //hit
+        detailsSb.append("<tr>");
+        detailsSb.append("<th>Keyword hit</th>");
+        detailsSb.append("<td>").append(EscapeUtil.escapeHtml(attr.getValueString())).append("</td>");
+        detailsSb.append("</tr>");
+
+        //preview
+        attr = written.getAttribute(BlackboardAttribute.ATTRIBUTE_TYPE.TSK_KEYWORD_PREVIEW.getTypeID());
+        if (attr != null) {
+            detailsSb.append("<tr>");
+            detailsSb.append("<th>Preview</th>");
+            detailsSb.append("<td>").append(EscapeUtil.escapeHtml(attr.getValueString())).append("</td>");
+            detailsSb.append("</tr>");
+
+        }
+
+        //file
+        detailsSb.append("<tr>");
+        detailsSb.append("<th>File</th>");
+        detailsSb.append("<td>").append(hitFile.getParentPath()).append(hitFile.getName()).append("</td>");
+
+        detailsSb.append("</tr>");
+
+
+        //list
+        attr = written.getAttribute(BlackboardAttribute.ATTRIBUTE_TYPE.TSK_SET_NAME.getTypeID());
+        detailsSb.append("<tr>");
+        detailsSb.append("<th>List</th>");
+        detailsSb.append("<td>").append(attr.getValueString()).append("</td>");
+        detailsSb.append("</tr>");
+
+        //regex
+        if (!isLiteral) {
+            attr = written.getAttribute(BlackboardAttribute.ATTRIBUTE_TYPE.TSK_KEYWORD_REGEXP.getTypeID());
+            if (attr != null) {
+                detailsSb.append("<tr>");
+                detailsSb.append("<th>RegEx</th>");
+                detailsSb.append("<td>").append(attr.getValueString()).append("</td>");
+                detailsSb.append("</tr>");
+
+            }
+        }
+        detailsSb.append("</table>");
+
+        //check if should send messages on hits on this list
+        if (list.getIngestMessages()) //post ingest inbox msg
+        {
+            services.postMessage(IngestMessage.createDataMessage(messageID.incrementAndGet(), instance, subjectSb.toString(), detailsSb.toString(), uniqueKey, written.getArtifact()));
+        }
+    }
+
+    List<String> getKeywordLists() {
+        return keywordLists == null ? new ArrayList<String>() : keywordLists;
+    }
+
+    /**
+     * Check if time to search, if so, start the searcher. The index is
+     * committed by the Ingester, the searcher makes the recently indexed
+     * documents searchable before searching.
+     */
+    void checkRunSearch() {
+        if (!runSearcher) {
+            return;
+        }
+        synchronized (this) {
+            //another indexing thread might have started the searcher already
+            if (!runSearcher || !searcherDone) {
+                return;
+            }
+            runSearcher = false;
+            //start search if previous not running
+            if (keywordLists != null && !keywordLists.isEmpty()) {
+                currentSearcher = new Searcher(keywordLists);
+                currentSearcher.execute();//searcher will stop timer and restart timer when done
+            }
         }
     }
 
@@ -646,11 +887,36 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
 
     /**
      * File indexer, processes and indexes known/allocated files,
-     * unknown/unallocated files and directories accordingly
+     * unknown/unallocated files and directories accordingly. Used concurrently
+     * by the file ingest threads, every thread uses its own extractors.
      */
     private class Indexer {
 
         private final Logger logger = Logger.getLogger(Indexer.class.getName());
+        private final ThreadLocal<Extractors> extractors = new ThreadLocal<Extractors>() {
+            @Override
+            protected Extractors initialValue() {
+                return new Extractors();
+            }
+        };
+
+        /**
+         * Text and string extractors of an indexing thread
+         */
+        private class Extractors {
+
+            private final List<AbstractFileExtract> textExtractors = new ArrayList<AbstractFileExtract>();
+            private final AbstractFileStringExtract stringExtractor = new AbstractFileStringExtract();
+
+            Extractors() {
+                stringExtractor.setScripts(stringExtractScripts);
+                stringExtractor.setOptions(stringExtractOptions);
+
+                //order matters, more specific extractors first
+                textExtractors.add(new AbstractFileHtmlExtract());
+                textExtractors.add(new AbstractFileTikaTextExtract());
+            }
+        }
 
         /**
          * Extract text with Tika or other text extraction modules (by
@@ -667,7 +933,7 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
             AbstractFileExtract fileExtract = null;
 
             //go over available text extractors in order, and pick the first one (most specific one)
-            for (AbstractFileExtract fe : textExtractors) {
+            for (AbstractFileExtract fe : extractors.get().textExtractors) {
                 if (fe.isSupported(aFile, detectedFormat)) {
                     fileExtract = fe;
                     break;
@@ -695,7 +961,7 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
          */
         private boolean extractStringsAndIndex(AbstractFile aFile) {
             try {
-                if (stringExtractor.index(aFile)) {
+                if (extractors.get().stringExtractor.index(aFile)) {
                     ingestStatus.put(aFile.getId(), IngestStatus.EXTRACTED_INGESTED);
                     return true;
                 } else {
@@ -720,7 +986,7 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
          * @return true if text extraction is supported
          */
         private boolean isTextExtractSupported(AbstractFile aFile, String detectedFormat) {
-            for (AbstractFileExtract extractor : textExtractors) {
+            for (AbstractFileExtract extractor : extractors.get().textExtractors) {
                 if (extractor.isContentTypeSpecific() == true
                         && extractor.isSupported(aFile, detectedFormat)) {
                     return true;
@@ -744,8 +1010,13 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
             if (aType.equals(TskData.TSK_DB_FILES_TYPE_ENUM.VIRTUAL_DIR)) {
                 //skip indexing of virtual dirs (no content, no real name) - will index children files
                 return;
-            } // unallocated and unused blocks can only have strings extracted from them. 
-            else if ((aType.equals(TskData.TSK_DB_FILES_TYPE_ENUM.UNALLOC_BLOCKS) || aType.equals(TskData.TSK_DB_FILES_TYPE_ENUM.UNUSED_BLOCKS))) {
+            }
+
+            //the name is indexed with every document of the file
+            matchFileName(aFile);
+
+            // unallocated and unused blocks can only have strings extracted from them. 
+            if ((aType.equals(TskData.TSK_DB_FILES_TYPE_ENUM.UNALLOC_BLOCKS) || aType.equals(TskData.TSK_DB_FILES_TYPE_ENUM.UNUSED_BLOCKS))) {
                 extractStringsAndIndex(aFile);
             }
 
@@ -762,25 +1033,8 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
                 return;
             }
 
-            //use Tika to detect the format
-            String detectedFormat = null;
-            InputStream is = null;
-            try {
-                is = new ReadContentInputStream(aFile);
-                detectedFormat = tikaFormatDetector.detect(is, aFile.getName());
-
-            } catch (Exception e) {
-                logger.log(Level.WARNING, "Could not detect format using tika for file: " + aFile, e);
-            } finally {
-                if (is != null) {
-                    try {
-                        is.close();
-                    } catch (IOException ex) {
-                        logger.log(Level.WARNING, "Could not close stream after detecting format using tika for file: "
-                                + aFile, ex);
-                    }
-                }
-            }
+            //format detected from the header by the file type detection stage
+            String detectedFormat = services.getFileHeader(aFile).getMimeType();
             logger.log(Level.INFO, "Detected format: " + aFile.getName() + " " + detectedFormat);
 
             // we skip archive formats that are opened by the archive module. 
@@ -826,7 +1080,8 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
      * Searcher responsible for searching the current index and writing results
      * to blackboard and the inbox. Also, posts results to listeners as Ingest
      * data events. Searches entire index, and keeps track of only new results
-     * to report and save. Runs as a background thread.
+     * to report and save. Literal keywords matched inline since the start of
+     * the ingest are not searched. Runs as a background thread.
      */
     private final class Searcher extends SwingWorker<Object, Void> {
 
@@ -902,6 +1157,28 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
 
                 int keywordsSearched = 0;
 
+                //keywords matched inline by this matcher are matched in the documents
+                //indexed from now on, the documents indexed so far are searched below
+                final InlineKeywordMatcher matcher = inlineMatcher;
+
+                //make the documents indexed so far searchable, off the ingest threads,
+                //only the documents committed up to now are searched
+                ingester.softCommit();
+                final long toGeneration = ingester.getCommittedGeneration();
+
+                //search the literal keywords in batches first, the batch results are used below
+                final Map<Keyword, LuceneBatchQuery> batchQueries;
+                try {
+                    batchQueries = performBatchQueries(toGeneration, matcher);
+                } catch (NoOpenCoreException ex) {
+                    logger.log(Level.WARNING, "Error performing batch keyword queries", ex);
+                    return null;
+                }
+                if (this.isCancelled()) {
+                    logger.log(Level.INFO, "Cancel detected, bailing after batch keyword queries");
+                    return null;
+                }
+
                 //updateKeywords();
 
                 for (Keyword keywordQuery : keywords) {
@@ -912,7 +1189,6 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
 
                     final String queryStr = keywordQuery.getQuery();
                     final KeywordSearchListsAbstract.KeywordSearchList list = keywordToList.get(queryStr);
-                    final String listName = list.getName();
 
                     //new subProgress will be active after the initial query
                     //when we know number of hits to start() with
@@ -921,6 +1197,12 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
                     }
 
 
+                    if (isCoveredInline(keywordQuery, matcher)) {
+                        //hits written as the documents were indexed
+                        ++keywordsSearched;
+                        continue;
+                    }
+
                     KeywordSearchQuery del = null;
 
                     boolean isRegex = !keywordQuery.isLiteral();
@@ -936,10 +1218,34 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
                     final KeywordQueryFilter dataSourceFilter = new KeywordQueryFilter(KeywordQueryFilter.FilterType.DATA_SOURCE, curDataSourceIds);
                     del.addFilter(dataSourceFilter);
 
-                    Map<String, List<ContentHit>> queryResult = null;
+                    //limit search to documents indexed since the keyword was last searched,
+                    //keywords not searched yet in this ingest (e.g. lists added during ingest) search the entire index
+                    final Long fromGeneration = searchedGenerations.get(keywordQuery);
+                    if (fromGeneration != null) {
+                        if (fromGeneration >= toGeneration) {
+                            //nothing committed since the last search
+                            ++keywordsSearched;
+                            continue;
+                        }
+                        del.addFilter(new KeywordQueryFilter(fromGeneration, toGeneration));
+                    }
 
+                    final LuceneBatchQuery batchQuery = batchQueries.get(keywordQuery);
+                    final HitsWriter hitsWriter = new HitsWriter(keywordQuery, del, batchQuery, list, subProgresses[keywordsSearched]);
+                    final boolean completed;
+                    final boolean failed;
                     try {
-                        queryResult = del.performQuery();
+                        if (batchQuery != null) {
+                            completed = hitsWriter.handleHits(batchQuery.getResults(keywordQuery));
+                            failed = false;
+                        } else if (isRegex) {
+                            //hits of the matching terms are written as they are resolved, not held for the whole regex
+                            completed = ((TermComponentQuery) del).performQuery(hitsWriter);
+                            failed = ((TermComponentQuery) del).isFailed();
+                        } else {
+                            completed = hitsWriter.handleHits(del.performQuery());
+                            failed = ((LuceneQuery) del).isFailed();
+                        }
                     } catch (NoOpenCoreException ex) {
                         logger.log(Level.WARNING, "Error performing query: " + keywordQuery.getQuery(), ex);
                         //no reason to continue with next query if recovery failed
@@ -953,164 +1259,28 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
                         logger.log(Level.WARNING, "Error performing query: " + keywordQuery.getQuery(), e);
                         continue;
                     }
+                    if (!completed) {
+                        //cancelled, or core closed while writing the hits
+                        return null;
+                    }
 
-                    //calculate new results but substracting results already obtained in this ingest
-                    Map<Keyword, List<ContentHit>> newResults = filterResults(queryResult, isRegex);
-
-                    if (!newResults.isEmpty()) {
-
-                        //write results to BB
-
-                        //new artifacts created, to report to listeners
-                        Collection<BlackboardArtifact> newArtifacts = new ArrayList<BlackboardArtifact>();
-
-                        //scale progress bar more more granular, per result sub-progress, within per keyword
-                        int totalUnits = newResults.size();
-                        subProgresses[keywordsSearched].start(totalUnits);
-                        int unitProgress = 0;
-                        String queryDisplayStr = keywordQuery.getQuery();
-                        if (queryDisplayStr.length() > 50) {
-                            queryDisplayStr = queryDisplayStr.substring(0, 49) + "...";
-                        }
-                        subProgresses[keywordsSearched].progress(listName + ": " + queryDisplayStr, unitProgress);
-
-
-                        for (final Keyword hitTerm : newResults.keySet()) {
-                            //checking for cancellation between results
-                            if (this.isCancelled()) {
-                                logger.log(Level.INFO, "Cancel detected, bailing before new hit processed for query: " + keywordQuery.getQuery());
-                                return null;
-                            }
-
-                            List<ContentHit> contentHitsAll = newResults.get(hitTerm);
-                            Map<AbstractFile, Integer> contentHitsFlattened = ContentHit.flattenResults(contentHitsAll);
-                            for (final AbstractFile hitFile : contentHitsFlattened.keySet()) {
-                                String snippet = null;
-                                final String snippetQuery = KeywordSearchUtil.escapeLuceneQuery(hitTerm.getQuery());
-                                int chunkId = contentHitsFlattened.get(hitFile);
-                                try {
-                                    snippet = LuceneQuery.querySnippet(snippetQuery, hitFile.getId(), chunkId, isRegex, true);
-                                } catch (NoOpenCoreException e) {
-                                    logger.log(Level.WARNING, "Error querying snippet: " + snippetQuery, e);
-                                    //no reason to continue
-                                    return null;
-                                } catch (Exception e) {
-                                    logger.log(Level.WARNING, "Error querying snippet: " + snippetQuery, e);
-                                    continue;
-                                }
-
-                                KeywordWriteResult written = del.writeToBlackBoard(hitTerm.getQuery(), hitFile, snippet, listName);
-
-                                if (written == null) {
-                                    logger.log(Level.WARNING, "BB artifact for keyword hit not written, file: " + hitFile + ", hit: " + hitTerm.toString());
-                                    continue;
-                                }
-
-                                newArtifacts.add(written.getArtifact());
-
-                                //send notify every 250 results
-                                if (newArtifacts.size() % 250 == 0) {
-                                    services.fireModuleDataEvent(new ModuleDataEvent(MODULE_NAME, ARTIFACT_TYPE.TSK_KEYWORD_HIT, newArtifacts));
-                                }
-
-                                //generate a data message for each artifact
-                                StringBuilder subjectSb = new StringBuilder();
-                                StringBuilder detailsSb = new StringBuilder();
-                                //final int hitFiles = newResults.size();
-
-                                if (!keywordQuery.isLiteral()) {
-                                    subjectSb.append("RegExp hit: ");
-                                } else {
-                                    subjectSb.append("Keyword hit: ");
-                                }
-                                //subjectSb.append("<");
-                                String uniqueKey = null;
-                                BlackboardAttribute attr = written.getAttribute(BlackboardAttribute.ATTRIBUTE_TYPE.TSK_KEYWORD.getTypeID());
-                                if (attr != null) {
-                                    final String keyword = attr.getValueString();
-                                    subjectSb.append(keyword);
-                                    uniqueKey = keyword.toLowerCase();
-                                }
-
-                                //subjectSb.append(">");
-                                //String uniqueKey = queryStr;
-
-                                //details
-                                detailsSb.append("<table border='0' cellpadding='4' width='280'>");
-                                //hit
-                                detailsSb.append("<tr>");
-                                detailsSb.append("<th>Keyword hit</th>");
-                                detailsSb.append("<td>").append(EscapeUtil.escapeHtml(attr.getValueString())).append("</td>");
-                                detailsSb.append("</tr>");
-
-                                //preview
-                                attr = written.getAttribute(BlackboardAttribute.ATTRIBUTE_TYPE.TSK_KEYWORD_PREVIEW.getTypeID());
-                                if (attr != null) {
-                                    detailsSb.append("<tr>");
-                                    detailsSb.append("<th>Preview</th>");
-                                    detailsSb.append("<td>").append(EscapeUtil.escapeHtml(attr.getValueString())).append("</td>");
-                                    detailsSb.append("</tr>");
-
-                                }
-
-                                //file
-                                detailsSb.append("<tr>");
-                                detailsSb.append("<th>File</th>");
-                                detailsSb.append("<td>").append(hitFile.getParentPath()).append(hitFile.getName()).append("</td>");
-
-                                detailsSb.append("</tr>");
-
-
-                                //list
-                                attr = written.getAttribute(BlackboardAttribute.ATTRIBUTE_TYPE.TSK_SET_NAME.getTypeID());
-                                detailsSb.append("<tr>");
-                                detailsSb.append("<th>List</th>");
-                                detailsSb.append("<td>").append(attr.getValueString()).append("</td>");
-                                detailsSb.append("</tr>");
-
-                                //regex
-                                if (!keywordQuery.isLiteral()) {
-                                    attr = written.getAttribute(BlackboardAttribute.ATTRIBUTE_TYPE.TSK_KEYWORD_REGEXP.getTypeID());
-                                    if (attr != null) {
-                                        detailsSb.append("<tr>");
-                                        detailsSb.append("<th>RegEx</th>");
-                                        detailsSb.append("<td>").append(attr.getValueString()).append("</td>");
-                                        detailsSb.append("</tr>");
-
-                                    }
-                                }
-                                detailsSb.append("</table>");
-
-                                //check if should send messages on hits on this list
-                                if (list.getIngestMessages()) //post ingest inbox msg
-                                {
-                                    services.postMessage(IngestMessage.createDataMessage(++messageID, instance, subjectSb.toString(), detailsSb.toString(), uniqueKey, written.getArtifact()));
-                                }
-
-
-                            } //for each file hit
-
-                            ++unitProgress;
-
-                            String hitDisplayStr = hitTerm.getQuery();
-                            if (hitDisplayStr.length() > 50) {
-                                hitDisplayStr = hitDisplayStr.substring(0, 49) + "...";
-                            }
-                            subProgresses[keywordsSearched].progress(listName + ": " + hitDisplayStr, unitProgress);
-                            //subProgresses[keywordsSearched].progress(unitProgress);
-
-
-                        }//for each hit term
+                    //reset the status text before it goes away
+                    subProgresses[keywordsSearched].progress("");
 
+                    if (failed) {
+                        //the next search covers the documents again, the hits written are not duplicated
+                        logger.log(Level.WARNING, "Query failed, the keyword will be searched again: " + keywordQuery.getQuery());
+                        ++keywordsSearched;
+                        continue;
+                    }
 
-                        //update artifact browser
-                        if (!newArtifacts.isEmpty()) {
-                            services.fireModuleDataEvent(new ModuleDataEvent(MODULE_NAME, ARTIFACT_TYPE.TSK_KEYWORD_HIT, newArtifacts));
-                        }
-                    } //if has results
+                    //the next search of the keyword can skip the documents searched
+                    searchedGenerations.put(keywordQuery, toGeneration);
 
-                    //reset the status text before it goes away
-                    subProgresses[keywordsSearched].progress("");
+                    //the documents indexed since the search started are matched inline
+                    if (matcher != null && matcher.contains(keywordQuery)) {
+                        inlineCoveredKeywords.add(keywordQuery);
+                    }
 
                     ++keywordsSearched;
 
@@ -1132,6 +1302,60 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
             return null;
         }
 
+        /**
+         * Search the literal keywords with batch queries, grouped by the
+         * indexing generation they were last searched at
+         *
+         * @param toGeneration last indexing generation to search
+         * @param matcher inline matcher, the keywords covered by it are not
+         * searched
+         * @return batch query with the results, per literal keyword searched.
+         * Keywords not in the map are searched by their own query (batch query
+         * failed, or nothing to search since the last search)
+         * @throws NoOpenCoreException if the core was closed
+         */
+        private Map<Keyword, LuceneBatchQuery> performBatchQueries(long toGeneration, InlineKeywordMatcher matcher) throws NoOpenCoreException {
+            final Map<Long, List<Keyword>> keywordsByGeneration = new HashMap<Long, List<Keyword>>();
+            for (Keyword keyword : keywords) {
+                if (!keyword.isLiteral() || isCoveredInline(keyword, matcher)) {
+                    continue;
+                }
+                final Long fromGeneration = searchedGenerations.get(keyword);
+                if (fromGeneration != null && fromGeneration >= toGeneration) {
+                    continue;
+                }
+                List<Keyword> generationKeywords = keywordsByGeneration.get(fromGeneration);
+                if (generationKeywords == null) {
+                    generationKeywords = new ArrayList<Keyword>();
+                    keywordsByGeneration.put(fromGeneration, generationKeywords);
+                }
+                generationKeywords.add(keyword);
+            }
+
+            final Map<Keyword, LuceneBatchQuery> batchQueries = new HashMap<Keyword, LuceneBatchQuery>();
+            for (Map.Entry<Long, List<Keyword>> entry : keywordsByGeneration.entrySet()) {
+                if (this.isCancelled()) {
+                    break;
+                }
+                final LuceneBatchQuery batchQuery = new LuceneBatchQuery(entry.getValue());
+                batchQuery.addFilter(new KeywordQueryFilter(KeywordQueryFilter.FilterType.DATA_SOURCE, curDataSourceIds));
+                if (entry.getKey() != null) {
+                    batchQuery.addFilter(new KeywordQueryFilter(entry.getKey(), toGeneration));
+                }
+                try {
+                    batchQuery.performQuery();
+                } catch (KeywordSearchModuleException ex) {
+                    //the keywords will be searched one by one
+                    logger.log(Level.WARNING, "Error performing batch query of " + entry.getValue().size() + " keywords", ex);
+                    continue;
+                }
+                for (Keyword keyword : entry.getValue()) {
+                    batchQueries.put(keyword, batchQuery);
+                }
+            }
+            return batchQueries;
+        }
+
         /**
          * Sync-up the updated keywords from the currently used lists in the XML
          */
@@ -1190,37 +1414,167 @@ public final class KeywordSearchIngestModule extends IngestModuleAbstractFile {
             }
         }
 
+        /**
+         * Writes the new hits of a keyword to the blackboard, posting the
+         * inbox messages and data events. Receives the hits of a regex query
+         * a batch of matching terms at a time.
+         */
+        private final class HitsWriter implements TermComponentQuery.HitsHandler {
+
+            private final Keyword keywordQuery;
+            private final KeywordSearchQuery del;
+            private final LuceneBatchQuery batchQuery;
+            private final KeywordSearchListsAbstract.KeywordSearchList list;
+            private final ProgressContributor subProgress;
+            private boolean started = false;
+            private int unitProgress = 0;
+
+            HitsWriter(Keyword keywordQuery, KeywordSearchQuery del, LuceneBatchQuery batchQuery,
+                    KeywordSearchListsAbstract.KeywordSearchList list, ProgressContributor subProgress) {
+                this.keywordQuery = keywordQuery;
+                this.del = del;
+                this.batchQuery = batchQuery;
+                this.list = list;
+                this.subProgress = subProgress;
+            }
+
+            /**
+             * Write the hits not written yet in this ingest
+             *
+             * @param termHits hits of the query, by term
+             * @return false if cancelled or the core was closed, true otherwise
+             */
+            @Override
+            public boolean handleHits(Map<String, List<ContentHit>> termHits) {
+                final boolean isRegex = !keywordQuery.isLiteral();
+                //calculate new results but substracting results already obtained in this ingest
+                Map<Keyword, List<ContentHit>> newResults = filterResults(termHits, isRegex);
+                if (newResults.isEmpty()) {
+                    return !Searcher.this.isCancelled();
+                }
+
+                //write results to BB
+
+                //new artifacts created, to report to listeners
+                Collection<BlackboardArtifact> newArtifacts = new ArrayList<BlackboardArtifact>();
+
+                //scale progress bar more more granular, per result sub-progress, within per keyword
+                if (!started) {
+                    //regex hits come in batches, scale to all the matching terms
+                    int totalUnits = keywordQuery.isLiteral() ? newResults.size() : del.getTerms().size();
+                    subProgress.start(totalUnits);
+                    started = true;
+                }
+                String queryDisplayStr = keywordQuery.getQuery();
+                if (queryDisplayStr.length() > 50) {
+                    queryDisplayStr = queryDisplayStr.substring(0, 49) + "...";
+                }
+                subProgress.progress(list.getName() + ": " + queryDisplayStr, unitProgress);
+
+
+                for (final Keyword hitTerm : newResults.keySet()) {
+                    //checking for cancellation between results
+                    if (Searcher.this.isCancelled()) {
+                        logger.log(Level.INFO, "Cancel detected, bailing before new hit processed for query: " + keywordQuery.getQuery());
+                        return false;
+                    }
+
+                    List<ContentHit> contentHitsAll = newResults.get(hitTerm);
+                    Map<AbstractFile, Integer> contentHitsFlattened = ContentHit.flattenResults(contentHitsAll);
+                    for (final AbstractFile hitFile : contentHitsFlattened.keySet()) {
+                        String snippet = null;
+                        final String snippetQuery = KeywordSearchUtil.escapeLuceneQuery(hitTerm.getQuery());
+                        int chunkId = contentHitsFlattened.get(hitFile);
+                        try {
+                            //batch queries return the snippets with the hits
+                            if (batchQuery != null) {
+                                snippet = batchQuery.getSnippet(keywordQuery, hitFile.getId(), chunkId);
+                            }
+                            if (snippet == null) {
+                                snippet = LuceneQuery.querySnippet(snippetQuery, hitFile.getId(), chunkId, isRegex, true);
+                            }
+                        } catch (NoOpenCoreException e) {
+                            logger.log(Level.WARNING, "Error querying snippet: " + snippetQuery, e);
+                            //no reason to continue
+                            return false;
+                        } catch (Exception e) {
+                            logger.log(Level.WARNING, "Error querying snippet: " + snippetQuery, e);
+                            continue;
+                        }
+
+                        KeywordWriteResult written = del.writeToBlackBoard(hitTerm.getQuery(), hitFile, snippet, list.getName());
+
+                        if (written == null) {
+                            logger.log(Level.WARNING, "BB artifact for keyword hit not written, file: " + hitFile + ", hit: " + hitTerm.toString());
+                            continue;
+                        }
+
+                        newArtifacts.add(written.getArtifact());
+
+                        //send notify every 250 results
+                        if (newArtifacts.size() % 250 == 0) {
+                            services.fireModuleDataEvent(new ModuleDataEvent(MODULE_NAME, ARTIFACT_TYPE.TSK_KEYWORD_HIT, newArtifacts));
+                        }
+
+                        postHitMessage(keywordQuery.isLiteral(), written, hitFile, list);
+
+                    } //for each file hit
+
+                    ++unitProgress;
+
+                    String hitDisplayStr = hitTerm.getQuery();
+                    if (hitDisplayStr.length() > 50) {
+                        hitDisplayStr = hitDisplayStr.substring(0, 49) + "...";
+                    }
+                    subProgress.progress(list.getName() + ": " + hitDisplayStr, unitProgress);
+                    //subProgress.progress(unitProgress);
+
+
+                }//for each hit term
+
+
+                //update artifact browser
+                if (!newArtifacts.isEmpty()) {
+                    services.fireModuleDataEvent(new ModuleDataEvent(MODULE_NAME, ARTIFACT_TYPE.TSK_KEYWORD_HIT, newArtifacts));
+                }
+                return true;
+            }
+        }
+
         //calculate new results but substracting results already obtained in this ingest
         //update currentResults map with the new results
         private Map<Keyword, List<ContentHit>> filterResults(Map<String, List<ContentHit>> queryResult, boolean isRegex) {
             Map<Keyword, List<ContentHit>> newResults = new HashMap<Keyword, List<ContentHit>>();
 
-            for (String termResult : queryResult.keySet()) {
-                List<ContentHit> queryTermResults = queryResult.get(termResult);
+            //inline hits are recorded concurrently by the indexing threads
+            synchronized (currentResults) {
+                for (String termResult : queryResult.keySet()) {
+                    List<ContentHit> queryTermResults = queryResult.get(termResult);
 
-                //translate to list of IDs that we keep track of
-                List<Long> queryTermResultsIDs = new ArrayList<Long>();
-                for (ContentHit ch : queryTermResults) {
-                    queryTermResultsIDs.add(ch.getId());
-                }
+                    //translate to list of IDs that we keep track of
+                    List<Long> queryTermResultsIDs = new ArrayList<Long>();
+                    for (ContentHit ch : queryTermResults) {
+                        queryTermResultsIDs.add(ch.getId());
+                    }
 
-                Keyword termResultK = new Keyword(termResult, !isRegex);
-                List<Long> curTermResults = currentResults.get(termResultK);
-                if (curTermResults == null) {
-                    currentResults.put(termResultK, queryTermResultsIDs);
-                    newResults.put(termResultK, queryTermResults);
-                } else {
-                    //some AbstractFile hits already exist for this keyword
-                    for (ContentHit res : queryTermResults) {
-                        if (!curTermResults.contains(res.getId())) {
-                            //add to new results
-                            List<ContentHit> newResultsFs = newResults.get(termResultK);
-                            if (newResultsFs == null) {
-                                newResultsFs = new ArrayList<ContentHit>();
-                                newResults.put(termResultK, newResultsFs);
+                    Keyword termResultK = new Keyword(termResult, !isRegex);
+                    List<Long> curTermResults = currentResults.get(termResultK);
+                    if (curTermResults == null) {
+                        currentResults.put(termResultK, queryTermResultsIDs);
+                        newResults.put(termResultK, queryTermResults);
+                    } else {
+                        //some AbstractFile hits already exist for this keyword
+                        for (ContentHit res : queryTermResults) {
+                            if (!curTermResults.contains(res.getId())) {
+                                //add to new results
+                                List<ContentHit> newResultsFs = newResults.get(termResultK);
+                                if (newResultsFs == null) {
+                                    newResultsFs = new ArrayList<ContentHit>();
+                                    newResults.put(termResultK, newResultsFs);
+                                }
+                                newResultsFs.add(res);
+                                curTermResults.add(res.getId());
                             }
-                            newResultsFs.add(res);
-                            curTermResults.add(res.getId());
                         }
                     }
                 }
@@ -0,0 +1,252 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.keywordsearch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest.METHOD;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.sleuthkit.autopsy.casemodule.Case;
+import org.sleuthkit.autopsy.coreutils.Logger;
+import org.sleuthkit.datamodel.SleuthkitCase;
+import org.sleuthkit.datamodel.TskException;
+
+/**
+ * Searches many literal keywords with few Solr requests.
+ *
+ * The keywords are OR'ed in batches, and a batch query that has hits is split
+ * in halves restricted to the documents hit, until the hits are resolved to
+ * the single keywords. Keywords without hits, the majority, cost a fraction of
+ * a request. The queries resolving a single keyword also return the
+ * highlighted snippets of the hits, so that no snippet query is needed per
+ * hit.
+ */
+class LuceneBatchQuery {
+
+    private static final Logger logger = Logger.getLogger(LuceneBatchQuery.class.getName());
+    //keywords OR'ed in a query, below the Solr max boolean clauses
+    private static final int MAX_BATCH_KEYWORDS = 256;
+    //above this number of documents hit, the split queries are not restricted to the documents hit
+    private static final int MAX_RESTRICT_DOCS = 512;
+    //rows per request of a query returning highlights
+    private static final int MAX_HIGHLIGHT_RESULTS = 500;
+    private final List<Keyword> keywords;
+    private final List<KeywordQueryFilter> filters = new ArrayList<KeywordQueryFilter>();
+    private final Map<Keyword, List<ContentHit>> results = new HashMap<Keyword, List<ContentHit>>();
+    //snippets of the hits, by keyword and document id
+    private final Map<Keyword, Map<String, String>> snippets = new HashMap<Keyword, Map<String, String>>();
+    private SleuthkitCase sc;
+
+    /**
+     * @param keywords literal keywords to search
+     */
+    LuceneBatchQuery(Collection<Keyword> keywords) {
+        this.keywords = new ArrayList<Keyword>(keywords);
+    }
+
+    /**
+     * Restrict the queries with the filter
+     *
+     * @param filter filter to add
+     */
+    void addFilter(KeywordQueryFilter filter) {
+        filters.add(filter);
+    }
+
+    /**
+     * Search all the keywords
+     *
+     * @return hits of every keyword, keywords without hits are mapped to an
+     * empty list
+     * @throws NoOpenCoreException if the core was closed
+     * @throws KeywordSearchModuleException if a query failed
+     */
+    Map<Keyword, List<ContentHit>> performQuery() throws NoOpenCoreException, KeywordSearchModuleException {
+        try {
+            sc = Case.getCurrentCase().getSleuthkitCase();
+        } catch (IllegalStateException ex) {
+            //no case open, must be just closed
+            throw new NoOpenCoreException();
+        }
+
+        for (Keyword keyword : keywords) {
+            results.put(keyword, new ArrayList<ContentHit>());
+        }
+        for (int i = 0; i < keywords.size(); i += MAX_BATCH_KEYWORDS) {
+            resolve(keywords.subList(i, Math.min(keywords.size(), i + MAX_BATCH_KEYWORDS)), null);
+        }
+        return results;
+    }
+
+    /**
+     * Get the results of a keyword, after performQuery()
+     *
+     * @param keyword the keyword
+     * @return results in the format of KeywordSearchQuery.performQuery(), or
+     * null if the keyword was not searched
+     */
+    Map<String, List<ContentHit>> getResults(Keyword keyword) {
+        final List<ContentHit> hits = results.get(keyword);
+        if (hits == null) {
+            return null;
+        }
+        final Map<String, List<ContentHit>> ret = new HashMap<String, List<ContentHit>>();
+        ret.put(keyword.getQuery(), hits);
+        return ret;
+    }
+
+    /**
+     * Get the snippet of a hit, after performQuery()
+     *
+     * @param keyword keyword hit
+     * @param fileId id of the file hit
+     * @param chunkId chunk of the file hit, 0 if not chunked
+     * @return the snippet, or null if not retrieved
+     */
+    String getSnippet(Keyword keyword, long fileId, int chunkId) {
+        final Map<String, String> keywordSnippets = snippets.get(keyword);
+        if (keywordSnippets == null) {
+            return null;
+        }
+        final String docId = chunkId == 0 ? Long.toString(fileId) : Server.getChunkIdString(fileId, chunkId);
+        return keywordSnippets.get(docId);
+    }
+
+    /**
+     * Resolve the hits of the keywords
+     *
+     * @param batch keywords to resolve
+     * @param docIds documents to restrict the search to, or null
+     */
+    private void resolve(List<Keyword> batch, Set<String> docIds) throws NoOpenCoreException, KeywordSearchModuleException {
+        if (batch.size() == 1) {
+            queryKeyword(batch.get(0), docIds);
+            return;
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        for (Keyword keyword : batch) {
+            if (sb.length() > 0) {
+                sb.append(" OR ");
+            }
+            sb.append(getQueryString(keyword));
+        }
+        final Set<String> hitDocIds = new LinkedHashSet<String>();
+        final long numFound = queryDocIds(sb.toString(), docIds, hitDocIds);
+        if (numFound == 0) {
+            return;
+        }
+
+        final Set<String> restrictDocIds = numFound <= MAX_RESTRICT_DOCS ? hitDocIds : null;
+        final int half = batch.size() / 2;
+        resolve(batch.subList(0, half), restrictDocIds);
+        resolve(batch.subList(half, batch.size()), restrictDocIds);
+    }
+
+    /**
+     * Count the documents matching the query, and get their ids if there are
+     * few enough to restrict the split queries to them. A single request of
+     * MAX_RESTRICT_DOCS + 1 rows.
+     *
+     * @param hitDocIds filled with the ids of the documents hit, if no more
+     * than MAX_RESTRICT_DOCS
+     * @return number of documents hit
+     */
+    private long queryDocIds(String queryStr, Set<String> docIds, Set<String> hitDocIds) throws NoOpenCoreException, KeywordSearchModuleException {
+        final SolrQuery q = createQuery(queryStr, docIds);
+        q.setRows(MAX_RESTRICT_DOCS + 1);
+        final SolrDocumentList resultList = KeywordSearch.getServer().query(q, METHOD.POST).getResults();
+        final long numFound = resultList.getNumFound();
+        if (numFound <= MAX_RESTRICT_DOCS) {
+            for (SolrDocument resultDoc : resultList) {
+                hitDocIds.add((String) resultDoc.getFieldValue(Server.Schema.ID.toString()));
+            }
+        }
+        return numFound;
+    }
+
+    /**
+     * Get the hits of a single keyword, with their snippets
+     */
+    private void queryKeyword(Keyword keyword, Set<String> docIds) throws NoOpenCoreException, KeywordSearchModuleException {
+        final String queryStr = getQueryString(keyword);
+        final SolrQuery q = createQuery(queryStr, docIds);
+        q.setRows(MAX_HIGHLIGHT_RESULTS);
+        LuceneQuery.setSnippetHighlighting(q, LuceneQuery.HIGHLIGHT_FIELD_LITERAL, queryStr);
+
+        final List<ContentHit> hits = results.get(keyword);
+        final Map<String, String> keywordSnippets = new HashMap<String, String>();
+        snippets.put(keyword, keywordSnippets);
+
+        long numFound = 0;
+        for (int start = 0; start == 0 || start < numFound; start += MAX_HIGHLIGHT_RESULTS) {
+            q.setStart(start);
+            final QueryResponse response = KeywordSearch.getServer().query(q, METHOD.POST);
+            final SolrDocumentList resultList = response.getResults();
+            numFound = resultList.getNumFound();
+            for (SolrDocument resultDoc : resultList) {
+                final String resultID = (String) resultDoc.getFieldValue(Server.Schema.ID.toString());
+                try {
+                    hits.add(LuceneQuery.createContentHit(sc, resultID));
+                } catch (TskException ex) {
+                    //something wrong with case/db, the hits of the keyword are incomplete
+                    throw new KeywordSearchModuleException("Could not get the AbstractFile for keyword hit: " + resultID, ex);
+                }
+                keywordSnippets.put(resultID, LuceneQuery.getSnippet(response, resultID, LuceneQuery.HIGHLIGHT_FIELD_LITERAL));
+            }
+        }
+    }
+
+    private SolrQuery createQuery(String queryStr, Set<String> docIds) {
+        final SolrQuery q = new SolrQuery();
+        q.setQuery(queryStr);
+        q.setFields(Server.Schema.ID.toString());
+        for (KeywordQueryFilter filter : filters) {
+            q.addFilterQuery(filter.toString());
+        }
+        if (docIds != null) {
+            final StringBuilder sb = new StringBuilder();
+            for (String docId : docIds) {
+                if (sb.length() > 0) {
+                    sb.append(" ");
+                }
+                sb.append(Server.Schema.ID.toString()).append(":").append(docId);
+            }
+            q.addFilterQuery(sb.toString());
+        }
+        return q;
+    }
+
+    /**
+     * Get the literal query of the keyword, grouped in quotes, as
+     * LuceneQuery does
+     */
+    private static String getQueryString(Keyword keyword) {
+        return KeywordSearchUtil.quoteQuery(KeywordSearchUtil.escapeLuceneQuery(keyword.getQuery()));
+    }
+}
@@ -52,6 +52,8 @@ public class LuceneQuery implements KeywordSearchQuery {
     private final List <KeywordQueryFilter> filters = new ArrayList<KeywordQueryFilter>();
     private String field = null;
     private static final int MAX_RESULTS = 20000;
+    //set if the last query did not get all the hits
+    private volatile boolean failed = false;
     static final int SNIPPET_LENGTH = 50;
     //can use different highlight schema fields for regex and literal search
     static final String HIGHLIGHT_FIELD_LITERAL = Server.Schema.CONTENT.toString();
@@ -113,8 +115,19 @@ public class LuceneQuery implements KeywordSearchQuery {
         return null;
     }
 
+    /**
+     * Check if the last performQuery() failed, the hits it returned may be
+     * incomplete
+     *
+     * @return true if not all the hits were retrieved
+     */
+    boolean isFailed() {
+        return failed;
+    }
+
     @Override
     public Map<String, List<ContentHit>> performQuery() throws NoOpenCoreException {
+        failed = false;
         Map<String, List<ContentHit>> results = new HashMap<String, List<ContentHit>>();
         //in case of single term literal query there is only 1 term
         results.put(query, performLuceneQuery());
@@ -221,43 +234,20 @@ public class LuceneQuery implements KeywordSearchQuery {
                     sc = Case.getCurrentCase().getSleuthkitCase();
                 } catch (IllegalStateException ex) {
                     //no case open, must be just closed
+                    failed = true;
                     return matches;
                 }
 
                 for (SolrDocument resultDoc : resultList) {
                     final String resultID = (String) resultDoc.getFieldValue(Server.Schema.ID.toString());
-
-                    final int sepIndex = resultID.indexOf(Server.ID_CHUNK_SEP);
-
-                    if (sepIndex != -1) {
-                        //file chunk result
-                        final long fileID = Long.parseLong(resultID.substring(0, sepIndex));
-                        final int chunkId = Integer.parseInt(resultID.substring(sepIndex + 1));
-                        //logger.log(Level.INFO, "file id: " + fileID + ", chunkID: " + chunkId);
-
-                        try {
-                            AbstractFile resultAbstractFile = sc.getAbstractFileById(fileID);
-                            matches.add(new ContentHit(resultAbstractFile, chunkId));
-
-                        } catch (TskException ex) {
-                            logger.log(Level.WARNING, "Could not get the AbstractFile for keyword hit, ", ex);
-                            //something wrong with case/db
-                            return matches;
-                        }
-
-                    } else {
-                        final long fileID = Long.parseLong(resultID);
-
-                        try {
-                            AbstractFile resultAbstractFile = sc.getAbstractFileById(fileID);
-                            matches.add(new ContentHit(resultAbstractFile));
-                        } catch (TskException ex) {
-                            logger.log(Level.WARNING, "Could not get the AbstractFile for keyword hit, ", ex);
-                            //something wrong with case/db
-                            return matches;
-                        }
+                    try {
+                        matches.add(createContentHit(sc, resultID));
+                    } catch (TskException ex) {
+                        logger.log(Level.WARNING, "Could not get the AbstractFile for keyword hit, ", ex);
+                        //something wrong with case/db
+                        failed = true;
+                        return matches;
                     }
-
                 }
 
 
@@ -266,12 +256,36 @@ public class LuceneQuery implements KeywordSearchQuery {
                 throw ex;
             } catch (KeywordSearchModuleException ex) {
                 logger.log(Level.WARNING, "Error executing Lucene Solr Query: " + query, ex);
+                failed = true;
+                return matches;
             }
 
         }
         return matches;
     }
 
+    /**
+     * Create a hit from the id of a Solr document
+     * @param sc case to get the hit file from
+     * @param resultID id of the document, of a file or a file chunk
+     * @return the hit
+     * @throws TskException if the file could not be read from the case
+     */
+    static ContentHit createContentHit(SleuthkitCase sc, String resultID) throws TskException {
+        final int sepIndex = resultID.indexOf(Server.ID_CHUNK_SEP);
+
+        if (sepIndex != -1) {
+            //file chunk result
+            final long fileID = Long.parseLong(resultID.substring(0, sepIndex));
+            final int chunkId = Integer.parseInt(resultID.substring(sepIndex + 1));
+            //logger.log(Level.INFO, "file id: " + fileID + ", chunkID: " + chunkId);
+            return new ContentHit(sc.getAbstractFileById(fileID), chunkId);
+        } else {
+            final long fileID = Long.parseLong(resultID);
+            return new ContentHit(sc.getAbstractFileById(fileID));
+        }
+    }
+
     /**
      * return snippet preview context
      * @param query the keyword query for text to highlight. Lucene special cahrs should already be escaped.
@@ -338,6 +352,27 @@ public class LuceneQuery implements KeywordSearchQuery {
         String idQuery = Server.Schema.ID.toString() + ":" + contentIDStr;
         q.setShowDebugInfo(DEBUG); //debug
         q.addFilterQuery(idQuery);
+        setSnippetHighlighting(q, highlightField, queryStr);
+
+        try {
+            QueryResponse response = solrServer.query(q);
+            return getSnippet(response, contentIDStr, highlightField);
+        } catch (NoOpenCoreException ex) {
+            logger.log(Level.WARNING, "Error executing Lucene Solr Query: " + query, ex);
+            throw ex;
+        } catch (KeywordSearchModuleException ex) {
+            logger.log(Level.WARNING, "Error executing Lucene Solr Query: " + query, ex);
+            return "";
+        }
+    }
+
+    /**
+     * Set up the highlighting of the query hits to get snippet previews
+     * @param q query to highlight the hits of
+     * @param highlightField field to highlight
+     * @param queryStr query string
+     */
+    static void setSnippetHighlighting(SolrQuery q, String highlightField, String queryStr) {
         q.addHighlightField(highlightField);
         //q.setHighlightSimplePre("&laquo;"); //original highlighter only
         //q.setHighlightSimplePost("&raquo;");  //original highlighter only
@@ -358,27 +393,30 @@ public class LuceneQuery implements KeywordSearchQuery {
         //docs says makes sense for the original Highlighter only, but not really
         //analyze all content SLOW! consider lowering
         q.setParam("hl.maxAnalyzedChars", Server.HL_ANALYZE_CHARS_UNLIMITED); 
+    }
 
-        try {
-            QueryResponse response = solrServer.query(q);
-            Map<String, Map<String, List<String>>> responseHighlight = response.getHighlighting();
-            Map<String, List<String>> responseHighlightID = responseHighlight.get(contentIDStr);
-            if (responseHighlightID == null) {
-                return "";
-            }
-            List<String> contentHighlights = responseHighlightID.get(highlightField);
-            if (contentHighlights == null) {
-                return "";
-            } else {
-                // extracted content is HTML-escaped, but snippet goes in a plain text field
-                return EscapeUtil.unEscapeHtml(contentHighlights.get(0)).trim();
-            }
-        } catch (NoOpenCoreException ex) {
-            logger.log(Level.WARNING, "Error executing Lucene Solr Query: " + query, ex);
-            throw ex;
-        } catch (KeywordSearchModuleException ex) {
-            logger.log(Level.WARNING, "Error executing Lucene Solr Query: " + query, ex);
+    /**
+     * Get the snippet preview of a document from the highlighting of a response
+     * @param response response of a query set up with setSnippetHighlighting()
+     * @param docId id of the document (file or chunk)
+     * @param highlightField highlighted field
+     * @return the snippet, or empty string if the document has no highlight
+     */
+    static String getSnippet(QueryResponse response, String docId, String highlightField) {
+        Map<String, Map<String, List<String>>> responseHighlight = response.getHighlighting();
+        if (responseHighlight == null) {
             return "";
         }
+        Map<String, List<String>> responseHighlightID = responseHighlight.get(docId);
+        if (responseHighlightID == null) {
+            return "";
+        }
+        List<String> contentHighlights = responseHighlightID.get(highlightField);
+        if (contentHighlights == null) {
+            return "";
+        } else {
+            // extracted content is HTML-escaped, but snippet goes in a plain text field
+            return EscapeUtil.unEscapeHtml(contentHighlights.get(0)).trim();
+        }
     }
 }
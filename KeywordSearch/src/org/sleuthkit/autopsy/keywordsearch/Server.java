@@ -38,6 +38,7 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
@@ -59,8 +60,15 @@ import org.sleuthkit.autopsy.coreutils.ModuleSettings;
 import org.sleuthkit.autopsy.coreutils.PlatformUtil;
 import org.sleuthkit.autopsy.coreutils.Version;
 import org.sleuthkit.datamodel.Content;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.client.solrj.impl.XMLResponseParser;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.CoreDescriptor;
+import org.apache.solr.core.SolrCore;
+import org.xml.sax.SAXException;
+import javax.xml.parsers.ParserConfigurationException;
 
 /**
  * Handles for keeping track of a Solr server and its cores
@@ -129,6 +137,12 @@ public class Server {
                 return "num_chunks";
             }
         },
+        INDEX_GEN {
+            @Override
+            public String toString() {
+                return "index_gen";
+            }
+        },
     };
     public static final String HL_ANALYZE_CHARS_UNLIMITED = "500000"; //max 1MB in a chunk. use -1 for unlimited, but -1 option may not be supported (not documented)
     //max content size we can send to Solr
@@ -140,12 +154,19 @@ public class Server {
     public static final char ID_CHUNK_SEP = '_';
     private String javaPath = "java";
     public static final Charset DEFAULT_INDEXED_TEXT_CHARSET = Charset.forName("UTF-8"); ///< default Charset to index text as
-    private static final int MAX_SOLR_MEM_MB = 512; //TODO set dynamically based on avail. system resources
+    //Solr process heap, sized from the available physical memory within these bounds
+    private static final int MIN_SOLR_MEM_MB = 512;
+    private static final int MAX_SOLR_MEM_MB = 4096;
+    private static final int MAX_SOLR_MEM_MB_32BIT = 1024;
+    //min. application heap to run Solr embedded, otherwise it is run as a separate process
+    private static final int MIN_EMBEDDED_SOLR_MEM_MB = 1024;
+    static final int MAX_SOLR_CONNECTIONS = 8; ///< max concurrent connections to the core, used by the index update threads and queries
     private Process curSolrProcess = null;
     private static Ingester ingester = null;
     static final String PROPERTIES_FILE = KeywordSearchSettings.MODULE_NAME;
     static final String PROPERTIES_CURRENT_SERVER_PORT = "IndexingServerPort";
     static final String PROPERTIES_CURRENT_STOP_PORT = "IndexingServerStopPort";
+    static final String PROPERTIES_EMBEDDED = "IndexingServerEmbedded";
     private static final String KEY = "jjk#09s";
     static final int DEFAULT_SOLR_SERVER_PORT = 23232;
     static final int DEFAULT_SOLR_STOP_PORT = 34343;
@@ -163,6 +184,10 @@ public class Server {
     private ServerAction serverAction;
     private InputStreamPrinterThread errorRedirectThread;
     private String solrUrl;
+    //run Solr in the application process, without the HTTP requests to a Solr process
+    private boolean embedded = false;
+    //the embedded Solr, if started
+    private CoreContainer coreContainer;
 
     /**
      * New instance for the server at the given URL
@@ -179,7 +204,7 @@ public class Server {
         instanceDir = solrFolder.getAbsolutePath() + File.separator + "solr";
         javaPath = PlatformUtil.getJavaPath();
 
-        logger.log(Level.INFO, "Created Server instance");
+        logger.log(Level.INFO, "Created Server instance, embedded: " + embedded);
     }
 
     private void initSettings() {
@@ -206,6 +231,48 @@ public class Server {
             currentSolrStopPort = DEFAULT_SOLR_STOP_PORT;
             ModuleSettings.setConfigSetting(PROPERTIES_FILE, PROPERTIES_CURRENT_STOP_PORT, String.valueOf(currentSolrStopPort));
         }
+
+        if (ModuleSettings.settingExists(PROPERTIES_FILE, PROPERTIES_EMBEDDED)) {
+            embedded = Boolean.parseBoolean(ModuleSettings.getConfigSetting(PROPERTIES_FILE, PROPERTIES_EMBEDDED));
+        } else {
+            ModuleSettings.setConfigSetting(PROPERTIES_FILE, PROPERTIES_EMBEDDED, Boolean.toString(embedded));
+        }
+        if (embedded) {
+            final long maxHeapMb = Runtime.getRuntime().maxMemory() / (1024 * 1024);
+            if (maxHeapMb < MIN_EMBEDDED_SOLR_MEM_MB) {
+                logger.log(Level.WARNING, "Application max. heap of " + maxHeapMb + " MB is too small to run Solr embedded, "
+                        + "at least " + MIN_EMBEDDED_SOLR_MEM_MB + " MB needed, running Solr as a separate process");
+                embedded = false;
+            }
+        }
+    }
+
+    /**
+     * Check if Solr runs embedded in the application process. The embedded
+     * Solr uses no ports, and is started, stopped and queried with direct
+     * calls, instead of HTTP requests to a separate Solr process.
+     *
+     * @return true if Solr runs embedded
+     */
+    boolean isEmbedded() {
+        return embedded;
+    }
+
+    /**
+     * Get the max. heap of the Solr process, a part of the available physical
+     * memory
+     *
+     * @return max. heap in MB
+     */
+    private static int getSolrMemMb() {
+        final int maxMemMb = "32".equals(System.getProperty("sun.arch.data.model"))
+                ? MAX_SOLR_MEM_MB_32BIT : MAX_SOLR_MEM_MB;
+        final long availMem = PlatformUtil.getPhysicalMemoryAvailable();
+        if (availMem <= 0) {
+            return MIN_SOLR_MEM_MB;
+        }
+        final long memMb = availMem / (1024 * 1024) / 2;
+        return (int) Math.max(MIN_SOLR_MEM_MB, Math.min(maxMemMb, memMb));
     }
 
     @Override
@@ -345,11 +412,15 @@ public class Server {
      * successful.
      */
     void start() throws KeywordSearchModuleException, SolrServerNoPortException {
+        if (embedded) {
+            startEmbedded();
+            return;
+        }
         logger.log(Level.INFO, "Starting Solr server from: " + solrFolder.getAbsolutePath());
         if (available(currentSolrServerPort)) {
             logger.log(Level.INFO, "Port [" + currentSolrServerPort + "] available, starting Solr");
             try {
-                final String MAX_SOLR_MEM_MB_PAR = "-Xmx" + Integer.toString(MAX_SOLR_MEM_MB) + "m";
+                final String MAX_SOLR_MEM_MB_PAR = "-Xmx" + Integer.toString(getSolrMemMb()) + "m";
 
                 String loggingPropertiesOpt = "-Djava.util.logging.config.file=";
                 String loggingPropertiesFilePath = instanceDir + File.separator + "conf" + File.separator;
@@ -410,6 +481,37 @@ public class Server {
         }
     }
 
+    /**
+     * Start Solr embedded in the application process, loading the Solr home
+     * of the Solr process. Returns when Solr is ready.
+     */
+    private synchronized void startEmbedded() throws KeywordSearchModuleException {
+        if (coreContainer != null) {
+            return;
+        }
+        logger.log(Level.INFO, "Starting embedded Solr from: " + instanceDir);
+        try {
+            coreContainer = new CoreContainer(instanceDir, new File(instanceDir, "solr.xml"));
+            logger.log(Level.INFO, "Finished starting embedded Solr");
+        } catch (ParserConfigurationException | IOException | SAXException ex) {
+            logger.log(Level.WARNING, "Could not start embedded Solr", ex);
+            throw new KeywordSearchModuleException("Could not start embedded Solr", ex);
+        }
+    }
+
+    /**
+     * Stop the embedded Solr, closing its cores
+     */
+    private synchronized void stopEmbedded() {
+        if (coreContainer == null) {
+            return;
+        }
+        logger.log(Level.INFO, "Stopping embedded Solr");
+        coreContainer.shutdown();
+        coreContainer = null;
+        logger.log(Level.INFO, "Finished stopping embedded Solr");
+    }
+
     /**
      * Checks to see if a specific port is available.
      *
@@ -465,6 +567,10 @@ public class Server {
      * Waits for the stop command to finish before returning.
      */
     synchronized void stop() {
+        if (embedded) {
+            stopEmbedded();
+            return;
+        }
         try {
             logger.log(Level.INFO, "Stopping Solr server from: " + solrFolder.getAbsolutePath());
             //try graceful shutdown
@@ -512,6 +618,9 @@ public class Server {
      * true
      */
     synchronized boolean isRunning() throws KeywordSearchModuleException {
+        if (embedded) {
+            return coreContainer != null;
+        }
         try {
             // making a status request here instead of just doing solrServer.ping(), because
             // that doesn't work when there are no cores
@@ -592,6 +701,7 @@ public class Server {
         }
         currentCore.close();
         currentCore = null;
+        HighlightCache.getDefault().clear();
         serverAction.putValue(CORE_EVT, CORE_EVT_STATES.STOPPED);
     }
 
@@ -599,6 +709,22 @@ public class Server {
         currentCore.addDocument(doc);
     }
 
+    /**
+     * Add a batch of documents to the index with a single /update request
+     *
+     * @param docs documents to add
+     * @throws KeywordSearchModuleException if the request failed, none or
+     * some of the documents might have been added
+     * @throws NoOpenCoreException if there is no open core
+     */
+    void addDocuments(Collection<SolrInputDocument> docs) throws KeywordSearchModuleException, NoOpenCoreException {
+        final Core core = currentCore;
+        if (core == null) {
+            throw new NoOpenCoreException();
+        }
+        core.addDocuments(docs);
+    }
+
     /**
      * Get index dir location for the case
      *
@@ -637,6 +763,20 @@ public class Server {
         currentCore.commit();
     }
 
+    /**
+     * soft commit current core if it exists: makes the documents added so far
+     * searchable, without flushing the index to disk
+     *
+     * @throws SolrServerException, NoOpenCoreException
+     */
+    void softCommit() throws SolrServerException, NoOpenCoreException {
+        final Core core = currentCore;
+        if (core == null) {
+            throw new NoOpenCoreException();
+        }
+        core.softCommit();
+    }
+
     NamedList<Object> request(SolrRequest request) throws SolrServerException, NoOpenCoreException {
         if (currentCore == null) {
             throw new NoOpenCoreException();
@@ -871,6 +1011,10 @@ public class Server {
                 throw new KeywordSearchModuleException("Core open requested, but server not yet running");
             }
 
+            if (embedded) {
+                return openEmbeddedCore(coreName, dataDir);
+            }
+
             CoreAdminRequest.Create createCore = new CoreAdminRequest.Create();
             createCore.setDataDir(dataDir.getAbsolutePath());
             createCore.setInstanceDir(instanceDir);
@@ -878,7 +1022,7 @@ public class Server {
 
             this.solrServer.request(createCore);
 
-            final Core newCore = new Core(coreName);
+            final Core newCore = new Core(coreName, createHttpCoreServer(coreName));
 
             return newCore;
 
@@ -889,32 +1033,64 @@ public class Server {
         }
     }
 
-    class Core {
+    /**
+     * Open a new core in the embedded Solr
+     *
+     * @param coreName name to refer to the core by in Solr
+     * @param dataDir directory to load/store the core data from/to
+     * @return new core
+     */
+    private synchronized Core openEmbeddedCore(String coreName, File dataDir) throws KeywordSearchModuleException {
+        try {
+            final CoreDescriptor coreDescriptor = new CoreDescriptor(coreContainer, coreName, instanceDir);
+            coreDescriptor.setDataDir(dataDir.getAbsolutePath());
+            final SolrCore solrCore = coreContainer.create(coreDescriptor);
+            coreContainer.register(coreName, solrCore, false);
 
-        // handle to the core in Solr
-        private String name;
-        // the server to access a core needs to be built from a URL with the
-        // core in it, and is only good for core-specific operations
-        private HttpSolrServer solrCore;
+            return new Core(coreName, new EmbeddedSolrServer(coreContainer, coreName));
 
-        private Core(String name) {
-            this.name = name;
+        } catch (ParserConfigurationException | IOException | SAXException | SolrException ex) {
+            throw new KeywordSearchModuleException("Could not open Core", ex);
+        }
+    }
 
-            this.solrCore = new HttpSolrServer(solrUrl + "/" + name);
+    /**
+     * Create the client to access a core of the Solr process
+     *
+     * @param coreName name of the core
+     * @return client to the core
+     */
+    private HttpSolrServer createHttpCoreServer(String coreName) {
+        // the server to access a core needs to be built from a URL with the
+        // core in it, and is only good for core-specific operations
+        final HttpSolrServer solrCore = new HttpSolrServer(solrUrl + "/" + coreName);
+
+        //TODO test these settings
+        //solrCore.setSoTimeout(1000 * 60);  // socket read timeout, make large enough so can index larger files
+        //solrCore.setConnectionTimeout(1000);
+        //enough connections for the parallel index update requests and the queries
+        solrCore.setDefaultMaxConnectionsPerHost(MAX_SOLR_CONNECTIONS);
+        solrCore.setMaxTotalConnections(MAX_SOLR_CONNECTIONS + 2);
+        solrCore.setFollowRedirects(false);  // defaults to false
+        // allowCompression defaults to false.
+        // Server side must support gzip or deflate for this to have any effect.
+        solrCore.setAllowCompression(true);
+        solrCore.setMaxRetries(1); // defaults to 0.  > 1 not recommended.
+        solrCore.setParser(new XMLResponseParser()); // binary parser is used by default
+
+        return solrCore;
+    }
 
-            //TODO test these settings
-            //solrCore.setSoTimeout(1000 * 60);  // socket read timeout, make large enough so can index larger files
-            //solrCore.setConnectionTimeout(1000);
-            solrCore.setDefaultMaxConnectionsPerHost(2);
-            solrCore.setMaxTotalConnections(5);
-            solrCore.setFollowRedirects(false);  // defaults to false
-            // allowCompression defaults to false.
-            // Server side must support gzip or deflate for this to have any effect.
-            solrCore.setAllowCompression(true);
-            solrCore.setMaxRetries(1); // defaults to 0.  > 1 not recommended.
-            solrCore.setParser(new XMLResponseParser()); // binary parser is used by default
+    class Core {
 
+        // handle to the core in Solr
+        private String name;
+        // client for the core-specific operations, over HTTP or embedded
+        private SolrServer solrCore;
 
+        private Core(String name, SolrServer solrCore) {
+            this.name = name;
+            this.solrCore = solrCore;
         }
 
         private QueryResponse query(SolrQuery sq) throws SolrServerException {
@@ -950,6 +1126,16 @@ public class Server {
             }
         }
 
+        private void softCommit() throws SolrServerException {
+            try {
+                //soft commit and block until the new searcher is open
+                solrCore.commit(true, true, true);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not soft commit index. ", e);
+                throw new SolrServerException("Could not soft commit index", e);
+            }
+        }
+
         void addDocument(SolrInputDocument doc) throws KeywordSearchModuleException {
             try {
                 solrCore.add(doc);
@@ -962,6 +1148,16 @@ public class Server {
             }
         }
 
+        void addDocuments(Collection<SolrInputDocument> docs) throws KeywordSearchModuleException {
+            try {
+                solrCore.add(docs);
+            } catch (SolrServerException | IOException | SolrException ex) {
+                final String msg = "Could not add " + docs.size() + " documents to index via update handler";
+                logger.log(Level.WARNING, msg, ex);
+                throw new KeywordSearchModuleException(msg, ex);
+            }
+        }
+
         private String getSolrContent(long contentID, int chunkID) {
             final SolrQuery q = new SolrQuery();
             q.setQuery("*:*");
@@ -980,6 +1176,10 @@ public class Server {
         }
 
         synchronized void close() throws KeywordSearchModuleException {
+            if (embedded) {
+                closeEmbedded();
+                return;
+            }
             try {
                 CoreAdminRequest.unloadCore(this.name, solrServer);
             } catch (SolrServerException ex) {
@@ -989,6 +1189,20 @@ public class Server {
             }
         }
 
+        private void closeEmbedded() throws KeywordSearchModuleException {
+            synchronized (Server.this) {
+                if (coreContainer == null) {
+                    //embedded Solr stopped, with its cores
+                    return;
+                }
+                final SolrCore solrCoreHandle = coreContainer.remove(this.name);
+                if (solrCoreHandle == null) {
+                    throw new KeywordSearchModuleException("Cannot close Core, not open: " + this.name);
+                }
+                solrCoreHandle.close();
+            }
+        }
+
         /**
          * Execute query that gets only number of all Solr files (not chunks)
          * indexed without actually returning the files
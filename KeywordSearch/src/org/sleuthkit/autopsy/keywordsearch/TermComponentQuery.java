@@ -21,7 +21,7 @@ package org.sleuthkit.autopsy.keywordsearch;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -30,15 +30,25 @@ import org.sleuthkit.autopsy.coreutils.Logger;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest.METHOD;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.Group;
+import org.apache.solr.client.solrj.response.GroupCommand;
+import org.apache.solr.client.solrj.response.GroupResponse;
+import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.response.TermsResponse;
 import org.apache.solr.client.solrj.response.TermsResponse.Term;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.GroupParams;
+import org.sleuthkit.autopsy.casemodule.Case;
 import org.sleuthkit.autopsy.coreutils.Version;
 import org.sleuthkit.datamodel.AbstractFile;
 import org.sleuthkit.datamodel.BlackboardArtifact;
 import org.sleuthkit.datamodel.BlackboardArtifact.ARTIFACT_TYPE;
 import org.sleuthkit.datamodel.BlackboardAttribute;
 import org.sleuthkit.datamodel.BlackboardAttribute.ATTRIBUTE_TYPE;
+import org.sleuthkit.datamodel.SleuthkitCase;
 import org.sleuthkit.datamodel.TskException;
 
 public class TermComponentQuery implements KeywordSearchQuery {
@@ -57,9 +67,27 @@ public class TermComponentQuery implements KeywordSearchQuery {
     private final List<KeywordQueryFilter> filters = new ArrayList<KeywordQueryFilter>();
     private String field = null;
     private static int MAX_TERMS_RESULTS = 20000;
+    //terms resolved to documents per grouped query
+    private static final int MAX_GROUP_TERMS = 64;
+    //documents returned per term by a grouped query
+    private static final int MAX_GROUP_RESULTS = 1000;
+    //set if the last query did not get all the hits
+    private volatile boolean failed = false;
     
     private static final boolean DEBUG = (Version.getBuildType() == Version.Type.DEVELOPMENT);
 
+    /**
+     * Receives the hits of the query as they are resolved
+     */
+    public interface HitsHandler {
+
+        /**
+         * @param termHits hits of a batch of matching terms, by term
+         * @return true to continue the query, false to stop it
+         */
+        boolean handleHits(Map<String, List<ContentHit>> termHits);
+    }
+
     public TermComponentQuery(Keyword keywordQuery) {
         this.keywordQuery = keywordQuery;
         this.termsQuery = keywordQuery.getQuery();
@@ -143,6 +171,7 @@ public class TermComponentQuery implements KeywordSearchQuery {
             return termsCol;
         } catch (KeywordSearchModuleException ex) {
             logger.log(Level.WARNING, "Error executing the regex terms query: " + termsQuery, ex);
+            failed = true;
             return null;  //no need to create result view, just display error dialog
         }
     }
@@ -216,50 +245,187 @@ public class TermComponentQuery implements KeywordSearchQuery {
 
     }
 
+    /**
+     * Check if the last performQuery() failed, the hits it returned or passed
+     * to the handler may be incomplete
+     *
+     * @return true if not all the hits were retrieved
+     */
+    boolean isFailed() {
+        return failed;
+    }
+
     @Override
     public Map<String, List<ContentHit>> performQuery() throws NoOpenCoreException {
-        Map<String, List<ContentHit>> results = new HashMap<String, List<ContentHit>>();
+        final Map<String, List<ContentHit>> results = new HashMap<String, List<ContentHit>>();
+        performQuery(new HitsHandler() {
+            @Override
+            public boolean handleHits(Map<String, List<ContentHit>> termHits) {
+                results.putAll(termHits);
+                return true;
+            }
+        });
+        return results;
+    }
 
+    /**
+     * Perform the query and pass the hits of the matching terms to the
+     * handler, a batch of terms at a time, as they are resolved. The hits are
+     * not accumulated, so that a regex matching many terms does not hold all
+     * the hits in memory.
+     *
+     * @param handler handler of the hits
+     * @return true if all the terms were resolved, false if stopped by the
+     * handler
+     * @throws NoOpenCoreException
+     */
+    public boolean performQuery(HitsHandler handler) throws NoOpenCoreException {
+        failed = false;
         final SolrQuery q = createQuery();
         q.setShowDebugInfo(DEBUG);
         q.setTermsLimit(MAX_TERMS_RESULTS); 
         terms = executeQuery(q);
+        if (terms == null) {
+            return true;
+        }
+
+        final SleuthkitCase sc;
+        try {
+            sc = Case.getCurrentCase().getSleuthkitCase();
+        } catch (IllegalStateException ex) {
+            //no case open, must be just closed
+            failed = true;
+            return true;
+        }
 
         int resultSize = 0;
-        
-        for (Term term : terms) {
-            final String termStr = KeywordSearchUtil.escapeLuceneQuery(term.getTerm());
-
-            LuceneQuery filesQuery = new LuceneQuery(termStr);
-            //filesQuery.setField(TERMS_SEARCH_FIELD);
-            for (KeywordQueryFilter filter : filters) {
-                //set filter
-                //note: we can't set filter query on terms query
-                //but setting filter query on terms results query will yield the same result
-                filesQuery.addFilter(filter);
+        for (int i = 0; i < terms.size(); i += MAX_GROUP_TERMS) {
+            final Map<String, List<ContentHit>> termHits =
+                    queryTermHits(sc, terms.subList(i, Math.min(terms.size(), i + MAX_GROUP_TERMS)));
+            for (List<ContentHit> hits : termHits.values()) {
+                resultSize += hits.size();
             }
-            try {
-                Map<String, List<ContentHit>> subResults = filesQuery.performQuery();
-                Set<ContentHit> filesResults = new HashSet<ContentHit>();
-                for (String key : subResults.keySet()) {
-                    List<ContentHit> keyRes = subResults.get(key);
-                    resultSize += keyRes.size();
-                    filesResults.addAll(keyRes);
-                }
-                results.put(term.getTerm(), new ArrayList<ContentHit>(filesResults));
-            } catch (NoOpenCoreException e) {
-                logger.log(Level.WARNING, "Error executing Solr query,", e);
-                throw e;
-            } catch (RuntimeException e) {
-                logger.log(Level.WARNING, "Error executing Solr query,", e);
+            if (!handler.handleHits(termHits)) {
+                return false;
             }
-
         }
-        
-        //TODO limit how many results we store, not to hit memory limits
+
         logger.log(Level.INFO, "Regex # results: " + resultSize);
+        return true;
+    }
 
+    /**
+     * Resolve the documents hit by a batch of terms with a single grouped
+     * query: a group per term, returning the documents that contain the term.
+     * Terms with more hits than a group returns are resolved with their own
+     * query.
+     *
+     * @param sc case of the hits
+     * @param batch terms to resolve
+     * @return hits by term
+     */
+    private Map<String, List<ContentHit>> queryTermHits(SleuthkitCase sc, List<Term> batch) throws NoOpenCoreException {
+        final Map<String, List<ContentHit>> termHits = new HashMap<String, List<ContentHit>>();
+        //group query string -> term
+        final Map<String, String> groupTerms = new HashMap<String, String>();
 
-        return results;
+        final SolrQuery q = new SolrQuery();
+        final StringBuilder sb = new StringBuilder();
+        for (Term term : batch) {
+            final String termQuery = KeywordSearchUtil.quoteQuery(KeywordSearchUtil.escapeLuceneQuery(term.getTerm()));
+            groupTerms.put(termQuery, term.getTerm());
+            q.add(GroupParams.GROUP_QUERY, termQuery);
+            if (sb.length() > 0) {
+                sb.append(" OR ");
+            }
+            sb.append(termQuery);
+        }
+        q.setQuery(sb.toString());
+        q.setShowDebugInfo(DEBUG);
+        q.setFields(Server.Schema.ID.toString());
+        for (KeywordQueryFilter filter : filters) {
+            //note: we can't set filter query on terms query
+            //but setting filter query on terms results query will yield the same result
+            q.addFilterQuery(filter.toString());
+        }
+        q.set(GroupParams.GROUP, true);
+        q.set(GroupParams.GROUP_LIMIT, MAX_GROUP_RESULTS);
+        q.setRows(batch.size());
+
+        final QueryResponse response;
+        try {
+            response = KeywordSearch.getServer().query(q, METHOD.POST);
+        } catch (KeywordSearchModuleException ex) {
+            logger.log(Level.WARNING, "Error executing grouped terms query for regex: " + termsQuery, ex);
+            failed = true;
+            return termHits;
+        }
+
+        final GroupResponse groupResponse = response.getGroupResponse();
+        if (groupResponse == null) {
+            return termHits;
+        }
+        for (GroupCommand command : groupResponse.getValues()) {
+            final String term = groupTerms.get(command.getName());
+            if (term == null) {
+                continue;
+            }
+            for (Group group : command.getValues()) {
+                final SolrDocumentList docs = group.getResult();
+                if (docs.getNumFound() > docs.size()) {
+                    //too many hits for the group, resolve the term with its own (paged) query
+                    termHits.put(term, queryTermHits(term));
+                    continue;
+                }
+                final List<ContentHit> hits = new ArrayList<ContentHit>();
+                for (SolrDocument doc : docs) {
+                    try {
+                        hits.add(LuceneQuery.createContentHit(sc, (String) doc.getFieldValue(Server.Schema.ID.toString())));
+                    } catch (TskException ex) {
+                        logger.log(Level.WARNING, "Could not get the AbstractFile for keyword hit, ", ex);
+                        //something wrong with case/db
+                        failed = true;
+                        return termHits;
+                    }
+                }
+                if (!hits.isEmpty()) {
+                    termHits.put(term, hits);
+                }
+            }
+        }
+        return termHits;
+    }
+
+    /**
+     * Resolve the documents hit by a single term
+     *
+     * @param term the term
+     * @return hits of the term
+     */
+    private List<ContentHit> queryTermHits(String term) throws NoOpenCoreException {
+        final String termStr = KeywordSearchUtil.escapeLuceneQuery(term);
+
+        LuceneQuery filesQuery = new LuceneQuery(termStr);
+        //filesQuery.setField(TERMS_SEARCH_FIELD);
+        for (KeywordQueryFilter filter : filters) {
+            filesQuery.addFilter(filter);
+        }
+        final Set<ContentHit> filesResults = new LinkedHashSet<ContentHit>();
+        try {
+            Map<String, List<ContentHit>> subResults = filesQuery.performQuery();
+            for (List<ContentHit> keyRes : subResults.values()) {
+                filesResults.addAll(keyRes);
+            }
+            if (filesQuery.isFailed()) {
+                failed = true;
+            }
+        } catch (NoOpenCoreException e) {
+            logger.log(Level.WARNING, "Error executing Solr query,", e);
+            throw e;
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Error executing Solr query,", e);
+            failed = true;
+        }
+        return new ArrayList<ContentHit>(filesResults);
     }
 }
@@ -0,0 +1,189 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.keywordsearch;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Divides the text read from a Reader into chunks to index, and encodes every
+ * chunk directly into a byte buffer.
+ *
+ * The text is read in blocks into a char buffer. A full buffer is split after
+ * its last whitespace, so that words are not broken between chunks, and the
+ * chars after the split are carried to the next chunk. The char and byte
+ * buffers are allocated once and reused for every chunk and reader.
+ *
+ * Not thread-safe, every extractor uses its own chunker.
+ */
+class TextChunker {
+
+    //max. chars in a chunk
+    static final int MAX_CHUNK_CHARS = 512 * 1024;
+    //max. chars looked back from the end of a full chunk for a whitespace to split at
+    private static final int MAX_SPLIT_LOOKBACK_CHARS = 4 * 1024;
+    private final char[] chars = new char[MAX_CHUNK_CHARS];
+    private final CharsetEncoder encoder;
+    private ByteBuffer bytes;
+    private Reader reader;
+    //chars in the buffer, carried from the previous chunk or read
+    private int charsLen = 0;
+    private boolean eof = false;
+
+    /**
+     * @param charset encoding of the chunk bytes
+     */
+    TextChunker(Charset charset) {
+        encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        bytes = ByteBuffer.allocate((int) (MAX_CHUNK_CHARS * encoder.maxBytesPerChar()));
+    }
+
+    /**
+     * Start chunking the text of a new reader
+     *
+     * @param reader reader of the text to chunk
+     */
+    void reset(Reader reader) {
+        this.reader = reader;
+        charsLen = 0;
+        eof = false;
+        bytes.clear();
+    }
+
+    /**
+     * Read and encode the next chunk
+     *
+     * @return true if there is a chunk, false if all the text was chunked
+     * @throws IOException if the reader failed
+     */
+    boolean next() throws IOException {
+        //fill the buffer after the chars carried from the previous chunk
+        while (!eof && charsLen < chars.length) {
+            final int read = reader.read(chars, charsLen, chars.length - charsLen);
+            if (read == -1) {
+                eof = true;
+            } else {
+                charsLen += read;
+            }
+        }
+        if (charsLen == 0) {
+            return false;
+        }
+
+        final int chunkLen = eof ? charsLen : findSplit();
+        bytes.clear();
+        encode(CharBuffer.wrap(chars, 0, chunkLen));
+
+        //carry the chars after the split to the next chunk
+        System.arraycopy(chars, chunkLen, chars, 0, charsLen - chunkLen);
+        charsLen -= chunkLen;
+        return true;
+    }
+
+    /**
+     * Check if the current chunk is the last chunk of the text. The end of the
+     * text may be detected only after a full last chunk, in which case the
+     * last chunk is not known as last, and text to add after the last chunk
+     * has to be set as a chunk of its own with setChunk() once next() returns
+     * false.
+     *
+     * @return true if the current chunk is the last
+     */
+    boolean isLastChunk() {
+        return eof && charsLen == 0;
+    }
+
+    /**
+     * Append text to the current chunk, e.g. metadata to the last chunk
+     *
+     * @param text text to append
+     */
+    void append(String text) {
+        encode(CharBuffer.wrap(text));
+    }
+
+    /**
+     * Replace the current chunk with the text, e.g. metadata that could not be
+     * appended to the last chunk
+     *
+     * @param text text of the chunk
+     */
+    void setChunk(String text) {
+        bytes.clear();
+        encode(CharBuffer.wrap(text));
+    }
+
+    /**
+     * @return the buffer with the encoded current chunk, from offset 0. Valid
+     * until the next call of next() or reset().
+     */
+    byte[] getChunkBytes() {
+        return bytes.array();
+    }
+
+    /**
+     * @return length of the encoded current chunk in bytes
+     */
+    int getChunkLength() {
+        return bytes.position();
+    }
+
+    /**
+     * Find where to split a full buffer: after the last whitespace, if not too
+     * far from the end, otherwise at the end, not splitting a surrogate pair
+     */
+    private int findSplit() {
+        final int minSplit = Math.max(1, charsLen - MAX_SPLIT_LOOKBACK_CHARS);
+        for (int i = charsLen; i > minSplit; --i) {
+            if (Character.isWhitespace(chars[i - 1])) {
+                return i;
+            }
+        }
+        return Character.isHighSurrogate(chars[charsLen - 1]) ? charsLen - 1 : charsLen;
+    }
+
+    /**
+     * Encode the chars after the bytes of the current chunk, growing the byte
+     * buffer if needed
+     */
+    private void encode(CharBuffer in) {
+        encoder.reset();
+        //overflow only when appending to a full chunk
+        while (encoder.encode(in, bytes, true).isOverflow()) {
+            grow();
+        }
+        while (encoder.flush(bytes).isOverflow()) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        final ByteBuffer larger = ByteBuffer.allocate(bytes.capacity() * 2);
+        bytes.flip();
+        larger.put(bytes);
+        bytes = larger;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.keywordsearch;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import org.apache.tika.Tika;
+import org.openide.util.lookup.ServiceProvider;
+import org.sleuthkit.autopsy.coreutils.Logger;
+import org.sleuthkit.autopsy.ingest.FileHeader;
+import org.sleuthkit.autopsy.ingest.FileTypeDetector;
+
+/**
+ * Detects the type of the files in the ingest pipeline with Tika, from the
+ * header read by the file type detection stage.
+ */
+@ServiceProvider(service = FileTypeDetector.class)
+public class TikaFileTypeDetector implements FileTypeDetector {
+
+    private static final Logger logger = Logger.getLogger(TikaFileTypeDetector.class.getName());
+    //thread-safe, shared by the file ingest threads
+    private final Tika tika = new Tika();
+
+    @Override
+    public String detect(FileHeader header, String fileName) {
+        try {
+            return tika.detect(header.getStream(), fileName);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not detect format using tika for file: " + fileName, ex);
+            return null;
+        }
+    }
+}
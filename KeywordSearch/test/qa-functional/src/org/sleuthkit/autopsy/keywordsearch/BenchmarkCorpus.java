@@ -0,0 +1,273 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.keywordsearch;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates the synthetic files and keyword lists of the keyword search
+ * benchmark.
+ *
+ * The words of the files are drawn from a generated vocabulary with a Zipf
+ * distribution, like the words of natural text. The same seed generates the
+ * same corpus, so that the results of different runs can be compared.
+ */
+class BenchmarkCorpus {
+
+    /**
+     * Types of the generated files, each indexed by a different extractor
+     */
+    enum Type {
+
+        TEXT("txt"), ///< plain text
+        HTML("html"), ///< HTML pages
+        BINARY("bin"), ///< binary data with embedded ASCII and UTF-16 strings
+        UNALLOCATED("dat"); ///< mostly zeroed and random blocks with sparse strings, like unallocated space
+        private final String extension;
+
+        Type(String extension) {
+            this.extension = extension;
+        }
+
+        String getExtension() {
+            return extension;
+        }
+    }
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset UTF16LE = Charset.forName("UTF-16LE");
+    private static final int MIN_WORD_LEN = 3;
+    private static final int MAX_WORD_LEN = 10;
+    private static final int WORDS_PER_LINE = 12;
+    //bytes between the strings embedded in binary and unallocated data
+    private static final int BINARY_STRING_INTERVAL = 256;
+    private static final int UNALLOCATED_STRING_INTERVAL = 4096;
+    private static final int UNALLOCATED_BLOCK_SIZE = 4096;
+    private final long seed;
+    private final String[] vocabulary;
+    //cumulative Zipf probabilities of the vocabulary words, by rank
+    private final double[] cumulative;
+
+    /**
+     * @param seed seed of the generated vocabulary, files and keywords
+     * @param vocabularySize number of distinct words
+     */
+    BenchmarkCorpus(long seed, int vocabularySize) {
+        this.seed = seed;
+        final Random random = new Random(seed);
+        final Set<String> words = new HashSet<String>();
+        vocabulary = new String[vocabularySize];
+        for (int i = 0; i < vocabularySize;) {
+            final String word = randomWord(random);
+            if (words.add(word)) {
+                vocabulary[i++] = word;
+            }
+        }
+
+        cumulative = new double[vocabularySize];
+        double sum = 0;
+        for (int i = 0; i < vocabularySize; ++i) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < vocabularySize; ++i) {
+            cumulative[i] /= sum;
+        }
+    }
+
+    /**
+     * Generate the files of a type
+     *
+     * @param baseDir directory to generate the files in, in a sub-directory
+     * named after the type
+     * @param type type of the files
+     * @param numFiles number of files
+     * @param fileSize approx. size of every file in bytes
+     * @return the directory of the generated files
+     * @throws IOException if a file could not be written
+     */
+    File generate(File baseDir, Type type, int numFiles, int fileSize) throws IOException {
+        final File dir = new File(baseDir, type.name().toLowerCase());
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create the corpus directory: " + dir.getAbsolutePath());
+        }
+        final Random random = new Random(seed + type.ordinal());
+        for (int i = 0; i < numFiles; ++i) {
+            final File file = new File(dir, type.name().toLowerCase() + i + "." + type.getExtension());
+            final OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                switch (type) {
+                    case TEXT:
+                        writeText(out, random, fileSize);
+                        break;
+                    case HTML:
+                        writeHtml(out, random, fileSize);
+                        break;
+                    case BINARY:
+                        writeBinary(out, random, fileSize, BINARY_STRING_INTERVAL, false);
+                        break;
+                    case UNALLOCATED:
+                        writeBinary(out, random, fileSize, UNALLOCATED_STRING_INTERVAL, true);
+                        break;
+                }
+            } finally {
+                out.close();
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * Get literal keywords, half of the words of the vocabulary (hits) and
+     * half of words not in the files (misses)
+     *
+     * @param count number of keywords
+     * @return the keywords
+     */
+    List<Keyword> getLiteralKeywords(int count) {
+        final Random random = new Random(seed + count);
+        final Set<String> vocabularyWords = new HashSet<String>(Arrays.asList(vocabulary));
+        final Set<String> queries = new HashSet<String>();
+        final List<Keyword> keywords = new ArrayList<Keyword>();
+        while (keywords.size() < count) {
+            final String query;
+            if (keywords.size() % 2 == 0) {
+                query = vocabulary[random.nextInt(vocabulary.length)];
+            } else {
+                final String word = randomWord(random);
+                if (vocabularyWords.contains(word)) {
+                    continue;
+                }
+                query = word;
+            }
+            if (queries.add(query)) {
+                keywords.add(new Keyword(query, true));
+            }
+        }
+        return keywords;
+    }
+
+    /**
+     * Get regular expressions matching the words of the vocabulary with a
+     * prefix
+     *
+     * @param count number of regular expressions
+     * @return the regular expressions
+     */
+    List<Keyword> getRegexKeywords(int count) {
+        final Random random = new Random(seed - count);
+        final Set<String> queries = new HashSet<String>();
+        final List<Keyword> keywords = new ArrayList<Keyword>();
+        while (keywords.size() < count) {
+            final String word = vocabulary[random.nextInt(vocabulary.length)];
+            final String query = word.substring(0, MIN_WORD_LEN) + "[a-z]*";
+            if (queries.add(query)) {
+                keywords.add(new Keyword(query, false));
+            }
+        }
+        return keywords;
+    }
+
+    private void writeText(OutputStream out, Random random, int size) throws IOException {
+        int written = 0;
+        while (written < size) {
+            final String line = randomLine(random) + "\n";
+            final byte[] bytes = line.getBytes(UTF8);
+            out.write(bytes);
+            written += bytes.length;
+        }
+    }
+
+    private void writeHtml(OutputStream out, Random random, int size) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<html><head><title>").append(randomLine(random)).append("</title></head>\n<body>\n");
+        while (sb.length() < size) {
+            sb.append("<p>").append(randomLine(random));
+            sb.append(" <a href=\"http://").append(randomWord(random)).append(".com/\">").append(randomWord(random)).append("</a> ");
+            sb.append("<b>").append(randomLine(random)).append("</b></p>\n");
+        }
+        sb.append("</body></html>\n");
+        out.write(sb.toString().getBytes(UTF8));
+    }
+
+    /**
+     * Write random binary data with strings embedded at about the interval.
+     * Unallocated-like data alternates zeroed and random blocks.
+     */
+    private void writeBinary(OutputStream out, Random random, int size, int stringInterval, boolean unallocated) throws IOException {
+        final byte[] block = new byte[stringInterval];
+        int written = 0;
+        while (written < size) {
+            if (unallocated && random.nextBoolean()) {
+                Arrays.fill(block, (byte) 0);
+            } else {
+                random.nextBytes(block);
+            }
+            out.write(block);
+            written += block.length;
+
+            final String string = randomLine(random);
+            final byte[] bytes = string.getBytes(random.nextInt(4) == 0 ? UTF16LE : UTF8);
+            out.write(bytes);
+            written += bytes.length;
+        }
+        //round unallocated data to blocks
+        if (unallocated && written % UNALLOCATED_BLOCK_SIZE != 0) {
+            out.write(new byte[UNALLOCATED_BLOCK_SIZE - written % UNALLOCATED_BLOCK_SIZE]);
+        }
+    }
+
+    private String randomLine(Random random) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < WORDS_PER_LINE; ++i) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(zipfWord(random));
+        }
+        return sb.toString();
+    }
+
+    private String zipfWord(Random random) {
+        int i = Arrays.binarySearch(cumulative, random.nextDouble());
+        if (i < 0) {
+            i = Math.min(-i - 1, vocabulary.length - 1);
+        }
+        return vocabulary[i];
+    }
+
+    private static String randomWord(Random random) {
+        final int len = MIN_WORD_LEN + random.nextInt(MAX_WORD_LEN - MIN_WORD_LEN + 1);
+        final char[] chars = new char[len];
+        for (int i = 0; i < len; ++i) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+}
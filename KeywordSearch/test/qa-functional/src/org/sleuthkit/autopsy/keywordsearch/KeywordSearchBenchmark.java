@@ -0,0 +1,502 @@
+/*
+ * Autopsy Forensic Browser
+ *
+ * Copyright 2013 Basis Technology Corp.
+ * Contact: carrier <at> sleuthkit <dot> org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sleuthkit.autopsy.keywordsearch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import javax.swing.SwingUtilities;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import org.netbeans.junit.NbModuleSuite;
+import org.sleuthkit.autopsy.casemodule.Case;
+import org.sleuthkit.autopsy.coreutils.Logger;
+import org.sleuthkit.autopsy.coreutils.StringExtract.StringExtractUnicodeTable.SCRIPT;
+import org.sleuthkit.autopsy.keywordsearch.Ingester.IngesterException;
+import org.sleuthkit.datamodel.AbstractFile;
+import org.sleuthkit.datamodel.Content;
+import org.sleuthkit.datamodel.TskCoreException;
+
+/**
+ * Measures the indexing and search performance of the module on synthetic
+ * corpora, in the application started by NbModuleSuite and without user
+ * interaction. Not a regular test, it is not run with the other tests.
+ *
+ * Run with ant benchmark in the module (ant benchmark-keywordsearch in the
+ * suite), which sets the autopsy.keywordsearch.benchmark system property to
+ * the output dir. A case is created in the output dir, and the corpora are
+ * generated and added to it as local files. Every corpus is indexed by its
+ * extractor and committed, then the index is searched with keyword lists of
+ * increasing sizes. Every measurement is repeated after warm-up runs. The
+ * report is written to the output dir.
+ *
+ * Reported: indexing MB/s and docs/s (extraction to commit), commit latency,
+ * query latency per keyword list size for the Lucene, batch and regex
+ * (terms) queries, the inline literal matching MB/s, and the string extraction
+ * MB/s of AbstractFileStringStream (StringScanner) compared with the previous
+ * stream (LegacyStringStream).
+ */
+public class KeywordSearchBenchmark extends TestCase {
+
+    static final String BENCHMARK_PROPERTY = "autopsy.keywordsearch.benchmark";
+    private static final Logger logger = Logger.getLogger(KeywordSearchBenchmark.class.getName());
+    private static final String REPORT_FILE = "keywordsearch-benchmark.txt";
+    private static final long SEED = 1234567L;
+    private static final int VOCABULARY_SIZE = 50000;
+    private static final int WARMUP_ITERATIONS = 1;
+    private static final int MEASURED_ITERATIONS = 3;
+    private static final int[] LITERAL_LIST_SIZES = {1, 10, 100, 1000};
+    private static final int[] REGEX_LIST_SIZES = {1, 10, 50};
+    private static final double MB = 1024 * 1024;
+    private File outputDir;
+    private final BenchmarkCorpus corpus = new BenchmarkCorpus(SEED, VOCABULARY_SIZE);
+    private final Map<BenchmarkCorpus.Type, List<AbstractFile>> files = new HashMap<BenchmarkCorpus.Type, List<AbstractFile>>();
+    private PrintWriter report;
+
+    /**
+     * Number and size of the files of every corpus
+     */
+    private enum CorpusSize {
+
+        TEXT(BenchmarkCorpus.Type.TEXT, 500, 256 * 1024),
+        HTML(BenchmarkCorpus.Type.HTML, 500, 256 * 1024),
+        BINARY(BenchmarkCorpus.Type.BINARY, 100, 4 * 1024 * 1024),
+        UNALLOCATED(BenchmarkCorpus.Type.UNALLOCATED, 4, 64 * 1024 * 1024);
+        private final BenchmarkCorpus.Type type;
+        private final int numFiles;
+        private final int fileSize;
+
+        CorpusSize(BenchmarkCorpus.Type type, int numFiles, int fileSize) {
+            this.type = type;
+            this.numFiles = numFiles;
+            this.fileSize = fileSize;
+        }
+    }
+
+    /**
+     * String streams compared by the string extraction case
+     */
+    private enum StringStreamType {
+
+        LEGACY("legacy"), ///< the stream before StringScanner, ASCII only
+        SCANNER_ASCII("scanner-ascii"), ///< AbstractFileStringStream, ASCII only
+        SCANNER_ALL("scanner-utf8-utf16"), ///< AbstractFileStringStream, ASCII, UTF-8 and UTF-16
+        STRING_EXTRACT("stringextract-latin2"); ///< AbstractFileStringIntStream (StringExtract), default LATIN_2 script, UTF-8 and UTF-16
+        private final String displayName;
+
+        StringStreamType(String displayName) {
+            this.displayName = displayName;
+        }
+
+        InputStream open(AbstractFile file, Charset charset) {
+            switch (this) {
+                case LEGACY:
+                    return new LegacyStringStream(file, charset);
+                case SCANNER_ASCII:
+                    return new AbstractFileStringStream(file, charset, false, false);
+                case SCANNER_ALL:
+                    return new AbstractFileStringStream(file, charset, true, true);
+                default:
+                    return new AbstractFileStringIntStream(file, Arrays.asList(SCRIPT.LATIN_2), true, true, charset);
+            }
+        }
+    }
+
+    /**
+     * Constructor required by JUnit
+     */
+    public KeywordSearchBenchmark(String name) {
+        super(name);
+    }
+
+    /**
+     * Runs the benchmark in the application, with all the modules enabled
+     */
+    public static Test suite() {
+        NbModuleSuite.Configuration conf = NbModuleSuite.createConfiguration(KeywordSearchBenchmark.class).
+                clusters(".*").
+                enableModules(".*");
+        conf = conf.addTest("testBenchmark");
+        return NbModuleSuite.create(conf);
+    }
+
+    public void testBenchmark() throws Exception {
+        final String outputPath = System.getProperty(BENCHMARK_PROPERTY);
+        if (outputPath == null) {
+            logger.log(Level.INFO, "Skipping the keyword search benchmark, " + BENCHMARK_PROPERTY + " is not set");
+            return;
+        }
+        outputDir = new File(outputPath);
+        try {
+            runBenchmark();
+        } finally {
+            if (report != null) {
+                report.close();
+            }
+        }
+    }
+
+    private void runBenchmark() throws Exception {
+        if (!outputDir.exists() && !outputDir.mkdirs()) {
+            throw new IOException("Could not create the benchmark output dir: " + outputDir.getAbsolutePath());
+        }
+        final File reportFile = new File(outputDir, REPORT_FILE);
+        report = new PrintWriter(new OutputStreamWriter(new FileOutputStream(reportFile), "UTF-8"));
+        logger.log(Level.INFO, "Running the keyword search benchmark, report: " + reportFile.getAbsolutePath());
+        report.println("Keyword search benchmark, " + new java.util.Date());
+        report.println("Solr embedded: " + KeywordSearch.getServer().isEmbedded()
+                + ", max. heap (MB): " + Runtime.getRuntime().maxMemory() / (1024 * 1024)
+                + ", processors: " + Runtime.getRuntime().availableProcessors());
+        report.println("Iterations: " + WARMUP_ITERATIONS + " warm-up, " + MEASURED_ITERATIONS + " measured (mean reported)");
+        report.println();
+
+        createCase();
+        addCorpora();
+
+        report.println("Indexing");
+        report.println(String.format("%-12s %-28s %10s %10s %10s %14s", "corpus", "extractor", "MB", "MB/s", "docs/s", "commit (ms)"));
+        measureIndexing(BenchmarkCorpus.Type.TEXT, new AbstractFileTikaTextExtract());
+        measureIndexing(BenchmarkCorpus.Type.HTML, new AbstractFileHtmlExtract());
+        measureIndexing(BenchmarkCorpus.Type.BINARY, createStringExtract());
+        measureIndexing(BenchmarkCorpus.Type.UNALLOCATED, createStringExtract());
+        report.println();
+
+        report.println("Queries, latency (ms) per keyword");
+        report.println(String.format("%-14s %8s %10s %10s %10s %12s %10s", "query", "keywords", "mean", "p50", "p95", "total (ms)", "hits"));
+        for (int size : LITERAL_LIST_SIZES) {
+            measureLiteralQueries(corpus.getLiteralKeywords(size));
+        }
+        for (int size : REGEX_LIST_SIZES) {
+            measureRegexQueries(corpus.getRegexKeywords(size));
+        }
+        report.println();
+
+        report.println("Inline literal matching of the text corpus");
+        report.println(String.format("%8s %10s %10s", "keywords", "MB/s", "hits"));
+        for (int size : LITERAL_LIST_SIZES) {
+            measureInlineMatching(corpus.getLiteralKeywords(size));
+        }
+        report.println();
+
+        report.println("String extraction");
+        report.println(String.format("%-12s %-28s %10s %10s %12s", "corpus", "stream", "MB", "MB/s", "strings MB"));
+        for (StringStreamType streamType : StringStreamType.values()) {
+            measureStringExtraction(BenchmarkCorpus.Type.BINARY, streamType);
+        }
+        for (StringStreamType streamType : StringStreamType.values()) {
+            measureStringExtraction(BenchmarkCorpus.Type.UNALLOCATED, streamType);
+        }
+        report.flush();
+        logger.log(Level.INFO, "Keyword search benchmark done");
+    }
+
+    /**
+     * Create the case of the benchmark, which opens the index
+     */
+    private void createCase() throws Exception {
+        final File caseDir = new File(outputDir, "case-" + System.currentTimeMillis());
+        if (!caseDir.mkdirs()) {
+            throw new IOException("Could not create the benchmark case dir: " + caseDir.getAbsolutePath());
+        }
+        final Exception[] error = new Exception[1];
+        try {
+            SwingUtilities.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Case.create(caseDir.getAbsolutePath(), "KeywordSearchBenchmark", "", "");
+                    } catch (Exception ex) {
+                        error[0] = ex;
+                    }
+                }
+            });
+        } catch (InvocationTargetException ex) {
+            throw new IOException("Could not create the benchmark case", ex.getCause());
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+    }
+
+    /**
+     * Generate the corpora and add them to the case as local files
+     */
+    private void addCorpora() throws IOException, TskCoreException {
+        final File corpusDir = new File(outputDir, "corpus");
+        for (CorpusSize size : CorpusSize.values()) {
+            final File dir = corpus.generate(corpusDir, size.type, size.numFiles, size.fileSize);
+            final Content root = Case.getCurrentCase().getServices().getFileManager()
+                    .addLocalFilesDirs(Collections.singletonList(dir.getAbsolutePath()), null);
+            final List<AbstractFile> typeFiles = new ArrayList<AbstractFile>();
+            collectFiles(root, typeFiles);
+            files.put(size.type, typeFiles);
+            logger.log(Level.INFO, "Benchmark corpus " + size.type + ": " + typeFiles.size() + " files");
+        }
+    }
+
+    private static void collectFiles(Content content, List<AbstractFile> collected) throws TskCoreException {
+        for (Content child : content.getChildren()) {
+            if (child instanceof AbstractFile && !((AbstractFile) child).isDir() && child.getSize() > 0) {
+                collected.add((AbstractFile) child);
+            }
+            collectFiles(child, collected);
+        }
+    }
+
+    private static AbstractFileStringExtract createStringExtract() {
+        final AbstractFileStringExtract stringExtract = new AbstractFileStringExtract();
+        stringExtract.setScripts(KeywordSearchSettings.getStringExtractScripts());
+        stringExtract.setOptions(KeywordSearchSettings.getStringExtractOptions());
+        return stringExtract;
+    }
+
+    /**
+     * Index a corpus with an extractor and commit, repeatedly
+     */
+    private void measureIndexing(BenchmarkCorpus.Type type, AbstractFileExtract extractor) {
+        final Ingester ingester = Server.getIngester();
+        final List<AbstractFile> typeFiles = files.get(type);
+        long bytes = 0;
+        long docs = 0;
+        long totalMs = 0;
+        long commitMs = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; ++i) {
+            long iterationBytes = 0;
+            long iterationDocs = 0;
+            final long start = System.currentTimeMillis();
+            for (AbstractFile file : typeFiles) {
+                try {
+                    if (extractor.index(file)) {
+                        iterationBytes += file.getSize();
+                        //the chunks and the parent document
+                        iterationDocs += extractor.getNumChunks() + 1;
+                    }
+                } catch (IngesterException ex) {
+                    logger.log(Level.WARNING, "Benchmark could not index file: " + file.getName(), ex);
+                }
+            }
+            final long extracted = System.currentTimeMillis();
+            //waits for the documents still queued
+            ingester.commit();
+            final long committed = System.currentTimeMillis();
+
+            if (i >= WARMUP_ITERATIONS) {
+                bytes += iterationBytes;
+                docs += iterationDocs;
+                totalMs += committed - start;
+                commitMs += committed - extracted;
+            }
+        }
+        final double seconds = Math.max(1, totalMs) / 1000.0;
+        report.println(String.format("%-12s %-28s %10.1f %10.2f %10.1f %14d",
+                type.name().toLowerCase(), extractor.getClass().getSimpleName(),
+                bytes / MB / MEASURED_ITERATIONS, bytes / MB / seconds, docs / seconds,
+                commitMs / MEASURED_ITERATIONS));
+        report.flush();
+    }
+
+    /**
+     * Search the literal keywords one by one and with batch queries
+     */
+    private void measureLiteralQueries(List<Keyword> keywords) throws NoOpenCoreException, KeywordSearchModuleException {
+        final long[] latencies = new long[keywords.size() * MEASURED_ITERATIONS];
+        long hits = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; ++i) {
+            int k = 0;
+            for (Keyword keyword : keywords) {
+                final LuceneQuery query = new LuceneQuery(keyword);
+                query.escape();
+                final long start = System.nanoTime();
+                final Map<String, List<ContentHit>> results = query.performQuery();
+                final long latency = System.nanoTime() - start;
+                if (i >= WARMUP_ITERATIONS) {
+                    latencies[(i - WARMUP_ITERATIONS) * keywords.size() + k] = latency;
+                    hits += countHits(results);
+                }
+                ++k;
+            }
+        }
+        printLatencies("lucene", keywords.size(), latencies, 1, hits / MEASURED_ITERATIONS);
+
+        //a batch query searches all the keywords
+        final long[] batchLatencies = new long[MEASURED_ITERATIONS];
+        hits = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; ++i) {
+            final LuceneBatchQuery batchQuery = new LuceneBatchQuery(keywords);
+            final long start = System.nanoTime();
+            final Map<Keyword, List<ContentHit>> results = batchQuery.performQuery();
+            final long latency = System.nanoTime() - start;
+            if (i >= WARMUP_ITERATIONS) {
+                batchLatencies[i - WARMUP_ITERATIONS] = latency;
+                for (List<ContentHit> keywordHits : results.values()) {
+                    hits += keywordHits.size();
+                }
+            }
+        }
+        printLatencies("lucene-batch", keywords.size(), batchLatencies, keywords.size(), hits / MEASURED_ITERATIONS);
+    }
+
+    /**
+     * Search the regular expressions one by one
+     */
+    private void measureRegexQueries(List<Keyword> keywords) throws NoOpenCoreException {
+        final long[] latencies = new long[keywords.size() * MEASURED_ITERATIONS];
+        long hits = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; ++i) {
+            int k = 0;
+            for (Keyword keyword : keywords) {
+                final TermComponentQuery query = new TermComponentQuery(keyword);
+                final long start = System.nanoTime();
+                final Map<String, List<ContentHit>> results = query.performQuery();
+                final long latency = System.nanoTime() - start;
+                if (i >= WARMUP_ITERATIONS) {
+                    latencies[(i - WARMUP_ITERATIONS) * keywords.size() + k] = latency;
+                    hits += countHits(results);
+                }
+                ++k;
+            }
+        }
+        printLatencies("regex-terms", keywords.size(), latencies, 1, hits / MEASURED_ITERATIONS);
+    }
+
+    /**
+     * Match the literal keywords inline in the files of the text corpus, as
+     * done when their chunks are indexed
+     */
+    private void measureInlineMatching(List<Keyword> keywords) throws IOException {
+        final Map<Keyword, KeywordSearchListsAbstract.KeywordSearchList> keywordToList =
+                new HashMap<Keyword, KeywordSearchListsAbstract.KeywordSearchList>();
+        for (Keyword keyword : keywords) {
+            keywordToList.put(keyword, null);
+        }
+        final InlineKeywordMatcher matcher = new InlineKeywordMatcher(keywordToList, Collections.<String>emptySet());
+        final Charset charset = Charset.forName("UTF-8");
+        final File textDir = new File(new File(outputDir, "corpus"), BenchmarkCorpus.Type.TEXT.name().toLowerCase());
+        final File[] textFiles = textDir.listFiles();
+        Arrays.sort(textFiles);
+
+        long bytes = 0;
+        long nanos = 0;
+        long hits = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; ++i) {
+            for (File textFile : textFiles) {
+                final byte[] content = Files.readAllBytes(textFile.toPath());
+                final long start = System.nanoTime();
+                final int fileHits = matcher.match(charset.decode(ByteBuffer.wrap(content))).size();
+                final long elapsed = System.nanoTime() - start;
+                if (i >= WARMUP_ITERATIONS) {
+                    bytes += content.length;
+                    nanos += elapsed;
+                    hits += fileHits;
+                }
+            }
+        }
+        report.println(String.format("%8d %10.2f %10d", keywords.size(),
+                bytes / MB / (Math.max(1, nanos) / 1e9), hits / MEASURED_ITERATIONS));
+        report.flush();
+    }
+
+    /**
+     * Read the strings of the files of a corpus with a string stream, without
+     * indexing them
+     */
+    private void measureStringExtraction(BenchmarkCorpus.Type type, StringStreamType streamType) throws IOException {
+        final Charset charset = Charset.forName("UTF-8");
+        final byte[] buf = new byte[64 * 1024];
+        long bytes = 0;
+        long stringBytes = 0;
+        long nanos = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; ++i) {
+            for (AbstractFile file : files.get(type)) {
+                long fileStringBytes = 0;
+                final long start = System.nanoTime();
+                final InputStream stream = streamType.open(file, charset);
+                try {
+                    int read;
+                    while ((read = stream.read(buf, 0, buf.length)) != -1) {
+                        fileStringBytes += read;
+                    }
+                } finally {
+                    stream.close();
+                }
+                final long elapsed = System.nanoTime() - start;
+                if (i >= WARMUP_ITERATIONS) {
+                    bytes += file.getSize();
+                    stringBytes += fileStringBytes;
+                    nanos += elapsed;
+                }
+            }
+        }
+        report.println(String.format("%-12s %-28s %10.1f %10.2f %12.1f",
+                type.name().toLowerCase(), streamType.displayName,
+                bytes / MB / MEASURED_ITERATIONS, bytes / MB / (Math.max(1, nanos) / 1e9),
+                stringBytes / MB / MEASURED_ITERATIONS));
+        report.flush();
+    }
+
+    private static long countHits(Map<String, List<ContentHit>> results) {
+        long hits = 0;
+        for (List<ContentHit> termHits : results.values()) {
+            hits += termHits.size();
+        }
+        return hits;
+    }
+
+    /**
+     * Report the latencies of the queries of a keyword list
+     *
+     * @param query type of the query
+     * @param keywords number of keywords in the list
+     * @param latencies measured query latencies (ns)
+     * @param keywordsPerQuery number of keywords searched by a query
+     * @param hits hits found in the list
+     */
+    private void printLatencies(String query, int keywords, long[] latencies, int keywordsPerQuery, long hits) {
+        final long[] sorted = Arrays.copyOf(latencies, latencies.length);
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long latency : sorted) {
+            total += latency;
+        }
+        final double perKeywordMs = 1e6 * keywordsPerQuery;
+        report.println(String.format("%-14s %8d %10.2f %10.2f %10.2f %12.1f %10d", query, keywords,
+                total / perKeywordMs / sorted.length, percentile(sorted, 50) / perKeywordMs,
+                percentile(sorted, 95) / perKeywordMs, total / 1e6 / MEASURED_ITERATIONS, hits));
+        report.flush();
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        final int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
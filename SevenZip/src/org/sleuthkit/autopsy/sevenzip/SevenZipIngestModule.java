@@ -24,7 +24,6 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -91,9 +90,7 @@ public final class SevenZipIngestModule extends IngestModuleAbstractFile {
     //counts archive depth
     private ArchiveDepthCountTree archiveDepthCountTree;
     //buffer for checking file headers and signatures
-    private static final int readHeaderSize = 4;
-    private final byte[] fileHeaderBuffer = new byte[readHeaderSize];
-    private static final int ZIP_SIGNATURE_BE = 0x504B0304;
+    private static final byte[] ZIP_SIGNATURE = {0x50, 0x4B, 0x03, 0x04};
 
     //private constructor to ensure singleton instance 
     private SevenZipIngestModule() {
@@ -620,7 +617,6 @@ public final class SevenZipIngestModule extends IngestModuleAbstractFile {
         }
 
         //if no extension match, check for zip signature
-        //(note, in near future, we will use pre-detected content type)
         return isZipFileHeader(file);
 
     }
@@ -632,26 +628,8 @@ public final class SevenZipIngestModule extends IngestModuleAbstractFile {
      * @return true if zip file, false otherwise
      */
     private boolean isZipFileHeader(AbstractFile file) {
-        if (file.getSize() < readHeaderSize) {
-            return false;
-        }
-
-        int bytesRead = 0;
-        try {
-            bytesRead = file.read(fileHeaderBuffer, 0, readHeaderSize);
-        } catch (TskCoreException ex) {
-            //ignore if can't read the first few bytes, not a ZIP
-            return false;
-        }
-        if (bytesRead != readHeaderSize) {
-            return false;
-        }
-
-        ByteBuffer bytes = ByteBuffer.wrap(fileHeaderBuffer);
-        int signature = bytes.getInt();
-
-        return signature == ZIP_SIGNATURE_BE;
-
+        //header read once by the file type detection stage of the pipeline
+        return services.getFileHeader(file).startsWith(ZIP_SIGNATURE);
     }
 
     /**
@@ -40,7 +40,6 @@ import org.sleuthkit.datamodel.BlackboardAttribute;
 import org.sleuthkit.datamodel.BlackboardAttribute.ATTRIBUTE_TYPE;
 import org.sleuthkit.datamodel.ReadContentInputStream;
 import org.sleuthkit.datamodel.TskCoreException;
-import org.sleuthkit.datamodel.TskException;
 import org.xml.sax.SAXException;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.sleuthkit.autopsy.casemodule.Case;
@@ -61,6 +60,8 @@ public class ThunderbirdMboxFileIngestModule extends IngestModuleAbstractFile {
     private static int messageId = 0;
     private Case currentCase;
     private static final String MODULE_NAME = "Thunderbird Parser";
+    //mbox files start with the "From " line of the first message
+    private static final byte[] MBOX_SIGNATURE = "From ".getBytes();
     private final String hashDBModuleName = "Hash Lookup";
     final public static String MODULE_VERSION = "1.0";
 
@@ -90,16 +91,9 @@ public class ThunderbirdMboxFileIngestModule extends IngestModuleAbstractFile {
             return ProcessResult.OK;
         }
 
-        try {
-            byte[] t = new byte[64];
-            if (abstractFile.getSize() > 64) {
-                int byteRead = abstractFile.read(t, 0, 64);
-                if (byteRead > 0) {
-                    isMbox = mbox.isValidMimeTypeMbox(t);
-                }
-            }
-        } catch (TskException ex) {
-            logger.log(Level.WARNING, null, ex);
+        //header read once by the file type detection stage of the pipeline
+        if (abstractFile.getSize() > 64) {
+            isMbox = services.getFileHeader(abstractFile).startsWith(MBOX_SIGNATURE);
         }
 
 